@@ -9,63 +9,181 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.geoserver.ows.util.OwsUtils;
 
+/**
+ * Monitor DAO keeping the running requests, and a bounded history of the completed ones, in
+ * memory.
+ * <p>
+ * Once the history is full the oldest requests are dropped to make room for the new ones, the
+ * number of requests dropped is available from {@link #getDroppedCount()}.
+ * </p>
+ */
 public class MemoryMonitorDAO implements MonitorDAO {
 
-    Queue<RequestData> live = new ConcurrentLinkedQueue<RequestData>();
-    Queue<RequestData> history = new ConcurrentLinkedQueue<RequestData>();
+    /**
+     * Default number of completed requests kept in memory
+     */
+    public static final int DEFAULT_MAX_HISTORY = 100;
+
+    Map<Long, RequestData> live = new ConcurrentHashMap<Long, RequestData>();
+    BlockingQueue<RequestData> history;
     
     AtomicLong REQUEST_ID_GEN = new AtomicLong(1);
     
+    AtomicLong dropped = new AtomicLong();
+    
+    public MemoryMonitorDAO() {
+        this(DEFAULT_MAX_HISTORY);
+    }
+    
+    /**
+     * Creates the DAO
+     * 
+     * @param maxHistory The maximum number of completed requests kept in memory
+     */
+    public MemoryMonitorDAO(int maxHistory) {
+        if (maxHistory <= 0) {
+            throw new IllegalArgumentException("History size must be positive: " + maxHistory);
+        }
+        history = new ArrayBlockingQueue<RequestData>(maxHistory);
+    }
+    
     public RequestData init(RequestData data) {
         data.setId(REQUEST_ID_GEN.getAndIncrement());
         return data;
     }
     
     public void add(RequestData data) {
-        live.add(data);
+        live.put(data.getId(), data);
     }
 
     public void update(RequestData data) {
     }
 
     public void save(RequestData data) {
-        live.remove(data);
-        history.add(data);
+        live.remove(data.getId());
         
-        if (history.size() > 100) {
-            history.remove();
+        // make room for the new request dropping the oldest ones
+        while (!history.offer(data)) {
+            if (history.poll() != null) {
+                dropped.incrementAndGet();
+            }
         }
     }
     
+    /**
+     * Returns the number of completed requests dropped from the history to respect its size
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the maximum number of completed requests kept in memory
+     */
+    public int getMaxHistory() {
+        return history.size() + history.remainingCapacity();
+    }
+    
     public RequestData getRequest(long id) {
-        for (RequestData r : getRequests()) {
-            if (r.getId() == id) {
-                return r;
+        RequestData r = live.get(id);
+        if (r != null) {
+            return r;
+        }
+        for (RequestData h : history) {
+            if (h.getId() == id) {
+                return h;
             }
         }
         return null;
     }
     
     public List<RequestData> getRequests() {
-        List<RequestData> requests = new LinkedList();
-        requests.addAll(live);
+        List<RequestData> requests = running();
         requests.addAll(history);
         return requests;
     }
+    
+    /**
+     * Returns the running requests, in arrival order
+     */
+    List<RequestData> running() {
+        List<RequestData> running = new ArrayList<RequestData>(live.values());
+        Collections.sort(running, new Comparator<RequestData>() {
+            public int compare(RequestData r1, RequestData r2) {
+                return r1.getId() < r2.getId() ? -1 : (r1.getId() == r2.getId() ? 0 : 1);
+            }
+        });
+        return running;
+    }
         
     public List<RequestData> getRequests(Query q) {
-        List<RequestData> requests = getRequests();
-       
+        final List<RequestData> requests = new ArrayList<RequestData>();
+        getRequests(q, new RequestDataVisitor() {
+            public void visit(RequestData data, Object... aggregates) {
+                requests.add(data);
+            }
+        });
+        return requests;
+    }
+    
+    public void getRequests(Query q, RequestDataVisitor visitor) {
+        Sorter sorter = null;
+        if (q.getSortBy() != null) {
+            sorter = new Sorter(q.getSortBy(), q.getSortOrder());
+        }
+        else if (q.getFromDate() != null || q.getToDate() != null) {
+            sorter = new Sorter("startTime", SortOrder.DESC);
+        }
+        
+        if (sorter == null) {
+            // no sorting, stream the matches straight to the visitor
+            scan(q, visitor);
+            return;
+        }
+        
+        // sorting needs the page in memory
+        List<RequestData> page = new ArrayList<RequestData>();
+        scan(q, page);
+        Collections.sort(page, sorter);
+        for (RequestData r : page) {
+            visitor.visit(r);
+        }
+    }
+    
+    public long getCount(Query q) {
+        final long[] count = new long[1];
+        scan(q, new RequestDataVisitor() {
+            public void visit(RequestData data, Object... aggregates) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+    
+    void scan(Query q, final List<RequestData> page) {
+        scan(q, new RequestDataVisitor() {
+            public void visit(RequestData data, Object... aggregates) {
+                page.add(data);
+            }
+        });
+    }
+    
+    /**
+     * Visits the requests matching the query filter and date range, applying offset and count,
+     * without copying the history
+     */
+    void scan(Query q, RequestDataVisitor visitor) {
         List<Predicate> predicates = new ArrayList();
         if (q.getFilter() != null) {
             Filter f = q.getFilter();
@@ -75,45 +193,27 @@ public class MemoryMonitorDAO implements MonitorDAO {
             predicates.add(new DateRange(q.getFromDate(), q.getToDate()));
         }
         
-        int i = 1, count = 0;
+        long skip = q.getOffset() != null ? q.getOffset() : 0;
+        long count = 0;
         
-O:      for (Iterator<RequestData> it = requests.iterator(); it.hasNext();) {
-            RequestData r = it.next();
-            for (Predicate p : predicates) {
-                if (!p.matches(r)) {
-                    it.remove();
-                    continue O;
+        for (Iterable<RequestData> requests : new Iterable[] {running(), history}) {
+O:          for (RequestData r : requests) {
+                if (q.getCount() != null && q.getCount() <= count) {
+                    return;
                 }
+                for (Predicate p : predicates) {
+                    if (!p.matches(r)) {
+                        continue O;
+                    }
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                count++;
+                visitor.visit(r);
             }
-        
-            if (q.getOffset() != null && q.getOffset() >= i++) {
-                it.remove();
-                continue;
-            }
-            if (q.getCount() != null && q.getCount() <= count) {
-                it.remove();
-                continue;       
-            }
-            count++;
-        }
-        
-        if (q.getSortBy() != null) {
-            Collections.sort(requests, new Sorter(q.getSortBy(), q.getSortOrder()));
         }
-        else if (q.getFromDate() != null || q.getToDate() != null) {
-            Collections.sort(requests, new Sorter("startTime", SortOrder.DESC));
-        }
-        return requests;
-    }
-    
-    public void getRequests(Query query, RequestDataVisitor visitor) {
-        for (RequestData r : getRequests(query)) {
-            visitor.visit(r);
-        }
-    }
-    
-    public long getCount(Query query) {
-        return getRequests(query).size();
     }
     
     public Iterator<RequestData> getIterator(Query query) {
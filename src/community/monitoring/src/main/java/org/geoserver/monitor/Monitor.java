@@ -4,6 +4,7 @@
  */
 package org.geoserver.monitor;
 
+import java.util.Date;
 import java.util.List;
 
 import org.geoserver.monitor.MonitorConfig.Mode;
@@ -38,6 +39,13 @@ public class Monitor {
     
     MonitorConfig config;
     MonitorDAO dao;
+    RequestRollups rollups = new RequestRollups();
+    
+    /**
+     * requests completed before this time are loaded from the dao on first access to the rollups
+     */
+    Date rollupsStart = new Date();
+    volatile boolean rollupsLoaded;
     
     public Monitor(MonitorConfig config) {
         this.config = config;
@@ -80,7 +88,9 @@ public class Monitor {
     }
 
     public void complete() {
-        dao.save(REQUEST.get());
+        RequestData data = REQUEST.get();
+        dao.save(data);
+        rollups.add(data);
         REQUEST.remove();
     }
 
@@ -96,5 +106,34 @@ public class Monitor {
     public void query(Query q, RequestDataVisitor visitor) {
         dao.getRequests(q, visitor);
     }
+    
+    /**
+     * Returns the aggregated request statistics. On first access the requests stored by the dao
+     * before the monitor started are loaded in the background, see 
+     * {@link RequestRollups#isLoading()}
+     */
+    public RequestRollups getRollups() {
+        if (!rollupsLoaded) {
+            synchronized (this) {
+                if (!rollupsLoaded && dao != null) {
+                    rollupsLoaded = true;
+                    loadRollups(dao);
+                }
+            }
+        }
+        return rollups;
+    }
+
+    void loadRollups(final MonitorDAO dao) {
+        rollups.loading = true;
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                rollups.load(dao, rollupsStart);
+            }
+        }, "Monitor rollups loader");
+        loader.setDaemon(true);
+        loader.setPriority(Thread.MIN_PRIORITY);
+        loader.start();
+    }
 
 }
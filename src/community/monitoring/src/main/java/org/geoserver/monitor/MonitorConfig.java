@@ -61,6 +61,42 @@ public class MonitorConfig implements ApplicationContextAware {
         return Sync.valueOf(props().getProperty("sync", "async").toUpperCase());
     }
     
+    /**
+     * The number of completed requests kept in memory in live mode
+     */
+    public int getMaxHistory() {
+        return getInt("memory.maxHistory", MemoryMonitorDAO.DEFAULT_MAX_HISTORY);
+    }
+    
+    /**
+     * The maximum number of request writes waiting to be persisted in the asynchronous modes
+     */
+    public int getQueueSize() {
+        return getInt("async.queueSize", HibernateMonitorDAO2.DEFAULT_QUEUE_SIZE);
+    }
+    
+    /**
+     * The maximum number of request writes persisted in a single transaction in the 
+     * asynchronous modes
+     */
+    public int getBatchSize() {
+        return getInt("async.batchSize", HibernateMonitorDAO2.DEFAULT_BATCH_SIZE);
+    }
+    
+    int getInt(String key, int defaultValue) {
+        String value = props().getProperty(key);
+        if (value == null || "".equals(value.trim())) {
+            return defaultValue;
+        }
+        try {
+            int i = Integer.parseInt(value.trim());
+            return i > 0 ? i : defaultValue;
+        }
+        catch(NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
     public boolean isEnabled() {
         return enabled;
     }
@@ -85,11 +121,13 @@ public class MonitorConfig implements ApplicationContextAware {
         Mode m = getMode();
         
         if (m == Mode.LIVE) {
-            return new MemoryMonitorDAO();
+            return new MemoryMonitorDAO(getMaxHistory());
         }
         
         HibernateMonitorDAO2 dao = (HibernateMonitorDAO2) context.getBean("hibMonitorDAO");
         dao.setMode(m);
+        dao.setQueueSize(getQueueSize());
+        dao.setBatchSize(getBatchSize());
         dao.setSync(getSync());
         
         return dao;
@@ -0,0 +1,471 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.RequestData.Status;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Pre-aggregated request statistics, maintained incrementally as requests complete.
+ * <p>
+ * Requests are counted in time buckets of a minute, an hour and a day, and within each bucket
+ * by service and operation, so that activity charts and summaries can be computed from a number
+ * of rollups that depends on the time range and granularity, and not on the number of requests.
+ * Each granularity keeps a limited number of buckets, older buckets are discarded as new ones
+ * are created.
+ * </p>
+ * <p>
+ * Requests are accounted in one of a number of stripes, chosen by thread, so that concurrent
+ * requests do not contend on a single lock. The stripes are merged when the rollups are read.
+ * </p>
+ */
+public class RequestRollups {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    /**
+     * Size of the rollup time buckets
+     */
+    public static enum Granularity {
+        MINUTE(Calendar.MINUTE, 2 * 24 * 60),
+        HOUR(Calendar.HOUR_OF_DAY, 62 * 24),
+        DAY(Calendar.DAY_OF_MONTH, 2 * 366);
+
+        int field;
+        int retention;
+
+        Granularity(int field, int retention) {
+            this.field = field;
+            this.retention = retention;
+        }
+
+        /**
+         * The number of buckets kept
+         */
+        public int getRetention() {
+            return retention;
+        }
+
+        /**
+         * Truncates the time to the start of its bucket
+         */
+        public long truncate(long time) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(time);
+            c.set(Calendar.MILLISECOND, 0);
+            c.set(Calendar.SECOND, 0);
+            if (this != MINUTE) {
+                c.set(Calendar.MINUTE, 0);
+            }
+            if (this == DAY) {
+                c.set(Calendar.HOUR_OF_DAY, 0);
+            }
+            return c.getTimeInMillis();
+        }
+
+        /**
+         * Returns the start of the bucket preceding the one of the specified time by the
+         * specified amount of buckets
+         */
+        long minus(long time, int amount) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(truncate(time));
+            c.add(field, -amount);
+            return c.getTimeInMillis();
+        }
+    }
+
+    /**
+     * The aggregated statistics of the requests for a service and operation in a time bucket
+     */
+    public static class Rollup implements Cloneable {
+        Date startTime;
+        Granularity granularity;
+        String service;
+        String operation;
+        long count;
+        long failed;
+        long totalTime;
+        long maxTime;
+        long totalBytes;
+        Map<String, Long> resources = new HashMap<String, Long>();
+
+        Rollup(long startTime, Granularity granularity, String service, String operation) {
+            this.startTime = new Date(startTime);
+            this.granularity = granularity;
+            this.service = service;
+            this.operation = operation;
+        }
+
+        void add(RequestData data) {
+            count++;
+            if (data.getStatus() == Status.FAILED) {
+                failed++;
+            }
+            totalTime += data.getTotalTime();
+            maxTime = Math.max(maxTime, data.getTotalTime());
+            if (data.getResponseLength() > 0) {
+                totalBytes += data.getResponseLength();
+            }
+            if (data.getResources() != null) {
+                for (String resource : data.getResources()) {
+                    Long c = resources.get(resource);
+                    resources.put(resource, c == null ? 1 : c + 1);
+                }
+            }
+        }
+
+        /**
+         * Adds up the statistics of another rollup for the same bucket, service and operation
+         */
+        void merge(Rollup other) {
+            count += other.count;
+            failed += other.failed;
+            totalTime += other.totalTime;
+            maxTime = Math.max(maxTime, other.maxTime);
+            totalBytes += other.totalBytes;
+            for (Map.Entry<String, Long> e : other.resources.entrySet()) {
+                Long c = resources.get(e.getKey());
+                resources.put(e.getKey(), c == null ? e.getValue() : c + e.getValue());
+            }
+        }
+
+        /**
+         * The start of the time bucket
+         */
+        public Date getStartTime() {
+            return startTime;
+        }
+
+        public Granularity getGranularity() {
+            return granularity;
+        }
+
+        /**
+         * The OWS service, or null for non OWS requests
+         */
+        public String getService() {
+            return service;
+        }
+
+        /**
+         * The OWS operation, or null for non OWS requests
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * The number of requests
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The number of failed requests
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * The sum of the request times, in milliseconds
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        /**
+         * The longest request time, in milliseconds
+         */
+        public long getMaxTime() {
+            return maxTime;
+        }
+
+        /**
+         * The average request time, in milliseconds
+         */
+        public double getAverageTime() {
+            return count > 0 ? (double) totalTime / count : 0;
+        }
+
+        /**
+         * The sum of the response lengths, in bytes
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * The number of requests for each resource (layer)
+         */
+        public Map<String, Long> getResources() {
+            return resources;
+        }
+
+        @Override
+        protected Rollup clone() {
+            try {
+                Rollup clone = (Rollup) super.clone();
+                clone.resources = new HashMap<String, Long>(resources);
+                return clone;
+            }
+            catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Rollup(" + startTime + "," + granularity + "," + service + "," + operation
+                + ",count=" + count + ")";
+        }
+    }
+
+    /**
+     * The number of stripes the requests are accounted in
+     */
+    static final int STRIPES = 16;
+
+    /**
+     * A set of time buckets, the requests of a thread are always accounted in the same stripe
+     */
+    static class Stripe {
+        Map<Granularity, TreeMap<Long, Map<String, Rollup>>> buckets =
+            new HashMap<Granularity, TreeMap<Long, Map<String, Rollup>>>();
+
+        Stripe() {
+            for (Granularity g : Granularity.values()) {
+                buckets.put(g, new TreeMap<Long, Map<String, Rollup>>());
+            }
+        }
+
+        synchronized void add(RequestData data, long time, long latest) {
+            String key = data.getService() + ":" + data.getOperation();
+            for (Granularity g : Granularity.values()) {
+                TreeMap<Long, Map<String, Rollup>> tree = buckets.get(g);
+
+                Long start = g.truncate(time);
+                Map<String, Rollup> bucket = tree.get(start);
+                if (bucket == null) {
+                    long oldest = g.minus(latest, g.retention);
+                    if (start < oldest) {
+                        // older than what we keep
+                        continue;
+                    }
+                    bucket = new HashMap<String, Rollup>();
+                    tree.put(start, bucket);
+
+                    // drop the buckets past retention
+                    tree.headMap(oldest).clear();
+                }
+
+                Rollup rollup = bucket.get(key);
+                if (rollup == null) {
+                    rollup = new Rollup(start, g, data.getService(), data.getOperation());
+                    bucket.put(key, rollup);
+                }
+                rollup.add(data);
+            }
+        }
+
+        /**
+         * Merges copies of the rollups in the range into the target buckets
+         */
+        synchronized void collect(Granularity granularity, Long lower, Long upper, long oldest,
+            TreeMap<Long, Map<String, Rollup>> target) {
+            TreeMap<Long, Map<String, Rollup>> tree = buckets.get(granularity);
+            Map<Long, Map<String, Rollup>> range;
+            if (lower != null && upper != null) {
+                range = tree.subMap(lower, upper);
+            }
+            else if (lower != null) {
+                range = tree.tailMap(lower);
+            }
+            else if (upper != null) {
+                range = tree.headMap(upper);
+            }
+            else {
+                range = tree;
+            }
+
+            for (Map.Entry<Long, Map<String, Rollup>> e : range.entrySet()) {
+                if (e.getKey() < oldest) {
+                    // past retention, not pruned yet as this stripe saw no recent request
+                    continue;
+                }
+                Map<String, Rollup> bucket = target.get(e.getKey());
+                if (bucket == null) {
+                    bucket = new HashMap<String, Rollup>();
+                    target.put(e.getKey(), bucket);
+                }
+                for (Map.Entry<String, Rollup> r : e.getValue().entrySet()) {
+                    Rollup merged = bucket.get(r.getKey());
+                    if (merged == null) {
+                        bucket.put(r.getKey(), r.getValue().clone());
+                    }
+                    else {
+                        merged.merge(r.getValue());
+                    }
+                }
+            }
+        }
+
+        synchronized Long oldest(Granularity granularity) {
+            TreeMap<Long, Map<String, Rollup>> tree = buckets.get(granularity);
+            return tree.isEmpty() ? null : tree.firstKey();
+        }
+
+        synchronized void clear() {
+            for (TreeMap<Long, Map<String, Rollup>> tree : buckets.values()) {
+                tree.clear();
+            }
+        }
+    }
+
+    Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * The start time of the most recent request accounted, the retention is relative to it
+     */
+    AtomicLong latest = new AtomicLong(Long.MIN_VALUE);
+
+    volatile boolean loading;
+
+    public RequestRollups() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Accounts a completed request
+     */
+    public void add(RequestData data) {
+        if (data.getStartTime() == null) {
+            return;
+        }
+
+        long time = data.getStartTime().getTime();
+        long last = latest.get();
+        while (time > last && !latest.compareAndSet(last, time)) {
+            last = latest.get();
+        }
+
+        int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+        stripes[stripe].add(data, time, Math.max(time, last));
+    }
+
+    /**
+     * Returns a snapshot of the rollups whose bucket starts in the specified range, sorted by time
+     *
+     * @param granularity The size of the time buckets
+     * @param from The start of the range, or null for no lower bound
+     * @param to The end of the range (included), or null for no upper bound
+     */
+    public List<Rollup> getRollups(Granularity granularity, Date from, Date to) {
+        Long lower = from != null ? granularity.truncate(from.getTime()) : null;
+        Long upper = to != null ? to.getTime() + 1 : null;
+        if (lower != null && upper != null && lower >= upper) {
+            return new ArrayList<Rollup>();
+        }
+
+        long oldest = oldestKept(granularity);
+        TreeMap<Long, Map<String, Rollup>> merged = new TreeMap<Long, Map<String, Rollup>>();
+        for (Stripe stripe : stripes) {
+            stripe.collect(granularity, lower, upper, oldest, merged);
+        }
+
+        List<Rollup> result = new ArrayList<Rollup>();
+        for (Map<String, Rollup> bucket : merged.values()) {
+            result.addAll(bucket.values());
+        }
+        return result;
+    }
+
+    long oldestKept(Granularity granularity) {
+        long last = latest.get();
+        return last == Long.MIN_VALUE ? Long.MIN_VALUE : granularity.minus(last,
+            granularity.retention);
+    }
+
+    /**
+     * Visits the rollups whose bucket starts in the specified range, in time order
+     */
+    public void query(Granularity granularity, Date from, Date to,
+        MonitorVisitor<Rollup> visitor) {
+        for (Rollup rollup : getRollups(granularity, from, to)) {
+            visitor.visit(rollup);
+        }
+    }
+
+    /**
+     * Returns the start time of the oldest bucket kept for the granularity, or null if there
+     * is none
+     */
+    public Date getOldest(Granularity granularity) {
+        long kept = oldestKept(granularity);
+        Long oldest = null;
+        for (Stripe stripe : stripes) {
+            Long first = stripe.oldest(granularity);
+            if (first != null && first >= kept && (oldest == null || first < oldest)) {
+                oldest = first;
+            }
+        }
+        return oldest == null ? null : new Date(oldest);
+    }
+
+    /**
+     * Returns true while the requests stored before the monitor started are being loaded, the
+     * rollups are incomplete in the meantime
+     */
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * Accounts the requests stored by the dao that started within the retention of the daily
+     * rollups and completed before the specified time
+     */
+    public void load(MonitorDAO dao, final Date before) {
+        loading = true;
+        long from = Granularity.DAY.minus(before.getTime(), Granularity.DAY.retention);
+        Query q = new Query().between(new Date(from), before);
+        try {
+            dao.getRequests(q, new RequestDataVisitor() {
+                public void visit(RequestData data, Object... aggregates) {
+                    Date end = data.getEndTime();
+                    if (end != null && end.before(before)) {
+                        add(data);
+                    }
+                }
+            });
+        }
+        catch(Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to load the request history in the rollups", e);
+        }
+        finally {
+            loading = false;
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+}
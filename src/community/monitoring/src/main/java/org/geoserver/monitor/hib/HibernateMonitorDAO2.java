@@ -8,6 +8,12 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.geoserver.monitor.And;
 import org.geoserver.monitor.CompositeFilter;
@@ -19,7 +25,6 @@ import org.geoserver.monitor.MonitorDAO;
 import org.geoserver.monitor.Query;
 import org.geoserver.monitor.MonitorVisitor;
 import org.geoserver.monitor.Or;
-import org.geoserver.monitor.PipeliningTaskQueue;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestDataVisitor;
 import org.geoserver.monitor.MonitorConfig.Mode;
@@ -27,6 +32,7 @@ import org.geoserver.monitor.MonitorConfig.Sync;
 import org.geoserver.monitor.Query.Comparison;
 import org.geoserver.monitor.Query.SortOrder;
 import org.geoserver.ows.util.OwsUtils;
+import org.geotools.util.logging.Logging;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -34,12 +40,42 @@ import org.hibernate.Transaction;
 import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 
+/**
+ * Hibernate based monitor DAO.
+ * <p>
+ * In the asynchronous modes request threads just publish the inserts and updates in a bounded
+ * queue, a single background writer drains it and writes the changes in batches, one transaction
+ * per batch. When the queue is full request threads wait for a short while, then give up and
+ * drop the change, the number of dropped changes is available from {@link #getDroppedCount()}.
+ * </p>
+ */
 public class HibernateMonitorDAO2 implements MonitorDAO {
 
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+    
+    /**
+     * Default size of the queue of pending writes
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    
+    /**
+     * Default maximum number of writes per transaction
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    
+    /**
+     * Default maximum time, in milliseconds, a request thread waits for room in a full queue
+     */
+    public static final long DEFAULT_MAX_WAIT = 100;
+    
     HibernateTemplate hib;
-    PipeliningTaskQueue<Thread> tasks;
+    BatchWriter writer;
     Mode mode = Mode.HISTORY;
     Sync sync = Sync.ASYNC;
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    int batchSize = DEFAULT_BATCH_SIZE;
+    long maxWait = DEFAULT_MAX_WAIT;
+    AtomicLong dropped = new AtomicLong();
     
     public HibernateMonitorDAO2() {
         setMode(Mode.HISTORY);
@@ -49,17 +85,76 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
     public void setSync(Sync sync) {
         this.sync = sync;
         if (sync != Sync.SYNC) {
-            if (tasks == null) {
-                tasks = new PipeliningTaskQueue<Thread>();
-                tasks.start();
+            if (writer == null) {
+                writer = new BatchWriter(queueSize, batchSize);
             }
         }
         else {
-            if (tasks != null) {
+            if (writer != null) {
                 dispose();
             }
         }
     }
+    
+    /**
+     * Sets the size of the queue of pending writes, restarting the asynchronous writer if the
+     * size changed
+     */
+    public void setQueueSize(int queueSize) {
+        if (this.queueSize == queueSize) {
+            return;
+        }
+        this.queueSize = queueSize;
+        if (writer != null) {
+            dispose();
+            writer = new BatchWriter(queueSize, batchSize);
+        }
+    }
+    
+    public int getQueueSize() {
+        return queueSize;
+    }
+    
+    /**
+     * Sets the maximum number of writes performed in a single transaction
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        if (writer != null) {
+            writer.batchSize = batchSize;
+        }
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Sets the maximum time, in milliseconds, a request thread waits for room in a full queue
+     * before dropping the write
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+    
+    public long getMaxWait() {
+        return maxWait;
+    }
+    
+    /**
+     * Returns the number of writes dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the number of writes waiting to be performed
+     */
+    public int getPendingCount() {
+        BatchWriter w = writer;
+        return w != null ? w.queue.size() : 0;
+    }
     public void setMode(Mode mode) {
         this.mode = mode;
     }
@@ -118,9 +213,9 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
     }
 
     public void dispose() {
-        if (tasks != null) {
-            tasks.shutdown();
-            tasks = null;
+        if (writer != null) {
+            writer.shutdown();
+            writer = null;
         }
     }
 
@@ -558,59 +653,198 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
 //    }
     
     protected void run(Task task) {
-        if (tasks != null) {
-            tasks.execute(Thread.currentThread(), new Async(task), task.desc);
+        BatchWriter w = writer;
+        if (w != null) {
+            w.publish(task);
         }
         else {
             task.run();
         }
     }
 
-    class Async implements Runnable {
-
-        Task task;
-        
-        Async(Task task) {
-            this.task = task;
+    /**
+     * Drains the pending writes and performs them in batches 
+     */
+    class BatchWriter implements Runnable {
+        
+        BlockingQueue<Task> queue;
+        volatile int batchSize;
+        volatile boolean running = true;
+        Thread thread;
+        
+        BatchWriter(int queueSize, int batchSize) {
+            this.queue = new ArrayBlockingQueue<Task>(queueSize);
+            this.batchSize = batchSize;
+            thread = new Thread(this, "GeoServer monitor writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        void publish(Task task) {
+            try {
+                if (queue.offer(task) || queue.offer(task, maxWait, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } 
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            long count = dropped.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Monitor write queue full, dropped " + task.desc + ", " + count 
+                    + " writes dropped so far");
+            }
         }
         
         public void run() {
-            synchronized(task.data) {
-                task.run();
+            List<Task> batch = new ArrayList<Task>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    Task first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, Math.max(0, batchSize - 1));
+                    write(batch);
+                }
+                catch (InterruptedException e) {
+                    // shutting down, the loop will drain what is left
+                }
+                catch (Throwable t) {
+                    LOGGER.log(Level.WARNING, "Unexpected error writing monitor data", t);
+                }
+                finally {
+                    batch.clear();
+                }
             }
         }
         
+        void write(final List<Task> batch) {
+            try {
+                hib.execute(new HibernateCallback() {
+                    public Object doInHibernate(Session session) throws HibernateException,
+                            SQLException {
+                        Transaction tx = session.beginTransaction();
+                        try {
+                            for (Task task : batch) {
+                                task.apply(session);
+                            }
+                            tx.commit();
+                        }
+                        catch (RuntimeException e) {
+                            tx.rollback();
+                            throw e;
+                        }
+                        return null;
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                // isolate the failing write(s)
+                LOGGER.log(Level.WARNING, "Failed to write a batch of " + batch.size()
+                    + " monitor requests, writing them one by one", e);
+                for (Task task : batch) {
+                    task.rollback();
+                }
+                for (Task task : batch) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e2) {
+                        LOGGER.log(Level.WARNING, "Failed to write monitor request " + task.desc, e2);
+                    }
+                }
+            }
+        }
+        
+        void shutdown() {
+            running = false;
+            try {
+                thread.join(5000);
+            } 
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!queue.isEmpty()) {
+                LOGGER.warning(queue.size() + " monitor writes were not performed at shutdown");
+            }
+        }
     }
     
-    static abstract class Task implements Runnable {
+    abstract class Task implements Runnable {
         
         RequestData data;
         String desc;
         
+        /**
+         * Whether this task assigned the request id
+         */
+        boolean inserted;
+        
         Task(RequestData data) {
             this.data = data;
         }
+        
+        /**
+         * Performs the write in the provided session, the caller handles the transaction
+         */
+        abstract void apply(Session session);
+        
+        /**
+         * Called when the transaction the write was part of failed
+         */
+        void rollback() {
+            if (inserted) {
+                data.setId(-1);
+                inserted = false;
+            }
+        }
+        
+        public void run() {
+            hib.execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException,
+                        SQLException {
+                    Transaction tx = session.beginTransaction();
+                    try {
+                        apply(session);
+                        tx.commit();
+                    }
+                    catch (RuntimeException e) {
+                        tx.rollback();
+                        rollback();
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+        }
+        
+        void insert(Session session) {
+            data.setId((Long)session.save(data));
+            inserted = true;
+        }
     }
     
     class Save extends Task {
-        RequestData data;
         
         Save(RequestData data) {
             super(data);
-            this.data = data;
+            this.desc = "Save " + data.internalid;
         }
         
-        public void run() {
+        void apply(Session session) {
             if (data.getId() == -1) {
-                new Insert(data).run();
+                insert(session);
             }
             else {
-                new Update(data).run();
+                session.update(data);
             }
-            
         }
         
     }
+    
     class Insert extends Task {
         
         Insert(RequestData data) {
@@ -618,46 +852,8 @@ public class HibernateMonitorDAO2 implements MonitorDAO {
             this.desc = "Insert " + data.internalid;
         }
         
-        public void run() {
-            hib.execute(new HibernateCallback() {
-                public Object doInHibernate(Session session) throws HibernateException,
-                        SQLException {
-                    Transaction tx = session.beginTransaction();
-                    data.setId((Long)session.save(data));
-                    //mergeLayers(data, session);
-                    session.save(data);
-                    tx.commit();
-                    return data;
-                }
-            });
-        }
-    }
-    
-    class Update extends Task {
-
-        Update(RequestData data) {
-            super(data);
-            this.desc = "Update " + data.internalid;
-        }
-        
-        public void run() {
-            hib.execute(new HibernateCallback() {
-                public Object doInHibernate(Session session) throws HibernateException,
-                        SQLException {
-                    try {
-                        Transaction tx = session.beginTransaction();
-                        //mergeLayers(data, session);
-                        session.update(data);
-                        tx.commit();
-                    }
-                    catch(HibernateException e) {
-                        if (tasks != null) tasks.print();
-                        throw e;
-                    }
-                    return null;
-                }
-            });
+        void apply(Session session) {
+            insert(session);
         }
-        
     }
 }
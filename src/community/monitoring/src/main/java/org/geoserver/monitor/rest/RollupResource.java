@@ -0,0 +1,105 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor.rest;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestRollups.Granularity;
+import org.geoserver.monitor.RequestRollups.Rollup;
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.RestletException;
+import org.geoserver.rest.format.DataFormat;
+import org.geotools.util.Converters;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Returns the aggregated request statistics, optionally filtered by time range, service and
+ * operation.
+ * <p>
+ * Supported query parameters are <tt>granularity</tt> (minute, hour or day, defaults to hour),
+ * <tt>from</tt>, <tt>to</tt>, <tt>service</tt> and <tt>operation</tt>.
+ * </p>
+ */
+public class RollupResource extends ReflectiveResource {
+
+    Monitor monitor;
+
+    public RollupResource(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    protected List<DataFormat> createSupportedFormats(Request request, Response response) {
+        List<DataFormat> formats = new ArrayList<DataFormat>();
+        formats.add(createXMLFormat(request, response));
+        formats.add(createJSONFormat(request, response));
+        return formats;
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("rollup", Rollup.class);
+        xstream.alias("rollups", List.class);
+        xstream.omitField(Rollup.class, "granularity");
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        Granularity granularity = Granularity.HOUR;
+        String g = getQueryStringValue("granularity");
+        if (g != null) {
+            try {
+                granularity = Granularity.valueOf(g.toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new RestletException("Unknown granularity " + g,
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+        }
+
+        Date from = parseDate(getQueryStringValue("from"));
+        Date to = parseDate(getQueryStringValue("to"));
+        String service = getQueryStringValue("service");
+        String operation = getQueryStringValue("operation");
+
+        List<Rollup> rollups = monitor.getRollups().getRollups(granularity, from, to);
+        for (Iterator<Rollup> it = rollups.iterator(); it.hasNext();) {
+            Rollup r = it.next();
+            if (service != null && !service.equalsIgnoreCase(r.getService())) {
+                it.remove();
+            }
+            else if (operation != null && !operation.equalsIgnoreCase(r.getOperation())) {
+                it.remove();
+            }
+        }
+        return rollups;
+    }
+
+    Date parseDate(String s) {
+        if (s == null) {
+            return null;
+        }
+        try {
+            return RequestResource.DATE_FORMAT.parse(s);
+        }
+        catch (ParseException e) {
+            Date date = Converters.convert(s, Date.class);
+            if (date == null) {
+                throw new RestletException("Could not parse date " + s,
+                    Status.CLIENT_ERROR_BAD_REQUEST);
+            }
+            return date;
+        }
+    }
+}
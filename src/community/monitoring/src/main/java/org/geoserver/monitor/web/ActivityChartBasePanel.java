@@ -25,9 +25,8 @@ import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.model.PropertyModel;
 import org.geoserver.monitor.Monitor;
-import org.geoserver.monitor.Query;
-import org.geoserver.monitor.RequestData;
-import org.geoserver.monitor.RequestDataVisitor;
+import org.geoserver.monitor.RequestRollups.Granularity;
+import org.geoserver.monitor.RequestRollups.Rollup;
 import org.geoserver.web.GeoServerApplication;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -100,13 +99,13 @@ public abstract class ActivityChartBasePanel extends Panel {
     }
     
     BufferedDynamicImageResource queryAndRenderChart(Monitor monitor, Date[] range) {
-        Query q = new Query();
-        q.properties("startTime").between(range[0], range[1]);
-        
-        DataGatherer gatherer = new DataGatherer();
-        monitor.query(q, gatherer);
-        
-        HashMap<RegularTimePeriod,Integer> data = gatherer.getData();
+        // aggregate the pre computed rollups instead of scanning the requests
+        HashMap<RegularTimePeriod,Integer> data = new HashMap<RegularTimePeriod, Integer>();
+        for (Rollup r : monitor.getRollups().getRollups(getGranularity(), range[0], range[1])) {
+            RegularTimePeriod period = getTimePeriod(r.getStartTime());
+            Integer count = data.get(period);
+            data.put(period, (int) r.getCount() + (count != null ? count : 0));
+        }
         
         Class timeUnitClass = getTimePeriod(range[0]).getClass();
         TimeSeries series = new TimeSeries("foo", timeUnitClass);
@@ -150,29 +149,6 @@ public abstract class ActivityChartBasePanel extends Panel {
         
         return chart;
     }
-    class DataGatherer implements RequestDataVisitor {
-
-        HashMap<RegularTimePeriod,Integer> data = new HashMap<RegularTimePeriod, Integer>();
-        
-        public void visit(RequestData r, Object... aggregates) {
-            RegularTimePeriod period = getTimePeriod(r.getStartTime());
-            Integer count = data.get(period);
-       
-            if (count == null) {
-                count = new Integer(1);
-            }
-            else {
-                count = new Integer(count.intValue()+1);
-            }
-            
-            data.put(period,count);
-        }
-        
-        public HashMap<RegularTimePeriod, Integer> getData() {
-            return data;
-        }
-    }
-    
     protected String getChartTitle(Date[] range) {
         return "Activity " + FORMAT.format(range[0]) + " - " + FORMAT.format(range[1]);
     }
@@ -181,6 +157,11 @@ public abstract class ActivityChartBasePanel extends Panel {
     
     protected abstract RegularTimePeriod getTimePeriod(Date time);
     
+    /**
+     * The granularity of the rollups the chart is built from, should match the time period
+     */
+    protected abstract Granularity getGranularity();
+    
     
 
 }
@@ -8,10 +8,10 @@ import java.util.Calendar;
 import java.util.Date;
 
 import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestRollups.Granularity;
 import org.jfree.data.time.Hour;
 import org.jfree.data.time.Minute;
 import org.jfree.data.time.RegularTimePeriod;
-import org.jfree.data.time.Second;
 
 
 public class DailyActivityPanel extends ActivityChartBasePanel {
@@ -33,11 +33,19 @@ public class DailyActivityPanel extends ActivityChartBasePanel {
         return new Date[]{then.getTime(), now};
     };
     
+    /**
+     * The daily chart used to plot requests per second, it now plots requests per minute, the 
+     * finest granularity of the rollups. A day of seconds is too many points for the chart to
+     * be readable anyways.
+     */
     @Override
     protected RegularTimePeriod getTimePeriod(Date time) {
-        return new Second(time);
-        //return new Minute(time);
-        //return new Hour(time);
+        return new Minute(time);
+    }
+    
+    @Override
+    protected Granularity getGranularity() {
+        return Granularity.MINUTE;
     }
     
     @Override
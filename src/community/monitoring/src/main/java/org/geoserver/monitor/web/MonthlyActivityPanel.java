@@ -8,6 +8,7 @@ import java.util.Calendar;
 import java.util.Date;
 
 import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestRollups.Granularity;
 import org.jfree.data.time.Day;
 import org.jfree.data.time.RegularTimePeriod;
 
@@ -34,5 +35,10 @@ public class MonthlyActivityPanel extends ActivityChartBasePanel {
     protected RegularTimePeriod getTimePeriod(Date time) {
         return new Day(time);
     }
+    
+    @Override
+    protected Granularity getGranularity() {
+        return Granularity.DAY;
+    }
 
 }
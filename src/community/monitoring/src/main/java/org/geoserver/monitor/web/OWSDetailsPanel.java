@@ -8,10 +8,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.geoserver.monitor.Monitor;
-import org.geoserver.monitor.Query;
-import org.geoserver.monitor.RequestData;
-import org.geoserver.monitor.RequestDataVisitor;
-import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.RequestRollups.Granularity;
+import org.geoserver.monitor.RequestRollups.Rollup;
 
 public class OWSDetailsPanel extends OWSSummaryChartBasePanel {
 
@@ -26,33 +24,15 @@ public class OWSDetailsPanel extends OWSSummaryChartBasePanel {
     
     @Override
     protected Map<String, Integer> gatherData(Monitor monitor) {
-        DataGatherer g = new DataGatherer();
-        monitor.query(new Query().properties("operation")
-            .filter("service", owsService, Comparison.EQ), g);
-        
-        return g.getData();
-    }
-
-    class DataGatherer implements RequestDataVisitor {
-
         HashMap<String,Integer> data = new HashMap();
-        
-        public void visit(RequestData req, Object... aggregates) {
-            String op = req.getOperation().toLowerCase();
-            Integer count = data.get(op);
-            if (count == null) {
-                count = new Integer(1);
+        for (Rollup r : monitor.getRollups().getRollups(Granularity.DAY, null, null)) {
+            if (!owsService.equals(r.getService()) || r.getOperation() == null) {
+                continue;
             }
-            else {
-                count = new Integer(count+1);
-            }
-            
-            data.put(op, count);
-        }
-        
-        public HashMap<String, Integer> getData() {
-            return data;
+            String op = r.getOperation().toLowerCase();
+            Integer count = data.get(op);
+            data.put(op, (int) r.getCount() + (count != null ? count : 0));
         }
-        
+        return data;
     }
 }
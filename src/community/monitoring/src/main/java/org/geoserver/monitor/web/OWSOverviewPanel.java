@@ -8,10 +8,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.geoserver.monitor.Monitor;
-import org.geoserver.monitor.Query;
-import org.geoserver.monitor.RequestData;
-import org.geoserver.monitor.RequestDataVisitor;
-import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.RequestRollups.Granularity;
+import org.geoserver.monitor.RequestRollups.Rollup;
 
 public class OWSOverviewPanel extends OWSSummaryChartBasePanel {
 
@@ -26,35 +24,14 @@ public class OWSOverviewPanel extends OWSSummaryChartBasePanel {
     
     @Override
     protected Map<String,Integer> gatherData(Monitor monitor) {
-        Query q = new Query();
-        q.properties("service").filter("service", null, Comparison.NEQ);
-        
-        DataGatherer g = new DataGatherer();
-        monitor.query(q, g);
-        
-        return g.getData();
-    }
-    
-    class DataGatherer implements RequestDataVisitor {
-
         HashMap<String,Integer> data = new HashMap();
-        
-        public void visit(RequestData req, Object... aggregates) {
-            String service = req.getService();
-            Integer count = data.get(service);
-            if (count == null) {
-                count = new Integer(1);
+        for (Rollup r : monitor.getRollups().getRollups(Granularity.DAY, null, null)) {
+            if (r.getService() == null) {
+                continue;
             }
-            else {
-                count = new Integer(count+1);
-            }
-            
-            data.put(service, count);
-        }
-        
-        public HashMap<String, Integer> getData() {
-            return data;
+            Integer count = data.get(r.getService());
+            data.put(r.getService(), (int) r.getCount() + (count != null ? count : 0));
         }
-        
+        return data;
     }
 }
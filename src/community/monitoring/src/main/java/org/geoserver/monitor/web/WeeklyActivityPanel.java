@@ -8,6 +8,7 @@ import java.util.Calendar;
 import java.util.Date;
 
 import org.geoserver.monitor.Monitor;
+import org.geoserver.monitor.RequestRollups.Granularity;
 import org.jfree.data.time.Day;
 import org.jfree.data.time.Hour;
 import org.jfree.data.time.RegularTimePeriod;
@@ -33,5 +34,10 @@ public class WeeklyActivityPanel extends ActivityChartBasePanel {
     protected RegularTimePeriod getTimePeriod(Date time) {
         return new Hour(time);
     }
+    
+    @Override
+    protected Granularity getGranularity() {
+        return Granularity.HOUR;
+    }
 
 }
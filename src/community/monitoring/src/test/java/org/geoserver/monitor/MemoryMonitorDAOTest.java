@@ -4,7 +4,12 @@
  */
 package org.geoserver.monitor;
 
+import static org.junit.Assert.*;
+
+import java.util.List;
+
 import org.junit.BeforeClass;
+import org.junit.Test;
 
 public class MemoryMonitorDAOTest extends MonitorDAOTestSupport {
 
@@ -13,4 +18,29 @@ public class MemoryMonitorDAOTest extends MonitorDAOTestSupport {
         dao = new MemoryMonitorDAO();
         setUpData();
     }
+    
+    @Test
+    public void testBoundedHistory() throws Exception {
+        MemoryMonitorDAO mem = new MemoryMonitorDAO(3);
+        assertEquals(3, mem.getMaxHistory());
+        
+        RequestData running = mem.init(new RequestData());
+        mem.add(running);
+        for (int i = 0; i < 5; i++) {
+            RequestData data = mem.init(new RequestData());
+            mem.add(data);
+            mem.save(data);
+        }
+        
+        // the two oldest completed requests have been dropped
+        assertEquals(2, mem.getDroppedCount());
+        assertNull(mem.getRequest(2));
+        assertNotNull(mem.getRequest(4));
+        
+        // running requests are not affected
+        List<RequestData> requests = mem.getRequests();
+        assertEquals(4, requests.size());
+        assertEquals(running.getId(), requests.get(0).getId());
+        assertSame(running, mem.getRequest(running.getId()));
+    }
 }
@@ -0,0 +1,121 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.geoserver.monitor.MonitorTestData.toDate;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geoserver.monitor.RequestRollups.Granularity;
+import org.geoserver.monitor.RequestRollups.Rollup;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestRollupsTest {
+
+    RequestRollups rollups;
+
+    @Before
+    public void setUp() throws Exception {
+        MonitorTestData testData = new MonitorTestData(new MemoryMonitorDAO());
+        testData.setup();
+
+        rollups = new RequestRollups();
+        for (RequestData data : testData.getData()) {
+            rollups.add(data);
+        }
+    }
+
+    @Test
+    public void testCountByService() throws Exception {
+        long foo = 0, bam = 0, bamFailed = 0;
+        for (Rollup r : rollups.getRollups(Granularity.DAY, null, null)) {
+            if ("foo".equals(r.getService())) {
+                foo += r.getCount();
+            }
+            if ("bam".equals(r.getService())) {
+                bam += r.getCount();
+                bamFailed += r.getFailed();
+            }
+        }
+        assertEquals(4, foo);
+        assertEquals(3, bam);
+        assertEquals(2, bamFailed);
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        List<Rollup> hour = rollups.getRollups(Granularity.HOUR,
+            toDate("2010-08-23T16:00:00"), toDate("2010-08-23T16:59:59"));
+        long count = 0;
+        for (Rollup r : hour) {
+            assertEquals(toDate("2010-08-23T16:00:00"), r.getStartTime());
+            count += r.getCount();
+        }
+        assertEquals(6, count);
+
+        assertTrue(rollups.getRollups(Granularity.MINUTE,
+            toDate("2010-08-23T17:00:00"), null).isEmpty());
+    }
+
+    @Test
+    public void testResources() throws Exception {
+        Rollup fooX = null;
+        for (Rollup r : rollups.getRollups(Granularity.DAY, toDate("2010-08-23T00:00:00"),
+            toDate("2010-08-23T23:59:59"))) {
+            if ("foo".equals(r.getService()) && "x".equals(r.getOperation())) {
+                fooX = r;
+            }
+        }
+        assertNotNull(fooX);
+        assertEquals(4, fooX.getCount());
+        assertEquals(Long.valueOf(2), fooX.getResources().get("things"));
+        assertEquals(Long.valueOf(2), fooX.getResources().get("stuff"));
+        assertEquals(Long.valueOf(1), fooX.getResources().get("widgets"));
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        RequestData later = new RequestData();
+        later.setStartTime(toDate("2010-08-27T10:00:00"));
+        later.setEndTime(toDate("2010-08-27T10:00:01"));
+        rollups.add(later);
+
+        // old minutes have been dropped, old days are still there
+        assertEquals(toDate("2010-08-27T10:00:00"), rollups.getOldest(Granularity.MINUTE));
+        assertEquals(toDate("2010-07-23T00:00:00"), rollups.getOldest(Granularity.DAY));
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        final RequestRollups concurrent = new RequestRollups();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        RequestData data = new RequestData();
+                        data.setService("foo");
+                        data.setOperation("x");
+                        data.setStartTime(toDate("2010-08-23T16:00:00"));
+                        concurrent.add(data);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        // the requests accounted by each thread are merged in a single rollup
+        List<Rollup> hour = concurrent.getRollups(Granularity.HOUR, null, null);
+        assertEquals(1, hour.size());
+        assertEquals(800, hour.get(0).getCount());
+    }
+}
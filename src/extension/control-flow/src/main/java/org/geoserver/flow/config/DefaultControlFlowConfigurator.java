@@ -6,21 +6,51 @@ package org.geoserver.flow.config;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import org.geoserver.flow.ControlFlowConfigurator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.GlobalFlowController;
+import org.geoserver.flow.controller.OWSRequestMatcher;
+import org.geoserver.flow.controller.PriorityFlowController;
+import org.geoserver.flow.controller.PriorityFlowController.PriorityClass;
 import org.geoserver.flow.controller.UserFlowController;
 import org.geoserver.security.PropertyFileWatcher;
 import org.geotools.util.logging.Logging;
 import org.vfny.geoserver.global.GeoserverDataDirectory;
 
 /**
- * Basic property file based {@link ControlFlowConfigurator} implementation
+ * Basic property file based {@link ControlFlowConfigurator} implementation.
+ * <p>
+ * Besides the queue based rules (<code>ows.global</code>, <code>ows.&lt;service&gt;...</code>,
+ * <code>user</code>) the file can configure a {@link PriorityFlowController} with the following
+ * keys:
+ * <ul>
+ * <li><code>priority.global=&lt;n&gt;</code>: enables the controller, running at most n requests
+ * in parallel</li>
+ * <li><code>priority.ows.&lt;service&gt;[.&lt;request&gt;[.&lt;outputFormat&gt;]]=&lt;level&gt;</code>:
+ * the priority level of the matching requests, lower levels are served first</li>
+ * <li><code>priority.default=&lt;level&gt;</code>: the level of requests not matching any rule,
+ * 0 if not specified</li>
+ * <li><code>priority.weight.&lt;user or ip&gt;=&lt;weight&gt;</code>: the fair share weight of a
+ * client, 1 if not specified</li>
+ * <li><code>priority.forwarded=true</code>: identifies anonymous clients by the X-Forwarded-For
+ * header, to be used only when GeoServer sits behind a proxy setting it</li>
+ * </ul>
+ * An {@link AdaptiveFlowController} is enabled with <code>adaptive.max=&lt;n&gt;</code>, the
+ * maximum number of parallel requests for each service/operation, and can be further configured
+ * with <code>adaptive.min=&lt;n&gt;</code> (1 if not specified) and
+ * <code>adaptive.tolerance=&lt;x&gt;</code>, the latency increase factor past which the limits
+ * are lowered, e.g. 1.5.
+ * </p>
  * 
  * @author Andrea Aime - OpenGeo
  * 
@@ -50,11 +80,34 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
         Properties p = configFile.getProperties();
         List<FlowController> newControllers = new ArrayList<FlowController>();
+        int priorityMaxRunning = -1;
+        int priorityDefaultLevel = 0;
+        List<PriorityClass> priorityClasses = new ArrayList<PriorityClass>();
+        Map<String, Double> priorityWeights = new HashMap<String, Double>();
+        boolean priorityForwarded = false;
+        int adaptiveMax = -1;
+        int adaptiveMin = 1;
+        double adaptiveTolerance = -1;
         for (Object okey : p.keySet()) {
             String key = ((String) okey).trim();
             String value = (String) p.get(okey);
             String[] keys = key.trim().split("\\s*\\.\\s*");
 
+            if ("priority.forwarded".equalsIgnoreCase(key)) {
+                priorityForwarded = Boolean.valueOf(value.trim());
+                continue;
+            }
+            if ("adaptive.tolerance".equalsIgnoreCase(key)) {
+                // a factor, not a queue size
+                try {
+                    adaptiveTolerance = Double.parseDouble(value.trim());
+                } catch (NumberFormatException e) {
+                    LOGGER.severe("The adaptive tolerance should be a number, instead it is "
+                            + value);
+                }
+                continue;
+            }
+
             int queueSize = 0;
             try {
                 queueSize = Integer.parseInt(value);
@@ -82,6 +135,34 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 }
             } else if ("user".equals(keys[0])) {
                 controller = new UserFlowController(queueSize);
+            } else if ("priority".equals(keys[0]) && keys.length > 1) {
+                // priority rules contribute to a single controller, built at the end
+                if ("global".equals(keys[1]) && keys.length == 2) {
+                    priorityMaxRunning = queueSize;
+                    continue;
+                } else if ("default".equals(keys[1]) && keys.length == 2) {
+                    priorityDefaultLevel = queueSize;
+                    continue;
+                } else if ("ows".equals(keys[1]) && keys.length >= 3) {
+                    OWSRequestMatcher matcher = new OWSRequestMatcher(keys[2],
+                            keys.length > 3 ? keys[3] : null, keys.length > 4 ? keys[4] : null);
+                    priorityClasses.add(new PriorityClass(matcher, queueSize));
+                    continue;
+                } else if ("weight".equals(keys[1]) && keys.length >= 3) {
+                    // the client can be an ip address, rebuild it
+                    String client = key.substring(key.indexOf("weight") + "weight".length() + 1)
+                            .trim();
+                    priorityWeights.put(client, Double.valueOf(queueSize));
+                    continue;
+                }
+            } else if ("adaptive".equals(keys[0]) && keys.length == 2) {
+                if ("max".equals(keys[1])) {
+                    adaptiveMax = queueSize;
+                    continue;
+                } else if ("min".equals(keys[1])) {
+                    adaptiveMin = queueSize;
+                    continue;
+                }
             }
 
             if (controller == null) {
@@ -91,9 +172,48 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
             }
         }
 
+        if (priorityMaxRunning > 0) {
+            // the most specific rules have to be checked first
+            Collections.sort(priorityClasses, new Comparator<PriorityClass>() {
+                public int compare(PriorityClass c1, PriorityClass c2) {
+                    return specificity(c2.getMatcher()) - specificity(c1.getMatcher());
+                }
+            });
+            PriorityFlowController controller = new PriorityFlowController(priorityMaxRunning,
+                    priorityClasses, priorityDefaultLevel, priorityWeights);
+            controller.setUseForwardedFor(priorityForwarded);
+            newControllers.add(controller);
+        } else if (priorityClasses.size() > 0 || priorityWeights.size() > 0) {
+            LOGGER.severe("Priority rules found, but priority.global is missing, "
+                    + "the rules will be ignored");
+        }
+
+        if (adaptiveMax > 0) {
+            try {
+                AdaptiveFlowController controller = new AdaptiveFlowController(adaptiveMin,
+                        adaptiveMax);
+                if (adaptiveTolerance > 0) {
+                    controller.setTolerance(adaptiveTolerance);
+                }
+                newControllers.add(controller);
+            } catch (IllegalArgumentException e) {
+                LOGGER.severe("Invalid adaptive flow control configuration: " + e.getMessage());
+            }
+        }
+
         return newControllers;
     }
 
+    static int specificity(OWSRequestMatcher matcher) {
+        if (matcher.getOutputFormat() != null) {
+            return 3;
+        } else if (matcher.getMethod() != null) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+
     public boolean isStale() {
         return configFile.isStale();
     }
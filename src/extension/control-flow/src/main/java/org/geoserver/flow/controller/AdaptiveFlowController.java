@@ -0,0 +1,351 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller limiting the number of parallel requests for each service/operation
+ * combination, with limits adjusted at runtime based on the measured latency instead of being
+ * statically configured.
+ * <p>
+ * Each operation keeps track of the lowest latency observed, which approximates the processing
+ * time of an unloaded server. As long as the latency stays close to it the limit is raised, when
+ * it grows past a {@link #getTolerance() tolerance} factor the server is assumed to be saturated
+ * (requests are just sharing the same resources and getting slower) and the limit is lowered
+ * proportionally (gradient based control). The limit is kept between a configurable minimum and
+ * maximum. The minimum latency is re-learned periodically, so that the controller can adapt to
+ * changes in the data stores load.
+ * </p>
+ */
+public class AdaptiveFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Default ratio between the measured latency and the minimum one past which the limit
+     * decreases
+     */
+    public static final double DEFAULT_TOLERANCE = 2;
+
+    /**
+     * Weight of a new limit estimate over the current limit
+     */
+    static final double SMOOTHING = 0.2;
+
+    /**
+     * Number of samples after which the minimum latency is re-learned
+     */
+    static final int MIN_LATENCY_WINDOW = 1000;
+
+    /**
+     * The concurrency limit of a single service/operation
+     */
+    public static class Limiter {
+        String name;
+
+        int minLimit;
+
+        int maxLimit;
+
+        double tolerance;
+
+        double limit;
+
+        int running;
+
+        long minLatency = Long.MAX_VALUE;
+
+        long nextMinLatency = Long.MAX_VALUE;
+
+        int samples;
+
+        double averageLatency = -1;
+
+        double averageQueueTime = -1;
+
+        long rejected;
+
+        Limiter(String name, int minLimit, int maxLimit, double tolerance) {
+            this.name = name;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.tolerance = tolerance;
+            this.limit = Math.max(minLimit, maxLimit / 2);
+        }
+
+        synchronized boolean acquire(long timeout) throws InterruptedException {
+            long start = System.currentTimeMillis();
+            long deadline = start + timeout;
+            while (running >= (int) limit) {
+                if (timeout > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        rejected++;
+                        return false;
+                    }
+                    wait(remaining);
+                } else {
+                    wait();
+                }
+            }
+            running++;
+            averageQueueTime = average(averageQueueTime, System.currentTimeMillis() - start);
+            return true;
+        }
+
+        synchronized void release(long latency) {
+            running--;
+            update(latency);
+            notifyAll();
+        }
+
+        /**
+         * Updates the limit based on the latency of a request that just completed
+         */
+        void update(long latency) {
+            latency = Math.max(1, latency);
+            averageLatency = average(averageLatency, latency);
+
+            // track the minimum latency, re-learning it every window so that it follows the
+            // changes in the underlying resources
+            samples++;
+            nextMinLatency = Math.min(nextMinLatency, latency);
+            if (minLatency == Long.MAX_VALUE || latency < minLatency) {
+                minLatency = latency;
+            }
+            if (samples >= MIN_LATENCY_WINDOW) {
+                minLatency = nextMinLatency;
+                nextMinLatency = Long.MAX_VALUE;
+                samples = 0;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1, tolerance * minLatency / latency));
+            double newLimit = limit * gradient;
+            if (gradient == 1 && running + 1 >= limit / 2) {
+                // no sign of saturation and the limit is actually being used, probe higher
+                newLimit += Math.sqrt(limit);
+            }
+            limit = SMOOTHING * newLimit + (1 - SMOOTHING) * limit;
+            limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        }
+
+        double average(double average, long sample) {
+            if (average < 0) {
+                return sample;
+            }
+            return SMOOTHING * sample + (1 - SMOOTHING) * average;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The current limit of parallel requests
+         */
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        /**
+         * The number of requests currently running
+         */
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        /**
+         * The lowest latency observed in the current window, in milliseconds
+         */
+        public synchronized long getMinLatency() {
+            return minLatency == Long.MAX_VALUE ? -1 : minLatency;
+        }
+
+        /**
+         * The average latency, in milliseconds, or -1 if no request completed yet
+         */
+        public synchronized double getAverageLatency() {
+            return averageLatency;
+        }
+
+        /**
+         * The average time spent waiting to be admitted, in milliseconds
+         */
+        public synchronized double getAverageQueueTime() {
+            return averageQueueTime;
+        }
+
+        /**
+         * The number of requests that timed out waiting to be admitted
+         */
+        public synchronized long getRejectedCount() {
+            return rejected;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return name + "(limit=" + (int) limit + ",running=" + running + ",minLatency="
+                    + getMinLatency() + ",avgLatency=" + (long) averageLatency + ",rejected="
+                    + rejected + ")";
+        }
+    }
+
+    /**
+     * A request admitted by a limiter
+     */
+    static class Permit {
+        Limiter limiter;
+
+        long start;
+
+        Permit(Limiter limiter, long start) {
+            this.limiter = limiter;
+            this.start = start;
+        }
+    }
+
+    int minLimit;
+
+    int maxLimit;
+
+    double tolerance = DEFAULT_TOLERANCE;
+
+    ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+
+    Map<Request, Permit> permits = new ConcurrentHashMap<Request, Permit>();
+
+    /**
+     * Builds a new adaptive controller
+     *
+     * @param minLimit
+     *            the minimum number of parallel requests for each operation
+     * @param maxLimit
+     *            the maximum number of parallel requests for each operation
+     */
+    public AdaptiveFlowController(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits, the minimum must be positive "
+                    + "and not greater than the maximum: " + minLimit + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    public int getPriority() {
+        return maxLimit;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        Limiter limiter = getLimiter(request);
+        boolean retval = true;
+        try {
+            retval = limiter.acquire(timeout);
+            if (retval) {
+                permits.put(request, new Permit(limiter, System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING,
+                    "Unexpected interruption while blocking on the request queue");
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " " + limiter);
+        }
+        return retval;
+    }
+
+    public void requestComplete(Request request) {
+        Permit permit = permits.remove(request);
+        if (permit != null) {
+            permit.limiter.release(System.currentTimeMillis() - permit.start);
+        }
+    }
+
+    Limiter getLimiter(Request request) {
+        String name = getLimiterName(request);
+        Limiter limiter = limiters.get(name);
+        if (limiter == null) {
+            Limiter created = new Limiter(name, minLimit, maxLimit, tolerance);
+            limiter = limiters.putIfAbsent(name, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    String getLimiterName(Request request) {
+        String service = request.getService() != null ? request.getService().toLowerCase()
+                : "*";
+        String operation = request.getRequest() != null ? request.getRequest().toLowerCase()
+                : "*";
+        return service + "." + operation;
+    }
+
+    /**
+     * Returns the current limit of each service/operation, keyed by "service.operation"
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Limiter limiter : limiters.values()) {
+            result.put(limiter.getName(), limiter.getLimit());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the limiters of each service/operation, keyed by "service.operation"
+     */
+    public Map<String, Limiter> getLimiters() {
+        return new TreeMap<String, Limiter>(limiters);
+    }
+
+    /**
+     * Returns the total number of requests that timed out waiting to be admitted
+     */
+    public long getRejectedCount() {
+        long rejected = 0;
+        for (Limiter limiter : limiters.values()) {
+            rejected += limiter.getRejectedCount();
+        }
+        return rejected;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * The ratio between the measured and the minimum latency past which the limits start
+     * decreasing
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(double tolerance) {
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("The tolerance cannot be less than one");
+        }
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveFlowController(" + minLimit + "," + maxLimit + ")";
+    }
+}
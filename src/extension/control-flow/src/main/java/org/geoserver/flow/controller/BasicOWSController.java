@@ -13,11 +13,7 @@ import org.geoserver.ows.Request;
  * 
  */
 public class BasicOWSController extends SingleQueueFlowController {
-    String service;
-
-    String method;
-
-    String outputFormat;
+    OWSRequestMatcher matcher;
 
     public BasicOWSController(String service, int queueSize) {
         this(service, null, null, queueSize);
@@ -29,33 +25,12 @@ public class BasicOWSController extends SingleQueueFlowController {
 
     public BasicOWSController(String service, String method, String outputFormat, int queueSize) {
         super(queueSize);
-        this.service = service;
-        this.method = method;
-        this.outputFormat = outputFormat;
-
-        if (service == null)
-            throw new IllegalArgumentException("Invalid OWS definition, service cannot be non null");
-        else if (method == null && outputFormat != null)
-            throw new IllegalArgumentException(
-                    "Invalid OWS definition, output format cannot be null if method is not provided");
+        this.matcher = new OWSRequestMatcher(service, method, outputFormat);
     }
 
     @Override
     boolean matchesRequest(Request request) {
-        if (!service.equalsIgnoreCase(request.getService()))
-            return false;
-
-        if (method == null)
-            return true;
-        else if (!method.equalsIgnoreCase(request.getRequest()))
-            return false;
-
-        if (outputFormat == null)
-            return true;
-        else if (!outputFormat.equalsIgnoreCase(request.getOutputFormat()))
-            return false;
-
-        return true;
+        return matcher.matches(request);
     }
     
     /**
@@ -63,7 +38,7 @@ public class BasicOWSController extends SingleQueueFlowController {
      * @return
      */
     public String getService() {
-        return service;
+        return matcher.getService();
     }
 
     /**
@@ -71,7 +46,7 @@ public class BasicOWSController extends SingleQueueFlowController {
      * @return
      */
     public String getMethod() {
-        return method;
+        return matcher.getMethod();
     }
 
     /**
@@ -79,13 +54,12 @@ public class BasicOWSController extends SingleQueueFlowController {
      * @return
      */
     public String getOutputFormat() {
-        return outputFormat;
+        return matcher.getOutputFormat();
     }
 
     @Override
     public String toString() {
-        return "BasicOWSController(" + service + "," + method + "," + outputFormat + ","
-                + queueSize + ")";
+        return "BasicOWSController(" + matcher + "," + queueSize + ")";
     }
 
 }
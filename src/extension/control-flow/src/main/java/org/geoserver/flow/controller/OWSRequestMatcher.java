@@ -0,0 +1,65 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import org.geoserver.ows.Request;
+
+/**
+ * Matches requests by service, method and output format (all case insensitive). The method and
+ * output format are optional, when missing any value matches.
+ */
+public class OWSRequestMatcher {
+    String service;
+
+    String method;
+
+    String outputFormat;
+
+    public OWSRequestMatcher(String service, String method, String outputFormat) {
+        this.service = service;
+        this.method = method;
+        this.outputFormat = outputFormat;
+
+        if (service == null)
+            throw new IllegalArgumentException("Invalid OWS definition, service cannot be non null");
+        else if (method == null && outputFormat != null)
+            throw new IllegalArgumentException(
+                    "Invalid OWS definition, output format cannot be null if method is not provided");
+    }
+
+    public boolean matches(Request request) {
+        if (!service.equalsIgnoreCase(request.getService()))
+            return false;
+
+        if (method == null)
+            return true;
+        else if (!method.equalsIgnoreCase(request.getRequest()))
+            return false;
+
+        if (outputFormat == null)
+            return true;
+        else if (!outputFormat.equalsIgnoreCase(request.getOutputFormat()))
+            return false;
+
+        return true;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public String toString() {
+        return service + "," + method + "," + outputFormat;
+    }
+}
@@ -0,0 +1,506 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller limiting the number of requests running in parallel, and scheduling the
+ * waiting ones by priority and client, instead of plain arrival order.
+ * <p>
+ * Requests are first assigned a priority level using a list of {@link OWSRequestMatcher} (lower
+ * levels are served first, e.g., GetCapabilities can be given precedence over WFS GetFeature).
+ * Within the same level requests are served using weighted fair queuing among clients, so that a
+ * client issuing many parallel requests cannot starve the others. Clients are identified by
+ * user name, or by IP address for anonymous requests, and by default have all the same weight.
+ * The X-Forwarded-For header is used to get the address only when GeoServer is known to sit
+ * behind a proxy, see {@link #setUseForwardedFor(boolean)}, otherwise clients could get a new
+ * share at will by changing the header.
+ * </p>
+ * <p>
+ * When a timeout is provided and the estimated wait, based on the number of requests ahead in
+ * the queue and the average processing time, exceeds it, the request is rejected right away
+ * instead of being held in the queue until the timeout expires.
+ * </p>
+ */
+public class PriorityFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Weight of the last sample in the average processing time
+     */
+    static final double SERVICE_TIME_ALPHA = 0.2;
+
+    /**
+     * A priority level associated to the requests matching a certain matcher
+     */
+    public static class PriorityClass {
+        OWSRequestMatcher matcher;
+
+        int level;
+
+        public PriorityClass(OWSRequestMatcher matcher, int level) {
+            this.matcher = matcher;
+            this.level = level;
+        }
+
+        public OWSRequestMatcher getMatcher() {
+            return matcher;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return "PriorityClass(" + matcher + "," + level + ")";
+        }
+    }
+
+    /**
+     * A request admitted, or waiting to be admitted
+     */
+    static class Ticket implements Comparable<Ticket> {
+        Request request;
+
+        PriorityLevel level;
+
+        Client client;
+
+        double finishTag;
+
+        long sequence;
+
+        Condition admitted;
+
+        boolean running;
+
+        boolean cancelled;
+
+        long startTime;
+
+        public int compareTo(Ticket other) {
+            if (finishTag != other.finishTag) {
+                return finishTag < other.finishTag ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * The waiting requests of a priority level
+     */
+    static class PriorityLevel {
+        int level;
+
+        PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>();
+
+        /**
+         * Number of waiting tickets, excluding the cancelled ones still in the queue
+         */
+        int count;
+
+        /**
+         * Finish tag of the last ticket served, the virtual time of the fair queue
+         */
+        double virtualTime;
+
+        /**
+         * The clients having requests in the level queue
+         */
+        Map<String, Client> clients = new HashMap<String, Client>();
+
+        PriorityLevel(int level) {
+            this.level = level;
+        }
+    }
+
+    /**
+     * The fair queuing state of a client in a priority level
+     */
+    static class Client {
+        String id;
+
+        double weight;
+
+        double lastFinishTag;
+
+        int pending;
+    }
+
+    int maxRunning;
+
+    List<PriorityClass> classes;
+
+    int defaultLevel;
+
+    Map<String, Double> weights;
+
+    ReentrantLock lock = new ReentrantLock();
+
+    TreeMap<Integer, PriorityLevel> levels = new TreeMap<Integer, PriorityLevel>();
+
+    Map<Request, Ticket> runningRequests = new IdentityHashMap<Request, Ticket>();
+
+    int running;
+
+    int waiting;
+
+    long sequence;
+
+    double averageServiceTime = -1;
+
+    long rejected;
+
+    boolean useForwardedFor;
+
+    /**
+     * Builds a controller with no priority classes and equal weights for all clients
+     *
+     * @param maxRunning
+     *            the maximum number of requests running in parallel
+     */
+    public PriorityFlowController(int maxRunning) {
+        this(maxRunning, new ArrayList<PriorityClass>(), 0, new HashMap<String, Double>());
+    }
+
+    /**
+     * Builds a fully configured controller
+     *
+     * @param maxRunning
+     *            the maximum number of requests running in parallel
+     * @param classes
+     *            the priority classes, the first matching one determines the request level
+     * @param defaultLevel
+     *            the level of requests not matching any class
+     * @param weights
+     *            the weights of specific clients (user names or IP addresses), clients not
+     *            listed have a weight of one
+     */
+    public PriorityFlowController(int maxRunning, List<PriorityClass> classes,
+            int defaultLevel, Map<String, Double> weights) {
+        if (maxRunning <= 0) {
+            throw new IllegalArgumentException("The number of running requests must be positive");
+        }
+        this.maxRunning = maxRunning;
+        this.classes = new ArrayList<PriorityClass>(classes);
+        this.defaultLevel = defaultLevel;
+        this.weights = new HashMap<String, Double>(weights);
+    }
+
+    public int getPriority() {
+        return maxRunning;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        long start = System.currentTimeMillis();
+        int level = getLevel(request);
+        String clientId = getClientId(request);
+
+        lock.lock();
+        try {
+            // fast path, a slot is free and nobody is waiting for it
+            if (running < maxRunning && waiting == 0) {
+                running++;
+                Ticket ticket = new Ticket();
+                ticket.request = request;
+                ticket.running = true;
+                ticket.startTime = start;
+                runningRequests.put(request, ticket);
+                return true;
+            }
+
+            // deadline aware rejection
+            if (timeout > 0 && estimateWait(level) > timeout) {
+                rejected++;
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(this + " rejected request from " + clientId
+                            + ", estimated wait exceeds the timeout");
+                }
+                return false;
+            }
+
+            Ticket ticket = enqueue(request, level, clientId);
+            try {
+                long deadline = start + timeout;
+                while (!ticket.running) {
+                    if (timeout > 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            cancel(ticket);
+                            rejected++;
+                            return false;
+                        }
+                        ticket.admitted.await(remaining, TimeUnit.MILLISECONDS);
+                    } else {
+                        ticket.admitted.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Unexpected interruption while "
+                        + "waiting for the request to be scheduled");
+                if (!ticket.running) {
+                    cancel(ticket);
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " scheduled request from " + clientId + " at level " + level
+                        + " after " + (System.currentTimeMillis() - start) + "ms");
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void requestComplete(Request request) {
+        lock.lock();
+        try {
+            Ticket ticket = runningRequests.remove(request);
+            if (ticket == null) {
+                // never admitted
+                return;
+            }
+
+            // update the average processing time
+            long elapsed = System.currentTimeMillis() - ticket.startTime;
+            if (averageServiceTime < 0) {
+                averageServiceTime = elapsed;
+            } else {
+                averageServiceTime = SERVICE_TIME_ALPHA * elapsed + (1 - SERVICE_TIME_ALPHA)
+                        * averageServiceTime;
+            }
+
+            // hand over the slot to the next request, if any
+            Ticket next = dequeue();
+            if (next != null) {
+                next.running = true;
+                next.startTime = System.currentTimeMillis();
+                runningRequests.put(next.request, next);
+                next.admitted.signal();
+            } else {
+                running--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the level of the first matching priority class, or the default level
+     */
+    int getLevel(Request request) {
+        for (PriorityClass pc : classes) {
+            if (pc.matcher.matches(request)) {
+                return pc.level;
+            }
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * Identifies the client by user name, or IP address for anonymous requests
+     */
+    String getClientId(Request request) {
+        HttpServletRequest http = request.getHttpRequest();
+        if (http == null) {
+            return "";
+        }
+        if (http.getRemoteUser() != null) {
+            return http.getRemoteUser();
+        }
+        if (useForwardedFor) {
+            String forwarded = http.getHeader("X-Forwarded-For");
+            if (forwarded != null && forwarded.trim().length() > 0) {
+                // the first address is the original client one
+                return forwarded.split(",")[0].trim();
+            }
+        }
+        return http.getRemoteAddr();
+    }
+
+    /**
+     * Estimates how long a new request at the specified level would wait, in milliseconds
+     */
+    long estimateWait(int level) {
+        if (averageServiceTime < 0) {
+            return 0;
+        }
+        int ahead = 0;
+        for (PriorityLevel l : levels.values()) {
+            if (l.level > level) {
+                break;
+            }
+            ahead += l.count;
+        }
+        return (long) (Math.ceil((ahead + 1.0) / maxRunning) * averageServiceTime);
+    }
+
+    Ticket enqueue(Request request, int level, String clientId) {
+        PriorityLevel l = levels.get(level);
+        if (l == null) {
+            l = new PriorityLevel(level);
+            levels.put(level, l);
+        }
+        Client client = l.clients.get(clientId);
+        if (client == null) {
+            client = new Client();
+            client.id = clientId;
+            Double weight = weights.get(clientId);
+            client.weight = weight != null && weight > 0 ? weight : 1;
+            client.lastFinishTag = l.virtualTime;
+            l.clients.put(clientId, client);
+        }
+
+        Ticket ticket = new Ticket();
+        ticket.request = request;
+        ticket.level = l;
+        ticket.client = client;
+        ticket.finishTag = Math.max(l.virtualTime, client.lastFinishTag) + 1 / client.weight;
+        ticket.sequence = sequence++;
+        ticket.admitted = lock.newCondition();
+        client.lastFinishTag = ticket.finishTag;
+        client.pending++;
+        l.waiting.add(ticket);
+        l.count++;
+        waiting++;
+
+        return ticket;
+    }
+
+    /**
+     * Removes the next ticket to be served, or returns null if no request is waiting
+     */
+    Ticket dequeue() {
+        for (PriorityLevel l : levels.values()) {
+            Ticket ticket;
+            while ((ticket = l.waiting.poll()) != null) {
+                if (!ticket.cancelled) {
+                    l.virtualTime = ticket.finishTag;
+                    removed(ticket);
+                    return ticket;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the ticket as cancelled, it will be discarded when reaching the head of the queue
+     */
+    void cancel(Ticket ticket) {
+        ticket.cancelled = true;
+        removed(ticket);
+    }
+
+    void removed(Ticket ticket) {
+        PriorityLevel l = ticket.level;
+        l.count--;
+        waiting--;
+        Client client = ticket.client;
+        client.pending--;
+        if (client.pending == 0) {
+            l.clients.remove(client.id);
+        }
+    }
+
+    /**
+     * Returns the maximum number of requests running in parallel
+     */
+    public int getMaxRunning() {
+        return maxRunning;
+    }
+
+    /**
+     * Returns the number of requests currently running
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting to be scheduled
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests rejected because they would have waited past their timeout
+     */
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<PriorityClass> getClasses() {
+        return classes;
+    }
+
+    public int getDefaultLevel() {
+        return defaultLevel;
+    }
+
+    public Map<String, Double> getWeights() {
+        return weights;
+    }
+
+    /**
+     * Returns true if anonymous clients are identified by the X-Forwarded-For header
+     */
+    public boolean isUseForwardedFor() {
+        return useForwardedFor;
+    }
+
+    /**
+     * Sets whether anonymous clients are identified by the first address in the X-Forwarded-For
+     * header, instead of the remote address. Enable only when all requests go through a proxy
+     * setting the header, since clients can send any value
+     */
+    public void setUseForwardedFor(boolean useForwardedFor) {
+        this.useForwardedFor = useForwardedFor;
+    }
+
+    @Override
+    public String toString() {
+        return "PriorityFlowController(" + maxRunning + "," + classes + "," + defaultLevel + ")";
+    }
+}
@@ -4,8 +4,9 @@
  */
 package org.geoserver.flow.controller;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -16,7 +17,9 @@ import org.geoserver.ows.Request;
 import org.geotools.util.logging.Logging;
 
 /**
- * Base class for flow controllers using a single queue
+ * Base class for flow controllers using a single queue. The queue is implemented as a fair
+ * semaphore, the requests holding a permit are tracked so that releasing one is a constant time
+ * operation, and requests that never got a permit (e.g., timed out) do not release one
  * 
  * @author Andrea Aime - OpenGeo
  * 
@@ -24,13 +27,15 @@ import org.geotools.util.logging.Logging;
 public abstract class SingleQueueFlowController implements FlowController {
     static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
 
-    BlockingQueue<Request> queue;
+    Semaphore queue;
+    
+    Map<Request, Request> running = new ConcurrentHashMap<Request, Request>();
 
     int queueSize;
 
     public SingleQueueFlowController(int queueSize) {
         this.queueSize = queueSize;
-        queue = new ArrayBlockingQueue<Request>(queueSize, true);
+        queue = new Semaphore(queueSize, true);
     }
 
     public int getPriority() {
@@ -39,7 +44,9 @@ public abstract class SingleQueueFlowController implements FlowController {
 
     public void requestComplete(Request request) {
         if (matchesRequest(request)) {
-            queue.remove(request);
+            if (running.remove(request) != null) {
+                queue.release();
+            }
         }
     }
 
@@ -48,16 +55,19 @@ public abstract class SingleQueueFlowController implements FlowController {
         if (matchesRequest(request)) {
             try {
                 if(timeout > 0) {
-                    retval = queue.offer(request, timeout, TimeUnit.MILLISECONDS);
+                    retval = queue.tryAcquire(timeout, TimeUnit.MILLISECONDS);
                 } else {
-                    queue.put(request);
+                    queue.acquire();
+                }
+                if (retval) {
+                    running.put(request, request);
                 }
             } catch (InterruptedException e) {
                 LOGGER.log(Level.WARNING,
                         "Unexpected interruption while blocking on the request queue");
             }
             if (LOGGER.isLoggable(Level.FINE)) {
-                LOGGER.fine(this + " queue size " + queue.size());
+                LOGGER.fine(this + " queue size " + running.size());
             }
 
         }
@@ -9,8 +9,10 @@ import junit.framework.TestCase;
 
 import org.geoserver.flow.ControllerPriorityComparator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.GlobalFlowController;
+import org.geoserver.flow.controller.PriorityFlowController;
 import org.geoserver.flow.controller.UserFlowController;
 import org.geoserver.security.PropertyFileWatcher;
 
@@ -47,6 +49,47 @@ public class DefaultControlFlowConfigurationTest extends TestCase {
         assertEquals(100, gc.getPriority());
     }
     
+    public void testParsingPriority() throws Exception {
+        Properties p = new Properties();
+        p.put("priority.global", "16");
+        p.put("priority.default", "5");
+        p.put("priority.ows.wms", "3");
+        p.put("priority.ows.wms.getcapabilities", "0");
+        p.put("priority.ows.wfs.getfeature", "10");
+        p.put("priority.weight.192.168.1.10", "3");
+        p.put("priority.forwarded", "true");
+        
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        
+        PriorityFlowController pc = (PriorityFlowController) controllers.get(0);
+        assertEquals(16, pc.getMaxRunning());
+        assertEquals(5, pc.getDefaultLevel());
+        assertEquals(3, pc.getClasses().size());
+        // most specific rules first
+        assertEquals("wms", pc.getClasses().get(2).getMatcher().getService());
+        assertNull(pc.getClasses().get(2).getMatcher().getMethod());
+        assertEquals(3, pc.getClasses().get(2).getLevel());
+        assertEquals(Double.valueOf(3), pc.getWeights().get("192.168.1.10"));
+        assertTrue(pc.isUseForwardedFor());
+    }
+    
+    public void testParsingAdaptive() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive.max", "32");
+        p.put("adaptive.min", "2");
+        p.put("adaptive.tolerance", "1.5");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+
+        AdaptiveFlowController ac = (AdaptiveFlowController) controllers.get(0);
+        assertEquals(2, ac.getMinLimit());
+        assertEquals(32, ac.getMaxLimit());
+        assertEquals(1.5, ac.getTolerance(), 0d);
+    }
     
     static class FixedWatcher extends PropertyFileWatcher {
         boolean stale = true;
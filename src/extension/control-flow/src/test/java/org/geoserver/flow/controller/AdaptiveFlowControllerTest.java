@@ -0,0 +1,97 @@
+package org.geoserver.flow.controller;
+
+import org.geoserver.flow.controller.AdaptiveFlowController.Limiter;
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+
+public class AdaptiveFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    public void testLimitAdapts() {
+        Limiter limiter = new Limiter("wms.getmap", 1, 20, 2);
+        assertEquals(10, limiter.getLimit());
+
+        // latency stays flat while the limit is in use, the limit grows up to the max
+        limiter.running = 10;
+        for (int i = 0; i < 100; i++) {
+            limiter.update(100);
+        }
+        assertEquals(20, limiter.getLimit());
+        assertEquals(100, limiter.getMinLatency());
+
+        // latency grows a lot, the limit goes down to the minimum
+        for (int i = 0; i < 100; i++) {
+            limiter.update(1000);
+        }
+        assertEquals(1, limiter.getLimit());
+
+        // and recovers when latency goes back to normal
+        for (int i = 0; i < 100; i++) {
+            limiter.update(100);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    public void testIdleLimitDoesNotGrow() {
+        Limiter limiter = new Limiter("wms.getmap", 1, 20, 2);
+        // only one request at a time, no reason to raise the limit
+        for (int i = 0; i < 100; i++) {
+            limiter.update(100);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    public void testPerOperationLimits() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 2);
+
+        Request getMap = buildRequest("WMS", "GetMap");
+        Request getFeature = buildRequest("WFS", "GetFeature");
+        assertTrue(controller.requestIncoming(getMap, 100));
+        // a different operation is not affected
+        assertTrue(controller.requestIncoming(getFeature, 100));
+        assertEquals(2, controller.getLimits().size());
+        assertEquals(Integer.valueOf(1), controller.getLimits().get("wms.getmap"));
+
+        // same operation, limit reached
+        assertFalse(controller.requestIncoming(buildRequest("WMS", "GetMap"), 100));
+        assertEquals(1, controller.getRejectedCount());
+
+        controller.requestComplete(getMap);
+        controller.requestComplete(getFeature);
+        assertEquals(0, controller.getLimiters().get("wms.getmap").getRunning());
+    }
+
+    public void testWaitForSlot() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(1, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(controller, buildRequest(
+                "WMS", "GetMap"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(controller, buildRequest(
+                "WMS", "GetMap"), 0, Long.MAX_VALUE);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+
+            t2.interrupt();
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    Request buildRequest(String service, String request) {
+        Request r = new Request();
+        r.setService(service);
+        r.setRequest(request);
+        return r;
+    }
+}
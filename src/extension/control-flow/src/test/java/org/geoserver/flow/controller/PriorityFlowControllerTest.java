@@ -0,0 +1,177 @@
+package org.geoserver.flow.controller;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.flow.controller.PriorityFlowController.PriorityClass;
+import org.geoserver.ows.Request;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class PriorityFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    public void testPriorityLevels() {
+        // capabilities go before everything else, GetFeature after everything else
+        PriorityFlowController controller = new PriorityFlowController(1, Arrays.asList(
+                new PriorityClass(new OWSRequestMatcher("WMS", "GetCapabilities", null), 0),
+                new PriorityClass(new OWSRequestMatcher("WFS", "GetFeature", null), 10)), 5,
+                Collections.EMPTY_MAP);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "127.0.0.1"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(controller,
+                buildRequest("WFS", "GetFeature", "127.0.0.1"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread t3 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetCapabilities", "127.0.0.1"), 0, Long.MAX_VALUE);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+            t3.start();
+            waitBlocked(t3, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(ThreadState.STARTED, t3.state);
+            assertEquals(1, controller.getRunning());
+            assertEquals(2, controller.getWaiting());
+
+            // the capabilities request arrived last, but goes first
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            waitBlocked(t3, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t3.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+
+            t3.interrupt();
+            waitTerminated(t3, MAX_WAIT);
+            waitBlocked(t2, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(0, controller.getRunning());
+            assertEquals(0, controller.getWaiting());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+            waitAndKill(t3, MAX_WAIT);
+        }
+    }
+
+    public void testFairShare() {
+        PriorityFlowController controller = new PriorityFlowController(1);
+
+        // client a sends three requests, client b sends one after them
+        FlowControllerTestingThread a1 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "10.0.0.1"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread a2 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "10.0.0.1"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread a3 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "10.0.0.1"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread b1 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "10.0.0.2"), 0, Long.MAX_VALUE);
+        try {
+            a1.start();
+            waitBlocked(a1, MAX_WAIT);
+            a2.start();
+            waitBlocked(a2, MAX_WAIT);
+            a3.start();
+            waitBlocked(a3, MAX_WAIT);
+            b1.start();
+            waitBlocked(b1, MAX_WAIT);
+
+            a1.interrupt();
+            waitTerminated(a1, MAX_WAIT);
+            waitBlocked(a2, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, a2.state);
+
+            // b gets its share before the third request of a
+            a2.interrupt();
+            waitTerminated(a2, MAX_WAIT);
+            waitBlocked(b1, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, b1.state);
+            assertEquals(ThreadState.STARTED, a3.state);
+
+            b1.interrupt();
+            waitTerminated(b1, MAX_WAIT);
+            waitBlocked(a3, MAX_WAIT);
+            assertEquals(ThreadState.PROCESSING, a3.state);
+            a3.interrupt();
+        } finally {
+            waitAndKill(a1, MAX_WAIT);
+            waitAndKill(a2, MAX_WAIT);
+            waitAndKill(a3, MAX_WAIT);
+            waitAndKill(b1, MAX_WAIT);
+        }
+    }
+
+    public void testTimeout() {
+        PriorityFlowController controller = new PriorityFlowController(1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "127.0.0.1"), 100, 400);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(controller,
+                buildRequest("WMS", "GetMap", "127.0.0.1"), 100, 400);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+
+            waitTerminated(t1, MAX_WAIT);
+            waitTerminated(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertEquals(1, controller.getRejectedCount());
+            assertEquals(0, controller.getWaiting());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    public void testClientId() {
+        PriorityFlowController controller = new PriorityFlowController(1);
+        Request request = buildRequest("WMS", "GetMap", "10.0.0.1");
+        ((MockHttpServletRequest) request.getHttpRequest()).setHeader("X-Forwarded-For",
+                "192.168.1.10, 10.0.0.1");
+        // the header can be forged, ignored unless there is a proxy setting it
+        assertFalse(controller.isUseForwardedFor());
+        assertEquals("10.0.0.1", controller.getClientId(request));
+
+        controller.setUseForwardedFor(true);
+        assertEquals("192.168.1.10", controller.getClientId(request));
+    }
+
+    public void testDeadlineRejection() {
+        PriorityFlowController controller = new PriorityFlowController(1);
+        // pretend requests take one second on average
+        controller.averageServiceTime = 1000;
+
+        Request r1 = buildRequest("WMS", "GetMap", "127.0.0.1");
+        assertTrue(controller.requestIncoming(r1, 100));
+        // this one would have to wait too much, rejected without waiting
+        long start = System.currentTimeMillis();
+        assertFalse(controller.requestIncoming(buildRequest("WMS", "GetMap", "127.0.0.1"), 500));
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, controller.getRejectedCount());
+
+        controller.requestComplete(r1);
+        assertEquals(0, controller.getRunning());
+    }
+
+    Request buildRequest(String service, String request, String address) {
+        Request r = new Request();
+        r.setService(service);
+        r.setRequest(request);
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        httpRequest.setRemoteAddr(address);
+        r.setHttpRequest(httpRequest);
+
+        return r;
+    }
+}
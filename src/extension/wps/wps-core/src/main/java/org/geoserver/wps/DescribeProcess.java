@@ -113,6 +113,9 @@ public class DescribeProcess {
         pds.getProcessDescription().add( pd );
         
         pd.setProcessVersion( "1.0.0" );
+        //the response can be stored and polled for, see Execute#runAsynchronous
+        pd.setStoreSupported( true );
+        pd.setStatusSupported( true );
         pd.setIdentifier( Ows11Util.code( id.getValue() ) );
         pd.setTitle( Ows11Util.languageString(pf.getTitle(name)) );
         pd.setAbstract( Ows11Util.languageString(pf.getDescription(name)) );
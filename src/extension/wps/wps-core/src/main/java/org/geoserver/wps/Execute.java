@@ -5,7 +5,11 @@
 
 package org.geoserver.wps;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
@@ -16,6 +20,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -38,7 +44,10 @@ import net.opengis.wps10.OutputDefinitionType;
 import net.opengis.wps10.OutputDefinitionsType;
 import net.opengis.wps10.OutputReferenceType;
 import net.opengis.wps10.ProcessBriefType;
+import net.opengis.wps10.ProcessFailedType;
 import net.opengis.wps10.ProcessOutputsType1;
+import net.opengis.wps10.ProcessStartedType;
+import net.opengis.wps10.ResponseDocumentType;
 import net.opengis.wps10.Wps10Factory;
 
 import org.apache.commons.httpclient.HttpClient;
@@ -60,7 +69,9 @@ import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.wcs.WebCoverageService100;
 import org.geoserver.wcs.WebCoverageService111;
 import org.geoserver.wfs.WebFeatureService;
+import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.kvp.GetFeatureKvpRequestReader;
+import org.geoserver.wps.ProcessManager.ExecutionStatus;
 import org.geoserver.wps.kvp.ExecuteKvpRequestReader;
 import org.geoserver.wps.ppio.BinaryPPIO;
 import org.geoserver.wps.ppio.BoundingBoxPPIO;
@@ -76,6 +87,7 @@ import org.geotools.process.ProcessException;
 import org.geotools.process.ProcessFactory;
 import org.geotools.process.Processors;
 import org.geotools.util.Converters;
+import org.geotools.util.logging.Logging;
 import org.geotools.xml.EMFUtils;
 import org.opengis.feature.type.Name;
 import org.opengis.util.InternationalString;
@@ -90,6 +102,14 @@ import org.springframework.context.ApplicationContext;
  */
 public class Execute {
     
+    static final Logger LOGGER = Logging.getLogger(Execute.class);
+    
+    /**
+     * Minimum interval, in milliseconds, between two status document updates of an 
+     * asynchronous execution
+     */
+    static final long STATUS_UPDATE_INTERVAL = 1000;
+    
     int connectionTimeout;
     
     WPSInfo wps;
@@ -122,13 +142,122 @@ public class Execute {
      * @throws IllegalArgumentException
      */
     public ExecuteResponseType run(ExecuteType request) {
+        if (isAsynchronous(request)) {
+            return runAsynchronous(request);
+        }
+        
         // note the current time
         Date started = Calendar.getInstance().getTime();
 
         // perform the execution and grab the results
         Map<String, ProcessOutput> outputMap = executeInternal(request);
         
-        // build the response
+        return buildResponse(request, started, outputMap);
+    }
+    
+    /**
+     * Returns true if the client asked to store the response and poll for the execution status,
+     * in which case the process is run in the background
+     */
+    boolean isAsynchronous(ExecuteType request) {
+        ResponseDocumentType document = request.getResponseForm() != null ? 
+                request.getResponseForm().getResponseDocument() : null;
+        return document != null && document.isStoreExecuteResponse();
+    }
+    
+    /**
+     * Queues the execution in the {@link ProcessManager} and returns right away a response
+     * pointing to the status document the client can poll
+     */
+    ExecuteResponseType runAsynchronous(final ExecuteType request) {
+        final Name processName = Ows11Util.name(request.getIdentifier());
+        if (Processors.createProcessFactory(processName) == null) {
+            throw new WPSException("No such process: " + processName);
+        }
+        
+        final ProcessManager manager = (ProcessManager) context.getBean("wpsProcessManager");
+        final ExecuteResponseType[] accepted = new ExecuteResponseType[1];
+        manager.submit(processName, request.getBaseUrl(), new ProcessManager.ExecutionTask() {
+            
+            public void accepted(ExecutionStatus status) throws Exception {
+                accepted[0] = buildStatusResponse(request, status, manager);
+                accepted[0].getStatus().setProcessAccepted("Process accepted.");
+                manager.storeStatus(status.getExecutionId(), accepted[0]);
+            }
+            
+            public void run(final ExecutionStatus status) throws Exception {
+                Date started = status.getCreationTime();
+                storeStarted(request, status, manager);
+                
+                try {
+                    ProcessListener listener = new ProcessListener() {
+                        long lastUpdate = System.currentTimeMillis();
+                        
+                        public void progress(float percent) {
+                            super.progress(percent);
+                            status.setProgress(percent);
+                            // throttle the status document updates
+                            long now = System.currentTimeMillis();
+                            if (now - lastUpdate > STATUS_UPDATE_INTERVAL) {
+                                lastUpdate = now;
+                                try {
+                                    storeStarted(request, status, manager);
+                                } catch(IOException e) {
+                                    LOGGER.log(Level.FINE, "Failed to update the status of " 
+                                            + status.getExecutionId(), e);
+                                }
+                            }
+                        }
+                    };
+                    Map<String, ProcessOutput> outputMap = executeInternal(request, listener);
+                    ExecuteResponseType response = buildResponse(request, started, outputMap);
+                    response.setStatusLocation(statusLocation(status, manager));
+                    manager.storeStatus(status.getExecutionId(), response);
+                } catch(Exception e) {
+                    ServiceException se = e instanceof ServiceException ? (ServiceException) e : 
+                        new WPSException("Process failed during execution", e);
+                    
+                    ExecuteResponseType response = buildStatusResponse(request, status, manager);
+                    ProcessFailedType failed = Wps10Factory.eINSTANCE.createProcessFailedType();
+                    failed.setExceptionReport(Ows11Util.exceptionReport(se, 
+                            gs.isVerboseExceptions()));
+                    response.getStatus().setProcessFailed(failed);
+                    manager.storeStatus(status.getExecutionId(), response);
+                    throw e;
+                }
+            }
+        });
+        
+        return accepted[0];
+    }
+    
+    void storeStarted(ExecuteType request, ExecutionStatus status, ProcessManager manager) 
+        throws IOException {
+        ExecuteResponseType response = buildStatusResponse(request, status, manager);
+        ProcessStartedType started = Wps10Factory.eINSTANCE.createProcessStartedType();
+        started.setValue("Process started.");
+        started.setPercentCompleted(BigInteger.valueOf(Math.round(status.getProgress())));
+        response.getStatus().setProcessStarted(started);
+        manager.storeStatus(status.getExecutionId(), response);
+    }
+    
+    ExecuteResponseType buildStatusResponse(ExecuteType request, ExecutionStatus status, 
+            ProcessManager manager) throws MalformedURLException {
+        ExecuteResponseType response = createResponse(request, status.getCreationTime());
+        response.setStatusLocation(statusLocation(status, manager));
+        return response;
+    }
+    
+    String statusLocation(ExecutionStatus status, ProcessManager manager) 
+        throws MalformedURLException {
+        File file = manager.getStatusFile(status.getExecutionId());
+        return ((WPSStorageHandler) context.getBean("wpsStorageHandler")).getURL(file).toString();
+    }
+    
+    /**
+     * Creates the execute response common parts: service, process, status and inputs
+     */
+    ExecuteResponseType createResponse(ExecuteType request, Date started) {
         Wps10Factory f = Wps10Factory.eINSTANCE;
         ExecuteResponseType response = f.createExecuteResponseType();
         response.setLang("en");
@@ -151,7 +280,6 @@ public class Execute {
         response.setStatus(f.createStatusType());
         response.getStatus().setCreationTime(
                 Converters.convert(started, XMLGregorianCalendar.class));
-        response.getStatus().setProcessSucceeded("Process succeeded.");
 
         // inputs
         response.setDataInputs(f.createDataInputsType1());
@@ -159,6 +287,21 @@ public class Execute {
             InputType input = (InputType) i.next();
             response.getDataInputs().getInput().add(EMFUtils.clone(input, f, true));
         }
+        
+        return response;
+    }
+    
+    /**
+     * Builds the response of a successful execution
+     */
+    ExecuteResponseType buildResponse(ExecuteType request, Date started, 
+            Map<String, ProcessOutput> outputMap) {
+        Wps10Factory f = Wps10Factory.eINSTANCE;
+        ExecuteResponseType response = createResponse(request, started);
+        response.getStatus().setProcessSucceeded("Process succeeded.");
+        
+        Name processName = Ows11Util.name(request.getIdentifier());
+        ProcessFactory pf = Processors.createProcessFactory(processName);
 
         // output definitions
         OutputDefinitionsType outputs = f.createOutputDefinitionsType();
@@ -261,6 +404,10 @@ public class Execute {
     }
     
     Map<String, ProcessOutput> executeInternal(ExecuteType request) {
+        return executeInternal(request, new ProcessListener());
+    }
+    
+    Map<String, ProcessOutput> executeInternal(ExecuteType request, ProcessListener listener) {
     	// load the process factory
         Name processName = Ows11Util.name(request.getIdentifier());
         ProcessFactory pf = Processors.createProcessFactory(processName);
@@ -273,7 +420,6 @@ public class Execute {
 
         // execute the process
         Map<String, Object> result = null;
-        ProcessListener listener = new ProcessListener();
         Throwable exception = null;
         try {
             Process p = pf.create(processName);
@@ -665,6 +811,8 @@ public class Execute {
      */
     static class ProcessListener implements ProgressListener {
         Throwable exception; 
+        
+        volatile float progress;
 
         public void complete() {
             // TODO Auto-generated method stub
@@ -687,8 +835,7 @@ public class Execute {
         }
 
         public float getProgress() {
-            // TODO Auto-generated method stub
-            return 0;
+            return progress;
         }
 
         public InternationalString getTask() {
@@ -702,8 +849,7 @@ public class Execute {
         }
 
         public void progress(float percent) {
-            // TODO Auto-generated method stub
-            
+            this.progress = percent;
         }
 
         public void setCanceled(boolean cancel) {
@@ -0,0 +1,451 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.opengis.wps10.ExecuteResponseType;
+
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.ows.Ows11Util;
+import org.geoserver.ows.XmlObjectEncodingResponse;
+import org.geoserver.wps.xml.WPSConfiguration;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.type.Name;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Runs the asynchronous Execute requests (the ones asking to store the execute response) in a
+ * bounded thread pool, and keeps track of their status.
+ * <p>
+ * At most {@link #getMaxAsynchronousProcesses()} processes run in parallel, and at most
+ * {@link #getMaxQueuedProcesses()} more are accepted and queued, past that new requests are
+ * rejected. Specific processes can be given a lower limit of parallel executions via
+ * {@link #setProcessLimits(Map)} (e.g., <code>gs:Contour</code> &rarr; 1), the extra executions
+ * wait in a per process queue without occupying a thread.
+ * </p>
+ * <p>
+ * The status documents of the executions are stored in the {@link WPSStorageHandler} directory,
+ * where clients can poll them.
+ * </p>
+ */
+public class ProcessManager implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(ProcessManager.class);
+
+    /**
+     * The phases of an asynchronous execution
+     */
+    public static enum Phase {
+        ACCEPTED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    /**
+     * The work carried on by an asynchronous execution
+     */
+    public static interface ExecutionTask {
+        /**
+         * Called in the requesting thread once the execution has been accepted, before it can
+         * be scheduled
+         */
+        void accepted(ExecutionStatus status) throws Exception;
+
+        /**
+         * Runs the process. Throwing an exception marks the execution as failed.
+         */
+        void run(ExecutionStatus status) throws Exception;
+    }
+
+    /**
+     * The status of an asynchronous execution
+     */
+    public static class ExecutionStatus {
+        String executionId;
+
+        Name processName;
+
+        Date creationTime = new Date();
+
+        volatile Phase phase = Phase.ACCEPTED;
+
+        volatile float progress;
+
+        volatile Throwable exception;
+
+        ExecutionStatus(String executionId, Name processName) {
+            this.executionId = executionId;
+            this.processName = processName;
+        }
+
+        public String getExecutionId() {
+            return executionId;
+        }
+
+        public Name getProcessName() {
+            return processName;
+        }
+
+        public Date getCreationTime() {
+            return creationTime;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * The progress reported by the process, between 0 and 100
+         */
+        public float getProgress() {
+            return progress;
+        }
+
+        public void setProgress(float progress) {
+            this.progress = progress;
+        }
+
+        /**
+         * The failure cause, if the execution failed
+         */
+        public Throwable getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return "ExecutionStatus(" + executionId + "," + processName + "," + phase + ")";
+        }
+    }
+
+    /**
+     * An accepted execution. Carries over to the execution thread the request state kept in
+     * thread locals: the base URL, the authenticated user and the local workspace/layer.
+     */
+    class Job implements Runnable {
+        ExecutionStatus status;
+
+        ExecutionTask task;
+
+        String baseURL;
+
+        Authentication authentication;
+
+        WorkspaceInfo localWorkspace;
+
+        LayerInfo localLayer;
+
+        /**
+         * Creates the job, in the requesting thread
+         */
+        Job(ExecutionStatus status, ExecutionTask task, String baseURL) {
+            this.status = status;
+            this.task = task;
+            this.baseURL = baseURL;
+            this.authentication = SecurityContextHolder.getContext().getAuthentication();
+            this.localWorkspace = LocalWorkspace.get();
+            this.localLayer = LocalLayer.get();
+        }
+
+        public void run() {
+            status.phase = Phase.RUNNING;
+            WPSStorageHandler.BASE_URL.set(baseURL);
+            SecurityContextHolder.getContext().setAuthentication(authentication);
+            LocalWorkspace.set(localWorkspace);
+            LocalLayer.set(localLayer);
+            try {
+                task.run(status);
+                status.progress = 100;
+                status.phase = Phase.SUCCEEDED;
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Asynchronous execution " + status.executionId
+                        + " of " + status.processName + " failed", t);
+                status.exception = t;
+                status.phase = Phase.FAILED;
+            } finally {
+                WPSStorageHandler.BASE_URL.remove();
+                SecurityContextHolder.clearContext();
+                LocalWorkspace.remove();
+                LocalLayer.remove();
+                completed(this);
+            }
+        }
+    }
+
+    /**
+     * The executions of a process with a limit of parallel executions
+     */
+    static class ProcessQueue {
+        int running;
+
+        LinkedList<Job> waiting = new LinkedList<Job>();
+    }
+
+    WPSStorageHandler storage;
+
+    int maxAsynchronousProcesses = Runtime.getRuntime().availableProcessors();
+
+    int maxQueuedProcesses = 100;
+
+    Map<String, Integer> processLimits = new HashMap<String, Integer>();
+
+    Map<String, ExecutionStatus> executions = new ConcurrentHashMap<String, ExecutionStatus>();
+
+    Map<String, ProcessQueue> processQueues = new HashMap<String, ProcessQueue>();
+
+    /**
+     * Number of accepted and not yet completed executions
+     */
+    int pending;
+
+    ThreadPoolExecutor executor;
+
+    public ProcessManager(WPSStorageHandler storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Accepts an execution, that will be run as soon as a thread is available
+     *
+     * @param processName The process being executed
+     * @param baseURL The base URL of the request, used to build links to the results
+     * @param task The work to be carried on
+     * @return The status of the accepted execution
+     * @throws WPSException If too many executions are already pending
+     */
+    public ExecutionStatus submit(Name processName, String baseURL, ExecutionTask task)
+            throws WPSException {
+        ExecutionStatus status = new ExecutionStatus(UUID.randomUUID().toString(), processName);
+        Job job = new Job(status, task, baseURL);
+
+        synchronized (this) {
+            if (pending >= maxAsynchronousProcesses + maxQueuedProcesses) {
+                throw new WPSException("ServerBusy", "Too many processes are queued for "
+                        + "execution, please try again later");
+            }
+            pending++;
+        }
+        
+        try {
+            storage.protect(getStatusFile(status.executionId));
+            task.accepted(status);
+        } catch (Exception e) {
+            synchronized (this) {
+                pending--;
+            }
+            storage.release(getStatusFile(status.executionId));
+            throw new WPSException("Failed to accept the process execution", e);
+        }
+
+        synchronized (this) {
+            executions.put(status.executionId, status);
+
+            ProcessQueue queue = getProcessQueue(processName);
+            if (queue != null && queue.running >= processLimits.get(processName.getURI())) {
+                // will be scheduled once one of the running executions completes
+                queue.waiting.add(job);
+                return status;
+            }
+            if (queue != null) {
+                queue.running++;
+            }
+            try {
+                getExecutor().execute(job);
+            } catch (RejectedExecutionException e) {
+                // shut down or saturated, roll back the acceptance
+                pending--;
+                executions.remove(status.executionId);
+                if (queue != null) {
+                    queue.running--;
+                }
+                storage.release(getStatusFile(status.executionId));
+                throw new WPSException("ServerBusy", "The process execution could not be "
+                        + "scheduled, please try again later");
+            }
+        }
+        return status;
+    }
+
+    synchronized void completed(Job job) {
+        pending--;
+        storage.release(getStatusFile(job.status.executionId));
+        executions.remove(job.status.executionId);
+
+        ProcessQueue queue = getProcessQueue(job.status.processName);
+        if (queue != null) {
+            Job next = queue.waiting.poll();
+            if (next != null) {
+                getExecutor().execute(next);
+            } else {
+                queue.running--;
+            }
+        }
+    }
+
+    ProcessQueue getProcessQueue(Name processName) {
+        String key = processName.getURI();
+        if (!processLimits.containsKey(key)) {
+            return null;
+        }
+        ProcessQueue queue = processQueues.get(key);
+        if (queue == null) {
+            queue = new ProcessQueue();
+            processQueues.put(key, queue);
+        }
+        return queue;
+    }
+
+    synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(maxAsynchronousProcesses,
+                    maxAsynchronousProcesses, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "WPS process " + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the status of the accepted and running executions
+     */
+    public List<ExecutionStatus> getExecutions() {
+        return new ArrayList<ExecutionStatus>(executions.values());
+    }
+
+    /**
+     * Returns the status of an accepted or running execution, or null if the execution is
+     * unknown or already completed
+     */
+    public ExecutionStatus getExecution(String executionId) {
+        return executions.get(executionId);
+    }
+
+    /**
+     * The file containing the status document of the execution
+     */
+    public File getStatusFile(String executionId) {
+        return new File(storage.getStorage(), "execute-" + executionId + ".xml");
+    }
+
+    /**
+     * Stores the status document of an execution, replacing the previous one
+     */
+    public void storeStatus(String executionId, ExecuteResponseType response) throws IOException {
+        File target = getStatusFile(executionId);
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            new XmlObjectEncodingResponse(ExecuteResponseType.class, "ExecuteResponse",
+                    WPSConfiguration.class).write(response, os, null);
+        } finally {
+            os.close();
+        }
+        // make the switch as atomic as possible for pollers
+        if (!tmp.renameTo(target)) {
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not store the status document " + target);
+            }
+        }
+    }
+
+    /**
+     * The maximum number of asynchronous processes running in parallel
+     */
+    public int getMaxAsynchronousProcesses() {
+        return maxAsynchronousProcesses;
+    }
+
+    public void setMaxAsynchronousProcesses(int maxAsynchronousProcesses) {
+        if (maxAsynchronousProcesses <= 0) {
+            throw new IllegalArgumentException("The number of parallel processes must be positive");
+        }
+        this.maxAsynchronousProcesses = maxAsynchronousProcesses;
+        synchronized (this) {
+            if (executor != null) {
+                if (maxAsynchronousProcesses > executor.getMaximumPoolSize()) {
+                    executor.setMaximumPoolSize(maxAsynchronousProcesses);
+                    executor.setCorePoolSize(maxAsynchronousProcesses);
+                } else {
+                    executor.setCorePoolSize(maxAsynchronousProcesses);
+                    executor.setMaximumPoolSize(maxAsynchronousProcesses);
+                }
+            }
+        }
+    }
+
+    /**
+     * The maximum number of asynchronous processes waiting for a thread, past which new
+     * asynchronous requests are rejected
+     */
+    public int getMaxQueuedProcesses() {
+        return maxQueuedProcesses;
+    }
+
+    public void setMaxQueuedProcesses(int maxQueuedProcesses) {
+        this.maxQueuedProcesses = maxQueuedProcesses;
+    }
+
+    /**
+     * The maximum number of parallel executions of specific processes, keyed by process name
+     * (e.g. gs:Contour)
+     */
+    public Map<String, Integer> getProcessLimits() {
+        return processLimits;
+    }
+
+    public synchronized void setProcessLimits(Map<String, Integer> processLimits) {
+        this.processLimits = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : processLimits.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() <= 0) {
+                throw new IllegalArgumentException("Invalid limit for process " + entry.getKey()
+                        + ": " + entry.getValue());
+            }
+            // normalize the name the same way the requested process names are
+            this.processLimits.put(Ows11Util.name(entry.getKey()).getURI(), entry.getValue());
+        }
+    }
+
+    public void destroy() throws Exception {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+    }
+}
@@ -8,6 +8,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,6 +35,17 @@ import org.geotools.util.logging.Logging;
 public class WPSStorageHandler extends TimerTask {
     Logger LOGGER = Logging.getLogger(WCSStorageCleaner.class);
 
+    /**
+     * The base URL used to build the file links when no OWS request is being dispatched in the
+     * current thread, e.g., during asynchronous process executions
+     */
+    static final ThreadLocal<String> BASE_URL = new ThreadLocal<String>();
+    
+    /**
+     * Files that must not be cleaned up regardless of their age
+     */
+    Set<File> protectedFiles = Collections.synchronizedSet(new HashSet<File>());
+
     long expirationDelay;
 
     private File storage;
@@ -54,6 +68,9 @@ public class WPSStorageHandler extends TimerTask {
             // that are too old
             long now = System.currentTimeMillis();
             for (File f : storage.listFiles()) {
+                if (protectedFiles.contains(f)) {
+                    continue;
+                }
                 if (expirationDelay > 0 && now - f.lastModified() > (expirationDelay * 1000)) {
                     if (f.isFile()) {
                         f.delete();
@@ -91,6 +108,29 @@ public class WPSStorageHandler extends TimerTask {
         this.expirationDelay = expirationDelay;
     }
 
+    /**
+     * Prevents the file from being cleaned up until {@link #release(File)} is called, e.g., to
+     * keep around the status of a long running process
+     * 
+     * @param file
+     */
+    public void protect(File file) {
+        protectedFiles.add(file);
+    }
+    
+    /**
+     * Makes the file eligible again for clean up once expired
+     * 
+     * @param file
+     */
+    public void release(File file) {
+        protectedFiles.remove(file);
+        if (file.exists()) {
+            // the expiration delay starts now
+            file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
     /**
      * Given a file inside the root storage directory returns a URL to retrieve it via
      * the file publisher
@@ -103,6 +143,8 @@ public class WPSStorageHandler extends TimerTask {
         String baseURL = "http://geoserver/fakeroot";
         if(Dispatcher.REQUEST.get()!= null) {
             baseURL = ResponseUtils.baseURL(Dispatcher.REQUEST.get().getHttpRequest());
+        } else if(BASE_URL.get() != null) {
+            baseURL = BASE_URL.get();
         }
         
         String path = "temp/wps/" + storage.toURI().relativize(file.toURI()).getPath();
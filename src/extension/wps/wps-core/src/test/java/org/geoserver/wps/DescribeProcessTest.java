@@ -36,6 +36,10 @@ public class DescribeProcessTest extends WPSTestSupport {
         checkValidationErrors(d);
         assertXpathExists( "/wps:ProcessDescriptions", d );
         
+        // stored responses are run asynchronously
+        assertXpathEvaluatesTo("true", "/wps:ProcessDescriptions/ProcessDescription/@storeSupported", d );
+        assertXpathEvaluatesTo("true", "/wps:ProcessDescriptions/ProcessDescription/@statusSupported", d );
+        
         String base = "/wps:ProcessDescriptions/ProcessDescription/DataInputs";
         
         //first parameter
@@ -3,25 +3,36 @@ package org.geoserver.wps;
 import static org.custommonkey.xmlunit.XMLAssert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import net.opengis.ows11.BoundingBoxType;
 
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.LocalWorkspace;
 import org.geoserver.test.RemoteOWSTestSupport;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.NameImpl;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.gml3.GMLConfiguration;
 import org.geotools.ows.v1_1.OWSConfiguration;
 import org.geotools.referencing.CRS;
 import org.geotools.xml.Parser;
+import org.opengis.feature.type.Name;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.w3c.dom.Document;
 
 import com.mockrunner.mock.web.MockHttpServletResponse;
@@ -422,6 +433,163 @@ public class ExecuteTest extends WPSTestSupport {
          assertEquals("14.0", response.getOutputStreamContent());
     }
     
+    public void testAsynchronousExecution() throws Exception { // Standard Test A.4.4.5
+        String xml = 
+            "<wps:Execute service='WPS' version='1.0.0' xmlns:wps='http://www.opengis.net/wps/1.0.0' " + 
+                "xmlns:ows='http://www.opengis.net/ows/1.1'>" + 
+              "<ows:Identifier>gt:DoubleAddition</ows:Identifier>" + 
+              "<wps:DataInputs>" + 
+                "<wps:Input>" + 
+                  "<ows:Identifier>input_a</ows:Identifier>" + 
+                  "<wps:Data><wps:LiteralData>7</wps:LiteralData></wps:Data>" + 
+                "</wps:Input>" + 
+                "<wps:Input>" + 
+                  "<ows:Identifier>input_b</ows:Identifier>" + 
+                  "<wps:Data><wps:LiteralData>7</wps:LiteralData></wps:Data>" + 
+                "</wps:Input>" + 
+              "</wps:DataInputs>" + 
+              "<wps:ResponseForm>" +  
+                "<wps:ResponseDocument storeExecuteResponse='true' status='true'>" + 
+                  "<wps:Output>" +
+                    "<ows:Identifier>result</ows:Identifier>" +
+                  "</wps:Output>" + 
+                "</wps:ResponseDocument>" +
+              "</wps:ResponseForm>" + 
+            "</wps:Execute>";
+        
+        Document d = postAsDOM(root(), xml);
+        assertEquals("wps:ExecuteResponse", d.getDocumentElement().getNodeName());
+        assertXpathExists("/wps:ExecuteResponse/wps:Status/wps:ProcessAccepted", d);
+        
+        // the status location points to the stored status document
+        String location = d.getDocumentElement().getAttribute("statusLocation");
+        String id = location.substring(location.lastIndexOf("execute-") + 8, 
+                location.lastIndexOf(".xml"));
+        ProcessManager manager = (ProcessManager) applicationContext.getBean("wpsProcessManager");
+        File status = manager.getStatusFile(id);
+        assertTrue(status.exists());
+        
+        // wait for the execution to complete
+        for (int i = 0; i < 100 && manager.getExecution(id) != null; i++) {
+            Thread.sleep(50);
+        }
+        assertNull(manager.getExecution(id));
+        
+        InputStream is = new FileInputStream(status);
+        try {
+            d = dom(is);
+        } finally {
+            is.close();
+        }
+        assertXpathExists("/wps:ExecuteResponse/wps:Status/wps:ProcessSucceeded", d);
+        assertXpathEvaluatesTo("14.0", 
+            "/wps:ExecuteResponse/wps:ProcessOutputs/wps:Output/wps:Data/wps:LiteralData", d);
+    }
+    
+    public void testAsynchronousExecutionLimits() throws Exception {
+        ProcessManager manager = new ProcessManager(
+                (WPSStorageHandler) applicationContext.getBean("wpsStorageHandler"));
+        manager.setMaxAsynchronousProcesses(1);
+        manager.setMaxQueuedProcesses(1);
+        
+        final Object lock = new Object();
+        final boolean[] released = new boolean[1];
+        ProcessManager.ExecutionTask blocking = new ProcessManager.ExecutionTask() {
+            public void accepted(ProcessManager.ExecutionStatus status) {
+            }
+            
+            public void run(ProcessManager.ExecutionStatus status) throws Exception {
+                synchronized (lock) {
+                    while (!released[0]) {
+                        lock.wait();
+                    }
+                }
+            }
+        };
+        
+        try {
+            Name name = new NameImpl("gt", "DoubleAddition");
+            manager.submit(name, null, blocking);
+            manager.submit(name, null, blocking);
+            try {
+                manager.submit(name, null, blocking);
+                fail("The third execution should have been rejected");
+            } catch (WPSException e) {
+                assertEquals("ServerBusy", e.getCode());
+            }
+            assertEquals(2, manager.getExecutions().size());
+        } finally {
+            synchronized (lock) {
+                released[0] = true;
+                lock.notifyAll();
+            }
+            manager.destroy();
+        }
+    }
+    
+    public void testAsynchronousExecutionRejected() throws Exception {
+        ProcessManager manager = new ProcessManager(
+                (WPSStorageHandler) applicationContext.getBean("wpsStorageHandler"));
+        manager.getExecutor().shutdown();
+        
+        ProcessManager.ExecutionTask task = new ProcessManager.ExecutionTask() {
+            public void accepted(ProcessManager.ExecutionStatus status) {
+            }
+            
+            public void run(ProcessManager.ExecutionStatus status) throws Exception {
+            }
+        };
+        try {
+            manager.submit(new NameImpl("gt", "DoubleAddition"), null, task);
+            fail("The execution should have been rejected");
+        } catch (WPSException e) {
+            assertEquals("ServerBusy", e.getCode());
+        } finally {
+            manager.destroy();
+        }
+        // the rejected execution is not accounted for
+        assertEquals(0, manager.pending);
+        assertEquals(0, manager.getExecutions().size());
+    }
+    
+    public void testAsynchronousExecutionContext() throws Exception {
+        ProcessManager manager = new ProcessManager(
+                (WPSStorageHandler) applicationContext.getBean("wpsStorageHandler"));
+        
+        final Object[] seen = new Object[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        ProcessManager.ExecutionTask task = new ProcessManager.ExecutionTask() {
+            public void accepted(ProcessManager.ExecutionStatus status) {
+            }
+            
+            public void run(ProcessManager.ExecutionStatus status) throws Exception {
+                seen[0] = SecurityContextHolder.getContext().getAuthentication();
+                seen[1] = LocalWorkspace.get();
+                done.countDown();
+            }
+        };
+        
+        Authentication user = new UsernamePasswordAuthenticationToken("admin", "geoserver");
+        WorkspaceInfo ws = getCatalog().getDefaultWorkspace();
+        SecurityContextHolder.getContext().setAuthentication(user);
+        LocalWorkspace.set(ws);
+        try {
+            manager.submit(new NameImpl("gt", "DoubleAddition"), null, task);
+        } finally {
+            SecurityContextHolder.clearContext();
+            LocalWorkspace.remove();
+        }
+        
+        try {
+            // the process runs as the requesting user, in the requested workspace
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertSame(user, seen[0]);
+            assertSame(ws, seen[1]);
+        } finally {
+            manager.destroy();
+        }
+    }
+    
     public void testPlainAdditionKVP() throws Exception { // Standard Test A.4.4.3
         String request = "wps?service=WPS&version=1.0.0&request=Execute&Identifier=gt:DoubleAddition" +
         "&DataInputs=" + urlEncode("input_a=7;input_b=7") + "&RawDataOutput=result";
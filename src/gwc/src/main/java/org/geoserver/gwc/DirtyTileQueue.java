@@ -0,0 +1,600 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Collects the areas made dirty by the data changes, and invalidates the matching tiles in the
+ * background.
+ * <p>
+ * The areas added during a coalescing window ({@value #DELAY_PROPERTY} milliseconds, one second
+ * by default) are merged together, on a per layer basis, and then invalidated at once, so that a
+ * stream of small edits does not result in a truncate task per transaction. The areas are the
+ * ones of the changed features, so only the tiles they touch get invalidated.
+ * </p>
+ * <p>
+ * By default the dirty tiles are deleted. Setting {@value #LAZY_PROPERTY} to true makes the
+ * queue keep the dirty areas in memory instead, the tiles created before the area got dirty are
+ * then re-rendered the next time they are requested (see
+ * {@link #isDirty(String, GridSubset, long[], long)}). When too many areas accumulate for a
+ * layer the oldest ones are deleted as in the default mode. The areas still in memory are
+ * deleted on shutdown.
+ * </p>
+ * <p>
+ * The lazy areas are also saved in the {@value #STORE_FILE} file of the data directory, so that
+ * their tiles get deleted on the next startup if GeoServer stops without a clean shutdown. The
+ * areas are only known to the GeoServer instance that made the changes though: in a cluster
+ * sharing the tile cache, the other instances keep serving the dirty tiles, so the lazy mode
+ * should only be used with a single instance.
+ * </p>
+ * <p>
+ * When there are more than {@value #MAX_REGIONS} areas for a layer at the end of a window, the
+ * nearby ones are clustered together (see {@link #cluster(List, int)}), so that a burst of
+ * scattered edits does not end up invalidating the whole area between them.
+ * </p>
+ */
+class DirtyTileQueue {
+
+    static final Logger LOGGER = Logging.getLogger(DirtyTileQueue.class);
+
+    /**
+     * The length of the coalescing window, in milliseconds
+     */
+    static final String DELAY_PROPERTY = "GWC_INVALIDATION_DELAY";
+
+    /**
+     * Whether dirty tiles are re-rendered on next access instead of being deleted
+     */
+    static final String LAZY_PROPERTY = "GWC_LAZY_INVALIDATION";
+
+    /**
+     * The file, in the data directory, the lazy dirty areas are saved into
+     */
+    static final String STORE_FILE = "gwc-dirty-areas.properties";
+
+    /**
+     * Past this number of areas the pending ones of a layer are clustered
+     */
+    static final int MAX_PENDING = 1000;
+
+    /**
+     * Max number of areas of a layer invalidated at the end of a window, the nearby ones are
+     * clustered to get below it
+     */
+    static final int MAX_REGIONS = 100;
+
+    /**
+     * Max number of dirty areas kept in memory per layer in lazy mode
+     */
+    static final int MAX_LAZY_REGIONS = 1000;
+
+    /**
+     * An area made dirty at a given time
+     */
+    static class DirtyRegion {
+        final ReferencedEnvelope bounds;
+
+        final long time;
+
+        /**
+         * The area in the layer gridsets, only computed in lazy mode
+         */
+        Map<String, BoundingBox> gridSetBounds;
+
+        DirtyRegion(ReferencedEnvelope bounds, long time) {
+            this.bounds = bounds;
+            this.time = time;
+        }
+    }
+
+    final GWC gwc;
+
+    final long delay;
+
+    final boolean lazy;
+
+    final ScheduledExecutorService executor;
+
+    /**
+     * Where the lazy dirty areas are saved, or null to keep them in memory only
+     */
+    final File store;
+
+    /**
+     * The dirty areas left over by a previous run, by layer name, until their tiles are deleted
+     */
+    Map<String, List<DirtyRegion>> recovered;
+
+    /**
+     * The areas waiting for the coalescing window to end, by layer name
+     */
+    Map<String, List<DirtyRegion>> pending = new HashMap<String, List<DirtyRegion>>();
+
+    /**
+     * The dirty areas in lazy mode, by layer name. The lists are never modified, only replaced
+     */
+    final Map<String, List<DirtyRegion>> lazyRegions = new ConcurrentHashMap<String, List<DirtyRegion>>();
+
+    DirtyTileQueue(GWC gwc) {
+        this(gwc, getDelay(), Boolean.valueOf(GeoServerExtensions.getProperty(LAZY_PROPERTY)),
+                getStore());
+    }
+
+    DirtyTileQueue(GWC gwc, long delay, boolean lazy) {
+        this(gwc, delay, lazy, null);
+    }
+
+    DirtyTileQueue(GWC gwc, long delay, boolean lazy, File store) {
+        this.gwc = gwc;
+        this.delay = delay;
+        this.lazy = lazy;
+        this.store = store;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GWC tile invalidation");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // the areas of a previous run that did not shut down cleanly, their tiles are deleted
+        // once the layers are around
+        if (store != null && store.exists()) {
+            recovered = load();
+            executor.schedule(new Runnable() {
+                public void run() {
+                    recover();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static File getStore() {
+        GeoServerResourceLoader loader = GeoServerExtensions.bean(GeoServerResourceLoader.class);
+        if (loader == null) {
+            return null;
+        }
+        return new File(loader.getBaseDirectory(), STORE_FILE);
+    }
+
+    static long getDelay() {
+        String value = GeoServerExtensions.getProperty(DELAY_PROPERTY);
+        if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + DELAY_PROPERTY + " value " + value
+                        + ", using the default instead");
+            }
+        }
+        return 1000;
+    }
+
+    /**
+     * Queues up the specified dirty areas of a layer
+     */
+    void add(String layerName, List<ReferencedEnvelope> bounds) {
+        final long now = System.currentTimeMillis();
+        boolean schedule;
+        synchronized (this) {
+            schedule = pending.isEmpty();
+            List<DirtyRegion> regions = pending.get(layerName);
+            if (regions == null) {
+                regions = new ArrayList<DirtyRegion>();
+                pending.put(layerName, regions);
+            }
+            for (ReferencedEnvelope envelope : bounds) {
+                if (envelope != null && !envelope.isEmpty()) {
+                    regions.add(new DirtyRegion(envelope, now));
+                }
+            }
+            if (regions.size() > MAX_PENDING) {
+                pending.put(layerName, new ArrayList<DirtyRegion>(cluster(regions, MAX_REGIONS)));
+            }
+        }
+        if (schedule) {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Invalidates the pending areas, called at the end of the coalescing window
+     */
+    void flush() {
+        Map<String, List<DirtyRegion>> regions;
+        synchronized (this) {
+            regions = pending;
+            pending = new HashMap<String, List<DirtyRegion>>();
+        }
+
+        for (Map.Entry<String, List<DirtyRegion>> entry : regions.entrySet()) {
+            String layerName = entry.getKey();
+            List<DirtyRegion> coalesced = coalesce(entry.getValue());
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Invalidating " + coalesced.size() + " areas of layer " + layerName
+                        + " out of " + entry.getValue().size() + " changes");
+            }
+            try {
+                if (lazy) {
+                    markDirty(layerName, coalesced);
+                } else {
+                    for (DirtyRegion region : coalesced) {
+                        gwc.truncate(layerName, region.bounds);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error invalidating the tiles of layer " + layerName, e);
+            }
+        }
+    }
+
+    void markDirty(String layerName, List<DirtyRegion> regions) throws Exception {
+        for (DirtyRegion region : regions) {
+            region.gridSetBounds = gwc.getIntersectingBounds(layerName, region.bounds);
+        }
+
+        List<DirtyRegion> current = lazyRegions.get(layerName);
+        List<DirtyRegion> updated = new ArrayList<DirtyRegion>();
+        if (current != null) {
+            updated.addAll(current);
+        }
+        updated.addAll(regions);
+
+        // too many areas, delete the tiles of the oldest ones for real
+        if (updated.size() > MAX_LAZY_REGIONS) {
+            List<DirtyRegion> oldest = updated.subList(0, updated.size() - MAX_LAZY_REGIONS);
+            for (DirtyRegion region : oldest) {
+                gwc.truncate(layerName, region.bounds);
+            }
+            oldest.clear();
+        }
+        lazyRegions.put(layerName, Collections.unmodifiableList(updated));
+        save();
+    }
+
+    /**
+     * Returns true if the tile has been created before an area it touches has been made dirty.
+     * Only meaningful in lazy mode
+     *
+     * @param layerName
+     *            the tile layer
+     * @param gridSubset
+     *            the tile gridset
+     * @param tileIndex
+     *            the tile index
+     * @param created
+     *            the tile creation time
+     */
+    boolean isDirty(String layerName, GridSubset gridSubset, long[] tileIndex, long created) {
+        List<DirtyRegion> regions = lazyRegions.get(layerName);
+        if (regions == null) {
+            return false;
+        }
+        BoundingBox tileBounds = null;
+        for (DirtyRegion region : regions) {
+            if (region.time < created) {
+                continue;
+            }
+            if (tileBounds == null) {
+                tileBounds = gridSubset.boundsFromIndex(tileIndex);
+            }
+            BoundingBox bounds = region.gridSetBounds.get(gridSubset.getName());
+            if (bounds != null && bounds.intersects(tileBounds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets about the dirty areas of a layer, when its tiles are gone anyways
+     */
+    void clear(String layerName) {
+        synchronized (this) {
+            pending.remove(layerName);
+        }
+        if (lazyRegions.remove(layerName) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Stops the background invalidation, deleting the tiles of the areas still pending or marked
+     * as dirty
+     */
+    void dispose() {
+        executor.shutdownNow();
+        flush();
+        for (Iterator<Map.Entry<String, List<DirtyRegion>>> it = lazyRegions.entrySet()
+                .iterator(); it.hasNext();) {
+            Map.Entry<String, List<DirtyRegion>> entry = it.next();
+            for (DirtyRegion region : entry.getValue()) {
+                try {
+                    gwc.truncate(entry.getKey(), region.bounds);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error invalidating the tiles of layer "
+                            + entry.getKey(), e);
+                }
+            }
+            it.remove();
+        }
+        recover();
+    }
+
+    /**
+     * Deletes the tiles of the areas left over by a previous run
+     */
+    void recover() {
+        Map<String, List<DirtyRegion>> regions;
+        synchronized (this) {
+            regions = recovered;
+            recovered = null;
+        }
+        if (regions != null) {
+            for (Map.Entry<String, List<DirtyRegion>> entry : regions.entrySet()) {
+                for (DirtyRegion region : entry.getValue()) {
+                    try {
+                        gwc.truncate(entry.getKey(), region.bounds);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Could not invalidate the tiles of layer "
+                                + entry.getKey() + " in " + region.bounds
+                                + " left dirty by the previous run", e);
+                    }
+                }
+            }
+        }
+        save();
+    }
+
+    /**
+     * Saves the lazy dirty areas, and the ones left over by a previous run, into the store
+     */
+    synchronized void save() {
+        if (store == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        int count = 0;
+        for (Map.Entry<String, List<DirtyRegion>> entry : lazyRegions.entrySet()) {
+            for (DirtyRegion region : entry.getValue()) {
+                put(properties, count++, entry.getKey(), region.bounds);
+            }
+        }
+        if (recovered != null) {
+            for (Map.Entry<String, List<DirtyRegion>> entry : recovered.entrySet()) {
+                for (DirtyRegion region : entry.getValue()) {
+                    put(properties, count++, entry.getKey(), region.bounds);
+                }
+            }
+        }
+
+        try {
+            if (count == 0) {
+                if (store.exists() && !store.delete()) {
+                    LOGGER.warning("Could not delete " + store);
+                }
+                return;
+            }
+            File tmp = new File(store.getParentFile(), store.getName() + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                properties.store(out, "Areas whose tiles are to be re-rendered");
+            } finally {
+                out.close();
+            }
+            if (store.exists()) {
+                store.delete();
+            }
+            tmp.renameTo(store);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the dirty tile areas into " + store, e);
+        }
+    }
+
+    static void put(Properties properties, int index, String layerName, ReferencedEnvelope bounds) {
+        String prefix = "area." + index + ".";
+        properties.put(prefix + "layer", layerName);
+        properties.put(prefix + "bounds", bounds.getMinX() + "," + bounds.getMinY() + ","
+                + bounds.getMaxX() + "," + bounds.getMaxY());
+        CoordinateReferenceSystem crs = bounds.getCoordinateReferenceSystem();
+        if (crs != null) {
+            properties.put(prefix + "crs", crs.toWKT());
+        }
+    }
+
+    /**
+     * Reads the dirty areas saved into the store
+     */
+    Map<String, List<DirtyRegion>> load() {
+        Map<String, List<DirtyRegion>> result = new HashMap<String, List<DirtyRegion>>();
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(store);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the dirty tile areas from " + store, e);
+            return result;
+        }
+
+        for (int i = 0; properties.containsKey("area." + i + ".layer"); i++) {
+            String prefix = "area." + i + ".";
+            String layerName = properties.getProperty(prefix + "layer");
+            try {
+                String[] values = properties.getProperty(prefix + "bounds").split(",");
+                String wkt = properties.getProperty(prefix + "crs");
+                CoordinateReferenceSystem crs = wkt == null ? null : CRS.parseWKT(wkt);
+                ReferencedEnvelope bounds = new ReferencedEnvelope(Double
+                        .parseDouble(values[0]), Double.parseDouble(values[2]), Double
+                        .parseDouble(values[1]), Double.parseDouble(values[3]), crs);
+
+                List<DirtyRegion> regions = result.get(layerName);
+                if (regions == null) {
+                    regions = new ArrayList<DirtyRegion>();
+                    result.put(layerName, regions);
+                }
+                regions.add(new DirtyRegion(bounds, 0));
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Skipping invalid dirty tile area " + i + " in "
+                        + store, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the overlapping areas, and clusters them if there are too many of them
+     */
+    static List<DirtyRegion> coalesce(List<DirtyRegion> regions) {
+        return cluster(mergeOverlapping(regions), MAX_REGIONS);
+    }
+
+    /**
+     * Merges the overlapping areas, until none of the resulting ones overlap
+     */
+    static List<DirtyRegion> mergeOverlapping(List<DirtyRegion> regions) {
+        List<DirtyRegion> result = new ArrayList<DirtyRegion>(regions);
+        for (int i = 0; i < result.size(); i++) {
+            // a grown area might reach the ones before it too, so all of them are checked, and
+            // again until it stops growing
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                DirtyRegion a = result.get(i);
+                for (int j = 0; j < result.size(); j++) {
+                    DirtyRegion b = result.get(j);
+                    if (j != i && compatible(a, b) && a.bounds.intersects((Envelope) b.bounds)) {
+                        a = merge(a, b);
+                        result.remove(j);
+                        if (j < i) {
+                            i--;
+                        }
+                        j--;
+                        grown = true;
+                    }
+                }
+                result.set(i, a);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Brings the areas down to the specified number by merging the ones falling in the same cell
+     * of a grid laid over them, with coarser grids until there are few enough of them. Nearby
+     * areas end up together, while far apart ones are kept separate as long as possible.
+     */
+    static List<DirtyRegion> cluster(List<DirtyRegion> regions, int max) {
+        List<DirtyRegion> result = regions;
+        for (int cells = Math.max(1, (int) Math.sqrt(max)); result.size() > max; cells /= 2) {
+            result = mergeOverlapping(snap(result, cells));
+            if (cells == 1) {
+                // down to one area per coordinate reference system
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges the areas whose center falls in the same cell of a cells x cells grid covering
+     * all the areas sharing their coordinate reference system
+     */
+    static List<DirtyRegion> snap(List<DirtyRegion> regions, int cells) {
+        // group the areas by coordinate reference system
+        List<List<DirtyRegion>> groups = new ArrayList<List<DirtyRegion>>();
+        for (DirtyRegion region : regions) {
+            List<DirtyRegion> group = null;
+            for (List<DirtyRegion> candidate : groups) {
+                if (compatible(candidate.get(0), region)) {
+                    group = candidate;
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new ArrayList<DirtyRegion>();
+                groups.add(group);
+            }
+            group.add(region);
+        }
+
+        List<DirtyRegion> result = new ArrayList<DirtyRegion>();
+        for (List<DirtyRegion> group : groups) {
+            Envelope total = new Envelope();
+            for (DirtyRegion region : group) {
+                total.expandToInclude(region.bounds);
+            }
+            double width = total.getWidth() / cells;
+            double height = total.getHeight() / cells;
+            Map<Integer, DirtyRegion> snapped = new LinkedHashMap<Integer, DirtyRegion>();
+            for (DirtyRegion region : group) {
+                int x = cell(region.bounds.centre().x - total.getMinX(), width, cells);
+                int y = cell(region.bounds.centre().y - total.getMinY(), height, cells);
+                Integer key = x * cells + y;
+                DirtyRegion existing = snapped.get(key);
+                snapped.put(key, existing == null ? region : merge(existing, region));
+            }
+            result.addAll(snapped.values());
+        }
+        return result;
+    }
+
+    static int cell(double offset, double size, int cells) {
+        if (size <= 0) {
+            return 0;
+        }
+        return Math.min(cells - 1, (int) (offset / size));
+    }
+
+    static boolean compatible(DirtyRegion a, DirtyRegion b) {
+        return CRS.equalsIgnoreMetadata(a.bounds.getCoordinateReferenceSystem(), b.bounds
+                .getCoordinateReferenceSystem());
+    }
+
+    static DirtyRegion merge(DirtyRegion a, DirtyRegion b) {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(a.bounds);
+        bounds.expandToInclude(b.bounds);
+        return new DirtyRegion(bounds, Math.max(a.time, b.time));
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -31,8 +32,11 @@ import org.geoserver.gwc.layer.CatalogLayerEventListener;
 import org.geoserver.gwc.layer.CatalogStyleChangeListener;
 import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.util.KvpMap;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WebMap;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
@@ -109,6 +113,8 @@ public class GWC implements DisposableBean, InitializingBean {
 
     private final Catalog rawCatalog;
 
+    private final DirtyTileQueue dirtyTiles;
+
     public GWC(final GWCConfigPersister gwcConfigPersister, final StorageBroker sb,
             final TileLayerDispatcher tld, final GridSetBroker gridSetBroker,
             final TileBreeder tileBreeder, final BDBQuotaStore quotaStore,
@@ -123,6 +129,7 @@ public class GWC implements DisposableBean, InitializingBean {
         this.owsDispatcher = owsDispatcher;
         this.quotaStore = quotaStore;
         this.rawCatalog = rawCatalog;
+        this.dirtyTiles = new DirtyTileQueue(this);
     }
 
     public synchronized static GWC get() {
@@ -159,6 +166,7 @@ public class GWC implements DisposableBean, InitializingBean {
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
     public void destroy() throws Exception {
+        dirtyTiles.dispose();
         Catalog catalog = getCatalog();
         if (this.catalogLayerEventListener != null) {
             catalog.removeListener(this.catalogLayerEventListener);
@@ -214,6 +222,59 @@ public class GWC implements DisposableBean, InitializingBean {
         truncate(layerName, styleName, gridSetId, bounds, format);
     }
 
+    /**
+     * Invalidates the tiles of the given layer touching the given areas, in the background.
+     * <p>
+     * The areas are collected during a short coalescing window and then either truncated, or
+     * marked as dirty so that the tiles get re-rendered on next access, see
+     * {@link DirtyTileQueue}.
+     * </p>
+     * 
+     * @param layerName
+     *            name of the tile layer
+     * @param bounds
+     *            the changed areas, typically the envelopes of the changed features
+     */
+    public void invalidate(final String layerName, final List<ReferencedEnvelope> bounds) {
+        dirtyTiles.add(layerName, bounds);
+    }
+
+    /**
+     * Returns {@code true} if the tile has been created before the area it covers has been
+     * changed, and thus needs to be rendered again. Only ever true when the lazy invalidation is
+     * enabled
+     * 
+     * @param layerName
+     *            name of the tile layer
+     * @param gridSubset
+     *            the gridset of the tile
+     * @param tileIndex
+     *            the tile index
+     * @param created
+     *            the time the cached tile has been created
+     */
+    public boolean isDirty(final String layerName, final GridSubset gridSubset,
+            final long[] tileIndex, final long created) {
+        return dirtyTiles.isDirty(layerName, gridSubset, tileIndex, created);
+    }
+
+    /**
+     * @return the given bounds intersected with the coverage of each gridset of the layer, keyed
+     *         by gridset id. Gridsets not intersecting the bounds are not included.
+     */
+    Map<String, BoundingBox> getIntersectingBounds(final String layerName,
+            final ReferencedEnvelope bounds) throws GeoWebCacheException {
+        final TileLayer tileLayer = tld.getTileLayer(layerName);
+        Map<String, BoundingBox> result = new HashMap<String, BoundingBox>();
+        for (GridSubset layerGrid : tileLayer.getGridSubsets().values()) {
+            BoundingBox intersectingBounds = getIntersectingBounds(layerName, layerGrid, bounds);
+            if (intersectingBounds != null) {
+                result.put(layerGrid.getName(), intersectingBounds);
+            }
+        }
+        return result;
+    }
+
     public void truncate(final String layerName, final ReferencedEnvelope bounds)
             throws GeoWebCacheException {
 
@@ -406,6 +467,7 @@ public class GWC implements DisposableBean, InitializingBean {
     public synchronized void layerRemoved(final String prefixedName) {
         // embeddedConfig.removeLayer(prefixedName);
         tld.remove(prefixedName);
+        dirtyTiles.clear(prefixedName);
         try {
             storageBroker.delete(prefixedName);
         } catch (StorageException e) {
@@ -758,6 +820,34 @@ public class GWC implements DisposableBean, InitializingBean {
         return new ByteArrayResource(resp.getBytes());
     }
 
+    /**
+     * Executes a GetMap request in process, skipping the KVP parsing the
+     * {@link #dispatchOwsRequest(Map, Cookie[]) dispatched requests} go thru, but still calling
+     * back the {@link Dispatcher} callbacks so that security and control flow are honored.
+     * 
+     * @param getMap
+     *            the fully built GetMap request, its raw KVP map is what the callbacks get to see
+     * @param cookies
+     *            the cookies of the request that triggered the rendering, if any
+     * @return the map produced by the WMS
+     * @see Dispatcher#execute(Request, Object)
+     */
+    public WebMap getMap(final GetMapRequest getMap, Cookie[] cookies) throws Exception {
+        Map<String, String> rawKvp = getMap.getRawKvp();
+
+        Request request = new Request();
+        request.setHttpRequest(new FakeHttpServletRequest(rawKvp, cookies));
+        request.setHttpResponse(new FakeHttpServletResponse());
+        request.setGet(true);
+        request.setRawKvp(rawKvp);
+        request.setKvp(new KvpMap(rawKvp));
+        request.setService("WMS");
+        request.setVersion(getMap.getVersion());
+        request.setRequest("GetMap");
+
+        return (WebMap) owsDispatcher.execute(request, getMap);
+    }
+
     public GridSetBroker getGridSetBroker() {
         return gridSetBroker;
     }
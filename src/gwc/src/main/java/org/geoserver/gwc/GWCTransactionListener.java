@@ -41,14 +41,23 @@ import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.util.logging.Logging;
-import org.geowebcache.GeoWebCacheException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.springframework.util.Assert;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
- * Listens to transactions (so far only issued by WFS) and truncates the cache for the affected area
- * of the layers involved in the transaction.
+ * Listens to transactions (so far only issued by WFS) and invalidates the cache for the affected
+ * area of the layers involved in the transaction.
+ * <p>
+ * The affected area is made of the envelopes of the features touched by the transaction (up to
+ * {@link #MAX_ENVELOPES} of them, the whole affected bounds are used past that), so that only the
+ * tiles actually touched by the changed features are invalidated. The invalidation itself happens
+ * in the background, see {@link GWC#invalidate(String, List)}.
+ * </p>
  * <p>
  * A Spring bean singleton of this class needs to be declared in order for GeoServer transactions to
  * pick it up automatically and forward transaction events to it.
@@ -70,20 +79,25 @@ public class GWCTransactionListener implements TransactionPlugin {
 
     final private GWC gwc;
 
+    /**
+     * Max number of feature envelopes tracked per transaction element
+     */
+    static final int MAX_ENVELOPES = 1000;
+
     /**
      * Keeps track of the pre-transaction affected bounds on a per
      * {@link TransactionEvent#getSource() transaction request} basis, so that the
      * {@code POST_UPDATE|INSERT|DELETE} bounds are aggregated to these ones before issuing a cache
-     * truncation.
+     * invalidation.
      */
-    private final Map<EObject, ReferencedEnvelope> affectedBounds;
+    private final Map<EObject, List<ReferencedEnvelope>> affectedBounds;
 
     private final Map<EObject, Set<String>> affectedLayers;
 
     public GWCTransactionListener(final Catalog cat, final GWC gwc) {
         this.catalog = cat;
         this.gwc = gwc;
-        this.affectedBounds = new ConcurrentHashMap<EObject, ReferencedEnvelope>();
+        this.affectedBounds = new ConcurrentHashMap<EObject, List<ReferencedEnvelope>>();
         this.affectedLayers = new ConcurrentHashMap<EObject, Set<String>>();
     }
 
@@ -109,7 +123,7 @@ public class GWCTransactionListener implements TransactionPlugin {
     }
 
     /**
-     * If transaction's succeeded then truncate the affected layers at the transaction affected
+     * If transaction's succeeded then invalidate the affected layers at the transaction affected
      * bounds
      * 
      * @see org.geoserver.wfs.TransactionPlugin#afterTransaction(net.opengis.wfs.TransactionType,
@@ -127,7 +141,7 @@ public class GWCTransactionListener implements TransactionPlugin {
     private void afterTransactionInternal(final TransactionType request, boolean committed) {
         final List<EObject> transactionElements = getTransactionElements(request);
 
-        ReferencedEnvelope affectedBounds;
+        List<ReferencedEnvelope> affectedBounds;
         Set<String> affectedLayers;
 
         for (EObject transactionElement : transactionElements) {
@@ -140,11 +154,7 @@ public class GWCTransactionListener implements TransactionPlugin {
                     continue;
                 }
                 for (String layerName : affectedLayers) {
-                    try {
-                        gwc.truncate(layerName, affectedBounds);
-                    } catch (GeoWebCacheException e) {
-                        e.printStackTrace();
-                    }
+                    gwc.invalidate(layerName, affectedBounds);
                 }
             }
         }
@@ -210,26 +220,51 @@ public class GWCTransactionListener implements TransactionPlugin {
         }
 
         if (PRE_INSERT == type || PRE_UPDATE == type || PRE_DELETE == type) {
-            ReferencedEnvelope preBounds = affectedFeatures.getBounds();
+            List<ReferencedEnvelope> preBounds = getFeatureBounds(affectedFeatures);
 
             this.affectedLayers.put(originatingTransactionRequest, affectedLayers);
             this.affectedBounds.put(originatingTransactionRequest, preBounds);
 
         } else if (POST_UPDATE == type && affectedFeatures != null) {
 
-            final ReferencedEnvelope bounds = affectedBounds.get(originatingTransactionRequest);
+            final List<ReferencedEnvelope> bounds = affectedBounds
+                    .get(originatingTransactionRequest);
 
             // only truncate if the request didn't fail
-            ReferencedEnvelope postBounds = affectedFeatures.getBounds();
-            Assert.isTrue(bounds.getCoordinateReferenceSystem().equals(
-                    postBounds.getCoordinateReferenceSystem()));
-            bounds.expandToInclude(postBounds);
+            bounds.addAll(getFeatureBounds(affectedFeatures));
 
         } else {
             throw new IllegalArgumentException("Unrecognized transaction event type: " + type);
         }
     }
 
+    /**
+     * Returns the envelopes of the features in the collection, or the bounds of the whole
+     * collection if there are more than {@link #MAX_ENVELOPES} of them
+     */
+    private List<ReferencedEnvelope> getFeatureBounds(final SimpleFeatureCollection features) {
+        final List<ReferencedEnvelope> bounds = new ArrayList<ReferencedEnvelope>();
+        final CoordinateReferenceSystem crs = features.getSchema().getCoordinateReferenceSystem();
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                if (bounds.size() == MAX_ENVELOPES) {
+                    // too many, go for the whole area instead
+                    bounds.clear();
+                    bounds.add(features.getBounds());
+                    break;
+                }
+                Geometry geometry = (Geometry) it.next().getDefaultGeometry();
+                if (geometry != null && !geometry.isEmpty()) {
+                    bounds.add(new ReferencedEnvelope(geometry.getEnvelopeInternal(), crs));
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return bounds;
+    }
+
     private boolean isIgnorablePostEvent(final Object originatingTransactionRequest,
             final TransactionEventType type) {
 
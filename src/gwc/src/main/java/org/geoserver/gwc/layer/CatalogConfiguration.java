@@ -36,6 +36,7 @@ import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.Configuration;
 import org.geowebcache.config.meta.ServiceInformation;
 import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.TileLayer;
 import org.geowebcache.mime.MimeType;
@@ -354,6 +355,29 @@ public class CatalogConfiguration implements Configuration {
         return getGWC().dispatchOwsRequest(params, cookies);
     }
 
+    /**
+     * @see GWC#isDirty(String, GridSubset, long[], long)
+     */
+    public boolean isDirty(String layerName, GridSubset gridSubset, long[] tileIndex,
+            long created) {
+        return getGWC().isDirty(layerName, gridSubset, tileIndex, created);
+    }
+
+    /**
+     * @see GWC#getMap(GetMapRequest, Cookie[])
+     */
+    public WebMap getMap(GetMapRequest getMap, Cookie[] cookies) throws Exception {
+        return getGWC().getMap(getMap, cookies);
+    }
+
+    /**
+     * @return the {@link WMS} facade, used to look up the layers and styles the same way a
+     *         dispatched GetMap request would
+     */
+    public WMS getWMS() {
+        return wmsFacade;
+    }
+
     /**
      * @return the {@link LayerInfo} based on the given {@link LayerInfo#getId() layerId}
      */
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,13 +21,18 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.MetadataMap;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.gwc.GWC;
 import org.geoserver.gwc.config.GWCConfig;
+import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.GetMapKvpRequestReader;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
 import org.geotools.util.CanonicalSet;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
@@ -62,6 +68,8 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
 import org.springframework.util.Assert;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 public class GeoServerTileLayer extends TileLayer {
 
     private static final Logger LOGGER = Logging.getLogger(GeoServerTileLayer.class);
@@ -72,6 +80,14 @@ public class GeoServerTileLayer extends TileLayer {
 
     public static final ThreadLocal<WebMap> WEB_MAP = new ThreadLocal<WebMap>();
 
+    /**
+     * The GetMap parameters {@link #buildGetMapRequest} knows how to handle without going thru
+     * the KVP parsing
+     */
+    private static final Set<String> DIRECT_PARAMETERS = new HashSet<String>(Arrays.asList(
+            "SERVICE", "VERSION", "REQUEST", "LAYERS", "SRS", "FORMAT", "WIDTH", "HEIGHT", "BBOX",
+            "EXCEPTIONS", "STYLES", "TRANSPARENT"));
+
     private CatalogConfiguration mediator;
 
     private final String layerId;
@@ -522,11 +538,16 @@ public class GeoServerTileLayer extends TileLayer {
             throws Exception {
 
         Map<String, String> params = buildGetMap(tile, metaTile);
+        HttpServletRequest actualRequest = tile.servletReq;
+        Cookie[] cookies = actualRequest == null ? null : actualRequest.getCookies();
+
+        GetMapRequest getMap = buildGetMapRequest(tile, metaTile, params);
+        if (getMap != null) {
+            return mediator.getMap(getMap, cookies);
+        }
+
         WebMap map;
         try {
-            HttpServletRequest actualRequest = tile.servletReq;
-            Cookie[] cookies = actualRequest == null ? null : actualRequest.getCookies();
-
             mediator.dispatchOwsRequest(params, cookies);
             map = WEB_MAP.get();
         } finally {
@@ -591,11 +612,111 @@ public class GeoServerTileLayer extends TileLayer {
         return params;
     }
 
+    /**
+     * Builds the GetMap request for the meta tile straight out of the catalog objects, so that it
+     * can be run in process without parsing the KVP parameters built by
+     * {@link #buildGetMap(ConveyorTile, MetaTile)}. The styles are checked and the default time
+     * and elevation applied as {@link GetMapKvpRequestReader} does.
+     * 
+     * @return the request, or {@code null} if the parameter filters or the layer need the full
+     *         KVP parsing, in which case the request shall be dispatched instead
+     */
+    private GetMapRequest buildGetMapRequest(final ConveyorTile tile, final MetaTile metaTile,
+            final Map<String, String> params) throws Exception {
+
+        Map<String, String> rawKvp = new HashMap<String, String>();
+        String styleName = null;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String key = param.getKey().toUpperCase();
+            if (GWC_SEED_INTERCEPT_TOKEN.equals(key)) {
+                // the map is handed back directly, no need to intercept it
+                continue;
+            }
+            if (!DIRECT_PARAMETERS.contains(key)) {
+                // some parameter filter we don't know how to apply
+                return null;
+            }
+            if ("STYLES".equals(key)) {
+                styleName = param.getValue();
+            }
+            rawKvp.put(key, param.getValue());
+        }
+
+        final WMS wms = mediator.getWMS();
+        final List<MapLayerInfo> layers = new ArrayList<MapLayerInfo>();
+        final List<Style> styles = new ArrayList<Style>();
+        if (layerGroupId != null) {
+            LayerGroupInfo group = wms.getLayerGroupByName(getName());
+            if (group == null) {
+                throw new ServiceException("Could not find layer " + getName(), "LayerNotDefined");
+            }
+            for (int i = 0; i < group.getLayers().size(); i++) {
+                LayerInfo layer = group.getLayers().get(i);
+                StyleInfo style = group.getStyles().get(i);
+                if (style == null) {
+                    style = layer.getDefaultStyle();
+                }
+                if (layer.getResource() instanceof WMSLayerInfo) {
+                    return null;
+                }
+                layers.add(new MapLayerInfo(layer));
+                // a missing style is reported by the style checks below
+                styles.add(style == null ? null : style.getStyle());
+            }
+        } else {
+            LayerInfo layer = wms.getLayerByName(getName());
+            if (layer == null) {
+                throw new ServiceException("Could not find layer " + getName(), "LayerNotDefined");
+            }
+            if (layer.getResource() instanceof WMSLayerInfo) {
+                // cascaded layers use named styles, leave them to the KVP reader
+                return null;
+            }
+            Style style;
+            if (styleName == null || styleName.length() == 0) {
+                StyleInfo defaultStyle = layer.getDefaultStyle();
+                style = defaultStyle == null ? null : defaultStyle.getStyle();
+            } else {
+                style = wms.getStyleByName(styleName);
+                if (style == null) {
+                    throw new ServiceException("No such style: " + styleName, "StyleNotDefined");
+                }
+            }
+            layers.add(new MapLayerInfo(layer));
+            styles.add(style);
+        }
+
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final String srs = gridSubset.getSRS().toString();
+        final BoundingBox bbox = metaTile.getMetaTileBounds();
+
+        GetMapRequest getMap = new GetMapRequest();
+        getMap.setVersion("1.1.1");
+        getMap.setGet(true);
+        getMap.setRawKvp(rawKvp);
+        getMap.setLayers(layers);
+        getMap.setStyles(styles);
+        getMap.setSRS(srs);
+        getMap.setCrs(CRS.decode(srs));
+        getMap.setBbox(new Envelope(bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox
+                .getMaxY()));
+        getMap.setWidth(metaTile.getMetaTileWidth());
+        getMap.setHeight(metaTile.getMetaTileHeight());
+        getMap.setFormat(tile.getMimeType().getFormat());
+        getMap.setTransparent(true);
+        getMap.setExceptions(GetMapRequest.SE_XML);
+
+        // same checks and defaults the KVP reader applies after parsing
+        GetMapKvpRequestReader.checkStyles(getMap);
+        GetMapKvpRequestReader.setDefaultDimensions(getMap);
+        return getMap;
+    }
+
     private boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
             try {
-                return tile.retrieve(expireCache * 1000L);
+                return tile.retrieve(expireCache * 1000L) && !isDirty(tile);
             } catch (GeoWebCacheException gwce) {
                 LOGGER.info(gwce.getMessage());
                 tile.setErrorMsg(gwce.getMessage());
@@ -605,6 +726,16 @@ public class GeoServerTileLayer extends TileLayer {
         return false;
     }
 
+    /**
+     * @return whether the cached tile has been invalidated by a data change, and needs to be
+     *         rendered again
+     * @see GWC#isDirty
+     */
+    private boolean isDirty(ConveyorTile tile) {
+        GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        return mediator.isDirty(getName(), gridSubset, tile.getTileIndex(), tile.getTSCreated());
+    }
+
     private ConveyorTile finalizeTile(ConveyorTile tile) {
         if (tile.getStatus() == 0 && !tile.getError()) {
             tile.setStatus(200);
@@ -0,0 +1,178 @@
+/* Copyright (c) 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geoserver.gwc.DirtyTileQueue.DirtyRegion;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+import org.mockito.ArgumentCaptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class DirtyTileQueueTest extends TestCase {
+
+    GWC gwc;
+
+    DirtyTileQueue queue;
+
+    @Override
+    protected void setUp() throws Exception {
+        gwc = mock(GWC.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (queue != null) {
+            queue.dispose();
+        }
+    }
+
+    ReferencedEnvelope envelope(double minx, double miny, double maxx, double maxy) {
+        return new ReferencedEnvelope(minx, maxx, miny, maxy, DefaultGeographicCRS.WGS84);
+    }
+
+    public void testCoalesce() throws Exception {
+        List<DirtyRegion> regions = Arrays.asList(new DirtyRegion(envelope(0, 0, 1, 1), 1),
+                new DirtyRegion(envelope(50, 50, 51, 51), 2), new DirtyRegion(envelope(0.5, 0.5,
+                        2, 2), 3));
+        List<DirtyRegion> coalesced = DirtyTileQueue.coalesce(regions);
+        assertEquals(2, coalesced.size());
+        assertEquals(envelope(0, 0, 2, 2), coalesced.get(0).bounds);
+        assertEquals(3, coalesced.get(0).time);
+        assertEquals(envelope(50, 50, 51, 51), coalesced.get(1).bounds);
+    }
+
+    public void testCoalesceChain() throws Exception {
+        // the last area reaches the first one, once merged they reach the other two
+        List<DirtyRegion> regions = Arrays.asList(new DirtyRegion(envelope(0, 0, 1, 1), 1),
+                new DirtyRegion(envelope(3, 0, 4, 1), 2), new DirtyRegion(envelope(1.5, 1.5, 2,
+                        2), 3), new DirtyRegion(envelope(0.5, 0.5, 3.5, 1.6), 4));
+        List<DirtyRegion> coalesced = DirtyTileQueue.coalesce(regions);
+        assertEquals(1, coalesced.size());
+        assertEquals(envelope(0, 0, 4, 2), coalesced.get(0).bounds);
+        assertEquals(4, coalesced.get(0).time);
+    }
+
+    public void testCluster() throws Exception {
+        // two far apart groups of small areas, too many to invalidate them one by one
+        List<DirtyRegion> regions = new ArrayList<DirtyRegion>();
+        for (int i = 0; i < DirtyTileQueue.MAX_REGIONS; i++) {
+            regions.add(new DirtyRegion(envelope(i * 2, 0, i * 2 + 1, 1), i));
+            regions.add(new DirtyRegion(envelope(10000 + i * 2, 10000, 10000 + i * 2 + 1, 10001),
+                    i));
+        }
+        List<DirtyRegion> coalesced = DirtyTileQueue.coalesce(regions);
+        assertTrue(coalesced.size() <= DirtyTileQueue.MAX_REGIONS);
+
+        // the groups are not merged together, and all the areas are still covered
+        for (DirtyRegion region : coalesced) {
+            assertTrue(region.bounds.toString(), envelope(0, 0, 1000, 1).contains(
+                    (Envelope) region.bounds)
+                    || envelope(10000, 10000, 11000, 10001).contains((Envelope) region.bounds));
+        }
+        for (DirtyRegion region : regions) {
+            boolean covered = false;
+            for (DirtyRegion c : coalesced) {
+                covered |= c.bounds.contains((Envelope) region.bounds);
+            }
+            assertTrue(covered);
+        }
+    }
+
+    public void testTruncate() throws Exception {
+        queue = new DirtyTileQueue(gwc, 60000, false);
+        queue.add("test:layer", Arrays.asList(envelope(0, 0, 1, 1), envelope(10, 10, 11, 11)));
+        queue.add("test:layer", Arrays.asList(envelope(0.5, 0.5, 2, 2)));
+        verify(gwc, never()).truncate(anyString(), (ReferencedEnvelope) anyObject());
+
+        queue.flush();
+        verify(gwc, times(1)).truncate(eq("test:layer"), eq(envelope(0, 0, 2, 2)));
+        verify(gwc, times(1)).truncate(eq("test:layer"), eq(envelope(10, 10, 11, 11)));
+
+        // nothing left
+        queue.flush();
+        verify(gwc, times(2)).truncate(anyString(), (ReferencedEnvelope) anyObject());
+    }
+
+    public void testLazy() throws Exception {
+        when(gwc.getIntersectingBounds(eq("test:layer"), eq(envelope(0, 0, 1, 1)))).thenReturn(
+                Collections.singletonMap("EPSG:4326", new BoundingBox(0, 0, 1, 1)));
+        GridSubset gridSubset = mock(GridSubset.class);
+        when(gridSubset.getName()).thenReturn("EPSG:4326");
+        long[] inside = new long[] { 0, 0, 5 };
+        long[] outside = new long[] { 10, 10, 5 };
+        when(gridSubset.boundsFromIndex(eq(inside))).thenReturn(new BoundingBox(0.5, 0.5, 0.6, 0.6));
+        when(gridSubset.boundsFromIndex(eq(outside))).thenReturn(new BoundingBox(5, 5, 6, 6));
+
+        queue = new DirtyTileQueue(gwc, 60000, true);
+        long before = System.currentTimeMillis() - 1000;
+        queue.add("test:layer", Arrays.asList(envelope(0, 0, 1, 1)));
+        queue.flush();
+        long after = System.currentTimeMillis() + 1000;
+
+        // nothing deleted
+        verify(gwc, never()).truncate(anyString(), (ReferencedEnvelope) anyObject());
+        assertTrue(queue.isDirty("test:layer", gridSubset, inside, before));
+        assertFalse(queue.isDirty("test:layer", gridSubset, inside, after));
+        assertFalse(queue.isDirty("test:layer", gridSubset, outside, before));
+        assertFalse(queue.isDirty("test:other", gridSubset, inside, before));
+
+        // on shutdown the dirty areas are deleted
+        queue.dispose();
+        queue = null;
+        verify(gwc, times(1)).truncate(eq("test:layer"), eq(envelope(0, 0, 1, 1)));
+    }
+
+    public void testRecovery() throws Exception {
+        File store = File.createTempFile("dirty", ".properties");
+        store.delete();
+        try {
+            when(gwc.getIntersectingBounds(eq("test:layer"), eq(envelope(0, 0, 1, 1))))
+                    .thenReturn(
+                            Collections.singletonMap("EPSG:4326", new BoundingBox(0, 0, 1, 1)));
+            queue = new DirtyTileQueue(gwc, 60000, true, store);
+            queue.add("test:layer", Arrays.asList(envelope(0, 0, 1, 1)));
+            queue.flush();
+            assertTrue(store.exists());
+
+            // stopped without a clean shutdown
+            queue.executor.shutdownNow();
+            queue = null;
+
+            GWC restarted = mock(GWC.class);
+            queue = new DirtyTileQueue(restarted, 60000, false, store);
+            ArgumentCaptor<ReferencedEnvelope> bounds = ArgumentCaptor
+                    .forClass(ReferencedEnvelope.class);
+            queue.recover();
+            verify(restarted, times(1)).truncate(eq("test:layer"), bounds.capture());
+            assertTrue(new Envelope(0, 1, 0, 1).equals(bounds.getValue()));
+            assertTrue(CRS.equalsIgnoreMetadata(DefaultGeographicCRS.WGS84, bounds.getValue()
+                    .getCoordinateReferenceSystem()));
+            assertFalse(store.exists());
+        } finally {
+            store.delete();
+        }
+    }
+}
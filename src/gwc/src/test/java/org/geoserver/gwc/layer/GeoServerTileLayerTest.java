@@ -6,6 +6,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -25,24 +26,32 @@ import javax.servlet.http.HttpServletResponse;
 import junit.framework.TestCase;
 
 import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.LayerInfo.Type;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.impl.DataStoreInfoImpl;
+import org.geoserver.catalog.impl.DimensionInfoImpl;
 import org.geoserver.catalog.impl.FeatureTypeInfoImpl;
 import org.geoserver.catalog.impl.LayerGroupInfoImpl;
 import org.geoserver.catalog.impl.LayerInfoImpl;
 import org.geoserver.catalog.impl.NamespaceInfoImpl;
 import org.geoserver.catalog.impl.StyleInfoImpl;
 import org.geoserver.gwc.config.GWCConfig;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContext;
 import org.geoserver.wms.WebMap;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.styling.Style;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
@@ -441,15 +450,23 @@ public class GeoServerTileLayerTest extends TestCase {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public void testGetTile() throws Exception {
 
-        Resource mockResult = mock(Resource.class);
-        ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
-        Mockito.when(catalogConfig.dispatchOwsRequest(argument.capture(), (Cookie[]) anyObject()))
-                .thenReturn(mockResult);
-
         BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
         RenderedImageMap fakeDispatchedMap = new RenderedImageMap(new WMSMapContext(), image,
                 "image/png");
 
+        // the meta tile is rendered in process, no need to dispatch a KVP request
+        Style style = CommonFactoryFinder.getStyleFactory(null).createStyle();
+        DimensionInfo time = new DimensionInfoImpl();
+        time.setEnabled(true);
+        layerInfo.getResource().getMetadata().put(ResourceInfo.TIME, time);
+        WMS wms = mock(WMS.class);
+        when(wms.getLayerByName(eq("test:MockLayerInfoName"))).thenReturn(layerInfo);
+        when(wms.getStyleByName(eq("default_style"))).thenReturn(style);
+        when(catalogConfig.getWMS()).thenReturn(wms);
+        ArgumentCaptor<GetMapRequest> argument = ArgumentCaptor.forClass(GetMapRequest.class);
+        when(catalogConfig.getMap(argument.capture(), (Cookie[]) anyObject())).thenReturn(
+                fakeDispatchedMap);
+
         RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
         MimeType mimeType = MimeType.createFromFormat("image/png");
         when(catalogConfig.getResponseEncoder(eq(mimeType), (WebMap) anyObject())).thenReturn(
@@ -467,7 +484,6 @@ public class GeoServerTileLayerTest extends TestCase {
         ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
                 "EPSG:4326", tileIndex, mimeType, null, servletReq, servletResp);
 
-        GeoServerTileLayer.WEB_MAP.set(fakeDispatchedMap);
         ConveyorTile returned = layerInfoTileLayer.getTile(tile);
         assertNotNull(returned);
         assertNotNull(returned.getBlob());
@@ -477,6 +493,49 @@ public class GeoServerTileLayerTest extends TestCase {
         verify(storageBroker, atLeastOnce()).get((TileObject) anyObject());
         verify(catalogConfig, times(1)).getResponseEncoder(eq(mimeType),
                 isA(RenderedImageMap.class));
+        verify(catalogConfig, never()).dispatchOwsRequest((Map) anyObject(),
+                (Cookie[]) anyObject());
+
+        GetMapRequest getMap = argument.getValue();
+        assertEquals(1, getMap.getLayers().size());
+        assertSame(layerInfo, getMap.getLayers().get(0).getLayerInfo());
+        assertSame(style, getMap.getStyles().get(0));
+        assertEquals("EPSG:4326", getMap.getSRS());
+        assertEquals("image/png", getMap.getFormat());
+        assertTrue(getMap.isTransparent());
+        assertFalse(getMap.getRawKvp().containsKey(GeoServerTileLayer.GWC_SEED_INTERCEPT_TOKEN));
+        // the default time is requested, as the KVP reader would do
+        assertEquals(Arrays.asList((Object) null), getMap.getTime());
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testGetTileNoDefaultStyle() throws Exception {
+        layerInfo.setDefaultStyle(null);
+        layerInfo.setStyles(new HashSet<StyleInfo>());
+
+        WMS wms = mock(WMS.class);
+        when(wms.getLayerByName(eq("test:MockLayerInfoName"))).thenReturn(layerInfo);
+        when(catalogConfig.getWMS()).thenReturn(wms);
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+        layerInfoTileLayer = new GeoServerTileLayer(catalogConfig, layerInfo);
+
+        MockHttpServletRequest servletReq = new MockHttpServletRequest();
+        HttpServletResponse servletResp = new MockHttpServletResponse();
+        long[] tileIndex = { 0, 0, 0 };
+        MimeType mimeType = MimeType.createFromFormat("image/png");
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                "EPSG:4326", tileIndex, mimeType, null, servletReq, servletResp);
+
+        try {
+            layerInfoTileLayer.getTile(tile);
+            fail("Expected a missing style error");
+        } catch (GeoWebCacheException e) {
+            assertTrue(e.getCause() instanceof ServiceException);
+            assertEquals("NoDefaultStyle", ((ServiceException) e.getCause()).getCode());
+        }
+        verify(catalogConfig, never()).getMap((GetMapRequest) anyObject(), (Cookie[]) anyObject());
     }
 
     public void testGetMimeTypes() throws Exception {
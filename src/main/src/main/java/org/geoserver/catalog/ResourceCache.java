@@ -0,0 +1,686 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * A concurrent, loading cache used by the {@link ResourcePool} to hold on to expensive resources
+ * such as data stores, feature types and coverage readers.
+ * <p>
+ * Each key is loaded at most once: concurrent requests for the same key wait on the same load,
+ * while requests for different keys proceed in parallel and never block each other. The cache
+ * can be bounded by number of entries, by total weight (as computed by a {@link Weigher}), and
+ * entries can be expired after a certain amount of time without access. When entries are
+ * removed, for whatever reason, {@link #dispose(Object, Object, boolean)} is called, subclasses
+ * can override it to release the resource.
+ * </p>
+ * <p>
+ * The cache keeps hit, miss, load and eviction counters, see {@link #getStatistics()}.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ResourceCache<K, V> {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver.catalog");
+
+    /**
+     * Computes the weight of a cache entry, used to limit the total weight of the cache
+     */
+    public static interface Weigher<K, V> {
+        /**
+         * Returns the weight of the entry, must be a positive number
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * A weigher giving each entry a weight of one
+     */
+    static final Weigher<Object, Object> SINGLETON_WEIGHER = new Weigher<Object, Object>() {
+        public int weigh(Object key, Object value) {
+            return 1;
+        }
+    };
+
+    /**
+     * A snapshot of the cache statistics
+     */
+    public static class Statistics {
+        long hits;
+
+        long misses;
+
+        long loads;
+
+        long loadFailures;
+
+        long totalLoadTime;
+
+        long evictions;
+
+        int size;
+
+        long weight;
+
+        /**
+         * Number of lookups that found the value already loaded, or being loaded
+         */
+        public long getHitCount() {
+            return hits;
+        }
+
+        /**
+         * Number of lookups that had to trigger a new load
+         */
+        public long getMissCount() {
+            return misses;
+        }
+
+        /**
+         * Number of successful loads
+         */
+        public long getLoadCount() {
+            return loads;
+        }
+
+        /**
+         * Number of loads that failed with an exception
+         */
+        public long getLoadFailureCount() {
+            return loadFailures;
+        }
+
+        /**
+         * Total time spent loading values, in milliseconds
+         */
+        public long getTotalLoadTime() {
+            return totalLoadTime;
+        }
+
+        /**
+         * Average load time, in milliseconds
+         */
+        public double getAverageLoadTime() {
+            long count = loads + loadFailures;
+            return count == 0 ? 0 : ((double) totalLoadTime) / count;
+        }
+
+        /**
+         * Number of entries removed because of size, weight or time limits
+         */
+        public long getEvictionCount() {
+            return evictions;
+        }
+
+        /**
+         * Fraction of lookups that were satisfied by the cache
+         */
+        public double getHitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 1 : ((double) hits) / requests;
+        }
+
+        /**
+         * Number of entries in the cache
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Total weight of the entries in the cache
+         */
+        public long getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", misses=" + misses + ", loads=" + loads
+                    + ", loadFailures=" + loadFailures + ", totalLoadTime=" + totalLoadTime
+                    + "ms, evictions=" + evictions + ", size=" + size + ", weight=" + weight;
+        }
+    }
+
+    /**
+     * A cache entry, wraps the (possibly in progress) load of the value
+     */
+    class Entry {
+        K key;
+
+        FutureTask<V> future;
+
+        /**
+         * The weight of the value, 0 until the value is loaded
+         */
+        int weight;
+
+        /**
+         * Logical clock of the last access, used for LRU eviction
+         */
+        volatile long lastAccess;
+
+        /**
+         * Time of the last access, used for time based expiration
+         */
+        volatile long lastAccessTime;
+
+        /**
+         * Set by the loading thread once the load is over, guarded by the entry lock
+         */
+        boolean loaded;
+
+        /**
+         * Set when the entry is removed while still loading, guarded by the entry lock. The
+         * loading thread disposes the value once it's available
+         */
+        boolean cancelled;
+
+        boolean cancelledByEviction;
+
+        Entry(K key, Callable<V> loader) {
+            this.key = key;
+            this.future = new FutureTask<V>(loader);
+            touch();
+        }
+
+        void touch() {
+            lastAccess = clock.incrementAndGet();
+            if (expireAfterAccess > 0) {
+                lastAccessTime = System.currentTimeMillis();
+            }
+        }
+
+        boolean isExpired(long now) {
+            return expireAfterAccess > 0 && future.isDone()
+                    && now - lastAccessTime > expireAfterAccess;
+        }
+
+        /**
+         * Returns the value if loaded successfully, null otherwise
+         */
+        V getLoadedValue() {
+            if (!future.isDone()) {
+                return null;
+            }
+            try {
+                return future.get();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    ConcurrentHashMap<K, Entry> entries = new ConcurrentHashMap<K, Entry>();
+
+    AtomicLong clock = new AtomicLong();
+
+    AtomicLong totalWeight = new AtomicLong();
+
+    AtomicLong hits = new AtomicLong();
+
+    AtomicLong misses = new AtomicLong();
+
+    AtomicLong loads = new AtomicLong();
+
+    AtomicLong loadFailures = new AtomicLong();
+
+    AtomicLong totalLoadTime = new AtomicLong();
+
+    AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Serializes evictions, it's never held while loading or looking up values
+     */
+    Object evictionLock = new Object();
+
+    String name;
+
+    volatile int maxSize;
+
+    volatile long maxWeight;
+
+    volatile long expireAfterAccess;
+
+    volatile Weigher<? super K, ? super V> weigher = SINGLETON_WEIGHER;
+
+    /**
+     * Creates an unbounded cache
+     *
+     * @param name The cache name, used for logging
+     */
+    public ResourceCache(String name) {
+        this(name, -1);
+    }
+
+    /**
+     * Creates a cache bounded by number of entries
+     *
+     * @param name The cache name, used for logging
+     * @param maxSize The maximum number of entries, or a negative number for no limit
+     */
+    public ResourceCache(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxWeight = -1;
+        this.expireAfterAccess = -1;
+    }
+
+    /**
+     * Returns the value associated to the key, loading it with the provided loader if missing.
+     * <p>
+     * If the value is being loaded by another thread the call will wait for that load to
+     * complete. If the load fails the failure is propagated to all the waiting threads, and the
+     * next lookup will attempt a new load. If the entry is removed while being loaded, the
+     * loaded value is disposed and loaded again.
+     * </p>
+     */
+    public V get(K key, Callable<V> loader) throws IOException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+                if (entries.remove(key, entry)) {
+                    evictions.incrementAndGet();
+                    removed(entry, true);
+                }
+                entry = null;
+            }
+
+            if (entry == null) {
+                Entry created = new Entry(key, loader);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    // we own the load
+                    V value = load(created);
+                    if (value != null || !isCancelled(created)) {
+                        return value;
+                    }
+                    continue;
+                }
+                // someone else beat us to it, wait on their load
+            }
+
+            hits.incrementAndGet();
+            entry.touch();
+            V value = getValue(entry);
+            if (!isCancelled(entry)) {
+                return value;
+            }
+            // removed while loading, the loading thread disposed the value
+        }
+    }
+
+    boolean isCancelled(Entry entry) {
+        synchronized (entry) {
+            return entry.cancelled;
+        }
+    }
+
+    /**
+     * Runs the load of a newly created entry. Returns null if the entry has been removed while
+     * loading, in that case the value is disposed right away.
+     */
+    V load(Entry created) throws IOException {
+        K key = created.key;
+        misses.incrementAndGet();
+        long start = System.currentTimeMillis();
+        created.future.run();
+        long elapsed = System.currentTimeMillis() - start;
+        totalLoadTime.addAndGet(elapsed);
+
+        boolean cancelled;
+        synchronized (created) {
+            created.loaded = true;
+            cancelled = created.cancelled;
+        }
+
+        V value;
+        try {
+            value = getValue(created);
+        } catch (IOException e) {
+            loadFailures.incrementAndGet();
+            entries.remove(key, created);
+            throw e;
+        } catch (RuntimeException e) {
+            loadFailures.incrementAndGet();
+            entries.remove(key, created);
+            throw e;
+        } catch (Error e) {
+            loadFailures.incrementAndGet();
+            entries.remove(key, created);
+            throw e;
+        }
+        loads.incrementAndGet();
+        if (cancelled) {
+            // removed while loading, nobody else is going to release the value
+            if (value != null) {
+                dispose(created, value, created.cancelledByEviction);
+            }
+            return null;
+        }
+        if (value == null) {
+            // nothing to cache
+            entries.remove(key, created);
+            return null;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Loaded " + name + " entry " + key + " in " + elapsed + "ms");
+        }
+
+        // account for the weight and evict if necessary
+        setWeight(created, weigher.weigh(key, value));
+        if (entries.get(key) != created) {
+            // removed right after the load, the removal accounted for a zero weight
+            clearWeight(created);
+        } else {
+            evict();
+        }
+
+        return value;
+    }
+
+    V getValue(Entry entry) throws IOException {
+        try {
+            return entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new IOException("Interrupted while waiting for " + name
+                    + " entry " + entry.key).initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) new IOException().initCause(cause);
+        }
+    }
+
+    /**
+     * Returns the value associated to the key if it is already loaded, null otherwise. Does not
+     * count as a hit or miss.
+     */
+    public V getIfPresent(K key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.getLoadedValue();
+    }
+
+    /**
+     * Removes the value associated to the key, disposing it.
+     */
+    public void remove(K key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            removed(entry, false);
+        }
+    }
+
+    /**
+     * Removes all the entries, disposing them.
+     */
+    public void clear() {
+        for (K key : new ArrayList<K>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Returns the number of entries in the cache, including the ones being loaded
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Evicts the entries that are expired, or in excess of the size and weight limits. Called
+     * after each load, can be called periodically to purge expired entries without waiting for a
+     * lookup.
+     */
+    public void evict() {
+        if (maxSize < 0 && maxWeight < 0 && expireAfterAccess <= 0) {
+            return;
+        }
+
+        synchronized (evictionLock) {
+            if (expireAfterAccess > 0) {
+                long now = System.currentTimeMillis();
+                for (Entry entry : entries.values()) {
+                    if (entry.isExpired(now) && entries.remove(entry.key, entry)) {
+                        evictions.incrementAndGet();
+                        removed(entry, true);
+                    }
+                }
+            }
+
+            while (isOverLimit()) {
+                // scan for the least recently used loaded entry, evictions are rare enough
+                // and caches small enough that a scan is cheaper than keeping an access list
+                Entry lru = null;
+                for (Entry entry : entries.values()) {
+                    if (entry.future.isDone() && (lru == null || entry.lastAccess < lru.lastAccess)) {
+                        lru = entry;
+                    }
+                }
+                if (lru == null) {
+                    // everything is still loading
+                    break;
+                }
+                if (entries.remove(lru.key, lru)) {
+                    evictions.incrementAndGet();
+                    removed(lru, true);
+                }
+            }
+        }
+    }
+
+    boolean isOverLimit() {
+        return (maxSize >= 0 && entries.size() > maxSize)
+                || (maxWeight >= 0 && totalWeight.get() > maxWeight);
+    }
+
+    void setWeight(Entry entry, int weight) {
+        synchronized (entry) {
+            entry.weight = weight;
+            totalWeight.addAndGet(weight);
+        }
+    }
+
+    void clearWeight(Entry entry) {
+        synchronized (entry) {
+            totalWeight.addAndGet(-entry.weight);
+            entry.weight = 0;
+        }
+    }
+
+    void removed(Entry entry, boolean evicted) {
+        synchronized (entry) {
+            if (!entry.loaded) {
+                // the loading thread will dispose the value once it's available
+                entry.cancelled = true;
+                entry.cancelledByEviction = evicted;
+                return;
+            }
+        }
+        V value = entry.getLoadedValue();
+        clearWeight(entry);
+        if (value != null) {
+            dispose(entry, value, evicted);
+        }
+    }
+
+    void dispose(Entry entry, V value, boolean evicted) {
+        try {
+            dispose(entry.key, value, evicted);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error occurred disposing " + name + " entry " + entry.key,
+                    e);
+        }
+    }
+
+    /**
+     * Called when an entry is removed from the cache, either explicitly, or because it has been
+     * evicted. Subclasses can override to release resources held by the value. The default
+     * implementation does nothing.
+     *
+     * @param evicted true if the entry has been evicted because of size, weight or time limits,
+     *        false if it has been explicitly removed
+     */
+    protected void dispose(K key, V value, boolean evicted) {
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics
+     */
+    public Statistics getStatistics() {
+        Statistics stats = new Statistics();
+        stats.hits = hits.get();
+        stats.misses = misses.get();
+        stats.loads = loads.get();
+        stats.loadFailures = loadFailures.get();
+        stats.totalLoadTime = totalLoadTime.get();
+        stats.evictions = evictions.get();
+        stats.size = entries.size();
+        stats.weight = totalWeight.get();
+        return stats;
+    }
+
+    /**
+     * Resets the statistics counters
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        loads.set(0);
+        loadFailures.set(0);
+        totalLoadTime.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * The cache name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The maximum number of entries, negative if unbounded
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of entries, use a negative number for no limit. Entries in excess
+     * are evicted immediately.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * The maximum total weight of the entries, negative if unbounded
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Sets the maximum total weight of the entries, use a negative number for no limit. Entries
+     * in excess are evicted immediately.
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    /**
+     * The time, in milliseconds, after which entries not accessed are expired. A value of zero
+     * or less means entries never expire.
+     */
+    public long getExpireAfterAccess() {
+        return expireAfterAccess;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which entries not accessed are expired. A value of
+     * zero or less means entries never expire.
+     */
+    public void setExpireAfterAccess(long expireAfterAccess) {
+        if (expireAfterAccess > 0) {
+            // make sure already loaded entries don't look expired right away
+            long now = System.currentTimeMillis();
+            for (Entry entry : entries.values()) {
+                entry.lastAccessTime = now;
+            }
+        }
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * Sets the weigher used to compute the entry weights. Should be set before the cache is
+     * used, changing it does not re-weigh the existing entries.
+     */
+    public void setWeigher(Weigher<? super K, ? super V> weigher) {
+        if (weigher == null) {
+            this.weigher = SINGLETON_WEIGHER;
+        } else {
+            this.weigher = weigher;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the loaded values in the cache
+     */
+    public List<V> values() {
+        List<V> result = new ArrayList<V>();
+        for (Entry entry : entries.values()) {
+            V value = entry.getLoadedValue();
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a snapshot of the loaded entries in the cache
+     */
+    public Map<K, V> asMap() {
+        Map<K, V> result = new HashMap<K, V>();
+        for (Entry entry : entries.values()) {
+            V value = entry.getLoadedValue();
+            if (value != null) {
+                result.put(entry.key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + getStatistics() + "]";
+    }
+}
@@ -27,12 +27,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.xsd.XSDElementDeclaration;
 import org.eclipse.xsd.XSDParticle;
@@ -134,21 +136,31 @@ public class ResourcePool {
     private static final String IMAGE_PYRAMID = "ImagePyramid";
     private static final String IMAGE_MOSAIC = "ImageMosaic";
 
+    /**
+     * Default number of data stores, coverage readers and web map servers kept in the caches
+     */
+    static int STORE_CACHE_SIZE_DEFAULT = 100;
+    
     Catalog catalog;
-    HashMap<String, CoordinateReferenceSystem> crsCache;
+    ResourceCache<String, CoordinateReferenceSystem> crsCache;
     DataStoreCache dataStoreCache;
     FeatureTypeCache featureTypeCache;
     FeatureTypeAttributeCache featureTypeAttributeCache;
     WMSCache wmsCache;
     CoverageReaderCache coverageReaderCache;
     CoverageHintReaderCache hintCoverageReaderCache;
-    HashMap<StyleInfo,Style> styleCache;
+    ResourceCache<StyleInfo,Style> styleCache;
     List<Listener> listeners;
     ThreadPoolExecutor coverageExecutor;
     
+    /**
+     * Guards the style files, styles are parsed under the read lock and written under the write one
+     */
+    ReadWriteLock styleFileLock = new ReentrantReadWriteLock();
+    
     public ResourcePool(Catalog catalog) {
         this.catalog = catalog;
-        crsCache = new HashMap<String, CoordinateReferenceSystem>();
+        crsCache = new ResourceCache<String, CoordinateReferenceSystem>("crs");
         dataStoreCache = new DataStoreCache();
         featureTypeCache = new FeatureTypeCache(FEATURETYPE_CACHE_SIZE_DEFAULT);
         
@@ -158,7 +170,7 @@ public class ResourcePool {
         
         wmsCache = new WMSCache();
         
-        styleCache = new HashMap<StyleInfo, Style>();
+        styleCache = new ResourceCache<StyleInfo, Style>("style");
         listeners = new CopyOnWriteArrayList<Listener>();
         
         catalog.addListener( new CacheClearingListener() );
@@ -173,12 +185,53 @@ public class ResourcePool {
     public void setFeatureTypeCacheSize(int featureTypeCacheSize) {
         synchronized (this) {
             featureTypeCache.clear();
-            featureTypeCache = new FeatureTypeCache(featureTypeCacheSize);
+            featureTypeCache.setMaxSize(featureTypeCacheSize);
             featureTypeAttributeCache.clear();
-            featureTypeAttributeCache = new FeatureTypeAttributeCache(featureTypeCacheSize);
+            featureTypeAttributeCache.setMaxSize(featureTypeCacheSize);
+        }
+    }
+    
+    /**
+     * Sets the maximum number of data stores, coverage readers and web map servers kept open 
+     * at any given time. Stores in excess are disposed, least recently used first.
+     */
+    public void setStoreCacheSize(int storeCacheSize) {
+        dataStoreCache.setMaxSize(storeCacheSize);
+        coverageReaderCache.setMaxSize(storeCacheSize);
+        hintCoverageReaderCache.setMaxSize(storeCacheSize);
+        wmsCache.setMaxSize(storeCacheSize);
+    }
+    
+    /**
+     * Sets the maximum total weight of the feature type cache, expressed as the total number of
+     * attributes of the cached feature types, or a negative number for no limit. 
+     */
+    public void setFeatureTypeCacheWeight(long maxAttributes) {
+        featureTypeCache.setMaxWeight(maxAttributes);
+    }
+    
+    /**
+     * Sets the time, in milliseconds, after which data stores, coverage readers, web map servers
+     * and feature types that have not been used are disposed. A value of zero or less disables 
+     * the expiration.
+     */
+    public void setCacheExpiration(long expireAfterAccess) {
+        for (ResourceCache cache : getCaches()) {
+            if (cache != crsCache && cache != styleCache) {
+                cache.setExpireAfterAccess(expireAfterAccess);
+            }
         }
     }
     
+    /**
+     * Returns the caches used by this pool, mostly useful to monitor their statistics
+     */
+    public List<ResourceCache> getCaches() {
+        return Arrays.asList(new ResourceCache[] { crsCache, dataStoreCache, featureTypeCache,
+                featureTypeAttributeCache, coverageReaderCache, hintCoverageReaderCache, wmsCache,
+                styleCache });
+    }
+    
     /**
      * Sets the size of the feature type cache.
      * <p>
@@ -228,23 +281,17 @@ public class ResourcePool {
         if(srsName == null)
             return null;
         
-        CoordinateReferenceSystem crs = crsCache.get( srsName );
-        if ( crs == null ) {
-            synchronized (crsCache) {
-                crs = crsCache.get( srsName );
-                if ( crs == null ) {
-                    try {
-                        crs = CRS.decode( srsName );
-                        crsCache.put( srsName, crs );
-                    }
-                    catch( Exception e) {
-                        throw (IOException) new IOException().initCause(e);
-                    }
+        final String code = srsName;
+        return crsCache.get(srsName, new Callable<CoordinateReferenceSystem>() {
+            public CoordinateReferenceSystem call() throws Exception {
+                try {
+                    return CRS.decode( code );
+                }
+                catch( Exception e) {
+                    throw (IOException) new IOException().initCause(e);
                 }
             }
-        }
-        
-        return crs;
+        });
     }
     
     /**
@@ -284,89 +331,22 @@ public class ResourcePool {
      * 
      * @throws IOException Any errors that occur connecting to the resource.
      */
-    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( DataStoreInfo info ) throws IOException {
+    public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( final DataStoreInfo info ) throws IOException {
         try {
             String id = info.getId();
-            DataAccess<? extends FeatureType, ? extends Feature> dataStore;
-            dataStore = (DataAccess<? extends FeatureType, ? extends Feature>) dataStoreCache.get(id);
-            if ( dataStore == null ) {
-                synchronized (dataStoreCache) {
-                    dataStore = (DataAccess<? extends FeatureType, ? extends Feature>) dataStoreCache.get( id );
-                    if ( dataStore == null ) {
-                        //create data store
-                        Map<String, Serializable> connectionParameters = info.getConnectionParameters();
-                        
-                        //call this methdo to execute the hack which recognizes 
-                        // urls which are relative to the data directory
-                        // TODO: find a better way to do this
-                        connectionParameters = DataStoreUtils.getParams(connectionParameters,null);
-                        
-                        //ensure that the namespace parameter is set for the datastore
-                        if (!connectionParameters.containsKey( "namespace")) {
-                            //obtain the factory
-                            DataAccessFactory factory = null;
-                            try {
-                                factory = getDataStoreFactory(info);
-                            }
-                            catch(Exception e ) {
-                                //ignore, it will fail later
-                            }
-                            
-                            //if we grabbed the factory, check that the factory actually supports
-                            // a namespace parameter, if we could not get the factory, assume that
-                            // it does
-                            boolean supportsNamespace = true;
-                            if ( factory != null ) {
-                                supportsNamespace = false;
-                                Param[] params = factory.getParametersInfo();
-                                for ( Param p : params ) {
-                                    if ( "namespace".equalsIgnoreCase( p.key ) ) {
-                                        supportsNamespace = true;
-                                        break;
-                                    }
-                                }
-                            }
-                            
-                            if ( supportsNamespace ) {
-                                WorkspaceInfo ws = info.getWorkspace();
-                                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
-                                if ( ns == null ) {
-                                    ns = info.getCatalog().getDefaultNamespace();
-                                }
-                                if ( ns != null ) {
-                                    connectionParameters.put( "namespace", ns.getURI() );
-                                }    
-                            }
-                        }
-                        
-                        dataStore = DataStoreUtils.getDataAccess(connectionParameters);
-                        if (dataStore == null) {
-                            /*
-                             * Preserve DataStore retyping behaviour by calling
-                             * DataAccessFinder.getDataStore after the call to
-                             * DataStoreUtils.getDataStore above.
-                             * 
-                             * TODO: DataAccessFinder can also find DataStores, and when retyping is
-                             * supported for DataAccess, we can use a single mechanism.
-                             */
-                            dataStore = DataAccessFinder.getDataStore(connectionParameters);
-                        }
-                        
-                        if ( dataStore == null ) {
-                            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
-                        }
-                        
-                        // cache only if the id is not null, no need to cache the stores
-                        // returned from un-saved DataStoreInfo objects (it would be actually
-                        // harmful, NPE when trying to dispose of them)
-                        if(id != null) {
-                            dataStoreCache.put( id, dataStore );
-                        }
-                    }
-                } 
+            
+            // cache only if the id is not null, no need to cache the stores
+            // returned from un-saved DataStoreInfo objects (it would be actually
+            // harmful, NPE when trying to dispose of them)
+            if(id == null) {
+                return createDataStore(info);
             }
             
-            return dataStore;
+            return dataStoreCache.get(id, new Callable<DataAccess>() {
+                public DataAccess call() throws Exception {
+                    return createDataStore(info);
+                }
+            });
         } 
         catch (IOException ioe){
             throw ioe;
@@ -375,6 +355,74 @@ public class ResourcePool {
             throw (IOException) new IOException().initCause(e);
         }
     }
+    
+    DataAccess<? extends FeatureType, ? extends Feature> createDataStore( DataStoreInfo info ) throws IOException {
+        DataAccess<? extends FeatureType, ? extends Feature> dataStore;
+        //create data store
+        Map<String, Serializable> connectionParameters = info.getConnectionParameters();
+        
+        //call this methdo to execute the hack which recognizes 
+        // urls which are relative to the data directory
+        // TODO: find a better way to do this
+        connectionParameters = DataStoreUtils.getParams(connectionParameters,null);
+        
+        //ensure that the namespace parameter is set for the datastore
+        if (!connectionParameters.containsKey( "namespace")) {
+            //obtain the factory
+            DataAccessFactory factory = null;
+            try {
+                factory = getDataStoreFactory(info);
+            }
+            catch(Exception e ) {
+                //ignore, it will fail later
+            }
+            
+            //if we grabbed the factory, check that the factory actually supports
+            // a namespace parameter, if we could not get the factory, assume that
+            // it does
+            boolean supportsNamespace = true;
+            if ( factory != null ) {
+                supportsNamespace = false;
+                Param[] params = factory.getParametersInfo();
+                for ( Param p : params ) {
+                    if ( "namespace".equalsIgnoreCase( p.key ) ) {
+                        supportsNamespace = true;
+                        break;
+                    }
+                }
+            }
+            
+            if ( supportsNamespace ) {
+                WorkspaceInfo ws = info.getWorkspace();
+                NamespaceInfo ns = info.getCatalog().getNamespaceByPrefix( ws.getName() );
+                if ( ns == null ) {
+                    ns = info.getCatalog().getDefaultNamespace();
+                }
+                if ( ns != null ) {
+                    connectionParameters.put( "namespace", ns.getURI() );
+                }    
+            }
+        }
+        
+        dataStore = DataStoreUtils.getDataAccess(connectionParameters);
+        if (dataStore == null) {
+            /*
+             * Preserve DataStore retyping behaviour by calling
+             * DataAccessFinder.getDataStore after the call to
+             * DataStoreUtils.getDataStore above.
+             * 
+             * TODO: DataAccessFinder can also find DataStores, and when retyping is
+             * supported for DataAccess, we can use a single mechanism.
+             */
+            dataStore = DataAccessFinder.getDataStore(connectionParameters);
+        }
+        
+        if ( dataStore == null ) {
+            throw new NullPointerException("Could not acquire data access '" + info.getName() + "'");
+        }
+        
+        return dataStore;
+    }
         
     /**
      * Get Connect params.
@@ -425,7 +473,7 @@ public class ResourcePool {
         dataStoreCache.remove( info.getId() );
     }
     
-    public List<AttributeTypeInfo> getAttributes(FeatureTypeInfo info) throws IOException {
+    public List<AttributeTypeInfo> getAttributes(final FeatureTypeInfo info) throws IOException {
         //first check the feature type itself
         //      workaround for GEOS-3294, upgrading from 2.0 data directory,
         //      simply ignore any stored attributes
@@ -437,30 +485,30 @@ public class ResourcePool {
             return info.getAttributes();
         }
         
+        // cache attributes only if the id is not null -> the feature type is not new
+        if(info.getId() == null) {
+            return computeAttributes(info);
+        }
+        
         //check the cache
-        List<AttributeTypeInfo> atts = (List<AttributeTypeInfo>) featureTypeAttributeCache.get(info.getId());
-        if (atts == null) {
-            synchronized (featureTypeAttributeCache) {
-                atts = (List<AttributeTypeInfo>) featureTypeAttributeCache.get(info.getId());
-                if (atts == null) {
-                    //load from feature type
-                    atts = loadAttributes(info);
-                    
-                    //check for a schema override
-                    try {
-                        handleSchemaOverride(atts,info);
-                    }
-                    catch( Exception e ) {
-                        LOGGER.log( Level.WARNING, 
-                            "Error occured applying schema override for "+info.getName(), e);
-                    }
-                    
-                    // cache attributes only if the id is not null -> the feature type is not new
-                    if(info.getId() != null) {
-                        featureTypeAttributeCache.put(info.getId(), atts);
-                    }
-                }
+        return featureTypeAttributeCache.get(info.getId(), new Callable<List<AttributeTypeInfo>>() {
+            public List<AttributeTypeInfo> call() throws Exception {
+                return computeAttributes(info);
             }
+        });
+    }
+    
+    List<AttributeTypeInfo> computeAttributes(FeatureTypeInfo info) throws IOException {
+        //load from feature type
+        List<AttributeTypeInfo> atts = loadAttributes(info);
+        
+        //check for a schema override
+        try {
+            handleSchemaOverride(atts,info);
+        }
+        catch( Exception e ) {
+            LOGGER.log( Level.WARNING, 
+                "Error occured applying schema override for "+info.getName(), e);
         }
         
         return atts;
@@ -588,98 +636,100 @@ public class ResourcePool {
         return getFeatureType(info, true);
     }
     
-    FeatureType getFeatureType( FeatureTypeInfo info, boolean handleProjectionPolicy ) throws IOException {
+    FeatureType getFeatureType( final FeatureTypeInfo info, final boolean handleProjectionPolicy ) throws IOException {
         boolean cacheable = isCacheable(info) && handleProjectionPolicy;
-        FeatureType ft = (FeatureType) featureTypeCache.get( info.getId() );
-        if ( ft == null || !cacheable ) {
-            synchronized ( featureTypeCache ) {
-                ft = (FeatureType) featureTypeCache.get( info.getId() );
-                if ( ft == null || !cacheable) {
-                    
-                    //grab the underlying feature type
-                    DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
-                    
-                    // sql view handling
-                    VirtualTable vt = null;
-                    String vtName = null;
-                    if(dataAccess instanceof JDBCDataStore && info.getMetadata() != null &&
-                            (info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE) instanceof VirtualTable)) {
-                        JDBCDataStore jstore = (JDBCDataStore) dataAccess;
-                        vt = info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, VirtualTable.class);
-                        
-                        if(!cacheable) {
-                            // use a highly random name, we don't want to actually add the
-                            // virtual table to the store as this feature type is not cacheable,
-                            // it is "dirty" or un-saved. The renaming below will take care
-                            // of making the user see the actual name
-                            final String[] typeNames = jstore.getTypeNames();
-                            do {
-                                vtName = UUID.randomUUID().toString();
-                            } while (Arrays.asList(typeNames).contains(vtName));
-    
-                            // try adding the vt and see if that works
-                            jstore.addVirtualTable(new VirtualTable(vtName, vt));
-                            ft = jstore.getSchema(vtName);
-                        } else {
-                            vtName = vt.getName();
-                            jstore.addVirtualTable(vt);
-                            ft = jstore.getSchema(vt.getName());
-                        }
-                    } else {
-                        ft = dataAccess.getSchema(info.getQualifiedNativeName());
+        if ( !cacheable ) {
+            return loadFeatureType(info, handleProjectionPolicy, false);
+        }
+        
+        return featureTypeCache.get(info.getId(), new Callable<FeatureType>() {
+            public FeatureType call() throws Exception {
+                return loadFeatureType(info, handleProjectionPolicy, true);
+            }
+        });
+    }
+    
+    FeatureType loadFeatureType( FeatureTypeInfo info, boolean handleProjectionPolicy, boolean cacheable ) throws IOException {
+        FeatureType ft;
+        //grab the underlying feature type
+        DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
+        
+        // sql view handling
+        VirtualTable vt = null;
+        String vtName = null;
+        if(dataAccess instanceof JDBCDataStore && info.getMetadata() != null &&
+                (info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE) instanceof VirtualTable)) {
+            JDBCDataStore jstore = (JDBCDataStore) dataAccess;
+            vt = info.getMetadata().get(FeatureTypeInfo.JDBC_VIRTUAL_TABLE, VirtualTable.class);
+            
+            if(!cacheable) {
+                // use a highly random name, we don't want to actually add the
+                // virtual table to the store as this feature type is not cacheable,
+                // it is "dirty" or un-saved. The renaming below will take care
+                // of making the user see the actual name
+                final String[] typeNames = jstore.getTypeNames();
+                do {
+                    vtName = UUID.randomUUID().toString();
+                } while (Arrays.asList(typeNames).contains(vtName));
+    
+                // try adding the vt and see if that works
+                jstore.addVirtualTable(new VirtualTable(vtName, vt));
+                ft = jstore.getSchema(vtName);
+            } else {
+                vtName = vt.getName();
+                jstore.addVirtualTable(vt);
+                ft = jstore.getSchema(vt.getName());
+            }
+        } else {
+            ft = dataAccess.getSchema(info.getQualifiedNativeName());
+        }
+        
+        // TODO: support reprojection for non-simple FeatureType
+        if (ft instanceof SimpleFeatureType) {
+            SimpleFeatureType sft = (SimpleFeatureType) ft;
+            //create the feature type so it lines up with the "declared" schema
+            SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+            tb.setName( info.getName() );
+            tb.setNamespaceURI( info.getNamespace().getURI() );
+
+            if ( info.getAttributes() == null || info.getAttributes().isEmpty() ) {
+                //take this to mean just load all native
+                for ( PropertyDescriptor pd : ft.getDescriptors() ) {
+                    if ( !( pd instanceof AttributeDescriptor ) ) {
+                        continue;
                     }
                     
-                    // TODO: support reprojection for non-simple FeatureType
-                    if (ft instanceof SimpleFeatureType) {
-                        SimpleFeatureType sft = (SimpleFeatureType) ft;
-                        //create the feature type so it lines up with the "declared" schema
-                        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
-                        tb.setName( info.getName() );
-                        tb.setNamespaceURI( info.getNamespace().getURI() );
-
-                        if ( info.getAttributes() == null || info.getAttributes().isEmpty() ) {
-                            //take this to mean just load all native
-                            for ( PropertyDescriptor pd : ft.getDescriptors() ) {
-                                if ( !( pd instanceof AttributeDescriptor ) ) {
-                                    continue;
-                                }
-                                
-                                AttributeDescriptor ad = (AttributeDescriptor) pd;
-                                if(handleProjectionPolicy) {
-                                    ad = handleDescriptor(ad, info);
-                                }
-                                tb.add( ad );
-                            }
-                        }
-                        else {
-                            //only load native attributes configured
-                            for ( AttributeTypeInfo att : info.getAttributes() ) {
-                                String attName = att.getName();
-                                
-                                //load the actual underlying attribute type
-                                PropertyDescriptor pd = ft.getDescriptor( attName );
-                                if ( pd == null || !( pd instanceof AttributeDescriptor) ) {
-                                    throw new IOException("the SimpleFeatureType " + info.getPrefixedName()
-                                            + " does not contains the configured attribute " + attName
-                                            + ". Check your schema configuration");
-                                }
-                            
-                                AttributeDescriptor ad = (AttributeDescriptor) pd;
-                                ad = handleDescriptor(ad, info);
-                                tb.add( (AttributeDescriptor) ad );
-                            }
-                        }
-                        ft = tb.buildFeatureType();
-                    } // end special case for SimpleFeatureType
+                    AttributeDescriptor ad = (AttributeDescriptor) pd;
+                    if(handleProjectionPolicy) {
+                        ad = handleDescriptor(ad, info);
+                    }
+                    tb.add( ad );
+                }
+            }
+            else {
+                //only load native attributes configured
+                for ( AttributeTypeInfo att : info.getAttributes() ) {
+                    String attName = att.getName();
                     
-                    if(cacheable) {
-                        featureTypeCache.put( info.getId(), ft );
-                    } else if(vtName != null) {
-                        JDBCDataStore jstore = (JDBCDataStore) dataAccess;
-                        jstore.removeVirtualTable(vtName);
+                    //load the actual underlying attribute type
+                    PropertyDescriptor pd = ft.getDescriptor( attName );
+                    if ( pd == null || !( pd instanceof AttributeDescriptor) ) {
+                        throw new IOException("the SimpleFeatureType " + info.getPrefixedName()
+                                + " does not contains the configured attribute " + attName
+                                + ". Check your schema configuration");
                     }
+                
+                    AttributeDescriptor ad = (AttributeDescriptor) pd;
+                    ad = handleDescriptor(ad, info);
+                    tb.add( (AttributeDescriptor) ad );
                 }
             }
+            ft = tb.buildFeatureType();
+        } // end special case for SimpleFeatureType
+        
+        if(!cacheable && vtName != null) {
+            JDBCDataStore jstore = (JDBCDataStore) dataAccess;
+            jstore.removeVirtualTable(vtName);
         }
         
         return ft;
@@ -926,12 +976,10 @@ public class ResourcePool {
      * @throws IOException Any errors that occur loading the reader.
      */
     @SuppressWarnings("deprecation")
-    public GridCoverageReader getGridCoverageReader( CoverageStoreInfo info, Hints hints ) 
+    public GridCoverageReader getGridCoverageReader( final CoverageStoreInfo info, Hints hints ) 
         throws IOException {
         
         final AbstractGridFormat gridFormat = info.getFormat();
-        GridCoverageReader reader = null;
-        Object key;
         if ( hints != null ) {
             // expand the hints if necessary
             final String formatName = gridFormat.getName();
@@ -945,38 +993,37 @@ public class ResourcePool {
                 }
             }
             
-            key = new CoverageHintReaderKey(info, hints);
-            reader = (GridCoverageReader) hintCoverageReaderCache.get( key );    
+            return hintCoverageReaderCache.get(new CoverageHintReaderKey(info, hints), 
+                    new CoverageReaderLoader(info, gridFormat, hints));
         } else {
-            key = info;
-            reader = (GridCoverageReader) coverageReaderCache.get( key );
+            return coverageReaderCache.get(info, new CoverageReaderLoader(info, gridFormat, null));
         }
+    }
+    
+    /**
+     * Loads a coverage reader for the coverage caches
+     */
+    static class CoverageReaderLoader implements Callable<GridCoverageReader> {
+        CoverageStoreInfo info;
+        AbstractGridFormat gridFormat;
+        Hints hints;
         
-        if (reader != null) {
-            return reader;
+        CoverageReaderLoader(CoverageStoreInfo info, AbstractGridFormat gridFormat, Hints hints) {
+            this.info = info;
+            this.gridFormat = gridFormat;
+            this.hints = hints;
         }
-        
-        synchronized ( hints != null ? hintCoverageReaderCache : coverageReaderCache ) {
-            if (hints != null) {
-                reader = (GridCoverageReader) hintCoverageReaderCache.get(key);
-            } else {
-                reader = (GridCoverageReader) coverageReaderCache.get(key);
-            }
-            if (reader == null) {
-                /////////////////////////////////////////////////////////
-                //
-                // Getting coverage reader using the format and the real path.
-                //
-                // /////////////////////////////////////////////////////////
-                final File obj = GeoserverDataDirectory.findDataFile(info.getURL());
-    
-                reader = gridFormat.getReader(obj,hints);
-                (hints != null ? hintCoverageReaderCache : coverageReaderCache ).put(key, reader);
-            }
+
+        public GridCoverageReader call() throws Exception {
+            /////////////////////////////////////////////////////////
+            //
+            // Getting coverage reader using the format and the real path.
+            //
+            // /////////////////////////////////////////////////////////
+            final File obj = GeoserverDataDirectory.findDataFile(info.getURL());
+
+            return gridFormat.getReader(obj,hints);
         }
-        
-        return reader;
-            
     }
     
     /**
@@ -1133,22 +1180,14 @@ public class ResourcePool {
      * @param info The WMS configuration
      * @throws IOException
      */
-    public WebMapServer getWebMapServer(WMSStoreInfo info) throws IOException {
+    public WebMapServer getWebMapServer(final WMSStoreInfo info) throws IOException {
         try {
             String id = info.getId();
-            WebMapServer wms = (WebMapServer) wmsCache.get(id);
-            if (wms == null) {
-                synchronized (wmsCache) {
-                    wms = (WebMapServer) wmsCache.get(id);
-                    if (wms == null) {
-                        wms = new WebMapServer(new URL(info.getCapabilitiesURL()));
-
-                        wmsCache.put(id, wms);
-                    }
+            return wmsCache.get(id, new Callable<WebMapServer>() {
+                public WebMapServer call() throws Exception {
+                    return new WebMapServer(new URL(info.getCapabilitiesURL()));
                 }
-            }
-
-            return wms;
+            });
         } catch (IOException ioe) {
             throw ioe;
         } catch (Exception e) {
@@ -1197,13 +1236,11 @@ public class ResourcePool {
      * 
      * @throws IOException Any parsing errors.
      */
-    public Style getStyle( StyleInfo info ) throws IOException {
-        Style style = styleCache.get( info );
-        if ( style == null ) {
-            synchronized (styleCache) {
-                style = styleCache.get( info );
-                if ( style == null ) {
-                    
+    public Style getStyle( final StyleInfo info ) throws IOException {
+        return styleCache.get(info, new Callable<Style>() {
+            public Style call() throws Exception {
+                styleFileLock.readLock().lock();
+                try {
                     //JD: it is important that we call the SLDParser(File) constructor because
                     // if not the sourceURL will not be set which will mean it will fail to 
                     //resolve relative references to online resources
@@ -1212,17 +1249,17 @@ public class ResourcePool {
                         throw new IOException( "No such file: " + info.getFilename());
                     }
                     
-                    style = Styles.style(Styles.parse(styleFile, info.getSLDVersion()));
+                    Style style = Styles.style(Styles.parse(styleFile, info.getSLDVersion()));
                     
                     //set the name of the style to be the name of hte style metadata
                     // remove this when wms works off style info
                     style.setName( info.getName() );
-                    styleCache.put( info, style );
+                    return style;
+                } finally {
+                    styleFileLock.readLock().unlock();
                 }
             }
-        }
-        
-        return style;
+        });
     }
     
     /**
@@ -1269,7 +1306,8 @@ public class ResourcePool {
      * @param format Whether to format the style
      */
     public void writeStyle( StyleInfo info, Style style, boolean format) throws IOException {
-        synchronized ( styleCache ) {
+        styleFileLock.writeLock().lock();
+        try {
             File styleFile = GeoserverDataDirectory.findStyleFile( info.getFilename(), true );
             BufferedOutputStream out = new BufferedOutputStream( new FileOutputStream( styleFile ) );
             
@@ -1280,6 +1318,8 @@ public class ResourcePool {
             finally {
                 out.close();
             }
+        } finally {
+            styleFileLock.writeLock().unlock();
         }
     }
     
@@ -1291,7 +1331,8 @@ public class ResourcePool {
      * 
      */
     public void writeStyle( StyleInfo style, InputStream in ) throws IOException {
-        synchronized ( styleCache ) {
+        styleFileLock.writeLock().lock();
+        try {
             File styleFile = GeoserverDataDirectory.findStyleFile( style.getFilename(), true );
             BufferedOutputStream out = new BufferedOutputStream( new FileOutputStream( styleFile ) );
             
@@ -1304,6 +1345,8 @@ public class ResourcePool {
             finally {
                 out.close();
             }
+        } finally {
+            styleFileLock.writeLock().unlock();
         }
     }
     
@@ -1315,14 +1358,16 @@ public class ResourcePool {
      * 
      */
     public void deleteStyle( StyleInfo style, boolean purgeFile ) throws IOException {
-        synchronized ( styleCache ) {
-           
+        styleFileLock.writeLock().lock();
+        try {
             if( purgeFile ){
                 File styleFile = GeoserverDataDirectory.findStyleFile( style.getFilename(), true );
                 if( styleFile.exists() ){
                     styleFile.delete();
                 }
             }
+        } finally {
+            styleFileLock.writeLock().unlock();
         }
     }
     
@@ -1343,29 +1388,39 @@ public class ResourcePool {
         listeners.clear();
     }
     
-    class FeatureTypeCache extends LRUMap {
+    class FeatureTypeCache extends ResourceCache<String, FeatureType> {
         
         public FeatureTypeCache(int maxSize) {
-            super(maxSize);
+            super("featureType", maxSize);
+            setWeigher(new Weigher<String, FeatureType>() {
+                public int weigh(String key, FeatureType value) {
+                    return Math.max(1, value.getDescriptors().size());
+                }
+            });
         }
         
-        protected boolean removeLRU(LinkEntry entry) {
-            String id = (String) entry.getKey();
-            FeatureType featureType = (FeatureType) entry.getValue();
+        @Override
+        protected void dispose(String id, FeatureType featureType, boolean evicted) {
+            if(!evicted) {
+                return;
+            }
+            
             FeatureTypeInfo info = catalog.getFeatureType(id);
-            LOGGER.info( "Disposing feature type '" + info.getName() + "'");
+            LOGGER.info( "Disposing feature type '" + (info != null ? info.getName() : id) + "'");
             
             fireDisposed(info, featureType);
-            return super.removeLRU(entry);
         }
     }
     
-    class DataStoreCache extends LRUMap {
-        protected boolean removeLRU(LinkEntry entry) {
-            String name = (String) entry.getKey();
-            dispose(name,(DataAccess) entry.getValue());
-            
-            return super.removeLRU(entry);
+    class DataStoreCache extends ResourceCache<String, DataAccess> {
+        
+        public DataStoreCache() {
+            super("dataStore", STORE_CACHE_SIZE_DEFAULT);
+        }
+        
+        @Override
+        protected void dispose(String id, DataAccess dataStore, boolean evicted) {
+            dispose(id, dataStore);
         }
         
         void dispose(String id, DataAccess dataStore) {
@@ -1384,91 +1439,42 @@ public class ResourcePool {
             }
             
         }
-        
-        protected void destroyEntry(HashEntry entry) {
-            dispose( (String) entry.getKey(), (DataAccess) entry.getValue() );
-            super.destroyEntry(entry);
-        }
-        
-        public void clear() {
-            for ( Iterator e = entrySet().iterator(); e.hasNext(); ) {
-                Map.Entry<String,DataAccess<? extends FeatureType, ? extends Feature>> entry = 
-                    (Entry<String, DataAccess<? extends FeatureType, ? extends Feature>>) e.next();
-                dispose( entry.getKey(), entry.getValue() );
-            }
-            super.clear();
-        }
     }
     
-    class CoverageReaderCache extends LRUMap {
-        protected boolean removeLRU(LinkEntry entry) {
-            CoverageStoreInfo info = (CoverageStoreInfo) entry.getKey();
-            dispose( info, (GridCoverageReader) entry.getValue() );
-            return super.removeLRU(entry);
-        }
-        
-        void dispose( CoverageStoreInfo info, GridCoverageReader reader ) {
-            LOGGER.info( "Disposing grid coverage reader '" + info.getName() + "'");
-            fireDisposed(info, reader);
-            try {
-                reader.dispose();
-            }
-            catch( Exception e ) {
-                LOGGER.warning( "Error occured disposing coverage reader '" + info.getName() + "'");
-                LOGGER.log(Level.FINE, "", e );
-            }
-        }
-        
-        protected void destroyEntry(HashEntry entry) {
-            dispose( (CoverageStoreInfo) entry.getKey(), (GridCoverageReader) entry.getValue() );
-            super.destroyEntry(entry);
+    void disposeReader(CoverageStoreInfo info, GridCoverageReader reader) {
+        LOGGER.info( "Disposing grid coverage reader '" + info.getName() + "'");
+        fireDisposed(info, reader);
+        try {
+            reader.dispose();
         }
-        
-        public void clear() {
-            for ( Iterator e = entrySet().iterator(); e.hasNext(); ) {
-                Map.Entry<CoverageStoreInfo,GridCoverageReader> entry = 
-                    (Entry<CoverageStoreInfo, GridCoverageReader>) e.next();
-                dispose( entry.getKey(), entry.getValue() );
-            }
-            super.clear();
+        catch( Exception e ) {
+            LOGGER.warning( "Error occured disposing coverage reader '" + info.getName() + "'");
+            LOGGER.log(Level.FINE, "", e );
         }
     }
     
-    class CoverageHintReaderCache extends LRUMap {
+    class CoverageReaderCache extends ResourceCache<CoverageStoreInfo, GridCoverageReader> {
         
-        protected boolean removeLRU(LinkEntry entry) {
-            CoverageHintReaderKey key = (CoverageHintReaderKey) entry.getKey();
-            dispose( key.info, (GridCoverageReader) entry.getValue() );
-            return super.removeLRU(entry);
+        public CoverageReaderCache() {
+            super("coverageReader", STORE_CACHE_SIZE_DEFAULT);
         }
         
-        void dispose( CoverageStoreInfo info, GridCoverageReader reader ) {
-            LOGGER.info( "Disposing grid coverage reader '" + info.getName() + "'");
-            fireDisposed(info, reader);
-            try {
-                reader.dispose();
-            }
-            catch( Exception e ) {
-                LOGGER.warning( "Error occured disposing coverage reader '" + info.getName() + "'");
-                LOGGER.log(Level.FINE, "", e );
-            }
+        @Override
+        protected void dispose(CoverageStoreInfo info, GridCoverageReader reader, boolean evicted) {
+            disposeReader(info, reader);
         }
+    }
+    
+    class CoverageHintReaderCache extends ResourceCache<CoverageHintReaderKey, GridCoverageReader> {
         
-        protected void destroyEntry(HashEntry entry) {
-            CoverageHintReaderKey key = (CoverageHintReaderKey) entry.getKey();
-            dispose( key.info, (GridCoverageReader) entry.getValue() );
-            super.destroyEntry(entry);
+        public CoverageHintReaderCache() {
+            super("coverageHintReader", STORE_CACHE_SIZE_DEFAULT);
         }
         
-        public void clear() {
-            for ( Iterator e = entrySet().iterator(); e.hasNext(); ) {
-                Map.Entry<CoverageHintReaderKey,GridCoverageReader> entry = 
-                    (Entry<CoverageHintReaderKey, GridCoverageReader>) e.next();
-                dispose( entry.getKey().info, entry.getValue() );
-            }
-            super.clear();
+        @Override
+        protected void dispose(CoverageHintReaderKey key, GridCoverageReader reader, boolean evicted) {
+            disposeReader(key.info, reader);
         }
-        
     }
     
     /**
@@ -1518,14 +1524,16 @@ public class ResourcePool {
         
     }
     
-    static class FeatureTypeAttributeCache extends LRUMap {
+    static class FeatureTypeAttributeCache extends ResourceCache<String, List<AttributeTypeInfo>> {
         FeatureTypeAttributeCache(int size) {
-            super(size);
+            super("featureTypeAttribute", size);
         }
     }
     
-    static class WMSCache extends LRUMap {
-        
+    static class WMSCache extends ResourceCache<String, WebMapServer> {
+        WMSCache() {
+            super("webMapServer", STORE_CACHE_SIZE_DEFAULT);
+        }
     }
     
     /**
@@ -5,19 +5,52 @@
 package org.geoserver.catalog;
 
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.GeoServerInitializer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
 
 /**
  * Initializes parameters of the {@link ResourcePool} class from configuration.
+ * <p>
+ * Besides the feature type cache size, which is part of the global configuration, the following
+ * system/context properties are recognized:
+ * <ul>
+ *   <li>{@link #STORE_CACHE_SIZE}: maximum number of data stores, coverage readers and web map
+ *   servers kept open</li>
+ *   <li>{@link #FEATURETYPE_CACHE_WEIGHT}: maximum number of attributes, summed over all the
+ *   cached feature types</li>
+ *   <li>{@link #CACHE_EXPIRATION}: seconds after which unused stores and feature types are 
+ *   disposed</li>
+ * </ul>
+ * </p>
  * 
  * @author Justin Deoliveira, OpenGeo
  *
  */
 public class ResourcePoolInitializer implements GeoServerInitializer {
+    
+    static final Logger LOGGER = Logging.getLogger("org.geoserver.catalog");
+    
+    /**
+     * Maximum number of data stores, coverage readers and web map servers kept open
+     */
+    public static final String STORE_CACHE_SIZE = "RESOURCE_POOL_STORE_CACHE_SIZE";
+    
+    /**
+     * Maximum total number of attributes of the cached feature types
+     */
+    public static final String FEATURETYPE_CACHE_WEIGHT = "RESOURCE_POOL_FEATURETYPE_CACHE_WEIGHT";
+    
+    /**
+     * Seconds after which stores and feature types that have not been used are disposed
+     */
+    public static final String CACHE_EXPIRATION = "RESOURCE_POOL_CACHE_EXPIRATION";
 
     GeoServer gs;
     
@@ -26,8 +59,22 @@ public class ResourcePoolInitializer implements GeoServerInitializer {
         
         final GeoServerInfo global = geoServer.getGlobal();
         final int cacheSize = global.getFeatureTypeCacheSize();
+        final ResourcePool pool = gs.getCatalog().getResourcePool();
         if (cacheSize > 0) {
-            gs.getCatalog().getResourcePool().setFeatureTypeCacheSize(cacheSize);
+            pool.setFeatureTypeCacheSize(cacheSize);
+        }
+        
+        Long storeCacheSize = getLongProperty(STORE_CACHE_SIZE);
+        if (storeCacheSize != null) {
+            pool.setStoreCacheSize(storeCacheSize.intValue());
+        }
+        Long featureTypeWeight = getLongProperty(FEATURETYPE_CACHE_WEIGHT);
+        if (featureTypeWeight != null) {
+            pool.setFeatureTypeCacheWeight(featureTypeWeight);
+        }
+        Long expiration = getLongProperty(CACHE_EXPIRATION);
+        if (expiration != null) {
+            pool.setCacheExpiration(expiration * 1000);
         }
         
         geoServer.addListener(new ConfigurationListenerAdapter() {
@@ -44,4 +91,17 @@ public class ResourcePoolInitializer implements GeoServerInitializer {
         });
     }
     
+    Long getLongProperty(String name) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid value for " + name + ": " + value + ", ignoring it");
+            return null;
+        }
+    }
+    
 }
@@ -0,0 +1,165 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.MapInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+
+/**
+ * Id and name indexes over a set of catalog objects, used by {@link DefaultCatalogFacade} to
+ * avoid linear scans on lookups.
+ * <p>
+ * The indexes are backed by concurrent maps and copy on write lists, lookups do not lock
+ * while updates are serialized.
+ * Objects with the same name (e.g. feature types in different namespaces) share the same name
+ * entry, callers are expected to further filter the candidates returned by
+ * {@link #getByName(String)}. Since names can change, the facade has to call
+ * {@link #rename(CatalogInfo, String)} whenever a saved object changes its name.
+ * </p>
+ *
+ * @param <T> The type of catalog object indexed
+ */
+class CatalogInfoLookup<T extends CatalogInfo> {
+
+    ConcurrentHashMap<String, T> idMap = new ConcurrentHashMap<String, T>();
+
+    ConcurrentHashMap<String, List<T>> nameMap = new ConcurrentHashMap<String, List<T>>();
+
+    /**
+     * Adds an object to the indexes
+     */
+    public synchronized void add(T info) {
+        if (info.getId() != null) {
+            idMap.put(info.getId(), info);
+        }
+        addName(info, nameOf(info));
+    }
+
+    /**
+     * Removes an object from the indexes
+     */
+    public synchronized void remove(T info) {
+        if (info.getId() != null) {
+            idMap.remove(info.getId());
+        }
+        removeName(info, nameOf(info));
+    }
+
+    /**
+     * Updates the name index after the object changed name
+     */
+    public synchronized void rename(T info, String oldName) {
+        String newName = nameOf(info);
+        if (oldName == null ? newName == null : oldName.equals(newName)) {
+            return;
+        }
+        removeName(info, oldName);
+        addName(info, newName);
+    }
+
+    /**
+     * Returns the object with the specified id, or null
+     */
+    public T getById(String id) {
+        return id == null ? null : idMap.get(id);
+    }
+
+    /**
+     * Returns the objects with the specified name, never null. The list must not be modified.
+     */
+    public List<T> getByName(String name) {
+        List<T> result = name == null ? null : nameMap.get(name);
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds the indexes from scratch
+     */
+    public synchronized void reindex(Iterable<? extends T> infos) {
+        clear();
+        for (T info : infos) {
+            add(info);
+        }
+    }
+
+    /**
+     * Clears the indexes
+     */
+    public synchronized void clear() {
+        idMap.clear();
+        nameMap.clear();
+    }
+
+    void addName(T info, String name) {
+        if (name == null) {
+            return;
+        }
+        List<T> list = nameMap.get(name);
+        if (list == null) {
+            List<T> created = new CopyOnWriteArrayList<T>();
+            list = nameMap.putIfAbsent(name, created);
+            if (list == null) {
+                list = created;
+            }
+        }
+        list.add(info);
+    }
+
+    void removeName(T info, String name) {
+        if (name == null) {
+            return;
+        }
+        List<T> list = nameMap.get(name);
+        if (list != null) {
+            // remove by identity, catalog objects equality is based on their contents
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == info) {
+                    list.remove(i);
+                    break;
+                }
+            }
+            if (list.isEmpty()) {
+                nameMap.remove(name, list);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the catalog object, or null if not available
+     */
+    static String nameOf(CatalogInfo info) {
+        try {
+            if (info instanceof StoreInfo) {
+                return ((StoreInfo) info).getName();
+            } else if (info instanceof ResourceInfo) {
+                return ((ResourceInfo) info).getName();
+            } else if (info instanceof LayerInfo) {
+                return ((LayerInfo) info).getName();
+            } else if (info instanceof LayerGroupInfo) {
+                return ((LayerGroupInfo) info).getName();
+            } else if (info instanceof StyleInfo) {
+                return ((StyleInfo) info).getName();
+            } else if (info instanceof MapInfo) {
+                return ((MapInfo) info).getName();
+            }
+        } catch (NullPointerException e) {
+            // layers without a resource cannot compute their name
+        }
+        return null;
+    }
+}
@@ -105,17 +105,27 @@ public class DefaultCatalogFacade implements CatalogFacade {
     /**
      * maps
      */
-    protected List<MapInfo> maps = new ArrayList<MapInfo>();
+    protected List<MapInfo> maps = new CopyOnWriteArrayList<MapInfo>();
 
     /**
      * layer groups
      */
-    protected List<LayerGroupInfo> layerGroups = new ArrayList<LayerGroupInfo>();
+    protected List<LayerGroupInfo> layerGroups = new CopyOnWriteArrayList<LayerGroupInfo>();
     
     /**
      * styles
      */
-    protected List<StyleInfo> styles = new ArrayList();
+    protected List<StyleInfo> styles = new CopyOnWriteArrayList<StyleInfo>();
+    
+    /**
+     * id and name indexes, rebuilt on {@link #resolve()}
+     */
+    protected transient CatalogInfoLookup<StoreInfo> storeLookup = new CatalogInfoLookup<StoreInfo>();
+    protected transient CatalogInfoLookup<ResourceInfo> resourceLookup = new CatalogInfoLookup<ResourceInfo>();
+    protected transient CatalogInfoLookup<LayerInfo> layerLookup = new CatalogInfoLookup<LayerInfo>();
+    protected transient CatalogInfoLookup<MapInfo> mapLookup = new CatalogInfoLookup<MapInfo>();
+    protected transient CatalogInfoLookup<LayerGroupInfo> layerGroupLookup = new CatalogInfoLookup<LayerGroupInfo>();
+    protected transient CatalogInfoLookup<StyleInfo> styleLookup = new CatalogInfoLookup<StyleInfo>();
 
     /**
      * the catalog
@@ -142,6 +152,7 @@ public class DefaultCatalogFacade implements CatalogFacade {
         synchronized(stores) {
             stores.put(store.getClass(), store);
         }
+        storeLookup.add(store);
         return ModificationProxy.create(store, StoreInfo.class);
     }
     
@@ -151,10 +162,14 @@ public class DefaultCatalogFacade implements CatalogFacade {
         synchronized(stores) {
             stores.remove(store.getClass(),store);
         }
+        storeLookup.remove(store);
     }
     
     public void save(StoreInfo store) {
+        StoreInfo real = unwrap(store);
+        String oldName = real.getName();
         saved(store);
+        storeLookup.rename(real, oldName);
     }
     
     public <T extends StoreInfo> T detach(T store) {
@@ -162,12 +177,9 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
 
     public <T extends StoreInfo> T getStore(String id, Class<T> clazz) {
-        List l = lookup(clazz, stores);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            StoreInfo store = (StoreInfo) i.next();
-            if (id.equals(store.getId())) {
-                return ModificationProxy.create( (T) store, clazz );
-            }
+        StoreInfo store = storeLookup.getById(id);
+        if (store != null && clazz.isInstance(store)) {
+            return ModificationProxy.create( (T) store, clazz );
         }
 
         return null;
@@ -176,26 +188,27 @@ public class DefaultCatalogFacade implements CatalogFacade {
     public <T extends StoreInfo> T getStoreByName(WorkspaceInfo workspace,
             String name, Class<T> clazz) {
         
-        List l = lookup(clazz, stores);
+        List<StoreInfo> l = storeLookup.getByName(name);
         if (workspace == ANY_WORKSPACE) {
             //do an exhaustive search through all workspaces
-            ArrayList matches = new ArrayList();
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                T store = (T) i.next();
-                if ( name.equals( store.getName() ) ) {
-                    matches.add( store );
+            StoreInfo match = null;
+            for (StoreInfo store : l) {
+                if ( clazz.isInstance( store ) ) {
+                    if ( match != null ) {
+                        // ambiguous
+                        return null;
+                    }
+                    match = store;
                 }
             }
             
-            if ( matches.size() == 1 ) {
-                return ModificationProxy.create( (T) matches.get( 0 ), clazz);
+            if ( match != null ) {
+                return ModificationProxy.create( (T) match, clazz);
             }
         }
         else {
-            
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                StoreInfo store = (StoreInfo) i.next();
-                if (name.equals(store.getName()) && store.getWorkspace().equals( workspace )) {
+            for (StoreInfo store : l) {
+                if (clazz.isInstance(store) && store.getWorkspace().equals( workspace )) {
                     return ModificationProxy.create( (T) store, clazz );
                 }
             }
@@ -262,6 +275,7 @@ public class DefaultCatalogFacade implements CatalogFacade {
         synchronized(resources) {
             resources.put(resource.getClass(), resource);
         }
+        resourceLookup.add(resource);
         return ModificationProxy.create(resource, ResourceInfo.class);
     }
     
@@ -270,11 +284,24 @@ public class DefaultCatalogFacade implements CatalogFacade {
         synchronized(resources) {
             resources.remove(resource.getClass(), resource);
         }
+        resourceLookup.remove(resource);
     }
     
    
     public void save(ResourceInfo resource) {
+        ResourceInfo real = unwrap(resource);
+        String oldName = real.getName();
         saved(resource);
+        resourceLookup.rename(real, oldName);
+        
+        // layers take their name from the resource
+        if (oldName == null || !oldName.equals(real.getName())) {
+            for (LayerInfo layer : layers) {
+                if (layer.getResource() == real) {
+                    layerLookup.rename(layer, oldName);
+                }
+            }
+        }
     }
     
     public <T extends ResourceInfo> T detach(T resource) {
@@ -282,12 +309,9 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
     
     public <T extends ResourceInfo> T getResource(String id, Class<T> clazz) {
-        List l = lookup(clazz, resources);
-        for (Iterator i = l.iterator(); i.hasNext();) {
-            ResourceInfo resource = (ResourceInfo) i.next();
-            if (id.equals(resource.getId())) {
-                return ModificationProxy.create((T) resource, clazz );
-            }
+        ResourceInfo resource = resourceLookup.getById(id);
+        if (resource != null && clazz.isInstance(resource)) {
+            return ModificationProxy.create((T) resource, clazz );
         }
 
         return null;
@@ -295,26 +319,28 @@ public class DefaultCatalogFacade implements CatalogFacade {
     
     public <T extends ResourceInfo> T getResourceByName(NamespaceInfo namespace, String name, Class<T> clazz) {
         
-        List l = lookup(clazz, resources);
+        List<ResourceInfo> l = resourceLookup.getByName(name);
         
         if (namespace == ANY_NAMESPACE) {
             //do an exhaustive lookup
-            List matches = new ArrayList();
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                ResourceInfo resource = (ResourceInfo) i.next();
-                if (name.equals(resource.getName())) {
-                    matches.add( resource );
+            ResourceInfo match = null;
+            for (ResourceInfo resource : l) {
+                if (clazz.isInstance(resource)) {
+                    if (match != null) {
+                        // ambiguous
+                        return null;
+                    }
+                    match = resource;
                 }
             }
             
-            if ( matches.size() == 1 ) {
-                return ModificationProxy.create( (T) matches.get( 0 ), clazz );
+            if ( match != null ) {
+                return ModificationProxy.create( (T) match, clazz );
             }
         }
         else {
-            for (Iterator i = l.iterator(); i.hasNext();) {
-                ResourceInfo resource = (ResourceInfo) i.next();
-                if (name.equals(resource.getName())) {
+            for (ResourceInfo resource : l) {
+                if (clazz.isInstance(resource)) {
                     NamespaceInfo namespace1 = resource.getNamespace();
                     if (namespace1 != null && namespace1.equals( namespace )) {
                             return ModificationProxy.create( (T) resource, clazz );
@@ -357,10 +383,8 @@ public class DefaultCatalogFacade implements CatalogFacade {
     
     public <T extends ResourceInfo> T getResourceByStore(StoreInfo store,
             String name, Class<T> clazz) {
-        List all = lookup(clazz,resources);
-        for (Iterator r = all.iterator(); r.hasNext(); ) {
-            ResourceInfo resource = (ResourceInfo) r.next();
-            if ( name.equals( resource.getName() ) && store.equals( resource.getStore() ) ) {
+        for (ResourceInfo resource : resourceLookup.getByName(name)) {
+            if ( clazz.isInstance( resource ) && store.equals( resource.getStore() ) ) {
                 return ModificationProxy.create((T)resource, clazz);
             }
         }
@@ -389,16 +413,29 @@ public class DefaultCatalogFacade implements CatalogFacade {
     public LayerInfo add(LayerInfo layer) {
         resolve(layer);
         layers.add(layer);
+        layerLookup.add(layer);
         
         return ModificationProxy.create(layer, LayerInfo.class);
     }
     
     public void remove(LayerInfo layer) {
-        layers.remove(unwrap(layer));
+        layer = unwrap(layer);
+        layers.remove(layer);
+        layerLookup.remove(layer);
     }
     
     public void save(LayerInfo layer) {
+        LayerInfo real = unwrap(layer);
+        String oldName = CatalogInfoLookup.nameOf(real);
+        ResourceInfo resource = unwrap(real.getResource());
+        String oldResourceName = resource != null ? resource.getName() : null;
         saved(layer);
+        layerLookup.rename(real, oldName);
+        
+        // renaming a layer renames its resource
+        if (resource != null) {
+            resourceLookup.rename(resource, oldResourceName);
+        }
     }
     
     public LayerInfo detach(LayerInfo layer) {
@@ -406,20 +443,14 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
     
     public LayerInfo getLayer(String id) {
-        for (LayerInfo layer : layers) {
-            if (id.equals(layer.getId())) {
-                return ModificationProxy.create( layer, LayerInfo.class );
-            }
-        }
-
-        return null;
+        LayerInfo layer = layerLookup.getById(id);
+        return layer != null ? ModificationProxy.create( layer, LayerInfo.class ) : null;
     }
     
     public LayerInfo getLayerByName(String name) {
-        for (LayerInfo layer : layers) {
-            if ( name.equals( layer.getName() ) ) {
-                return ModificationProxy.create( layer, LayerInfo.class );
-            }
+        List<LayerInfo> matches = layerLookup.getByName(name);
+        if (!matches.isEmpty()) {
+            return ModificationProxy.create( matches.get(0), LayerInfo.class );
         }
       
         return null;
@@ -427,11 +458,20 @@ public class DefaultCatalogFacade implements CatalogFacade {
     
     public List<LayerInfo> getLayers(ResourceInfo resource) {
         List<LayerInfo> matches = new ArrayList<LayerInfo>();
-        for (LayerInfo layer : layers) {
+        // layers are named after their resource, look there first
+        for (LayerInfo layer : layerLookup.getByName(resource.getName())) {
             if ( resource.equals( layer.getResource() ) ) {
                 matches.add( layer );
             }
         }
+        if (matches.isEmpty()) {
+            // the resource might have been renamed but not saved yet, do a full scan
+            for (LayerInfo layer : layers) {
+                if ( resource.equals( layer.getResource() ) ) {
+                    matches.add( layer );
+                }
+            }
+        }
 
         return ModificationProxy.createList(matches,LayerInfo.class);
     }
@@ -456,21 +496,23 @@ public class DefaultCatalogFacade implements CatalogFacade {
     //
     public MapInfo add(MapInfo map) {
         resolve(map);
-        synchronized(maps) {
-            maps.add(map);
-        }
+        maps.add(map);
+        mapLookup.add(map);
         
         return ModificationProxy.create(map, MapInfo.class);
     }
 
     public void remove(MapInfo map) {
-        synchronized(maps) {
-            maps.remove(unwrap(map));
-        }
+        map = unwrap(map);
+        maps.remove(map);
+        mapLookup.remove(map);
     }
 
     public void save(MapInfo map) {
+        MapInfo real = unwrap(map);
+        String oldName = real.getName();
         saved( map );
+        mapLookup.rename(real, oldName);
     }
     
     public MapInfo detach(MapInfo map) {
@@ -478,23 +520,13 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
     
     public MapInfo getMap(String id) {
-        for (MapInfo map : maps) {
-            if (id.equals(map.getId())) {
-                return ModificationProxy.create(map,MapInfo.class);
-            }
-        }
-
-        return null;
+        MapInfo map = mapLookup.getById(id);
+        return map != null ? ModificationProxy.create(map,MapInfo.class) : null;
     }
 
     public MapInfo getMapByName(String name) {
-        for (MapInfo map : maps) {
-            if (name.equals(map.getName())) {
-                return ModificationProxy.create(map,MapInfo.class);
-            }
-        }
-
-        return null;
+        List<MapInfo> matches = mapLookup.getByName(name);
+        return !matches.isEmpty() ? ModificationProxy.create(matches.get(0),MapInfo.class) : null;
     }
     
     public List<MapInfo> getMaps() {
@@ -506,9 +538,8 @@ public class DefaultCatalogFacade implements CatalogFacade {
     //
     public LayerGroupInfo add (LayerGroupInfo layerGroup) {
         resolve(layerGroup);
-        synchronized(layerGroups) {
-            layerGroups.add( layerGroup );
-        }
+        layerGroups.add( layerGroup );
+        layerGroupLookup.add( layerGroup );
         return ModificationProxy.create(layerGroup, LayerGroupInfo.class);
     }
     
@@ -516,16 +547,19 @@ public class DefaultCatalogFacade implements CatalogFacade {
      * @see org.geoserver.catalog.impl.CatalogDAO#remove(org.geoserver.catalog.LayerGroupInfo)
      */
     public void remove(LayerGroupInfo layerGroup) {
-        synchronized(layerGroups) {
-            layerGroups.remove( unwrap(layerGroup) );
-        }
+        layerGroup = unwrap(layerGroup);
+        layerGroups.remove( layerGroup );
+        layerGroupLookup.remove( layerGroup );
     }
     
     /* (non-Javadoc)
      * @see org.geoserver.catalog.impl.CatalogDAO#save(org.geoserver.catalog.LayerGroupInfo)
      */
     public void save(LayerGroupInfo layerGroup) {
+        LayerGroupInfo real = unwrap(layerGroup);
+        String oldName = real.getName();
         saved(layerGroup);
+        layerGroupLookup.rename(real, oldName);
     }
     
     public LayerGroupInfo detach(LayerGroupInfo layerGroup) {
@@ -537,23 +571,14 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
     
     public LayerGroupInfo getLayerGroup(String id) {
-        for (LayerGroupInfo layerGroup : layerGroups ) {
-            if ( id.equals( layerGroup.getId() ) ) {
-                return ModificationProxy.create(layerGroup,LayerGroupInfo.class);
-            }
-        }
-        
-        return null;
+        LayerGroupInfo layerGroup = layerGroupLookup.getById(id);
+        return layerGroup != null ? ModificationProxy.create(layerGroup,LayerGroupInfo.class) : null;
     }
     
     public LayerGroupInfo getLayerGroupByName(String name) {
-        for (LayerGroupInfo layerGroup : layerGroups ) {
-            if ( name.equals( layerGroup.getName() ) ) {
-                return ModificationProxy.create(layerGroup,LayerGroupInfo.class);
-            }
-        }
-        
-        return null;
+        List<LayerGroupInfo> matches = layerGroupLookup.getByName(name);
+        return !matches.isEmpty() ? 
+                ModificationProxy.create(matches.get(0),LayerGroupInfo.class) : null;
     }
     
     //
@@ -750,20 +775,22 @@ public class DefaultCatalogFacade implements CatalogFacade {
     //
     public StyleInfo add(StyleInfo style) {
         resolve(style);
-        synchronized(styles) {
-            styles.add(style);
-        }
+        styles.add(style);
+        styleLookup.add(style);
         return ModificationProxy.create(style, StyleInfo.class);
     }
 
     public void remove(StyleInfo style) {
-        synchronized(styles) {
-            styles.remove(unwrap(style));
-        }
+        style = unwrap(style);
+        styles.remove(style);
+        styleLookup.remove(style);
     }
 
     public void save(StyleInfo style) {
+        StyleInfo real = unwrap(style);
+        String oldName = real.getName();
         saved( style );
+        styleLookup.rename(real, oldName);
     }
 
     public StyleInfo detach(StyleInfo style) {
@@ -771,25 +798,13 @@ public class DefaultCatalogFacade implements CatalogFacade {
     }
 
     public StyleInfo getStyle(String id) {
-        for (Iterator s = styles.iterator(); s.hasNext();) {
-            StyleInfo style = (StyleInfo) s.next();
-            if (id.equals(style.getId())) {
-                return ModificationProxy.create(style,StyleInfo.class);
-            }
-        }
-
-        return null;
+        StyleInfo style = styleLookup.getById(id);
+        return style != null ? ModificationProxy.create(style,StyleInfo.class) : null;
     }
 
     public StyleInfo getStyleByName(String name) {
-        for (Iterator s = styles.iterator(); s.hasNext();) {
-            StyleInfo style = (StyleInfo) s.next();
-            if (name.equals(style.getName())) {
-                return ModificationProxy.create(style,StyleInfo.class);
-            }
-        }
-
-        return null;
+        List<StyleInfo> matches = styleLookup.getByName(name);
+        return !matches.isEmpty() ? ModificationProxy.create(matches.get(0),StyleInfo.class) : null;
     }
 
     public List getStyles() {
@@ -831,10 +846,12 @@ public class DefaultCatalogFacade implements CatalogFacade {
     
     List lookup(Class clazz, MultiHashMap map) {
         ArrayList result = new ArrayList();
-        for (Iterator k = map.keySet().iterator(); k.hasNext();) {
-            Class key = (Class) k.next();
-            if (clazz.isAssignableFrom(key)) {
-                result.addAll(map.getCollection(key));
+        synchronized (map) {
+            for (Iterator k = map.keySet().iterator(); k.hasNext();) {
+                Class key = (Class) k.next();
+                if (clazz.isAssignableFrom(key)) {
+                    result.addAll(map.getCollection(key));
+                }
             }
         }
 
@@ -851,6 +868,14 @@ public class DefaultCatalogFacade implements CatalogFacade {
         if ( layerGroups != null ) layerGroups.clear();
         if ( maps != null ) maps.clear();
         if ( styles != null ) styles.clear();
+        if ( storeLookup != null ) {
+            storeLookup.clear();
+            resourceLookup.clear();
+            layerLookup.clear();
+            mapLookup.clear();
+            layerGroupLookup.clear();
+            styleLookup.clear();
+        }
     }
     
     public void resolve() {
@@ -883,7 +908,7 @@ public class DefaultCatalogFacade implements CatalogFacade {
         
         //styles
         if ( styles == null ) {
-            styles = new ArrayList<StyleInfo>();
+            styles = new CopyOnWriteArrayList<StyleInfo>();
         }
         for ( StyleInfo s : styles ) {
             resolve(s);
@@ -907,7 +932,7 @@ public class DefaultCatalogFacade implements CatalogFacade {
         
         //layer groups
         if ( layerGroups == null ) {
-            layerGroups = new ArrayList<LayerGroupInfo>();    
+            layerGroups = new CopyOnWriteArrayList<LayerGroupInfo>();    
         }
         for ( LayerGroupInfo lg : layerGroups ) {
             resolve(lg);
@@ -915,11 +940,39 @@ public class DefaultCatalogFacade implements CatalogFacade {
         
         //maps
         if ( maps == null ) {
-            maps = new ArrayList<MapInfo>();
+            maps = new CopyOnWriteArrayList<MapInfo>();
         }
         for ( MapInfo m : maps ) {
             resolve(m);
         }
+        
+        reindex();
+    }
+    
+    /**
+     * Rebuilds the id and name indexes from the object collections
+     */
+    protected void reindex() {
+        // the indexes are transient, they are not there after de-serialization
+        if ( storeLookup == null ) {
+            storeLookup = new CatalogInfoLookup<StoreInfo>();
+            resourceLookup = new CatalogInfoLookup<ResourceInfo>();
+            layerLookup = new CatalogInfoLookup<LayerInfo>();
+            mapLookup = new CatalogInfoLookup<MapInfo>();
+            layerGroupLookup = new CatalogInfoLookup<LayerGroupInfo>();
+            styleLookup = new CatalogInfoLookup<StyleInfo>();
+        }
+        
+        synchronized (stores) {
+            storeLookup.reindex((Collection<StoreInfo>) stores.values());
+        }
+        synchronized (resources) {
+            resourceLookup.reindex((Collection<ResourceInfo>) resources.values());
+        }
+        layerLookup.reindex(layers);
+        mapLookup.reindex(maps);
+        layerGroupLookup.reindex(layerGroups);
+        styleLookup.reindex(styles);
     }
     
     protected void resolve(WorkspaceInfo workspace) {
@@ -1038,6 +1091,12 @@ public class DefaultCatalogFacade implements CatalogFacade {
             other.maps = maps;
             other.layerGroups = layerGroups;
             other.styles = styles;
+            other.storeLookup = storeLookup;
+            other.resourceLookup = resourceLookup;
+            other.layerLookup = layerLookup;
+            other.mapLookup = mapLookup;
+            other.layerGroupLookup = layerGroupLookup;
+            other.styleLookup = styleLookup;
         }
         else {
             //do a manual import
@@ -5,6 +5,7 @@
 package org.geoserver.catalog.impl;
 
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -16,6 +17,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.Info;
@@ -436,12 +438,38 @@ public class ModificationProxy implements InvocationHandler, Serializable {
     public static <T> T create( T proxyObject, Class<T> clazz ) {
         InvocationHandler h = new ModificationProxy( proxyObject );
         
+        T proxy;
+        try {
+            proxy = (T) proxyConstructor( proxyObject.getClass(), clazz ).newInstance(
+                new Object[] { h } );
+        }
+        catch( Exception e ) {
+            throw new RuntimeException( e );
+        }
+        
+        return proxy;
+    }
+    
+    /**
+     * Proxy constructors, keyed by the proxied class and the requested interface. Looking up
+     * the proxy class is synchronized in the jdk, and this is done on every catalog access.
+     */
+    static Map<List<Class>, Constructor> PROXY_CONSTRUCTORS = 
+        new ConcurrentHashMap<List<Class>, Constructor>();
+    
+    static Constructor proxyConstructor( Class objectClass, Class clazz ) throws Exception {
+        List<Class> key = Arrays.asList( new Class[] { objectClass, clazz } );
+        Constructor constructor = PROXY_CONSTRUCTORS.get( key );
+        if ( constructor != null ) {
+            return constructor;
+        }
+        
         // proxy all interfaces implemented by the source object
-        List<Class> proxyInterfaces = (List) Arrays.asList( proxyObject.getClass().getInterfaces() );
+        List<Class> proxyInterfaces = (List) Arrays.asList( objectClass.getInterfaces() );
         
         // ensure that the specified class is included
         boolean add = true;
-        for ( Class interfce : proxyObject.getClass().getInterfaces() ) {
+        for ( Class interfce : objectClass.getInterfaces() ) {
             if ( clazz.isAssignableFrom( interfce) ) {
                 add = false;
                 break;
@@ -455,17 +483,10 @@ public class ModificationProxy implements InvocationHandler, Serializable {
         
         Class proxyClass = Proxy.getProxyClass( clazz.getClassLoader(), 
             (Class[]) proxyInterfaces.toArray(new Class[proxyInterfaces.size()]) );
+        constructor = proxyClass.getConstructor( new Class[] { InvocationHandler.class } );
+        PROXY_CONSTRUCTORS.put( key, constructor );
         
-        T proxy;
-        try {
-            proxy = (T) proxyClass.getConstructor(
-                new Class[] { InvocationHandler.class }).newInstance(new Object[] { h } );
-        }
-        catch( Exception e ) {
-            throw new RuntimeException( e );
-        }
-        
-        return proxy;
+        return constructor;
     }
     
     /**
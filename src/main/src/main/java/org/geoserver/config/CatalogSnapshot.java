@@ -0,0 +1,399 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.ModificationProxy;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.util.logging.Logging;
+
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+
+/**
+ * A binary snapshot of the catalog, used to skip parsing the catalog xml files on startup.
+ * <p>
+ * The snapshot is enabled by setting the {@value #ENABLED_PROPERTY} system/context/environment
+ * variable to true. It is written in the data directory after the catalog has been loaded from
+ * the xml files, and then again after the catalog gets modified. The catalog objects are encoded
+ * with the same {@link XStreamPersister} mappings used for the xml files, but in the XStream
+ * binary format, and all in the same file.
+ * </p>
+ * <p>
+ * The snapshot records a checksum of the names, sizes and modification times of the catalog xml
+ * files, and is used only if the files have not changed since it was written. Otherwise, or if
+ * it cannot be decoded, the catalog is loaded from the xml files as usual.
+ * </p>
+ */
+class CatalogSnapshot {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver");
+
+    /**
+     * Property used to enable the snapshot
+     */
+    static final String ENABLED_PROPERTY = "CATALOG_SNAPSHOT";
+
+    static final String FILE_NAME = "catalog.snapshot";
+
+    static final int MAGIC = 0x47534353;
+
+    /**
+     * Bump when the snapshot contents change
+     */
+    static final int VERSION = 1;
+
+    /**
+     * How long to wait after a catalog change before writing the snapshot, in milliseconds
+     */
+    static final long WRITE_DELAY = 5000;
+
+    static ScheduledExecutorService executor;
+
+    final GeoServerResourceLoader resourceLoader;
+
+    final XStreamPersister xp;
+
+    /**
+     * @param resourceLoader The data directory loader
+     * @param xp The persister used to encode the catalog objects, must not have a catalog set
+     */
+    CatalogSnapshot(GeoServerResourceLoader resourceLoader, XStreamPersister xp) {
+        this.resourceLoader = resourceLoader;
+        this.xp = xp;
+    }
+
+    static boolean isEnabled() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty(ENABLED_PROPERTY));
+    }
+
+    File getFile() {
+        return new File(resourceLoader.getBaseDirectory(), FILE_NAME);
+    }
+
+    /**
+     * Computes the checksum of the catalog xml files
+     */
+    long checksum() throws IOException {
+        List<String> paths = new ArrayList<String>();
+        File base = resourceLoader.getBaseDirectory();
+        collect(resourceLoader.find("styles"), 0, paths);
+        collect(resourceLoader.find("workspaces"), 3, paths);
+        collect(resourceLoader.find("layergroups"), 0, paths);
+        Collections.sort(paths);
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        for (String path : paths) {
+            File f = new File(base, path);
+            crc.update(path.getBytes("UTF-8"));
+            bb.clear();
+            bb.putLong(f.lastModified());
+            bb.putLong(f.length());
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    void collect(File dir, int depth, List<String> paths) {
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        String base = resourceLoader.getBaseDirectory().getAbsolutePath();
+        for (File f : files) {
+            if (f.isDirectory()) {
+                if (depth > 0) {
+                    collect(f, depth - 1, paths);
+                }
+            } else if (f.getName().endsWith(".xml")) {
+                paths.add(f.getAbsolutePath().substring(base.length()));
+            }
+        }
+    }
+
+    /**
+     * Reads the catalog from the snapshot, returning null if the snapshot does not exist, is out
+     * of date, or cannot be read.
+     * <p>
+     * The data stores disabled because of connection errors when the snapshot was written are
+     * enabled again, the caller is supposed to check them again.
+     * </p>
+     */
+    Catalog read() {
+        File f = getFile();
+        if (!f.exists()) {
+            return null;
+        }
+
+        try {
+            long start = System.currentTimeMillis();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOGGER.info("Ignoring catalog snapshot " + f + " written by another version");
+                    return null;
+                }
+                if (in.readLong() != checksum()) {
+                    LOGGER.info("Catalog snapshot " + f + " is out of date, loading the catalog "
+                            + "files instead");
+                    return null;
+                }
+
+                String defaultWorkspace = in.readBoolean() ? in.readUTF() : null;
+                String defaultNamespace = in.readBoolean() ? in.readUTF() : null;
+                Set<String> disabled = new HashSet<String>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    disabled.add(in.readUTF());
+                }
+                List objects = (List) xp.getXStream().unmarshal(new BinaryStreamReader(in));
+
+                Catalog catalog = new CatalogImpl();
+                catalog.setResourceLoader(resourceLoader);
+                for (Object o : objects) {
+                    ParallelCatalogReader.resolve(catalog, o);
+                    if (o instanceof StyleInfo) {
+                        catalog.add((StyleInfo) o);
+                    } else if (o instanceof WorkspaceInfo) {
+                        catalog.add((WorkspaceInfo) o);
+                    } else if (o instanceof NamespaceInfo) {
+                        catalog.add((NamespaceInfo) o);
+                    } else if (o instanceof StoreInfo) {
+                        StoreInfo store = (StoreInfo) o;
+                        if (disabled.contains(store.getId())) {
+                            store.setEnabled(true);
+                        }
+                        catalog.add(store);
+                    } else if (o instanceof ResourceInfo) {
+                        catalog.add((ResourceInfo) o);
+                    } else if (o instanceof LayerInfo) {
+                        catalog.add((LayerInfo) o);
+                    } else if (o instanceof LayerGroupInfo) {
+                        catalog.add((LayerGroupInfo) o);
+                    }
+                }
+                if (defaultWorkspace != null) {
+                    catalog.setDefaultWorkspace(catalog.getWorkspaceByName(defaultWorkspace));
+                }
+                if (defaultNamespace != null) {
+                    catalog.setDefaultNamespace(catalog.getNamespaceByPrefix(defaultNamespace));
+                }
+
+                LOGGER.info("Loaded " + objects.size() + " catalog objects from snapshot " + f
+                        + " in " + (System.currentTimeMillis() - start) + "ms");
+                return catalog;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to read catalog snapshot " + f
+                    + ", loading the catalog files instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes out the snapshot of the specified catalog, logging any error
+     */
+    void write(Catalog catalog) {
+        File f = getFile();
+        File tmp = null;
+        try {
+            long start = System.currentTimeMillis();
+            // in write-behind mode the files might lag behind the objects
+            GeoServerPersister.flush(catalog);
+            long checksum = checksum();
+
+            // the objects, in an order that allows adding them back to a catalog
+            List<CatalogInfo> objects = new ArrayList<CatalogInfo>();
+            List<String> disabled = new ArrayList<String>();
+            objects.addAll(catalog.getStyles());
+            objects.addAll(catalog.getWorkspaces());
+            objects.addAll(catalog.getNamespaces());
+            for (StoreInfo store : catalog.getStores(StoreInfo.class)) {
+                objects.add(store);
+                if (store instanceof DataStoreInfo && !store.isEnabled()
+                        && store.getError() != null) {
+                    // disabled by the loader, might be back online on restart
+                    disabled.add(store.getId());
+                }
+            }
+            objects.addAll(catalog.getResources(ResourceInfo.class));
+            objects.addAll(catalog.getLayers());
+            objects.addAll(catalog.getLayerGroups());
+            for (int i = 0; i < objects.size(); i++) {
+                objects.set(i, ModificationProxy.unwrap(objects.get(i)));
+            }
+
+            tmp = File.createTempFile(FILE_NAME, ".tmp", f.getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(checksum);
+                WorkspaceInfo ws = catalog.getDefaultWorkspace();
+                out.writeBoolean(ws != null);
+                if (ws != null) {
+                    out.writeUTF(ws.getName());
+                }
+                NamespaceInfo ns = catalog.getDefaultNamespace();
+                out.writeBoolean(ns != null);
+                if (ns != null) {
+                    out.writeUTF(ns.getPrefix());
+                }
+                out.writeInt(disabled.size());
+                for (String id : disabled) {
+                    out.writeUTF(id);
+                }
+                BinaryStreamWriter writer = new BinaryStreamWriter(out);
+                xp.getXStream().marshal(objects, writer);
+                writer.flush();
+            } finally {
+                out.close();
+            }
+
+            // the files might have changed while writing, in that case the snapshot is
+            // already out of date
+            GeoServerPersister.flush(catalog);
+            if (checksum != checksum()) {
+                tmp.delete();
+                return;
+            }
+            if (f.exists() && !f.delete() || !tmp.renameTo(f)) {
+                throw new IOException("Unable to rename " + tmp + " to " + f);
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Wrote catalog snapshot " + f + " with " + objects.size()
+                        + " objects in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to write catalog snapshot " + f, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a listener that writes the snapshot of the catalog again after it gets modified.
+     * The snapshot is written in the background a few seconds after the change, changes
+     * happening in the meantime are written at once. Must be registered after the listener
+     * persisting the catalog files.
+     */
+    CatalogListener listener(Catalog catalog) {
+        return new SnapshotWriter(catalog);
+    }
+
+    class SnapshotWriter implements CatalogListener, Runnable {
+
+        final Catalog catalog;
+
+        boolean scheduled;
+
+        SnapshotWriter(Catalog catalog) {
+            this.catalog = catalog;
+        }
+
+        synchronized void changed() {
+            if (!scheduled) {
+                scheduled = true;
+                getExecutor().schedule(this, WRITE_DELAY, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public void run() {
+            synchronized (this) {
+                scheduled = false;
+            }
+            write(catalog);
+        }
+
+        public void handleAddEvent(CatalogAddEvent event) {
+            changed();
+        }
+
+        public void handleRemoveEvent(CatalogRemoveEvent event) {
+            changed();
+        }
+
+        public void handleModifyEvent(CatalogModifyEvent event) {
+            // wait for the change to be applied
+        }
+
+        public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+            changed();
+        }
+
+        public void reloaded() {
+            changed();
+        }
+    }
+
+    static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Catalog snapshot writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the background writer thread, a snapshot write already scheduled still takes place.
+     * The thread is started again on the next catalog change.
+     */
+    static synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
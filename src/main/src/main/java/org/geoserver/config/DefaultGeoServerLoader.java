@@ -31,6 +31,7 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
     
     ConfigurationListener listener;
     GeoServerPersister persister; 
+    GeoServerPersister catalogPersister;
 
     public DefaultGeoServerLoader(GeoServerResourceLoader resourceLoader) {
         super(resourceLoader);
@@ -43,7 +44,15 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
         
         if ( !legacy ) {
             //add the listener which will persist changes
-            catalog.addListener( new GeoServerPersister( resourceLoader, xp ) );
+            catalogPersister = new GeoServerPersister( resourceLoader, xp );
+            catalog.addListener( catalogPersister );
+            
+            if ( CatalogSnapshot.isEnabled() ) {
+                //keep the snapshot in synch with the persisted changes
+                CatalogSnapshot snapshot = 
+                    new CatalogSnapshot( resourceLoader, xpf.createXMLPersister() );
+                catalog.addListener( snapshot.listener( catalog ) );
+            }
         }
     }
     
@@ -94,6 +103,24 @@ public class DefaultGeoServerLoader extends GeoServerLoader {
         super.initializeStyles(catalog, xp);
         
         catalog.removeListener(p);
+        p.flush();
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        //write down the changes still pending
+        for ( GeoServerPersister p : new GeoServerPersister[]{ catalogPersister, persister } ) {
+            if ( p != null ) {
+                try {
+                    p.flush();
+                }
+                catch( IOException e ) {
+                    LOGGER.log( Level.SEVERE, "Error persisting the configuration", e );
+                }
+            }
+        }
+        
+        super.destroy();
     }
 
 }
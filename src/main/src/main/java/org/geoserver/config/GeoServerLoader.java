@@ -19,11 +19,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.geoserver.catalog.Catalog;
-import org.geoserver.catalog.CatalogFactory;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.CoverageStoreInfo;
 import org.geoserver.catalog.DataStoreInfo;
@@ -37,6 +34,7 @@ import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.catalog.Wrapper;
 import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.ModificationProxy;
 import org.geoserver.catalog.util.LegacyCatalogImporter;
 import org.geoserver.catalog.util.LegacyCatalogReader;
 import org.geoserver.catalog.util.LegacyFeatureTypeInfoReader;
@@ -229,24 +227,98 @@ public abstract class GeoServerLoader {
     
     /**
      * Reads the catalog from disk.
+     * <p>
+     * The catalog files are parsed in parallel up front (see {@link ParallelCatalogReader}), the
+     * parsed objects are then added to the catalog one after the other.
+     * </p>
      */
     Catalog readCatalog( XStreamPersister xp ) throws Exception {
+        //use the snapshot if it is up to date
+        CatalogSnapshot snapshot = null;
+        if ( CatalogSnapshot.isEnabled() ) {
+            snapshot = new CatalogSnapshot( resourceLoader, xpf.createXMLPersister() );
+            Catalog catalog = snapshot.read();
+            if ( catalog != null ) {
+                xp.setCatalog( catalog );
+                for ( DataStoreInfo ds : catalog.getDataStores() ) {
+                    checkDataStore( ModificationProxy.unwrap( ds ) );
+                }
+                return catalog;
+            }
+        }
+        
         Catalog catalog = new CatalogImpl();
         catalog.setResourceLoader(resourceLoader);
-        xp.setCatalog( catalog );
         
-        CatalogFactory factory = catalog.getFactory();
-       
-        //styles
         File styles = resourceLoader.find( "styles" );
-        for ( File sf : list(styles,new SuffixFileFilter(".xml") ) ) {
+        File workspaces = resourceLoader.find( "workspaces" );
+        File layergroups = resourceLoader.find( "layergroups" );
+        
+        //scan the data directory and parse the catalog files, leaving references unresolved
+        ParallelCatalogReader reader = new ParallelCatalogReader( xp );
+        try {
+            long start = System.currentTimeMillis();
+            reader.scan( styles, workspaces, layergroups );
+            long scanned = System.currentTimeMillis();
+            LOGGER.info( "Found " + reader.toParse.size() + " catalog files in " 
+                + (scanned - start) + "ms" );
+            
+            xp.setCatalog( null );
+            reader.parseAll();
+            long parsed = System.currentTimeMillis();
+            LOGGER.info( "Parsed " + reader.toParse.size() + " catalog files with " 
+                + reader.threads + " threads in " + (parsed - scanned) + "ms" );
+            
+            xp.setCatalog( catalog );
+            readCatalog( catalog, reader, styles, workspaces, layergroups );
+            LOGGER.info( "Loaded the catalog objects in " + (System.currentTimeMillis() - parsed) + "ms" );
+        }
+        finally {
+            reader.dispose();
+        }
+        
+        if ( snapshot != null ) {
+            snapshot.write( catalog );
+        }
+        
+        return catalog;
+    }
+    
+    /**
+     * Connects to an enabled data store to determine if it should be disabled.
+     */
+    void checkDataStore( DataStoreInfo ds ) {
+        if (ds.isEnabled()) {
+            //connect to the datastore to determine if we should disable it
+            try {
+                ds.getDataStore(null);
+            }
+            catch( Throwable t ) {
+                LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
+                LOGGER.log( Level.INFO, "", t );
+                
+                ds.setError(t);
+                ds.setEnabled(false);
+            }
+        }
+    }
+    
+    /**
+     * Adds the catalog objects parsed by the reader to the catalog, in dependency order.
+     */
+    void readCatalog( Catalog catalog, ParallelCatalogReader reader, File styles, 
+        File workspaces, File layergroups ) throws Exception {
+        XStreamPersister xp = reader.xp;
+        
+        //styles
+        for ( File sf : reader.list(styles, ".xml") ) {
             try {
                 //handle the .xml.xml case
-                if (new File(styles,sf.getName()+".xml").exists()) {
+                if (reader.exists(new File(styles,sf.getName()+".xml"))) {
                     continue;
                 }
                 
-                StyleInfo s = depersist( xp, sf, StyleInfo.class );
+                StyleInfo s = reader.depersist( sf, StyleInfo.class );
                 catalog.add( s );
                 
                 LOGGER.info( "Loaded style '" + s.getName() + "'" );
@@ -257,14 +329,13 @@ public abstract class GeoServerLoader {
         }
         
         //workspaces, stores, and resources
-        File workspaces = resourceLoader.find( "workspaces" );
         if ( workspaces != null ) {
             //do a first quick scan over all workspaces, setting the default
             File dws = new File(workspaces, "default.xml");
             WorkspaceInfo defaultWorkspace = null;
-            if (dws.exists()) {
+            if (reader.exists(dws)) {
                 try {
-                    defaultWorkspace = depersist(xp, dws, WorkspaceInfo.class);
+                    defaultWorkspace = reader.depersist(dws, WorkspaceInfo.class);
                     LOGGER.info("Loaded default workspace " + defaultWorkspace.getName());
                 }
                 catch( Exception e ) {
@@ -275,15 +346,15 @@ public abstract class GeoServerLoader {
                 LOGGER.warning("No default workspace was found.");
             }
             
-            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+            for ( File wsd : reader.directories(workspaces) ) {
                 File f = new File( wsd, "workspace.xml");
-                if ( !f.exists() ) {
+                if ( !reader.exists(f) ) {
                     continue;
                 }
                 
                 WorkspaceInfo ws = null;
                 try {
-                    ws = depersist( xp, f, WorkspaceInfo.class );
+                    ws = reader.depersist( f, WorkspaceInfo.class );
                     catalog.add( ws );    
                 }
                 catch( Exception e ) {
@@ -296,9 +367,9 @@ public abstract class GeoServerLoader {
                 //load the namespace
                 File nsf = new File( wsd, "namespace.xml" );
                 NamespaceInfo ns = null; 
-                if ( nsf.exists() ) {
+                if ( reader.exists(nsf) ) {
                     try {
-                        ns = depersist( xp, nsf, NamespaceInfo.class );
+                        ns = reader.depersist( nsf, NamespaceInfo.class );
                         catalog.add( ns );
                     }
                     catch( Exception e ) {
@@ -333,33 +404,22 @@ public abstract class GeoServerLoader {
                 
             }
             
-            for ( File wsd : list(workspaces, DirectoryFileFilter.INSTANCE ) ) {
+            for ( File wsd : reader.directories(workspaces) ) {
                 
                 //load the stores for this workspace
-                for ( File sd : list(wsd, DirectoryFileFilter.INSTANCE) ) {
+                for ( File sd : reader.directories(wsd) ) {
                     File f = new File( sd, "datastore.xml");
-                    if ( f.exists() ) {
+                    if ( reader.exists(f) ) {
                         //load as a datastore
                         DataStoreInfo ds = null;
                         try {    
-                            ds = depersist( xp, f, DataStoreInfo.class );
+                            ds = reader.depersist( f, DataStoreInfo.class );
+                            ParallelCatalogReader.resolve( catalog, ds );
                             catalog.add( ds );
                             
                             LOGGER.info( "Loaded data store '" + ds.getName() +"'");
                             
-                            if (ds.isEnabled()) {
-                                //connect to the datastore to determine if we should disable it
-                                try {
-                                    ds.getDataStore(null);
-                                }
-                                catch( Throwable t ) {
-                                    LOGGER.warning( "Error connecting to '" + ds.getName() + "'. Disabling." );
-                                    LOGGER.log( Level.INFO, "", t );
-                                    
-                                    ds.setError(t);
-                                    ds.setEnabled(false);
-                                }
-                            }
+                            checkDataStore( ds );
                         }
                         catch( Exception e ) {
                             LOGGER.log( Level.WARNING, "Failed to load data store '" + sd.getName() +"'", e);
@@ -367,26 +427,28 @@ public abstract class GeoServerLoader {
                         }
                         
                         //load feature types
-                        for ( File ftd : list(sd,DirectoryFileFilter.INSTANCE) ) {
+                        for ( File ftd : reader.directories(sd) ) {
                             f = new File( ftd, "featuretype.xml" );
-                            if( f.exists() ) {
+                            if( reader.exists(f) ) {
                                 FeatureTypeInfo ft = null;
                                 try {
-                                    ft = depersist(xp,f,FeatureTypeInfo.class);
+                                    ft = reader.depersist(f,FeatureTypeInfo.class);
                                 }
                                 catch( Exception e ) {
                                     LOGGER.log( Level.WARNING, "Failed to load feature type '" + ftd.getName() +"'", e);
                                     continue;
                                 }
                                 
+                                ParallelCatalogReader.resolve( catalog, ft );
                                 catalog.add( ft );
                                 
                                 LOGGER.info( "Loaded feature type '" + ds.getName() +"'");
                                 
                                 f = new File( ftd, "layer.xml" );
-                                if ( f.exists() ) {
+                                if ( reader.exists(f) ) {
                                     try {
-                                        LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                        LayerInfo l = reader.depersist(f, LayerInfo.class );
+                                        ParallelCatalogReader.resolve( catalog, l );
                                         catalog.add( l );
                                         
                                         LOGGER.info( "Loaded layer '" + l.getName() + "'" );
@@ -403,10 +465,11 @@ public abstract class GeoServerLoader {
                     } else {
                         //look for a coverage store
                         f = new File( sd, "coveragestore.xml" );
-                        if ( f.exists() ) {
+                        if ( reader.exists(f) ) {
                             CoverageStoreInfo cs = null;
                             try {
-                                cs = depersist( xp, f, CoverageStoreInfo.class );
+                                cs = reader.depersist( f, CoverageStoreInfo.class );
+                                ParallelCatalogReader.resolve( catalog, cs );
                                 catalog.add( cs );
                             
                                 LOGGER.info( "Loaded coverage store '" + cs.getName() +"'");
@@ -417,12 +480,13 @@ public abstract class GeoServerLoader {
                             }
                             
                             //load coverages
-                            for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
+                            for ( File cd : reader.directories(sd) ) {
                                 f = new File( cd, "coverage.xml" );
-                                if( f.exists() ) {
+                                if( reader.exists(f) ) {
                                     CoverageInfo c = null;
                                     try {
-                                        c = depersist(xp,f,CoverageInfo.class);
+                                        c = reader.depersist(f,CoverageInfo.class);
+                                        ParallelCatalogReader.resolve( catalog, c );
                                         catalog.add( c );
                                         
                                         LOGGER.info( "Loaded coverage '" + cs.getName() +"'");
@@ -433,9 +497,10 @@ public abstract class GeoServerLoader {
                                     }
                                     
                                     f = new File( cd, "layer.xml" );
-                                    if ( f.exists() ) {
+                                    if ( reader.exists(f) ) {
                                         try {
-                                            LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                            LayerInfo l = reader.depersist(f, LayerInfo.class );
+                                            ParallelCatalogReader.resolve( catalog, l );
                                             catalog.add( l );
                                             
                                             LOGGER.info( "Loaded layer '" + l.getName() + "'" );
@@ -451,10 +516,11 @@ public abstract class GeoServerLoader {
                             }
                         } else {
                             f = new File( sd, "wmsstore.xml" );
-                            if(f.exists()) {
+                            if(reader.exists(f)) {
                                 WMSStoreInfo wms = null;
                                 try {
-                                    wms = depersist( xp, f, WMSStoreInfo.class );
+                                    wms = reader.depersist( f, WMSStoreInfo.class );
+                                    ParallelCatalogReader.resolve( catalog, wms );
                                     catalog.add( wms );
                                 
                                     LOGGER.info( "Loaded wmsstore '" + wms.getName() +"'");
@@ -464,12 +530,13 @@ public abstract class GeoServerLoader {
                                 }
                                 
                                 //load wms layers
-                                for ( File cd : list(sd,DirectoryFileFilter.INSTANCE) ) {
+                                for ( File cd : reader.directories(sd) ) {
                                     f = new File( cd, "wmslayer.xml" );
-                                    if( f.exists() ) {
+                                    if( reader.exists(f) ) {
                                         WMSLayerInfo wl = null;
                                         try {
-                                            wl = depersist(xp,f,WMSLayerInfo.class);
+                                            wl = reader.depersist(f,WMSLayerInfo.class);
+                                            ParallelCatalogReader.resolve( catalog, wl );
                                             catalog.add( wl );
                                             
                                             LOGGER.info( "Loaded wms layer'" + wl.getName() +"'");
@@ -480,9 +547,10 @@ public abstract class GeoServerLoader {
                                         }
                                         
                                         f = new File( cd, "layer.xml" );
-                                        if ( f.exists() ) {
+                                        if ( reader.exists(f) ) {
                                             try {
-                                                LayerInfo l = depersist(xp, f, LayerInfo.class );
+                                                LayerInfo l = reader.depersist(f, LayerInfo.class );
+                                                ParallelCatalogReader.resolve( catalog, l );
                                                 catalog.add( l );
                                                 
                                                 LOGGER.info( "Loaded layer '" + l.getName() + "'" );
@@ -512,15 +580,15 @@ public abstract class GeoServerLoader {
         //namespaces
         
         //layergroups
-        File layergroups = resourceLoader.find( "layergroups" );
         if ( layergroups != null ) {
-            for ( File lgf : list( layergroups, new SuffixFileFilter( ".xml" ) ) ) {
+            for ( File lgf : reader.list( layergroups, ".xml" ) ) {
                 try {
-                    LayerGroupInfo lg = depersist( xp, lgf, LayerGroupInfo.class );
+                    LayerGroupInfo lg = reader.depersist( lgf, LayerGroupInfo.class );
                     if(lg.getLayers() == null || lg.getLayers().size() == 0) {
                         LOGGER.warning("Skipping empty layer group '" + lg.getName() + "', it is invalid");
                         continue;
                     }
+                    ParallelCatalogReader.resolve( catalog, lg );
                     catalog.add( lg );
                     
                     LOGGER.info( "Loaded layer group '" + lg.getName() + "'" );    
@@ -530,8 +598,6 @@ public abstract class GeoServerLoader {
                 }
             }
         }
-                
-        return catalog;
     }
     
     /**
@@ -554,6 +620,9 @@ public abstract class GeoServerLoader {
         
         if ( !legacy ) {
             catalog2.removeListener( p );
+            
+            //make sure the converted catalog is on disk before moving on
+            p.flush();
         }
         
         if ( !legacy ) {
@@ -659,6 +728,7 @@ public abstract class GeoServerLoader {
             new LegacyConfigurationImporter(geoServer).imprt(resourceLoader.getBaseDirectory());
             
             geoServer.removeListener( p );
+            p.flush();
             
             //rename the services.xml file
             f.renameTo( new File( f.getParentFile(), "services.xml.old" ) );
@@ -706,5 +776,6 @@ public abstract class GeoServerLoader {
     public void destroy() throws Exception {
         //dispose
         geoserver.dispose();
+        CatalogSnapshot.dispose();
     }
 }
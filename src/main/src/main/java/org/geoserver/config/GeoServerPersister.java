@@ -5,10 +5,19 @@
 package org.geoserver.config;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -33,22 +42,173 @@ import org.geoserver.catalog.event.CatalogModifyEvent;
 import org.geoserver.catalog.event.CatalogPostModifyEvent;
 import org.geoserver.catalog.event.CatalogRemoveEvent;
 import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geotools.util.logging.Logging;
 
+/**
+ * Persists the catalog and configuration changes in the data directory.
+ * <p>
+ * By default the files are written as the changes happen. Setting the 
+ * {@value #WRITE_BEHIND_PROPERTY} system/context/environment variable to true makes the 
+ * persister encode the changed objects right away but write them on a background thread, 
+ * so that bulk changes do not wait on the disk. Changes to an object still waiting to be written
+ * replace the pending ones, and the files are synched to disk before replacing the old ones. 
+ * Renames and removals wait for the pending writes to be done. Callers needing the changes 
+ * to be on disk can use {@link #flush()}.
+ * </p>
+ */
 public class GeoServerPersister implements CatalogListener, ConfigurationListener {
 
     /**
      * logging instance
      */
     static Logger LOGGER = Logging.getLogger( "org.geoserver.config");
+    
+    /**
+     * Property used to enable the write-behind mode
+     */
+    public static final String WRITE_BEHIND_PROPERTY = "CATALOG_WRITE_BEHIND";
      
     GeoServerResourceLoader rl;
     XStreamPersister xp;
     
+    /**
+     * Background writer, null if the files are written right away
+     */
+    ThreadPoolExecutor writer;
+    
+    /**
+     * The encoded objects waiting to be written, by target file
+     */
+    Map<File,PendingWrite> pending = new HashMap<File, PendingWrite>();
+    
+    /**
+     * The first background write error since the last flush
+     */
+    Exception error;
+    
+    long writeCount;
+    long totalLatency;
+    long maxLatency;
+    
     public GeoServerPersister(GeoServerResourceLoader rl, XStreamPersister xp) {
+        this(rl, xp, Boolean.valueOf(GeoServerExtensions.getProperty(WRITE_BEHIND_PROPERTY)));
+    }
+    
+    public GeoServerPersister(GeoServerResourceLoader rl, XStreamPersister xp, boolean writeBehind) {
         this.rl = rl;
         this.xp = xp;
+        if ( writeBehind ) {
+            writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, 
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Catalog persister");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            writer.allowCoreThreadTimeOut(true);
+        }
+    }
+    
+    /**
+     * Flushes the write-behind queue of the persisters listening to the catalog.
+     * 
+     * @see #flush()
+     */
+    public static void flush( Catalog catalog ) throws IOException {
+        for ( CatalogListener l : catalog.getListeners() ) {
+            if ( l instanceof GeoServerPersister ) {
+                ((GeoServerPersister) l).flush();
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the files are written on a background thread
+     */
+    public boolean isWriteBehind() {
+        return writer != null;
+    }
+    
+    /**
+     * Waits for the pending writes to be done. 
+     * 
+     * @throws IOException The first error that occurred writing in the background since the
+     * last flush 
+     */
+    public void flush() throws IOException {
+        drain();
+        Exception e;
+        synchronized ( pending ) {
+            e = error;
+            error = null;
+        }
+        if ( e instanceof IOException ) {
+            throw (IOException) e;
+        }
+        if ( e != null ) {
+            throw (IOException) new IOException( e.getMessage() ).initCause( e );
+        }
+    }
+    
+    /**
+     * Waits for the pending writes to be done, leaving the errors to {@link #flush()}
+     */
+    void drain() {
+        if ( writer == null ) {
+            return;
+        }
+        try {
+            //the writer runs the tasks in order
+            writer.submit( new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } 
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } 
+        catch (ExecutionException e) {
+            //cannot happen, the task does nothing
+        }
+    }
+    
+    /**
+     * Returns the number of files waiting to be written
+     */
+    public int getPendingWrites() {
+        synchronized ( pending ) {
+            return pending.size();
+        }
+    }
+    
+    /**
+     * Returns the number of files written in the background 
+     */
+    public long getWriteCount() {
+        synchronized ( pending ) {
+            return writeCount;
+        }
+    }
+    
+    /**
+     * Returns the average time between a change and the file being written, in milliseconds
+     */
+    public long getAverageWriteLatency() {
+        synchronized ( pending ) {
+            return writeCount > 0 ? totalLatency / writeCount : 0;
+        }
+    }
+    
+    /**
+     * Returns the longest time between a change and the file being written, in milliseconds
+     */
+    public long getMaxWriteLatency() {
+        synchronized ( pending ) {
+            return maxLatency;
+        }
     }
     
     public void handleAddEvent(CatalogAddEvent event) {
@@ -96,6 +256,12 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
     public void handleModifyEvent(CatalogModifyEvent event) {
         Object source = event.getSource();
         
+        //directories are about to be moved around
+        if ( event.getPropertyNames().contains( "name" ) 
+            || event.getPropertyNames().contains( "workspace" ) ) {
+            drain();
+        }
+        
         try {
             //here we handle name changes
             int i = event.getPropertyNames().indexOf( "name" );
@@ -192,6 +358,10 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
 
     public void handleRemoveEvent(CatalogRemoveEvent event) {
         Object source = event.getSource();
+        
+        //do not write in directories being removed
+        drain();
+        
         try {
             if ( source instanceof WorkspaceInfo ) {
                 removeWorkspace( (WorkspaceInfo) source );
@@ -676,6 +846,11 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
     }
 
     void persist( Object o, File f ) throws IOException {
+        if ( writer != null ) {
+            persistLater( o, f );
+            return;
+        }
+        
         try {
             synchronized ( xp ) {
                 //first save to a temp file
@@ -706,4 +881,105 @@ public class GeoServerPersister implements CatalogListener, ConfigurationListene
         }
     }
 
+    
+    /**
+     * Encodes the object, and queues it up to be written in the background
+     */
+    void persistLater( Object o, File f ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            synchronized ( xp ) {
+                xp.save( o, out );
+            }
+        }
+        catch( Exception e ) {
+            String msg = "Error persisting " + o + " to " + f.getCanonicalPath();
+            throw new CatalogException(msg, e);
+        }
+        
+        boolean schedule;
+        synchronized ( pending ) {
+            PendingWrite write = pending.get( f );
+            schedule = write == null;
+            if ( schedule ) {
+                pending.put( f, new PendingWrite( out.toByteArray() ) );
+            }
+            else {
+                //not written yet, replace the contents
+                write.contents = out.toByteArray();
+            }
+        }
+        if ( schedule ) {
+            writer.execute( new Writer( f ) );
+        }
+    }
+    
+    /**
+     * An encoded object waiting to be written
+     */
+    static class PendingWrite {
+        byte[] contents;
+        
+        /**
+         * When the first change not yet written happened
+         */
+        final long time = System.currentTimeMillis();
+        
+        PendingWrite( byte[] contents ) {
+            this.contents = contents;
+        }
+    }
+    
+    /**
+     * Writes the pending contents of a file
+     */
+    class Writer implements Runnable {
+        final File f;
+        
+        Writer( File f ) {
+            this.f = f;
+        }
+        
+        public void run() {
+            PendingWrite write;
+            synchronized ( pending ) {
+                write = pending.remove( f );
+            }
+            if ( write == null ) {
+                return;
+            }
+            
+            try {
+                //first save to a temp file, and make sure it is on disk
+                File temp = new File(f.getParentFile(),f.getName()+".tmp");
+                FileOutputStream out = new FileOutputStream( temp );
+                try {
+                    out.write( write.contents );
+                    out.getFD().sync();
+                }
+                finally {
+                    out.close();
+                }
+                
+                //no errors, overwrite the original file
+                rename(temp,f);
+                
+                long latency = System.currentTimeMillis() - write.time;
+                synchronized ( pending ) {
+                    writeCount++;
+                    totalLatency += latency;
+                    maxLatency = Math.max( maxLatency, latency );
+                }
+                LOGGER.fine("Persisted " + f.getAbsolutePath() + " " + latency + "ms after the change");
+            }
+            catch( Exception e ) {
+                LOGGER.log( Level.SEVERE, "Error persisting " + f.getAbsolutePath(), e );
+                synchronized ( pending ) {
+                    if ( error == null ) {
+                        error = e;
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WMSLayerInfo;
+import org.geoserver.catalog.WMSStoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.ResolvingProxy;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Reads the catalog files of a data directory in three phases, so that a large catalog can be
+ * loaded quickly on startup:
+ * <ol>
+ * <li>the catalog directories are listed once, and the listings kept in memory</li>
+ * <li>the xml files are parsed in parallel, on a pool of {@value #THREADS_PROPERTY} threads (by
+ * default as many as the available processors), leaving the references to other catalog objects
+ * unresolved</li>
+ * <li>the loader adds the parsed objects to the catalog in the usual order, resolving their
+ * references right before adding them (see {@link #resolve(Catalog, Object)})</li>
+ * </ol>
+ * The references are resolved against the same catalog state they would have been resolved
+ * against when parsing the files one after the other, so the resulting catalog is the same.
+ */
+class ParallelCatalogReader {
+
+    static final Logger LOGGER = Logging.getLogger("org.geoserver");
+
+    /**
+     * The number of threads parsing the catalog files
+     */
+    static final String THREADS_PROPERTY = "CATALOG_LOAD_THREADS";
+
+    final XStreamPersister xp;
+
+    final int threads;
+
+    /**
+     * The contents of the scanned directories, in the order the file system lists them
+     */
+    Map<File, File[]> listings = new HashMap<File, File[]>();
+
+    Set<File> directories = new HashSet<File>();
+
+    Set<File> files = new HashSet<File>();
+
+    /**
+     * The files to parse, along with the type of object they contain
+     */
+    Map<File, Class> toParse = new LinkedHashMap<File, Class>();
+
+    Map<File, Future<Object>> parsed = new HashMap<File, Future<Object>>();
+
+    ParallelCatalogReader(XStreamPersister xp) {
+        this(xp, getThreads());
+    }
+
+    ParallelCatalogReader(XStreamPersister xp, int threads) {
+        this.xp = xp;
+        this.threads = threads;
+    }
+
+    static int getThreads() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String value = GeoServerExtensions.getProperty(THREADS_PROPERTY);
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + THREADS_PROPERTY + " value: " + value);
+            }
+        }
+        return Math.max(1, threads);
+    }
+
+    /**
+     * Lists the catalog directories, and schedules the parsing of the catalog files found in
+     * them
+     */
+    void scan(File styles, File workspaces, File layergroups) {
+        scan(styles, 0);
+        scan(workspaces, 3);
+        scan(layergroups, 0);
+
+        for (File sf : list(styles, ".xml")) {
+            if (!exists(new File(styles, sf.getName() + ".xml"))) {
+                parse(sf, StyleInfo.class);
+            }
+        }
+
+        if (workspaces != null) {
+            parse(new File(workspaces, "default.xml"), WorkspaceInfo.class);
+        }
+        for (File wsd : directories(workspaces)) {
+            parse(new File(wsd, "workspace.xml"), WorkspaceInfo.class);
+            parse(new File(wsd, "namespace.xml"), NamespaceInfo.class);
+            for (File sd : directories(wsd)) {
+                if (exists(new File(sd, "datastore.xml"))) {
+                    parse(new File(sd, "datastore.xml"), DataStoreInfo.class);
+                    parseResources(sd, "featuretype.xml", FeatureTypeInfo.class);
+                } else if (exists(new File(sd, "coveragestore.xml"))) {
+                    parse(new File(sd, "coveragestore.xml"), CoverageStoreInfo.class);
+                    parseResources(sd, "coverage.xml", CoverageInfo.class);
+                } else if (exists(new File(sd, "wmsstore.xml"))) {
+                    parse(new File(sd, "wmsstore.xml"), WMSStoreInfo.class);
+                    parseResources(sd, "wmslayer.xml", WMSLayerInfo.class);
+                }
+            }
+        }
+
+        for (File lgf : list(layergroups, ".xml")) {
+            parse(lgf, LayerGroupInfo.class);
+        }
+    }
+
+    void parseResources(File store, String fileName, Class clazz) {
+        for (File rd : directories(store)) {
+            File f = new File(rd, fileName);
+            if (exists(f)) {
+                parse(f, clazz);
+                parse(new File(rd, "layer.xml"), LayerInfo.class);
+            }
+        }
+    }
+
+    /**
+     * Lists a directory, and its sub directories down to the specified depth
+     */
+    void scan(File dir, int depth) {
+        if (dir == null || listings.containsKey(dir)) {
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            children = new File[0];
+        }
+        listings.put(dir, children);
+        for (File child : children) {
+            if (child.isDirectory()) {
+                directories.add(child);
+                if (depth > 0) {
+                    scan(child, depth - 1);
+                }
+            } else {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the file or directory has been found by the scan
+     */
+    boolean exists(File f) {
+        return files.contains(f) || directories.contains(f);
+    }
+
+    /**
+     * Returns the sub directories of a scanned directory
+     */
+    List<File> directories(File dir) {
+        List<File> result = new ArrayList<File>();
+        for (File f : listing(dir)) {
+            if (directories.contains(f)) {
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entries of a scanned directory whose name ends with the specified suffix
+     */
+    List<File> list(File dir, String suffix) {
+        List<File> result = new ArrayList<File>();
+        for (File f : listing(dir)) {
+            if (f.getName().endsWith(suffix)) {
+                result.add(f);
+            }
+        }
+        return result;
+    }
+
+    File[] listing(File dir) {
+        File[] listing = dir != null ? listings.get(dir) : null;
+        return listing != null ? listing : new File[0];
+    }
+
+    /**
+     * Schedules the parsing of a file, if it exists
+     */
+    void parse(File f, Class clazz) {
+        if (exists(f)) {
+            toParse.put(f, clazz);
+        }
+    }
+
+    /**
+     * Parses all the scheduled files, waiting for them to be done
+     */
+    void parseAll() throws InterruptedException {
+        if (threads == 1) {
+            for (Map.Entry<File, Class> entry : toParse.entrySet()) {
+                FutureTask<Object> task = new FutureTask<Object>(parser(entry.getKey(), entry
+                        .getValue()));
+                task.run();
+                parsed.put(entry.getKey(), task);
+            }
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Catalog loader " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            for (Map.Entry<File, Class> entry : toParse.entrySet()) {
+                parsed.put(entry.getKey(), executor.submit(parser(entry.getKey(), entry
+                        .getValue())));
+            }
+            for (Future<Object> future : parsed.values()) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // reported when the object gets added to the catalog
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    Callable<Object> parser(final File f, final Class clazz) {
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
+                try {
+                    return xp.load(in, clazz);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the object parsed from the specified file, throwing the parsing error if any
+     */
+    <T> T depersist(File f, Class<T> clazz) throws IOException {
+        Future<Object> future = parsed.remove(f);
+        if (future == null) {
+            // not scheduled, parse it now
+            BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
+            try {
+                return xp.load(in, clazz);
+            } finally {
+                in.close();
+            }
+        }
+
+        try {
+            return clazz.cast(future.get());
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted while parsing " + f).initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (IOException) new IOException("Failed to parse " + f).initCause(cause);
+        }
+    }
+
+    /**
+     * Replaces the references to other catalog objects with the objects they point to, or
+     * null if they are not in the catalog
+     */
+    static void resolve(Catalog catalog, Object object) {
+        if (object instanceof StoreInfo) {
+            StoreInfo store = (StoreInfo) object;
+            store.setWorkspace(ResolvingProxy.resolve(catalog, store.getWorkspace()));
+        } else if (object instanceof ResourceInfo) {
+            ResourceInfo resource = (ResourceInfo) object;
+            resource.setStore(ResolvingProxy.resolve(catalog, resource.getStore()));
+            resource.setNamespace(ResolvingProxy.resolve(catalog, resource.getNamespace()));
+        } else if (object instanceof LayerInfo) {
+            LayerInfo layer = (LayerInfo) object;
+            layer.setResource(ResolvingProxy.resolve(catalog, layer.getResource()));
+            layer.setDefaultStyle(ResolvingProxy.resolve(catalog, layer.getDefaultStyle()));
+            Set<StyleInfo> styles = layer.getStyles();
+            if (styles != null) {
+                List<StyleInfo> references = new ArrayList<StyleInfo>(styles);
+                styles.clear();
+                for (StyleInfo style : references) {
+                    styles.add(ResolvingProxy.resolve(catalog, style));
+                }
+            }
+        } else if (object instanceof LayerGroupInfo) {
+            LayerGroupInfo group = (LayerGroupInfo) object;
+            List<LayerInfo> layers = group.getLayers();
+            if (layers != null) {
+                for (int i = 0; i < layers.size(); i++) {
+                    layers.set(i, ResolvingProxy.resolve(catalog, layers.get(i)));
+                }
+            }
+            List<StyleInfo> styles = group.getStyles();
+            if (styles != null) {
+                for (int i = 0; i < styles.size(); i++) {
+                    styles.set(i, ResolvingProxy.resolve(catalog, styles.get(i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the parsed objects that have not been used
+     */
+    void dispose() {
+        if (!parsed.isEmpty() && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(parsed.size() + " parsed catalog files have not been loaded");
+        }
+        listings = Collections.emptyMap();
+        parsed.clear();
+        toParse.clear();
+    }
+}
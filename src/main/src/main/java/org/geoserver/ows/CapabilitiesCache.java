@@ -0,0 +1,458 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceCache;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.security.impl.DataAccessRuleDAO;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Caches the encoded capabilities documents, which are expensive to build on large catalogs and
+ * are polled often by clients.
+ * <p>
+ * A document is identified by a key built by {@link #key(Operation, Object...)} out of the
+ * service, the request version, the virtual service (local workspace and layer), the roles of
+ * the current user and whatever request parameter the document depends on (base URL, namespace
+ * filter, ...). All documents are dropped as soon as the catalog, the global or service
+ * configuration, or the data access rules change. As a safety net for custom access managers
+ * the documents are also rebuilt after {@link #MAX_AGE} seconds.
+ * </p>
+ * <p>
+ * The cache also supports conditional requests, see {@link #getHeaders(String, Producer)} and
+ * {@link #checkNotModified(String)}: the entity tag is a digest of the cached document, and the
+ * last modification date the time its contents last changed. A request is answered with a 304
+ * only if the cached document is still valid and matches the client one.
+ * </p>
+ * <p>
+ * Some documents depend on the data as well, e.g., the time and elevation domains of the WMS
+ * layers, that can change without the catalog changing. The services can use
+ * {@link #hasDataDimensions()} to skip the cache for them.
+ * </p>
+ */
+public class CapabilitiesCache implements CatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger(CapabilitiesCache.class);
+
+    /**
+     * System property setting how long a document can be served, in seconds. Zero disables
+     * the cache
+     */
+    public static final String MAX_AGE = "CAPABILITIES_CACHE_MAX_AGE";
+
+    /**
+     * System property setting the memory used by the cached documents, in megabytes
+     */
+    public static final String MAX_MEMORY = "CAPABILITIES_CACHE_MEMORY";
+
+    static final long DEFAULT_MAX_AGE = 600;
+
+    static final long DEFAULT_MAX_MEMORY = 32;
+
+    /**
+     * Writes out a capabilities document
+     */
+    public static interface Producer {
+        void write(OutputStream output) throws IOException;
+    }
+
+    /**
+     * An encoded document
+     */
+    static class Document {
+        final byte[] contents;
+
+        final long generation;
+
+        final long created;
+
+        /**
+         * Digest of the contents, quoted as required by the ETag header
+         */
+        final String etag;
+
+        /**
+         * Time the contents last changed, rounded to the second as that's the HTTP dates
+         * precision
+         */
+        final long lastModified;
+
+        /**
+         * @param previous The document this one replaces, if any
+         */
+        Document(byte[] contents, long generation, Document previous) {
+            this.contents = contents;
+            this.generation = generation;
+            this.created = System.currentTimeMillis();
+            this.etag = "\"" + digest(contents) + "\"";
+            if (previous == null) {
+                this.lastModified = now();
+            } else if (previous.etag.equals(etag)) {
+                this.lastModified = previous.lastModified;
+            } else {
+                // make sure the new contents get a different date
+                this.lastModified = Math.max(now(), previous.lastModified + 1000);
+            }
+        }
+    }
+
+    /**
+     * Returns the cache registered in the application context, or null if there is none
+     */
+    public static CapabilitiesCache get() {
+        return GeoServerExtensions.bean(CapabilitiesCache.class);
+    }
+
+    ResourceCache<String, Document> documents;
+
+    /**
+     * Bumped at each invalidation, documents loaded in a previous generation are stale
+     */
+    AtomicLong generation = new AtomicLong();
+
+    long maxAge;
+
+    Catalog catalog;
+
+    /**
+     * Whether some layer has data dependent dimensions, computed once per generation
+     */
+    volatile boolean dataDimensions;
+
+    volatile long dataDimensionsGeneration = -1;
+
+    volatile long rulesLastModified = Long.MIN_VALUE;
+
+    public CapabilitiesCache(GeoServer geoServer, Catalog catalog) {
+        this(getLong(MAX_AGE, DEFAULT_MAX_AGE) * 1000,
+                getLong(MAX_MEMORY, DEFAULT_MAX_MEMORY) * 1024 * 1024);
+        this.catalog = catalog;
+        catalog.addListener(this);
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            public void handlePostGlobalChange(GeoServerInfo global) {
+                invalidate();
+            }
+
+            public void handlePostServiceChange(ServiceInfo service) {
+                invalidate();
+            }
+
+            public void reloaded() {
+                invalidate();
+            }
+        });
+    }
+
+    CapabilitiesCache(long maxAge, long maxMemory) {
+        this.maxAge = maxAge;
+        this.documents = new ResourceCache<String, Document>("capabilities");
+        documents.setMaxWeight(maxMemory);
+        documents.setWeigher(new ResourceCache.Weigher<String, Document>() {
+            public int weigh(String key, Document document) {
+                return Math.max(1, document.contents.length + key.length() * 2);
+            }
+        });
+    }
+
+    static long getLong(String property, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(property);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + property + " value: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static long now() {
+        return System.currentTimeMillis() / 1000 * 1000;
+    }
+
+    static String digest(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(contents);
+            return new BigInteger(1, digest).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns true if the documents can be cached
+     */
+    public boolean isEnabled() {
+        return maxAge > 0;
+    }
+
+    /**
+     * Builds the key of the document returned by the operation, taking into account the
+     * service, the request version, the virtual service and the roles of the current user.
+     *
+     * @param operation The capabilities operation
+     * @param parts The other things the document depends on, e.g., the base URL and the
+     *        namespace filter
+     */
+    public String key(Operation operation, Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(operation.getService().getId()).append('|');
+        sb.append(operation.getService().getVersion()).append('|');
+        sb.append(operation.getId());
+
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        sb.append('|').append(workspace != null ? workspace.getName() : "");
+        LayerInfo layer = LocalLayer.get();
+        sb.append('|').append(layer != null ? layer.getName() : "");
+
+        // the secure catalog filters the document contents according to the user roles
+        Authentication user = SecurityContextHolder.getContext().getAuthentication();
+        Set<String> roles = new TreeSet<String>();
+        if (user != null && user.getAuthorities() != null) {
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+        }
+        sb.append('|').append(roles);
+
+        for (Object part : parts) {
+            sb.append('|').append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the document associated to the key, building it with the producer if not cached
+     * yet
+     */
+    public void write(String key, OutputStream output, Producer producer) throws IOException {
+        if (!isEnabled()) {
+            producer.write(output);
+            return;
+        }
+
+        Document document = getDocument(key, producer);
+        if (document == null) {
+            // the catalog is changing under our feet, don't bother caching
+            producer.write(output);
+        } else {
+            output.write(document.contents);
+        }
+    }
+
+    /**
+     * Returns the document associated to the key, building it with the producer if not cached
+     * yet or stale. Returns null if the catalog keeps changing while building it
+     */
+    Document getDocument(String key, final Producer producer) throws IOException {
+        checkRules();
+        Document document = null;
+        Document previous = null;
+        for (int i = 0; i < 2 && document == null; i++) {
+            final long current = generation.get();
+            final Document replaced = previous;
+            document = documents.get(key, new Callable<Document>() {
+                public Document call() throws Exception {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    producer.write(bos);
+                    return new Document(bos.toByteArray(), current, replaced);
+                }
+            });
+            if (isStale(document)) {
+                // built against a catalog that changed since, or too old
+                documents.remove(key);
+                previous = document;
+                document = null;
+            }
+        }
+        return document;
+    }
+
+    boolean isStale(Document document) {
+        return document.generation != generation.get()
+                || System.currentTimeMillis() - document.created > maxAge;
+    }
+
+    /**
+     * Returns the validation headers for the document associated to the key, ETag and
+     * Last-Modified, building the document with the producer if not cached yet. Returns null if
+     * the document cannot be cached
+     */
+    public String[][] getHeaders(String key, Producer producer) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        Document document = getDocument(key, producer);
+        if (document == null) {
+            return null;
+        }
+        return new String[][] { { "ETag", document.etag },
+                { "Last-Modified", formatDate(document.lastModified) } };
+    }
+
+    /**
+     * Throws a {@link HttpErrorCodeException} with a 304 status code if the current request is
+     * a conditional one, and the client has the same version of the document as the cache.
+     * Nothing is checked if the document is not cached, or is stale
+     */
+    public void checkNotModified(String key) {
+        Request request = Dispatcher.REQUEST.get();
+        if (!isEnabled() || request == null || request.getHttpRequest() == null) {
+            return;
+        }
+        checkRules();
+        Document document = documents.getIfPresent(key);
+        if (document == null || isStale(document)) {
+            return;
+        }
+
+        HttpServletRequest http = request.getHttpRequest();
+        String ifNoneMatch = http.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (ifNoneMatch.equals(document.etag)) {
+                throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+            return;
+        }
+
+        long ifModifiedSince = -1;
+        try {
+            ifModifiedSince = http.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.FINE, "Invalid If-Modified-Since header", e);
+        }
+        if (ifModifiedSince >= document.lastModified) {
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * Returns true if some layer has an enabled time or elevation dimension. Their domains are
+     * computed out of the data, and can change without the catalog changing
+     */
+    public boolean hasDataDimensions() {
+        if (catalog == null) {
+            return false;
+        }
+        long current = generation.get();
+        if (dataDimensionsGeneration != current) {
+            boolean found = false;
+            for (ResourceInfo resource : catalog.getResources(ResourceInfo.class)) {
+                if (isDimensionEnabled(resource, ResourceInfo.TIME)
+                        || isDimensionEnabled(resource, ResourceInfo.ELEVATION)) {
+                    found = true;
+                    break;
+                }
+            }
+            dataDimensions = found;
+            dataDimensionsGeneration = current;
+        }
+        return dataDimensions;
+    }
+
+    boolean isDimensionEnabled(ResourceInfo resource, String dimension) {
+        DimensionInfo info = resource.getMetadata().get(dimension, DimensionInfo.class);
+        return info != null && info.isEnabled();
+    }
+
+    String formatDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * Drops the cached documents if the data access rules changed
+     */
+    void checkRules() {
+        DataAccessRuleDAO dao = DataAccessRuleDAO.get();
+        if (dao != null) {
+            // getMode checks the rules file, at most once a second
+            dao.getMode();
+            long rulesModified = dao.getLastModified();
+            if (rulesModified != rulesLastModified) {
+                boolean first = rulesLastModified == Long.MIN_VALUE;
+                rulesLastModified = rulesModified;
+                if (!first) {
+                    invalidate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached documents
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        documents.clear();
+    }
+
+    /**
+     * Returns the cache statistics
+     */
+    public ResourceCache.Statistics getStatistics() {
+        return documents.getStatistics();
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) {
+        invalidate();
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        invalidate();
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) {
+        // wait for the change to be applied
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        invalidate();
+    }
+
+    public void reloaded() {
+        invalidate();
+    }
+}
@@ -6,11 +6,16 @@ package org.geoserver.security.impl;
 
 import static org.geoserver.security.impl.DataAccessRule.*;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.WorkspaceInfo;
@@ -51,17 +56,91 @@ import org.geotools.util.logging.Logging;
 public class DefaultDataAccessManager implements DataAccessManager {
     static final Logger LOGGER = Logging.getLogger(DataAccessManager.class);
 
-    SecureTreeNode root;
+    /**
+     * Decision bit for read access
+     */
+    static final int READ = 1;
+
+    /**
+     * Decision bit for write access
+     */
+    static final int WRITE = 2;
+
+    /**
+     * The decisions taken against a security tree, for each set of roles the decisions are
+     * stored by workspace or workspace:layer path, as a combination of {@link #READ} and
+     * {@link #WRITE}. The index is never modified once the tree is built, when the rules change
+     * a new one replaces it
+     */
+    static class AuthorizationIndex {
+        final SecureTreeNode root;
+
+        final ConcurrentHashMap<Set<String>, ConcurrentHashMap<String, Integer>> decisions = 
+            new ConcurrentHashMap<Set<String>, ConcurrentHashMap<String, Integer>>();
+
+        AuthorizationIndex(SecureTreeNode root) {
+            this.root = root;
+        }
+
+        boolean canAccess(Authentication user, AccessMode mode, String... path) {
+            Set<String> roles = roles(user);
+            ConcurrentHashMap<String, Integer> roleDecisions = decisions.get(roles);
+            if (roleDecisions == null) {
+                roleDecisions = new ConcurrentHashMap<String, Integer>();
+                ConcurrentHashMap<String, Integer> existing = decisions.putIfAbsent(roles,
+                        roleDecisions);
+                if (existing != null) {
+                    roleDecisions = existing;
+                }
+            }
+
+            String key = path.length == 1 ? path[0] : path[0] + ":" + path[1];
+            Integer decision = roleDecisions.get(key);
+            if (decision == null) {
+                // compute both modes at once, they are usually asked for one after the other
+                SecureTreeNode node = root.getDeepestNode(path);
+                int bits = 0;
+                if (node.canAccess(user, AccessMode.READ)) {
+                    bits |= READ;
+                }
+                if (node.canAccess(user, AccessMode.WRITE)) {
+                    bits |= WRITE;
+                }
+                decision = bits;
+                roleDecisions.put(key, decision);
+            }
+            return (decision & (mode == AccessMode.WRITE ? WRITE : READ)) != 0;
+        }
+
+        /**
+         * The decisions only depend on the user roles, users with the same roles share them
+         */
+        Set<String> roles(Authentication user) {
+            if (user == null || user.getAuthorities() == null) {
+                return Collections.emptySet();
+            }
+            Set<String> roles = new HashSet<String>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            return roles;
+        }
+    }
+
+    volatile SecureTreeNode root;
+
+    volatile AuthorizationIndex index;
 
 //    Catalog catalog;
     
     DataAccessRuleDAO dao;
 
-    long lastLoaded = Long.MIN_VALUE;
+    volatile long lastLoaded = Long.MIN_VALUE;
 
     public DefaultDataAccessManager(DataAccessRuleDAO dao) {
         this.dao = dao;
         this.root = buildAuthorizationTree(dao);
+        this.index = new AuthorizationIndex(root);
     }
 
     public CatalogMode getMode() {
@@ -69,13 +148,10 @@ public class DefaultDataAccessManager implements DataAccessManager {
     }
 
     public boolean canAccess(Authentication user, WorkspaceInfo workspace, AccessMode mode) {
-        checkPropertyFile();
-        SecureTreeNode node = root.getDeepestNode(new String[] { workspace.getName() });
-        return node.canAccess(user, mode);
+        return checkPropertyFile().canAccess(user, mode, workspace.getName());
     }
 
     public boolean canAccess(Authentication user, LayerInfo layer, AccessMode mode) {
-        checkPropertyFile();
         if (layer.getResource() == null) {
             LOGGER.log(Level.FINE, "Layer " + layer + " has no attached resource, "
                     + "assuming it's possible to access it");
@@ -88,7 +164,7 @@ public class DefaultDataAccessManager implements DataAccessManager {
     }
 
     public boolean canAccess(Authentication user, ResourceInfo resource, AccessMode mode) {
-        checkPropertyFile();
+        AuthorizationIndex index = checkPropertyFile();
         String workspace;
         try {
             workspace = resource.getStore().getWorkspace().getName();
@@ -99,16 +175,25 @@ public class DefaultDataAccessManager implements DataAccessManager {
             return true;
         }
 
-        SecureTreeNode node = root.getDeepestNode(new String[] { workspace, resource.getName() });
-        return node.canAccess(user, mode);
+        return index.canAccess(user, mode, workspace, resource.getName());
     }
 
-    void checkPropertyFile() {
+    /**
+     * Rebuilds the tree and drops the cached decisions if the rules changed, returns the index
+     * to be used for the current check
+     */
+    AuthorizationIndex checkPropertyFile() {
         long daoLastModified = dao.getLastModified();
         if(lastLoaded < daoLastModified) {
-            root = buildAuthorizationTree(dao);
-            lastLoaded = daoLastModified;
+            synchronized (this) {
+                if (lastLoaded < daoLastModified) {
+                    root = buildAuthorizationTree(dao);
+                    index = new AuthorizationIndex(root);
+                    lastLoaded = daoLastModified;
+                }
+            }
         }
+        return index;
     }
 
     SecureTreeNode buildAuthorizationTree(DataAccessRuleDAO dao) {
@@ -0,0 +1,382 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org.  All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * A scheduler for the timeouts of request processing (rendering, processes, coverage reads),
+ * shared by all the requests.
+ * <p>
+ * The timeouts are kept in a hashed timing wheel walked by a single daemon thread, so that
+ * scheduling and cancelling a timeout costs O(1) and does not create threads. The price is the
+ * precision, a timeout expires up to one tick after its deadline. The tasks are run in the
+ * scheduler thread and must be quick, e.g. flag the request as timed out and ask the worker to
+ * stop.
+ * </p>
+ * <p>
+ * The scheduler counts the timeouts that expired and the ones that got cancelled past
+ * {@link #NEAR_TIMEOUT_RATIO} of their duration, that is, operations that barely made it. The
+ * counters of the shared scheduler are shown in the server status page.
+ * </p>
+ * <p>
+ * The shared scheduler is the <code>timeoutScheduler</code> bean in the application context, 
+ * its thread is stopped when the context is closed.
+ * </p>
+ */
+public class TimeoutScheduler implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(TimeoutScheduler.class);
+
+    /**
+     * Default tick duration, in milliseconds
+     */
+    public static final long DEFAULT_TICK = 100;
+
+    /**
+     * Default number of slots in the wheel
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Fraction of the timeout past which a completed operation is considered near timeout
+     */
+    public static final double NEAR_TIMEOUT_RATIO = 0.8;
+
+    static final int PENDING = 0;
+
+    static final int CANCELLED = 1;
+
+    static final int EXPIRED = 2;
+
+    static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Timeout.class, "state");
+
+    static TimeoutScheduler instance;
+
+    /**
+     * Returns the scheduler shared by the whole application, that is, the one declared in the
+     * application context, or a private one when running outside of it
+     */
+    public static synchronized TimeoutScheduler get() {
+        if (instance == null || !instance.running) {
+            TimeoutScheduler bean = GeoServerExtensions.bean(TimeoutScheduler.class);
+            instance = bean != null && bean.running ? bean : new TimeoutScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * A scheduled timeout
+     */
+    public static class Timeout {
+        final TimeoutScheduler scheduler;
+
+        Runnable task;
+
+        final long start;
+
+        final long deadline;
+
+        volatile int state = PENDING;
+
+        /**
+         * Full wheel rotations left before expiring, only used by the scheduler thread
+         */
+        long rounds;
+
+        Timeout prev;
+
+        Timeout next;
+
+        Timeout(TimeoutScheduler scheduler, Runnable task, long start, long deadline) {
+            this.scheduler = scheduler;
+            this.task = task;
+            this.start = start;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, to be called once the operation is completed.
+         *
+         * @return true if the timeout has been cancelled, false if it already expired or has
+         *         already been cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            // the timeout stays in the wheel until its slot is visited, don't hold onto the task
+            task = null;
+            scheduler.cancelledCount.incrementAndGet();
+            long now = System.nanoTime();
+            if (now - start >= (deadline - start) * NEAR_TIMEOUT_RATIO) {
+                scheduler.nearTimeoutCount.incrementAndGet();
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the timeout expired and its task has been run
+         */
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            scheduler.timedOutCount.incrementAndGet();
+            Runnable r = task;
+            task = null;
+            try {
+                r.run();
+            } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Timeout task failed", t);
+            }
+        }
+    }
+
+    /**
+     * A slot in the wheel, a doubly linked list of timeouts
+     */
+    static class Bucket {
+        Timeout head;
+
+        void add(Timeout t) {
+            t.next = head;
+            t.prev = null;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.state != PENDING) {
+                    remove(t);
+                } else if (t.rounds <= 0) {
+                    remove(t);
+                    t.expire();
+                } else {
+                    t.rounds--;
+                }
+                t = next;
+            }
+        }
+    }
+
+    final long tick;
+
+    final Bucket[] wheel;
+
+    final int mask;
+
+    /**
+     * Timeouts scheduled since the last tick, moved to the wheel by the scheduler thread
+     */
+    final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+    final AtomicLong scheduledCount = new AtomicLong();
+
+    final AtomicLong cancelledCount = new AtomicLong();
+
+    final AtomicLong timedOutCount = new AtomicLong();
+
+    final AtomicLong nearTimeoutCount = new AtomicLong();
+
+    volatile boolean running = true;
+
+    long startTime;
+
+    volatile Thread worker;
+
+    /**
+     * Builds a new scheduler with the default tick and wheel size
+     */
+    public TimeoutScheduler() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Builds a new scheduler, most code should just use the shared one returned by {@link #get()}
+     *
+     * @param tick The tick duration in milliseconds, that is, the timeout precision
+     * @param wheelSize The number of slots in the wheel, will be rounded to a power of two
+     */
+    public TimeoutScheduler(long tick, int wheelSize) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("The tick duration must be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tick = tick * 1000000;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules the task to be run once the timeout elapses, unless the returned timeout gets
+     * cancelled first
+     *
+     * @param task The task to be run, it should be quick as it is run in the scheduler thread
+     * @param timeout The timeout in milliseconds
+     */
+    public Timeout schedule(Runnable task, long timeout) {
+        if (!running) {
+            throw new IllegalStateException("The timeout scheduler has been shut down");
+        }
+        long now = System.nanoTime();
+        Timeout t = new Timeout(this, task, now, now + timeout * 1000000);
+        scheduledCount.incrementAndGet();
+        incoming.add(t);
+        if (worker == null) {
+            startWorker();
+        }
+        return t;
+    }
+
+    synchronized void startWorker() {
+        if (worker == null && running) {
+            startTime = System.nanoTime();
+            worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "GeoServer timeout scheduler");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    void work() {
+        long ticks = 0;
+        while (running) {
+            // wait for the end of the current tick
+            long next = startTime + (ticks + 1) * tick;
+            long sleep = (next - System.nanoTime()) / 1000000;
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            // place the new timeouts in their slots
+            Timeout t;
+            while ((t = incoming.poll()) != null) {
+                if (t.state != PENDING) {
+                    continue;
+                }
+                long expiry = (t.deadline - startTime) / tick;
+                t.rounds = (expiry - ticks) / wheel.length;
+                wheel[(int) (Math.max(expiry, ticks) & mask)].add(t);
+            }
+
+            wheel[(int) (ticks & mask)].expire();
+            ticks++;
+        }
+    }
+
+    /**
+     * Stops the scheduler thread, pending timeouts will never expire
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    public void destroy() {
+        shutdown();
+        synchronized (TimeoutScheduler.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * The number of timeouts scheduled so far
+     */
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    /**
+     * The number of timeouts that expired, that is, of operations that have been stopped
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /**
+     * The number of timeouts cancelled past {@link #NEAR_TIMEOUT_RATIO} of their duration
+     */
+    public long getNearTimeoutCount() {
+        return nearTimeoutCount.get();
+    }
+
+    /**
+     * The number of timeouts cancelled, that is, of operations completed in time
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * The number of timeouts neither expired nor cancelled
+     */
+    public long getPendingCount() {
+        return scheduledCount.get() - cancelledCount.get() - timedOutCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "TimeoutScheduler(scheduled=" + getScheduledCount() + ",timedOut="
+                + getTimedOutCount() + ",nearTimeout=" + getNearTimeoutCount() + ",pending="
+                + getPendingCount() + ")";
+    }
+}
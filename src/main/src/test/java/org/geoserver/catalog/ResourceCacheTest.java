@@ -0,0 +1,191 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ResourceCacheTest extends TestCase {
+
+    List<String> disposed = new ArrayList<String>();
+
+    class TestCache extends ResourceCache<String, String> {
+        TestCache(int maxSize) {
+            super("test", maxSize);
+        }
+
+        @Override
+        protected void dispose(String key, String value, boolean evicted) {
+            disposed.add(key);
+        }
+    }
+
+    Callable<String> loader(final String value) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                return value;
+            }
+        };
+    }
+
+    public void testLoadOnce() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final TestCache cache = new TestCache(-1);
+        final Callable<String> slowLoader = new Callable<String>() {
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.await(5, TimeUnit.SECONDS);
+                return "value";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return cache.get("key", slowLoader);
+                    }
+                }));
+            }
+            // unrelated keys are not blocked by the slow load
+            assertEquals("other", cache.get("other", loader("other")));
+
+            loading.countDown();
+            for (Future<String> future : futures) {
+                assertEquals("value", future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, loads.get());
+        ResourceCache.Statistics stats = cache.getStatistics();
+        assertEquals(2, stats.getMissCount());
+        assertEquals(3, stats.getHitCount());
+        assertEquals(2, stats.getLoadCount());
+    }
+
+    public void testFailedLoadIsRetried() throws Exception {
+        TestCache cache = new TestCache(-1);
+        try {
+            cache.get("key", new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IOException("failed");
+                }
+            });
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getStatistics().getLoadFailureCount());
+
+        assertEquals("value", cache.get("key", loader("value")));
+    }
+
+    public void testLRUEviction() throws Exception {
+        TestCache cache = new TestCache(2);
+        cache.get("a", loader("a"));
+        cache.get("b", loader("b"));
+        // touch a, so that b becomes the least recently used
+        cache.get("a", loader("a"));
+        cache.get("c", loader("c"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.getIfPresent("a"));
+        assertNull(cache.getIfPresent("b"));
+        assertNotNull(cache.getIfPresent("c"));
+        assertEquals(1, disposed.size());
+        assertEquals("b", disposed.get(0));
+        assertEquals(1, cache.getStatistics().getEvictionCount());
+    }
+
+    public void testWeightEviction() throws Exception {
+        TestCache cache = new TestCache(-1);
+        cache.setWeigher(new ResourceCache.Weigher<String, String>() {
+            public int weigh(String key, String value) {
+                return value.length();
+            }
+        });
+        cache.setMaxWeight(5);
+        cache.get("a", loader("aaa"));
+        cache.get("b", loader("bb"));
+        assertEquals(5, cache.getStatistics().getWeight());
+        cache.get("c", loader("c"));
+
+        assertNull(cache.getIfPresent("a"));
+        assertEquals(3, cache.getStatistics().getWeight());
+    }
+
+    public void testExpiration() throws Exception {
+        TestCache cache = new TestCache(-1);
+        cache.setExpireAfterAccess(10);
+        cache.get("a", loader("a"));
+        Thread.sleep(50);
+        cache.evict();
+
+        assertEquals(0, cache.size());
+        assertEquals(1, disposed.size());
+    }
+
+    public void testRemoveAndClear() throws Exception {
+        TestCache cache = new TestCache(-1);
+        cache.get("a", loader("a"));
+        cache.get("b", loader("b"));
+        cache.remove("a");
+        assertEquals(1, disposed.size());
+        cache.clear();
+        assertEquals(2, disposed.size());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getStatistics().getWeight());
+    }
+
+    public void testRemoveWhileLoading() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final TestCache cache = new TestCache(-1);
+        final Callable<String> slowLoader = new Callable<String>() {
+            public String call() throws Exception {
+                started.countDown();
+                loading.await(5, TimeUnit.SECONDS);
+                return "value" + loads.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> future = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return cache.get("key", slowLoader);
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            cache.remove("key");
+            assertTrue(disposed.isEmpty());
+
+            // the value loaded for the removed entry is disposed, and a fresh one returned
+            loading.countDown();
+            assertEquals("value2", future.get());
+            assertEquals(1, disposed.size());
+            assertEquals("value2", cache.getIfPresent("key"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
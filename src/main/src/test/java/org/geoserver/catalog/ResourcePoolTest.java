@@ -211,6 +211,6 @@ public class ResourcePoolTest extends GeoServerTestSupport {
         gs.save(global);
 
         Catalog catalog = getCatalog();
-        assertEquals(200, catalog.getResourcePool().featureTypeCache.maxSize());
+        assertEquals(200, catalog.getResourcePool().featureTypeCache.getMaxSize());
     }
 }
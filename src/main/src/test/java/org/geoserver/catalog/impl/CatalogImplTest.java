@@ -851,8 +851,25 @@ public class CatalogImplTest extends TestCase {
         assertEquals( "ft2Description", ft3.getDescription() );
         assertEquals( 1, ft3.getKeywords().size() );
     }
-    
-    
+
+    public void testRenameFeatureType() {
+        addLayer();
+
+        FeatureTypeInfo ft2 = catalog.getFeatureTypeByName(ft.getName());
+        ft2.setName( "ft2Name" );
+        catalog.save( ft2 );
+
+        assertNull( catalog.getFeatureTypeByName( "ftName" ) );
+        assertNotNull( catalog.getFeatureTypeByName( "ft2Name" ) );
+        assertNotNull( catalog.getFeatureTypeByName( ns.getPrefix(), "ft2Name" ) );
+        assertNotNull( catalog.getFeatureTypeByStore( ds, "ft2Name" ) );
+
+        // the layer follows the resource name
+        assertNull( catalog.getLayerByName( "ftName" ) );
+        assertNotNull( catalog.getLayerByName( "ft2Name" ) );
+        assertEquals( 1, catalog.getLayers( ft2 ).size() );
+    }
+
     public void testFeatureTypeEvents() {
         //set default namespace
         addNamespace();
@@ -1020,6 +1037,21 @@ public class CatalogImplTest extends TestCase {
         assertNotNull(l3);
     }
     
+    public void testRenameLayer() {
+        addLayer();
+
+        LayerInfo l2 = catalog.getLayerByName( l.getName() );
+        l2.setName( "changed" );
+        catalog.save( l2 );
+
+        // the resource follows the layer name
+        assertNull( catalog.getLayerByName( "ftName" ) );
+        assertNotNull( catalog.getLayerByName( "changed" ) );
+        assertNull( catalog.getResourceByName( "ftName", FeatureTypeInfo.class ) );
+        assertNotNull( catalog.getResourceByName( "changed", FeatureTypeInfo.class ) );
+        assertNotNull( catalog.getFeatureTypeByName( ns.getPrefix(), "changed" ) );
+    }
+    
     public void testEnableLayer() {
         addLayer();
         
@@ -0,0 +1,154 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.ModificationProxy;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+public class CatalogSnapshotTest extends TestCase {
+
+    File data;
+
+    GeoServerResourceLoader resourceLoader;
+
+    Catalog catalog;
+
+    CatalogSnapshot snapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = File.createTempFile("snapshot", "data", new File("./target"));
+        data.delete();
+        data.mkdir();
+        resourceLoader = new GeoServerResourceLoader(data);
+
+        catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        catalog.addListener(new GeoServerPersister(resourceLoader, new XStreamPersisterFactory()
+                .createXMLPersister()));
+        CatalogFactory factory = catalog.getFactory();
+
+        StyleInfo style = factory.createStyle();
+        style.setName("foostyle");
+        style.setFilename("foostyle.sld");
+        catalog.add(style);
+
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("acme");
+        catalog.add(ws);
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("acme");
+        ns.setURI("http://acme.org");
+        catalog.add(ns);
+
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("foostore");
+        ds.setWorkspace(ws);
+        catalog.add(ds);
+
+        FeatureTypeInfo ft = factory.createFeatureType();
+        ft.setName("foo");
+        ft.setNativeName("foo");
+        ft.setStore(ds);
+        ft.setNamespace(ns);
+        catalog.add(ft);
+
+        LayerInfo layer = factory.createLayer();
+        layer.setResource(ft);
+        layer.setDefaultStyle(style);
+        catalog.add(layer);
+
+        // disabled by the loader because of a connection error
+        DataStoreInfo raw = ModificationProxy.unwrap(catalog.getDataStoreByName("foostore"));
+        raw.setError(new Exception());
+        raw.setEnabled(false);
+
+        snapshot = new CatalogSnapshot(resourceLoader, new XStreamPersisterFactory()
+                .createXMLPersister());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(data);
+    }
+
+    public void testReadWrite() throws Exception {
+        assertNull(snapshot.read());
+
+        snapshot.write(catalog);
+        assertTrue(snapshot.getFile().exists());
+
+        Catalog read = snapshot.read();
+        assertNotNull(read);
+        assertEquals("acme", read.getDefaultWorkspace().getName());
+        assertEquals("acme", read.getDefaultNamespace().getPrefix());
+
+        DataStoreInfo ds = read.getDataStoreByName("foostore");
+        assertEquals(catalog.getDataStoreByName("foostore").getId(), ds.getId());
+        assertEquals(read.getWorkspaceByName("acme"), ds.getWorkspace());
+        // to be checked again by the loader
+        assertTrue(ds.isEnabled());
+
+        FeatureTypeInfo ft = read.getFeatureTypeByName("acme", "foo");
+        assertEquals(ds, ft.getStore());
+        assertEquals(read.getNamespaceByPrefix("acme"), ft.getNamespace());
+
+        LayerInfo layer = read.getLayerByName("foo");
+        assertEquals(ft, layer.getResource());
+        assertEquals(read.getStyleByName("foostyle"), layer.getDefaultStyle());
+    }
+
+    public void testOutOfDate() throws Exception {
+        snapshot.write(catalog);
+        assertNotNull(snapshot.read());
+
+        File ftf = new File(data, "workspaces/acme/foostore/foo/featuretype.xml");
+        ftf.setLastModified(ftf.lastModified() - 10000);
+        assertNull(snapshot.read());
+
+        // a new file
+        StyleInfo style = catalog.getFactory().createStyle();
+        style.setName("barstyle");
+        style.setFilename("barstyle.sld");
+        snapshot.write(catalog);
+        assertNotNull(snapshot.read());
+        catalog.add(style);
+        assertNull(snapshot.read());
+    }
+
+    public void testCorrupted() throws Exception {
+        snapshot.write(catalog);
+        byte[] bytes = FileUtils.readFileToByteArray(snapshot.getFile());
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        FileUtils.writeByteArrayToFile(snapshot.getFile(), truncated);
+        assertNull(snapshot.read());
+    }
+
+    public void testDispose() throws Exception {
+        ScheduledExecutorService executor = CatalogSnapshot.getExecutor();
+        CatalogSnapshot.dispose();
+        assertTrue(executor.isShutdown());
+        // started again on demand
+        assertNotSame(executor, CatalogSnapshot.getExecutor());
+        CatalogSnapshot.dispose();
+    }
+}
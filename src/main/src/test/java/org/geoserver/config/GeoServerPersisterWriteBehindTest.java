@@ -0,0 +1,135 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+public class GeoServerPersisterWriteBehindTest extends TestCase {
+
+    File data;
+
+    Catalog catalog;
+
+    GeoServerPersister persister;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = File.createTempFile("writebehind", "data", new File("./target"));
+        data.delete();
+        data.mkdir();
+        GeoServerResourceLoader resourceLoader = new GeoServerResourceLoader(data);
+
+        catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        persister = new GeoServerPersister(resourceLoader, new XStreamPersisterFactory()
+                .createXMLPersister(), true);
+        catalog.addListener(persister);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(data);
+    }
+
+    WorkspaceInfo addWorkspace(String name) {
+        CatalogFactory factory = catalog.getFactory();
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName(name);
+        catalog.add(ws);
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix(name);
+        ns.setURI("http://" + name + ".org");
+        catalog.add(ns);
+        return catalog.getWorkspaceByName(name);
+    }
+
+    public void testFlush() throws Exception {
+        assertTrue(persister.isWriteBehind());
+        addWorkspace("acme");
+        persister.flush();
+
+        assertEquals(0, persister.getPendingWrites());
+        assertTrue(new File(data, "workspaces/acme/workspace.xml").exists());
+        assertTrue(new File(data, "workspaces/acme/namespace.xml").exists());
+        assertFalse(new File(data, "workspaces/acme/workspace.xml.tmp").exists());
+        assertTrue(persister.getWriteCount() >= 2);
+        assertTrue(persister.getMaxWriteLatency() >= persister.getAverageWriteLatency());
+    }
+
+    public void testCoalesce() throws Exception {
+        // keep the writer busy while the changes pile up
+        final CountDownLatch latch = new CountDownLatch(1);
+        persister.writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        StyleInfo style = catalog.getFactory().createStyle();
+        style.setName("foo");
+        style.setFilename("foo.sld");
+        catalog.add(style);
+        for (int i = 0; i < 100; i++) {
+            style = catalog.getStyleByName("foo");
+            style.setFilename("foo" + i + ".sld");
+            catalog.save(style);
+        }
+        assertEquals(1, persister.getPendingWrites());
+        assertEquals(0, persister.getWriteCount());
+
+        latch.countDown();
+        GeoServerPersister.flush(catalog);
+
+        // the last change wins, written at once
+        String xml = FileUtils.readFileToString(new File(data, "styles/foo.xml"));
+        assertTrue(xml.contains("foo99.sld"));
+        assertEquals(0, persister.getPendingWrites());
+        assertEquals(1, persister.getWriteCount());
+    }
+
+    public void testRenameAfterChanges() throws Exception {
+        WorkspaceInfo ws = addWorkspace("acme");
+        DataStoreInfo ds = catalog.getFactory().createDataStore();
+        ds.setName("foostore");
+        ds.setWorkspace(ws);
+        ds.setEnabled(false);
+        catalog.add(ds);
+
+        // renaming waits for the store to be written, then moves it along
+        ws.setName("renamed");
+        catalog.save(ws);
+        persister.flush();
+
+        assertFalse(new File(data, "workspaces/acme").exists());
+        assertTrue(new File(data, "workspaces/renamed/workspace.xml").exists());
+        assertTrue(new File(data, "workspaces/renamed/foostore/datastore.xml").exists());
+
+        // the removal does not leave a store file behind
+        ds = catalog.getDataStoreByName("foostore");
+        ds.setDescription("changed");
+        catalog.save(ds);
+        catalog.remove(ds);
+        persister.flush();
+        assertFalse(new File(data, "workspaces/renamed/foostore").exists());
+    }
+}
@@ -0,0 +1,173 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.config;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.config.util.XStreamPersister;
+import org.geoserver.config.util.XStreamPersisterFactory;
+import org.geoserver.platform.GeoServerResourceLoader;
+
+public class ParallelCatalogReaderTest extends TestCase {
+
+    File data;
+
+    GeoServerResourceLoader resourceLoader;
+
+    @Override
+    protected void setUp() throws Exception {
+        data = File.createTempFile("catalog", "data", new File("./target"));
+        data.delete();
+        data.mkdir();
+        resourceLoader = new GeoServerResourceLoader(data);
+
+        // write out a small catalog
+        Catalog catalog = new CatalogImpl();
+        catalog.setResourceLoader(resourceLoader);
+        catalog.addListener(new GeoServerPersister(resourceLoader, persister()));
+        CatalogFactory factory = catalog.getFactory();
+
+        StyleInfo style = factory.createStyle();
+        style.setName("foostyle");
+        style.setFilename("foostyle.sld");
+        catalog.add(style);
+
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("acme");
+        catalog.add(ws);
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("acme");
+        ns.setURI("http://acme.org");
+        catalog.add(ns);
+
+        WorkspaceInfo other = factory.createWorkspace();
+        other.setName("other");
+        catalog.add(other);
+        catalog.setDefaultWorkspace(ws);
+
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("foostore");
+        ds.setWorkspace(ws);
+        ds.setEnabled(false);
+        catalog.add(ds);
+
+        for (String name : new String[] { "foo", "bar" }) {
+            FeatureTypeInfo ft = factory.createFeatureType();
+            ft.setName(name);
+            ft.setNativeName(name);
+            ft.setStore(ds);
+            ft.setNamespace(ns);
+            catalog.add(ft);
+
+            LayerInfo layer = factory.createLayer();
+            layer.setResource(ft);
+            layer.setDefaultStyle(style);
+            catalog.add(layer);
+        }
+
+        LayerGroupInfo group = factory.createLayerGroup();
+        group.setName("group");
+        group.getLayers().add(catalog.getLayerByName("foo"));
+        group.getStyles().add(null);
+        catalog.add(group);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(data);
+    }
+
+    XStreamPersister persister() {
+        return new XStreamPersisterFactory().createXMLPersister();
+    }
+
+    Catalog load() throws Exception {
+        return new DefaultGeoServerLoader(resourceLoader).readCatalog(persister());
+    }
+
+    public void testParseUnresolved() throws Exception {
+        ParallelCatalogReader reader = new ParallelCatalogReader(persister(), 4);
+        reader.scan(new File(data, "styles"), new File(data, "workspaces"), new File(data,
+                "layergroups"));
+        // 1 style, default + 2 workspaces, 1 namespace, 1 store, 2 feature types and layers,
+        // 1 group
+        assertEquals(11, reader.toParse.size());
+        reader.parseAll();
+
+        File ftd = new File(data, "workspaces/acme/foostore/foo");
+        FeatureTypeInfo ft = reader.depersist(new File(ftd, "featuretype.xml"),
+                FeatureTypeInfo.class);
+        assertTrue(Proxy.isProxyClass(ft.getStore().getClass()));
+
+        Catalog catalog = new CatalogImpl();
+        ParallelCatalogReader.resolve(catalog, ft);
+        assertNull(ft.getStore());
+        assertNull(ft.getNamespace());
+        reader.dispose();
+    }
+
+    public void testLoad() throws Exception {
+        Catalog catalog = load();
+
+        assertNotNull(catalog.getStyleByName("foostyle"));
+        assertEquals(2, catalog.getWorkspaces().size());
+        assertEquals("acme", catalog.getDefaultWorkspace().getName());
+        assertEquals("acme", catalog.getDefaultNamespace().getPrefix());
+
+        DataStoreInfo ds = catalog.getDataStoreByName("acme", "foostore");
+        assertEquals(catalog.getWorkspaceByName("acme"), ds.getWorkspace());
+        assertEquals(2, catalog.getFeatureTypes().size());
+        for (FeatureTypeInfo ft : catalog.getFeatureTypes()) {
+            assertEquals(ds, ft.getStore());
+            assertEquals(catalog.getNamespaceByPrefix("acme"), ft.getNamespace());
+        }
+
+        assertEquals(2, catalog.getLayers().size());
+        LayerInfo layer = catalog.getLayerByName("foo");
+        assertEquals(catalog.getFeatureTypeByName("acme", "foo"), layer.getResource());
+        assertEquals(catalog.getStyleByName("foostyle"), layer.getDefaultStyle());
+
+        LayerGroupInfo group = catalog.getLayerGroupByName("group");
+        assertEquals(1, group.getLayers().size());
+        assertEquals(layer, group.getLayers().get(0));
+        assertNull(group.getStyles().get(0));
+    }
+
+    public void testLoadMissingStyle() throws Exception {
+        FileUtils.forceDelete(new File(data, "styles/foostyle.xml"));
+
+        Catalog catalog = load();
+        assertNull(catalog.getStyleByName("foostyle"));
+        assertEquals(2, catalog.getLayers().size());
+        assertNull(catalog.getLayerByName("foo").getDefaultStyle());
+    }
+
+    public void testLoadMissingWorkspace() throws Exception {
+        File f = new File(data, "workspaces/acme/foostore/datastore.xml");
+        FileUtils.writeStringToFile(f, "<dataStore><name>foostore</name>"
+                + "<workspace><id>missing</id></workspace><enabled>false</enabled></dataStore>");
+
+        // the store cannot be loaded, and neither can its feature types and layers
+        Catalog catalog = load();
+        assertTrue(catalog.getDataStores().isEmpty());
+        assertTrue(catalog.getFeatureTypes().isEmpty());
+        assertTrue(catalog.getLayers().isEmpty());
+        assertNull(catalog.getLayerGroupByName("group"));
+    }
+}
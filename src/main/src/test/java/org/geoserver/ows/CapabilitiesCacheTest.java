@@ -0,0 +1,168 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogFactory;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.DimensionInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.impl.CatalogImpl;
+import org.geoserver.catalog.impl.DimensionInfoImpl;
+import org.geoserver.config.impl.GeoServerImpl;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class CapabilitiesCacheTest extends TestCase {
+
+    CapabilitiesCache cache;
+
+    AtomicInteger produced;
+
+    CapabilitiesCache.Producer producer;
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = new CapabilitiesCache(60000, 1024 * 1024);
+        produced = new AtomicInteger();
+        producer = new CapabilitiesCache.Producer() {
+            public void write(OutputStream output) throws IOException {
+                output.write(("<Capabilities>" + produced.incrementAndGet() + "</Capabilities>")
+                        .getBytes());
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Dispatcher.REQUEST.remove();
+    }
+
+    public void testWrite() throws Exception {
+        assertEquals("<Capabilities>1</Capabilities>", write("wms|1.1.1"));
+        assertEquals("<Capabilities>1</Capabilities>", write("wms|1.1.1"));
+        assertEquals("<Capabilities>2</Capabilities>", write("wms|1.3.0"));
+        assertEquals(2, produced.get());
+    }
+
+    public void testInvalidate() throws Exception {
+        write("wms|1.1.1");
+        String etag = etag("wms|1.1.1");
+        cache.invalidate();
+        assertEquals("<Capabilities>2</Capabilities>", write("wms|1.1.1"));
+        assertFalse(etag.equals(etag("wms|1.1.1")));
+    }
+
+    public void testValidatorsFollowContents() throws Exception {
+        cache = new CapabilitiesCache(100, 1024 * 1024);
+        final String[] contents = new String[] { "<Capabilities/>" };
+        producer = new CapabilitiesCache.Producer() {
+            public void write(OutputStream output) throws IOException {
+                produced.incrementAndGet();
+                output.write(contents[0].getBytes());
+            }
+        };
+        String[][] headers = cache.getHeaders("wms|1.1.1", producer);
+        assertEquals("ETag", headers[0][0]);
+        assertEquals("Last-Modified", headers[1][0]);
+
+        // rebuilt after the max age with the same contents, same validators
+        Thread.sleep(150);
+        String[][] rebuilt = cache.getHeaders("wms|1.1.1", producer);
+        assertEquals(2, produced.get());
+        assertEquals(headers[0][1], rebuilt[0][1]);
+        assertEquals(headers[1][1], rebuilt[1][1]);
+
+        // the data changed, e.g. a new time step, without the catalog changing
+        contents[0] = "<Capabilities><Dimension/></Capabilities>";
+        Thread.sleep(150);
+        rebuilt = cache.getHeaders("wms|1.1.1", producer);
+        assertFalse(headers[0][1].equals(rebuilt[0][1]));
+    }
+
+    public void testDisabled() throws Exception {
+        cache = new CapabilitiesCache(0, 1024 * 1024);
+        write("wms|1.1.1");
+        write("wms|1.1.1");
+        assertEquals(2, produced.get());
+        assertNull(cache.getHeaders("wms|1.1.1", producer));
+    }
+
+    public void testNotModified() throws Exception {
+        MockHttpServletRequest http = new MockHttpServletRequest();
+        Request request = new Request();
+        request.setHttpRequest(http);
+        Dispatcher.REQUEST.set(request);
+
+        // no conditional headers
+        String etag = etag("wms|1.1.1");
+        cache.checkNotModified("wms|1.1.1");
+
+        http.setHeader("If-None-Match", etag);
+        try {
+            cache.checkNotModified("wms|1.1.1");
+            fail("Should have answered with a 304");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(HttpServletResponse.SC_NOT_MODIFIED, e.getErrorCode());
+        }
+
+        // not cached anymore, the document has to be built again to tell
+        cache.invalidate();
+        cache.checkNotModified("wms|1.1.1");
+    }
+
+    public void testDataDimensions() throws Exception {
+        Catalog catalog = new CatalogImpl();
+        cache = new CapabilitiesCache(new GeoServerImpl(), catalog);
+        CatalogFactory factory = catalog.getFactory();
+        WorkspaceInfo ws = factory.createWorkspace();
+        ws.setName("acme");
+        catalog.add(ws);
+        NamespaceInfo ns = factory.createNamespace();
+        ns.setPrefix("acme");
+        ns.setURI("http://acme.org");
+        catalog.add(ns);
+        DataStoreInfo ds = factory.createDataStore();
+        ds.setName("store");
+        ds.setWorkspace(ws);
+        catalog.add(ds);
+        FeatureTypeInfo ft = factory.createFeatureType();
+        ft.setName("foo");
+        ft.setNativeName("foo");
+        ft.setStore(ds);
+        ft.setNamespace(ns);
+        catalog.add(ft);
+        assertFalse(cache.hasDataDimensions());
+
+        DimensionInfo time = new DimensionInfoImpl();
+        time.setEnabled(true);
+        ft = catalog.getFeatureTypeByName("acme", "foo");
+        ft.getMetadata().put(ResourceInfo.TIME, time);
+        catalog.save(ft);
+        assertTrue(cache.hasDataDimensions());
+    }
+
+    String etag(String key) throws IOException {
+        return cache.getHeaders(key, producer)[0][1];
+    }
+
+    String write(String key) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        cache.write(key, bos, producer);
+        return new String(bos.toByteArray());
+    }
+}
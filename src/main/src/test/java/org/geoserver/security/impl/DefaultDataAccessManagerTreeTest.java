@@ -5,6 +5,7 @@ import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 
+import java.util.Collections;
 import java.util.Properties;
 import java.util.Set;
 
@@ -155,4 +156,34 @@ public class DefaultDataAccessManagerTreeTest extends TestCase {
         assertTrue(bases.canAccess(milUser, AccessMode.READ));
         assertTrue(bases.canAccess(milUser, AccessMode.WRITE));
     }
+
+    public void testAuthorizationIndex() throws Exception {
+        SecureTreeNode root = buildTree("complex.properties");
+        DefaultDataAccessManager.AuthorizationIndex index = 
+            new DefaultDataAccessManager.AuthorizationIndex(root);
+
+        // the indexed decisions are the same as the tree ones
+        String[][] paths = new String[][] { { "topp" }, { "topp", "states" },
+                { "topp", "landmarks" }, { "topp", "bases" }, { "nurc" }, { "nurc", "arc.grid" },
+                { "cite" }, { "cite", "Lakes" } };
+        TestingAuthenticationToken[] users = new TestingAuthenticationToken[] { rwUser, roUser,
+                anonymous, milUser };
+        for (int i = 0; i < 2; i++) {
+            for (String[] path : paths) {
+                for (TestingAuthenticationToken user : users) {
+                    for (AccessMode mode : AccessMode.values()) {
+                        assertEquals(root.getDeepestNode(path).canAccess(user, mode), 
+                                index.canAccess(user, mode, path));
+                    }
+                }
+            }
+        }
+
+        // users with the same roles share the decisions
+        TestingAuthenticationToken otherReader = new TestingAuthenticationToken("ro2",
+                "supersecret", new GrantedAuthority[] { new GrantedAuthorityImpl("READER") });
+        assertTrue(index.canAccess(otherReader, AccessMode.READ, "topp", "states"));
+        assertEquals(4, index.decisions.size());
+        assertEquals(paths.length, index.decisions.get(Collections.singleton("READER")).size());
+    }
 }
@@ -0,0 +1,113 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org.  All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.geoserver.util.TimeoutScheduler.Timeout;
+
+public class TimeoutSchedulerTest extends TestCase {
+
+    TimeoutScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        // small wheel, so that the timeouts go around it a few times
+        scheduler = new TimeoutScheduler(10, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+
+    public void testExpire() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        Timeout timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        }, 200);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 190);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(1, scheduler.getTimedOutCount());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    public void testCancel() throws Exception {
+        final AtomicBoolean run = new AtomicBoolean();
+        Timeout timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+                run.set(true);
+            }
+        }, 100);
+        assertEquals(1, scheduler.getPendingCount());
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.cancel());
+
+        Thread.sleep(300);
+        assertFalse(run.get());
+        assertEquals(1, scheduler.getCancelledCount());
+        assertEquals(0, scheduler.getNearTimeoutCount());
+        assertEquals(0, scheduler.getTimedOutCount());
+    }
+
+    public void testNearTimeout() throws Exception {
+        Timeout timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+            }
+        }, 1000);
+        Thread.sleep(850);
+        timeout.cancel();
+        assertEquals(1, scheduler.getNearTimeoutCount());
+    }
+
+    public void testManyTimeouts() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(50);
+        Runnable task = new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            Timeout timeout = scheduler.schedule(task, 10 + i * 5);
+            if (i % 2 == 0) {
+                timeout.cancel();
+            }
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(50, scheduler.getTimedOutCount());
+        assertEquals(50, scheduler.getCancelledCount());
+    }
+
+    public void testSharedLifecycle() throws Exception {
+        TimeoutScheduler shared = TimeoutScheduler.get();
+        assertSame(shared, TimeoutScheduler.get());
+
+        // once destroyed, it won't accept timeouts and it's replaced
+        shared.destroy();
+        try {
+            shared.schedule(new Runnable() {
+                public void run() {
+                }
+            }, 100);
+            fail("A destroyed scheduler should not accept timeouts");
+        } catch (IllegalStateException e) {
+            // fine
+        }
+        TimeoutScheduler replacement = TimeoutScheduler.get();
+        assertNotSame(shared, replacement);
+        replacement.destroy();
+    }
+}
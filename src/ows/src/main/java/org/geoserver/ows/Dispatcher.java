@@ -20,7 +20,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -30,7 +29,6 @@ import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.namespace.QName;
 
 import org.eclipse.emf.ecore.EObject;
 import org.geoserver.ows.util.EncodingInfo;
@@ -48,6 +46,9 @@ import org.geotools.util.Version;
 import org.geotools.xml.EMFUtils;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.AbstractController;
 import org.xml.sax.SAXException;
@@ -106,7 +107,7 @@ import org.xmlpull.v1.XmlPullParserFactory;
  * @author Justin Deoliveira, The Open Planning Project, jdeolive@openplans.org
  *
  */
-public class Dispatcher extends AbstractController {
+public class Dispatcher extends AbstractController implements ApplicationListener {
     /**
      * Logging instance
      */
@@ -135,6 +136,11 @@ public class Dispatcher extends AbstractController {
      */
     List<DispatcherCallback> callbacks = Collections.EMPTY_LIST;
     
+    /**
+     * lookup tables for services, readers and responses, rebuilt when the context is refreshed 
+     */
+    volatile DispatcherRegistry registry;
+    
     /**
      * Sets the flag to control wether the dispatcher is cite compliante.
      * <p>
@@ -160,6 +166,9 @@ public class Dispatcher extends AbstractController {
         //load life cycle callbacks
         callbacks = GeoServerExtensions.extensions( DispatcherCallback.class, context);
         
+        //the lookup tables will be rebuilt on demand
+        registry = null;
+        
         // setup the xml lookahead value
         String lookahead = GeoServerExtensions.getProperty("XML_LOOKAHEAD", context);
         if(lookahead != null) {
@@ -176,6 +185,13 @@ public class Dispatcher extends AbstractController {
         }
     }
     
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent) {
+            //extensions might have changed, drop the lookup tables
+            registry = null;
+        }
+    }
+    
     protected void preprocessRequest(HttpServletRequest request)
         throws Exception {
         //set the charset
@@ -250,6 +266,70 @@ public class Dispatcher extends AbstractController {
         return null;
     }
 
+    /**
+     * Executes an operation against an already parsed request object, without going through the
+     * http request parsing and the response encoding.
+     * <p>
+     * This is meant for in process requests (e.g., the tile cache rendering a meta tile): the
+     * request still goes thru the same callbacks as a dispatched one, so that security, control
+     * flow and monitoring keep on working, but the kvp/xml parsing and the lookups done to build
+     * the request object are skipped. The <code>request</code> must have the service, version and
+     * request properties set, its http request and response are passed as is to the callbacks.
+     * </p>
+     *
+     * @param request The request, its service, version and request properties must be set
+     * @param requestBean The parsed request object, passed as the sole argument of the operation
+     * @return The result of the operation, as returned by the service and the callbacks
+     */
+    public Object execute(Request request, Object requestBean) throws Exception {
+        Request previous = REQUEST.get();
+        try {
+            request = fireInitCallback(request);
+            REQUEST.set(request);
+
+            Service service = findService(request.getService(), request.getVersion());
+            if (service == null) {
+                String msg = "No service: ( " + request.getService() + " )";
+                throw new ServiceException(msg, "InvalidParameterValue", "service");
+            }
+            service = fireServiceDispatchedCallback(request, service);
+
+            Object serviceBean = service.getService();
+            Method method = OwsUtils.method(serviceBean.getClass(), request.getRequest());
+            boolean exists = false;
+            for (String op : service.getOperations()) {
+                if (op.equalsIgnoreCase(request.getRequest())) {
+                    exists = true;
+                    break;
+                }
+            }
+            if (method == null || !exists) {
+                String msg = "No such operation " + request;
+                throw new ServiceException(msg, "OperationNotSupported", request.getRequest());
+            }
+
+            Operation operation = new Operation(request.getRequest(), service, method,
+                    new Object[] { requestBean });
+            operation = fireOperationDispatchedCallback(request, operation);
+
+            return execute(request, operation);
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable t) {
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new ServiceException(t);
+        } finally {
+            fireFinishedCallback(request);
+            if (previous != null) {
+                REQUEST.set(previous);
+            } else {
+                REQUEST.remove();
+            }
+        }
+    }
+
     void fireFinishedCallback(Request req) {
         for ( DispatcherCallback cb : callbacks ) {
             cb.finished( req );
@@ -649,41 +729,30 @@ public class Dispatcher extends AbstractController {
         throws Throwable {
         //step 6: write response
         if (result != null) {
-            //look up respones
-            List responses = GeoServerExtensions.extensions(Response.class);
-
-            //first filter by binding, and canHandle
-         O: for (Iterator itr = responses.iterator(); itr.hasNext();) {
-                Response response = (Response) itr.next();
-
-                Class binding = response.getBinding();
-
-                if (!binding.isAssignableFrom(result.getClass())
-                        || !response.canHandle(opDescriptor)) {
-                    itr.remove();
-
+            //look up the responses whose binding matches the result, then filter by
+            // canHandle and output format
+            Response[] candidates = getRegistry().getResponses(result.getClass());
+            Response match = null;
+            List responses = null;
+            for (int i = 0; i < candidates.length; i++) {
+                Response response = candidates[i];
+                if (!response.canHandle(opDescriptor)
+                        || !canHandleOutputFormat(response, req.getOutputFormat())) {
                     continue;
                 }
 
-                //filter by output format
-                Set outputFormats = response.getOutputFormats();
-
-                if ((req.getOutputFormat() != null) && (!outputFormats.isEmpty())
-                        && !outputFormats.contains(req.getOutputFormat())) {
-                    
-                    //must do a case insensitive check
-                    for ( Iterator of = outputFormats.iterator(); of.hasNext(); ) {
-                        String outputFormat = (String) of.next();
-                        if( req.getOutputFormat().equalsIgnoreCase( outputFormat ) ) {
-                            continue O;
-                        }
+                if (match == null) {
+                    match = response;
+                } else {
+                    // more than one match, we'll need to sort them out
+                    if (responses == null) {
+                        responses = new ArrayList();
+                        responses.add(match);
                     }
-                    
-                    itr.remove();
+                    responses.add(response);
                 }
             }
-
-            if (responses.isEmpty()) {
+            if (match == null) {
                 String msg = "No response: ( object = " + result.getClass();
 
                 if (req.getOutputFormat() != null) {
@@ -695,7 +764,7 @@ public class Dispatcher extends AbstractController {
                 throw new RuntimeException(msg);
             }
 
-            if (responses.size() > 1) {
+            if (responses != null) {
                 //sort by class hierarchy
                 Collections.sort(responses,
                     new Comparator() {
@@ -727,9 +796,11 @@ public class Dispatcher extends AbstractController {
                     String msg = "Multiple responses: (" + result.getClass() + ")";
                     throw new RuntimeException(msg);
                 }
+                
+                match = r1;
             }
 
-            Response response = (Response) responses.get(0);
+            Response response = match;
             response = fireResponseDispatchedCallback(req,opDescriptor,result,response);
 
             //load the output strategy to be used
@@ -743,9 +814,8 @@ public class Dispatcher extends AbstractController {
             req.getHttpResponse().setContentType(response.getMimeType(result, opDescriptor));
 
             //set any extra headers, other than the mime-type
-            if (response.getHeaders(result, opDescriptor) != null) {
-                String[][] headers = response.getHeaders(result, opDescriptor);
-
+            String[][] headers = response.getHeaders(result, opDescriptor);
+            if (headers != null) {
                 for (int i = 0; i < headers.length; i++) {
                     req.getHttpResponse().addHeader(headers[i][0], headers[i][1]);
                 }
@@ -768,6 +838,29 @@ public class Dispatcher extends AbstractController {
         }
     }
 
+    /**
+     * Checks the response output formats against the requested one (case insensitive)
+     */
+    boolean canHandleOutputFormat(Response response, String outputFormat) {
+        if (outputFormat == null) {
+            return true;
+        }
+
+        Set outputFormats = response.getOutputFormats();
+        if (outputFormats.isEmpty() || outputFormats.contains(outputFormat)) {
+            return true;
+        }
+
+        //must do a case insensitive check
+        for (Iterator of = outputFormats.iterator(); of.hasNext();) {
+            if (outputFormat.equalsIgnoreCase((String) of.next())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     Response fireResponseDispatchedCallback(Request req, Operation op, Object result, Response response ) {
         for ( DispatcherCallback cb : callbacks ) {
             Response r = cb.responseDispatched(req, op, result, response);
@@ -776,21 +869,27 @@ public class Dispatcher extends AbstractController {
         return response;
     }
     
-    Collection loadServices() {
-        Collection services = GeoServerExtensions.extensions(Service.class);
-
-        if (!(new HashSet(services).size() == services.size())) {
-            String msg = "Two identical service descriptors found";
-            throw new IllegalStateException(msg);
+    /**
+     * Returns the lookup tables for services, readers and responses, building them on first use
+     */
+    DispatcherRegistry getRegistry() {
+        DispatcherRegistry result = registry;
+        if (result == null) {
+            synchronized (this) {
+                result = registry;
+                if (result == null) {
+                    registry = result = DispatcherRegistry.lookup();
+                }
+            }
         }
+        return result;
+    }
 
-        return services;
+    Collection loadServices() {
+        return getRegistry().getServices();
     }
 
     Service findService(String id, String ver) throws ServiceException {
-        Version version = (ver != null) ? new Version(ver) : null;
-        Collection services = loadServices();
-        
         // the id is actually the pathinfo, in case workspace specific services
         // are active we want to skip the workspace part in the path and go directly to the
         // servlet, which normally, if we ended up here, is a reflector (wms/kml)
@@ -798,304 +897,23 @@ public class Dispatcher extends AbstractController {
             id = id.substring(id.indexOf("/") + 1);
         }
 
-        //first just match on service,request
-        List matches = new ArrayList();
-
-        for (Iterator itr = services.iterator(); itr.hasNext();) {
-            Service sBean = (Service) itr.next();
-
-            if (sBean.getId().equalsIgnoreCase(id)) {
-                matches.add(sBean);
-            }
-        }
-
-        if (matches.isEmpty()) {
-            return null;
-        }
-
-        Service sBean = null;
-
-        //if multiple, use version to filter match
-        if (matches.size() > 1) {
-            List vmatches = new ArrayList(matches);
-
-            //match up the version
-            if (version != null) {
-                //version specified, look for a match
-                for (Iterator itr = vmatches.iterator(); itr.hasNext();) {
-                    Service s = (Service) itr.next();
-
-                    if (version.equals(s.getVersion())) {
-                        continue;
-                    }
-
-                    itr.remove();
-                }
-
-                if (vmatches.isEmpty()) {
-                    //no matching version found, drop out and next step 
-                    // will sort to return highest version
-                    vmatches = new ArrayList(matches);
-                }
-            }
-
-            //multiple services found, sort by version
-            if (vmatches.size() > 1) {
-                //use highest version
-                Comparator comparator = new Comparator() {
-                        public int compare(Object o1, Object o2) {
-                            Service s1 = (Service) o1;
-                            Service s2 = (Service) o2;
-
-                            return s1.getVersion().compareTo(s2.getVersion());
-                        }
-                    };
-
-                Collections.sort(vmatches, comparator);
-            }
-
-            sBean = (Service) vmatches.get(vmatches.size() - 1);
-        } else {
-            //only a single match, that was easy
-            sBean = (Service) matches.get(0);
-        }
-
-        return sBean;
+        return getRegistry().findService(id, ver);
     }
 
     Collection loadKvpRequestReaders() {
-        Collection kvpReaders = GeoServerExtensions.extensions(KvpRequestReader.class);
-
-        if (!(new HashSet(kvpReaders).size() == kvpReaders.size())) {
-            String msg = "Two identical kvp readers found";
-            throw new IllegalStateException(msg);
-        }
-
-        return kvpReaders;
+        return getRegistry().getKvpRequestReaders();
     }
 
     KvpRequestReader findKvpRequestReader(Class type) {
-        Collection kvpReaders = loadKvpRequestReaders();
-
-        List matches = new ArrayList();
-
-        for (Iterator itr = kvpReaders.iterator(); itr.hasNext();) {
-            KvpRequestReader kvpReader = (KvpRequestReader) itr.next();
-
-            if (kvpReader.getRequestBean().isAssignableFrom(type)) {
-                matches.add(kvpReader);
-            }
-        }
-
-        if (matches.isEmpty()) {
-            return null;
-        }
-
-        if (matches.size() > 1) {
-            //sort by class hierarchy
-            Comparator comparator = new Comparator() {
-                    public int compare(Object o1, Object o2) {
-                        KvpRequestReader kvp1 = (KvpRequestReader) o1;
-                        KvpRequestReader kvp2 = (KvpRequestReader) o2;
-
-                        if (kvp2.getRequestBean().isAssignableFrom(kvp1.getRequestBean())) {
-                            return -1;
-                        }
-
-                        return 1;
-                    }
-                };
-
-            Collections.sort(matches, comparator);
-        }
-
-        return (KvpRequestReader) matches.get(0);
+        return getRegistry().findKvpRequestReader(type);
     }
 
     Collection loadXmlReaders() {
-        List<XmlRequestReader> xmlReaders = GeoServerExtensions.extensions(XmlRequestReader.class);
-
-        if (!(new HashSet<XmlRequestReader>(xmlReaders).size() == xmlReaders.size())) {
-        
-            String msg = "Two identical xml readers found";
-            for (int i = 0; i < xmlReaders.size(); i++) {
-                XmlRequestReader r1 = xmlReaders.get(i);
-                for (int j = i + 1; j < xmlReaders.size(); j++) {
-                    XmlRequestReader r2 = xmlReaders.get(j);
-                    if(r1.equals(r2)) {
-                        msg += ": " + r1 + " and " + r2;
-                        break;
-                    }
-                }
-                
-            }
-            
-            throw new IllegalStateException(msg);
-        }
-
-        return xmlReaders;
+        return getRegistry().getXmlRequestReaders();
     }
 
     XmlRequestReader findXmlReader(String namespace, String element, String serviceId, String ver) {
-        Collection xmlReaders = loadXmlReaders();
-
-        //first just match on namespace, element
-        List matches = new ArrayList();
-
-        for (Iterator itr = xmlReaders.iterator(); itr.hasNext();) {
-            XmlRequestReader xmlReader = (XmlRequestReader) itr.next();
-            QName xmlElement = xmlReader.getElement();
-
-            if (xmlElement.getLocalPart().equalsIgnoreCase(element)) {
-                if (xmlElement.getNamespaceURI().equalsIgnoreCase(namespace)) {
-                    matches.add(xmlReader);
-                }
-            }
-        }
-
-        if (matches.isEmpty()) {
-            //do a more lax serach, search only on the element name if the 
-            // namespace was unspecified
-            if ( namespace == null || namespace.equals( "" ) ) {
-                String msg = "No namespace specified in request, searching for "
-                    + " xml reader by element name only";
-                logger.info( msg );
-                
-                for ( Iterator itr = xmlReaders.iterator(); itr.hasNext(); ) {
-                    XmlRequestReader xmlReader = (XmlRequestReader) itr.next();
-                    if ( xmlReader.getElement().getLocalPart().equals( element ) ) {
-                        matches.add( xmlReader );
-                    }
-                }
-                
-                if ( !matches.isEmpty() ) {
-                    //we found some matches, make sure they are all in the 
-                    // same namespace
-                    Iterator itr = matches.iterator();
-                    XmlRequestReader first = (XmlRequestReader) itr.next();
-                    while( itr.hasNext() ) {
-                        XmlRequestReader xmlReader = (XmlRequestReader ) itr.next();
-                        if ( !first.getElement().equals( xmlReader.getElement() ) ) {
-                            //abort
-                            matches.clear();
-                            break;
-                        }
-                    }
-                }
-            }
-        }
-        
-        if ( matches.isEmpty() ) {
-            String msg = "No xml reader: (" + namespace + "," + element + ")";
-            logger.info(msg);
-            return null;
-        }
-
-        XmlRequestReader xmlReader = null;
-
-        //if multiple, use version to filter match
-        if (matches.size() > 1) {
-            List vmatches = new ArrayList(matches);
-            
-            // match up the service
-            if(serviceId != null) {
-                for (Iterator itr = vmatches.iterator(); itr.hasNext();) {
-                    XmlRequestReader r = (XmlRequestReader) itr.next();
-
-                    if (r.getServiceId() == null || serviceId.equalsIgnoreCase(r.getServiceId())) {
-                        continue;
-                    }
-
-                    itr.remove();
-                }
-                
-                // if no reader matching the service is found, we should
-                // not return a reader, as service is key to identify the reader
-                // we cannot just assume a meaningful default
-            }
-
-            // match up the version
-            if (ver != null) {
-                Version version = new Version(ver);
-
-                // version specified, look for a match (and allow version
-                // generic ones to live by)
-                for (Iterator itr = vmatches.iterator(); itr.hasNext();) {
-                    XmlRequestReader r = (XmlRequestReader) itr.next();
-
-                    if (r.getVersion() == null || version.equals(r.getVersion())) {
-                        continue;
-                    }
-
-                    itr.remove();
-                }
-
-                if (vmatches.isEmpty()) {
-                    // no matching version found, drop out and next step 
-                    // will sort to return highest version
-                    vmatches = new ArrayList(matches);
-                }
-            }
-
-            //multiple readers found, sort by version and by service match
-            if (vmatches.size() > 1) {
-                //use highest version
-                Comparator comparator = new Comparator() {
-                        public int compare(Object o1, Object o2) {
-                            XmlRequestReader r1 = (XmlRequestReader) o1;
-                            XmlRequestReader r2 = (XmlRequestReader) o2;
-
-                            Version v1 = r1.getVersion();
-                            Version v2 = r2.getVersion();
-
-                            if ((v1 == null) && (v2 == null)) {
-                                return 0;
-                            }
-
-                            if ((v1 != null) && (v2 == null)) {
-                                return 1;
-                            }
-
-                            if ((v1 == null) && (v2 != null)) {
-                                return -1;
-                            }
-
-                            int versionCompare = v1.compareTo(v2);
-
-                            if (versionCompare != 0) {
-                                return versionCompare;
-                            }
-
-                            String sid1 = r1.getServiceId();
-                            String sid2 = r2.getServiceId();
-
-                            if ((sid1 == null) && (sid2 == null)) {
-                                return 0;
-                            }
-
-                            if ((sid1 != null) && (sid2 == null)) {
-                                return 1;
-                            }
-
-                            if ((sid1 == null) && (sid2 != null)) {
-                                return -1;
-                            }
-
-                            return sid1.compareTo(sid2);
-                        }
-                    };
-
-                Collections.sort(vmatches, comparator);
-            }
-
-            if(vmatches.size() > 0 )
-                xmlReader = (XmlRequestReader) vmatches.get(vmatches.size() - 1);
-        } else {
-            //only a single match, that was easy
-            xmlReader = (XmlRequestReader) matches.get(0);
-        }
-
-        return xmlReader;
+        return getRegistry().findXmlReader(namespace, element, serviceId, ver);
     }
 
     ServiceStrategy findOutputStrategy(HttpServletResponse response) {
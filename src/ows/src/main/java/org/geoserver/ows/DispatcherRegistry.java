@@ -0,0 +1,509 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Service;
+import org.geotools.util.Version;
+
+/**
+ * Pre-resolved lookup tables used by the {@link Dispatcher} to locate services, request readers
+ * and responses.
+ * <p>
+ * The registry takes a snapshot of the {@link Service}, {@link KvpRequestReader},
+ * {@link XmlRequestReader} and {@link Response} extensions once, and indexes them so that the
+ * per request lookups do not have to scan, filter and sort the full extension lists every time.
+ * The resolution rules (and thus the resolution order) are exactly the ones the dispatcher used
+ * to apply on the raw extension lists, the registry only avoids repeating the request independent
+ * parts of that work.
+ * </p>
+ * <p>
+ * Instances are immutable once built, and safe for concurrent use. The dispatcher throws away its
+ * registry and builds a new one whenever the application context is refreshed.
+ * </p>
+ */
+class DispatcherRegistry {
+
+    static Logger logger = Dispatcher.logger;
+
+    /**
+     * Marks a cached "no match" in the concurrent maps, which do not accept null values
+     */
+    static final Object NO_MATCH = new Object();
+
+    /**
+     * Sorts services by version, lowest first
+     */
+    static final Comparator<Service> SERVICE_VERSION_COMPARATOR = new Comparator<Service>() {
+        public int compare(Service s1, Service s2) {
+            return s1.getVersion().compareTo(s2.getVersion());
+        }
+    };
+
+    /**
+     * The service descriptors, in extension order
+     */
+    List<Service> services;
+
+    /**
+     * Service descriptors by lower case id, sorted by version (stable, lowest first)
+     */
+    Map<String, Service[]> servicesById;
+
+    List<KvpRequestReader> kvpReaders;
+
+    /**
+     * Kvp reader resolved for each request bean class
+     */
+    ConcurrentHashMap<Class, Object> kvpReadersByType = new ConcurrentHashMap<Class, Object>();
+
+    List<XmlRequestReader> xmlReaders;
+
+    /**
+     * Maximum number of cached xml reader lookups. The keys come from the request documents, so
+     * the cache has to be bounded
+     */
+    static final int MAX_XML_READERS = 1000;
+
+    /**
+     * Xml readers resolved for each (namespace, element, service, version) combination, misses
+     * are not cached. Least recently used first, so that the keys of odd requests do not push
+     * out the ones in regular use
+     */
+    Map<XmlReaderKey, XmlRequestReader> xmlReadersByKey = Collections
+            .synchronizedMap(new LinkedHashMap<XmlReaderKey, XmlRequestReader>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<XmlReaderKey, XmlRequestReader> e) {
+                    return size() > MAX_XML_READERS;
+                }
+            });
+
+    List<Response> responses;
+
+    /**
+     * Responses whose binding can handle a certain result class, in extension order
+     */
+    ConcurrentHashMap<Class, Response[]> responsesByResult = new ConcurrentHashMap<Class, Response[]>();
+
+    /**
+     * Builds a registry out of the extensions currently available in the application context
+     */
+    static DispatcherRegistry lookup() {
+        return new DispatcherRegistry(GeoServerExtensions.extensions(Service.class),
+                GeoServerExtensions.extensions(KvpRequestReader.class),
+                GeoServerExtensions.extensions(XmlRequestReader.class),
+                GeoServerExtensions.extensions(Response.class));
+    }
+
+    DispatcherRegistry(List<Service> services, List<KvpRequestReader> kvpReaders,
+            List<XmlRequestReader> xmlReaders, List<Response> responses) {
+        if (!(new HashSet<Service>(services).size() == services.size())) {
+            String msg = "Two identical service descriptors found";
+            throw new IllegalStateException(msg);
+        }
+        if (!(new HashSet<KvpRequestReader>(kvpReaders).size() == kvpReaders.size())) {
+            String msg = "Two identical kvp readers found";
+            throw new IllegalStateException(msg);
+        }
+        checkXmlReaders(xmlReaders);
+
+        this.services = Collections.unmodifiableList(new ArrayList<Service>(services));
+        this.kvpReaders = Collections.unmodifiableList(new ArrayList<KvpRequestReader>(kvpReaders));
+        this.xmlReaders = Collections.unmodifiableList(new ArrayList<XmlRequestReader>(xmlReaders));
+        this.responses = Collections.unmodifiableList(new ArrayList<Response>(responses));
+
+        // index the services by id, keeping them sorted by version. The sort is stable, so
+        // services with the same version keep their relative extension order
+        Map<String, List<Service>> grouped = new HashMap<String, List<Service>>();
+        for (Service service : services) {
+            String id = service.getId().toLowerCase();
+            List<Service> group = grouped.get(id);
+            if (group == null) {
+                group = new ArrayList<Service>();
+                grouped.put(id, group);
+            }
+            group.add(service);
+        }
+        servicesById = new HashMap<String, Service[]>();
+        for (Map.Entry<String, List<Service>> entry : grouped.entrySet()) {
+            List<Service> group = entry.getValue();
+            if (group.size() > 1) {
+                Collections.sort(group, SERVICE_VERSION_COMPARATOR);
+            }
+            servicesById.put(entry.getKey(), group.toArray(new Service[group.size()]));
+        }
+    }
+
+    void checkXmlReaders(List<XmlRequestReader> xmlReaders) {
+        if (!(new HashSet<XmlRequestReader>(xmlReaders).size() == xmlReaders.size())) {
+
+            String msg = "Two identical xml readers found";
+            for (int i = 0; i < xmlReaders.size(); i++) {
+                XmlRequestReader r1 = xmlReaders.get(i);
+                for (int j = i + 1; j < xmlReaders.size(); j++) {
+                    XmlRequestReader r2 = xmlReaders.get(j);
+                    if (r1.equals(r2)) {
+                        msg += ": " + r1 + " and " + r2;
+                        break;
+                    }
+                }
+
+            }
+
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    List<Service> getServices() {
+        return services;
+    }
+
+    List<KvpRequestReader> getKvpRequestReaders() {
+        return kvpReaders;
+    }
+
+    List<XmlRequestReader> getXmlRequestReaders() {
+        return xmlReaders;
+    }
+
+    /**
+     * Locates the service with the specified id (case insensitive) and version. If the version
+     * is not specified, or no service has a matching version, the service with the highest
+     * version is returned.
+     */
+    Service findService(String id, String ver) {
+        Service[] matches = servicesById.get(id.toLowerCase());
+        if (matches == null) {
+            return null;
+        }
+
+        if (matches.length > 1 && ver != null) {
+            // look for the last service matching the version, the sort is stable so this is
+            // also the last one in extension order
+            Version version = new Version(ver);
+            for (int i = matches.length - 1; i >= 0; i--) {
+                if (version.equals(matches[i].getVersion())) {
+                    return matches[i];
+                }
+            }
+        }
+
+        // no version, or no version match, go for the highest
+        return matches[matches.length - 1];
+    }
+
+    /**
+     * Locates the kvp reader whose request bean is the most specific match for the specified
+     * type.
+     */
+    KvpRequestReader findKvpRequestReader(Class type) {
+        Object reader = kvpReadersByType.get(type);
+        if (reader == null) {
+            reader = lookupKvpRequestReader(type);
+            if (reader == null) {
+                reader = NO_MATCH;
+            }
+            kvpReadersByType.put(type, reader);
+        }
+
+        return reader == NO_MATCH ? null : (KvpRequestReader) reader;
+    }
+
+    KvpRequestReader lookupKvpRequestReader(Class type) {
+        List matches = new ArrayList();
+
+        for (Iterator itr = kvpReaders.iterator(); itr.hasNext();) {
+            KvpRequestReader kvpReader = (KvpRequestReader) itr.next();
+
+            if (kvpReader.getRequestBean().isAssignableFrom(type)) {
+                matches.add(kvpReader);
+            }
+        }
+
+        if (matches.isEmpty()) {
+            return null;
+        }
+
+        if (matches.size() > 1) {
+            //sort by class hierarchy
+            Comparator comparator = new Comparator() {
+                    public int compare(Object o1, Object o2) {
+                        KvpRequestReader kvp1 = (KvpRequestReader) o1;
+                        KvpRequestReader kvp2 = (KvpRequestReader) o2;
+
+                        if (kvp2.getRequestBean().isAssignableFrom(kvp1.getRequestBean())) {
+                            return -1;
+                        }
+
+                        return 1;
+                    }
+                };
+
+            Collections.sort(matches, comparator);
+        }
+
+        return (KvpRequestReader) matches.get(0);
+    }
+
+    /**
+     * Locates the xml reader for the specified root element, service and version.
+     */
+    XmlRequestReader findXmlReader(String namespace, String element, String serviceId,
+            String ver) {
+        XmlReaderKey key = new XmlReaderKey(namespace, element, serviceId, ver);
+        XmlRequestReader reader = xmlReadersByKey.get(key);
+        if (reader == null) {
+            reader = lookupXmlReader(namespace, element, serviceId, ver);
+            if (reader == null) {
+                String msg = "No xml reader: (" + namespace + "," + element + ")";
+                logger.info(msg);
+                return null;
+            }
+            xmlReadersByKey.put(key, reader);
+        }
+        return reader;
+    }
+
+    XmlRequestReader lookupXmlReader(String namespace, String element, String serviceId,
+            String ver) {
+        //first just match on namespace, element
+        List matches = new ArrayList();
+
+        for (Iterator itr = xmlReaders.iterator(); itr.hasNext();) {
+            XmlRequestReader xmlReader = (XmlRequestReader) itr.next();
+            QName xmlElement = xmlReader.getElement();
+
+            if (xmlElement.getLocalPart().equalsIgnoreCase(element)) {
+                if (xmlElement.getNamespaceURI().equalsIgnoreCase(namespace)) {
+                    matches.add(xmlReader);
+                }
+            }
+        }
+
+        if (matches.isEmpty()) {
+            //do a more lax serach, search only on the element name if the
+            // namespace was unspecified
+            if ( namespace == null || namespace.equals( "" ) ) {
+                String msg = "No namespace specified in request, searching for "
+                    + " xml reader by element name only";
+                logger.info( msg );
+
+                for ( Iterator itr = xmlReaders.iterator(); itr.hasNext(); ) {
+                    XmlRequestReader xmlReader = (XmlRequestReader) itr.next();
+                    if ( xmlReader.getElement().getLocalPart().equals( element ) ) {
+                        matches.add( xmlReader );
+                    }
+                }
+
+                if ( !matches.isEmpty() ) {
+                    //we found some matches, make sure they are all in the
+                    // same namespace
+                    Iterator itr = matches.iterator();
+                    XmlRequestReader first = (XmlRequestReader) itr.next();
+                    while( itr.hasNext() ) {
+                        XmlRequestReader xmlReader = (XmlRequestReader ) itr.next();
+                        if ( !first.getElement().equals( xmlReader.getElement() ) ) {
+                            //abort
+                            matches.clear();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        if ( matches.isEmpty() ) {
+            return null;
+        }
+
+        XmlRequestReader xmlReader = null;
+
+        //if multiple, use version to filter match
+        if (matches.size() > 1) {
+            List vmatches = new ArrayList(matches);
+
+            // match up the service
+            if(serviceId != null) {
+                for (Iterator itr = vmatches.iterator(); itr.hasNext();) {
+                    XmlRequestReader r = (XmlRequestReader) itr.next();
+
+                    if (r.getServiceId() == null || serviceId.equalsIgnoreCase(r.getServiceId())) {
+                        continue;
+                    }
+
+                    itr.remove();
+                }
+
+                // if no reader matching the service is found, we should
+                // not return a reader, as service is key to identify the reader
+                // we cannot just assume a meaningful default
+            }
+
+            // match up the version
+            if (ver != null) {
+                Version version = new Version(ver);
+
+                // version specified, look for a match (and allow version
+                // generic ones to live by)
+                for (Iterator itr = vmatches.iterator(); itr.hasNext();) {
+                    XmlRequestReader r = (XmlRequestReader) itr.next();
+
+                    if (r.getVersion() == null || version.equals(r.getVersion())) {
+                        continue;
+                    }
+
+                    itr.remove();
+                }
+
+                if (vmatches.isEmpty()) {
+                    // no matching version found, drop out and next step
+                    // will sort to return highest version
+                    vmatches = new ArrayList(matches);
+                }
+            }
+
+            //multiple readers found, sort by version and by service match
+            if (vmatches.size() > 1) {
+                //use highest version
+                Comparator comparator = new Comparator() {
+                        public int compare(Object o1, Object o2) {
+                            XmlRequestReader r1 = (XmlRequestReader) o1;
+                            XmlRequestReader r2 = (XmlRequestReader) o2;
+
+                            Version v1 = r1.getVersion();
+                            Version v2 = r2.getVersion();
+
+                            if ((v1 == null) && (v2 == null)) {
+                                return 0;
+                            }
+
+                            if ((v1 != null) && (v2 == null)) {
+                                return 1;
+                            }
+
+                            if ((v1 == null) && (v2 != null)) {
+                                return -1;
+                            }
+
+                            int versionCompare = v1.compareTo(v2);
+
+                            if (versionCompare != 0) {
+                                return versionCompare;
+                            }
+
+                            String sid1 = r1.getServiceId();
+                            String sid2 = r2.getServiceId();
+
+                            if ((sid1 == null) && (sid2 == null)) {
+                                return 0;
+                            }
+
+                            if ((sid1 != null) && (sid2 == null)) {
+                                return 1;
+                            }
+
+                            if ((sid1 == null) && (sid2 != null)) {
+                                return -1;
+                            }
+
+                            return sid1.compareTo(sid2);
+                        }
+                    };
+
+                Collections.sort(vmatches, comparator);
+            }
+
+            if(vmatches.size() > 0 )
+                xmlReader = (XmlRequestReader) vmatches.get(vmatches.size() - 1);
+        } else {
+            //only a single match, that was easy
+            xmlReader = (XmlRequestReader) matches.get(0);
+        }
+
+        return xmlReader;
+    }
+
+    /**
+     * Returns the responses whose binding is compatible with the specified result class, in
+     * extension order. The returned array is shared and must not be modified.
+     */
+    Response[] getResponses(Class resultClass) {
+        Response[] result = responsesByResult.get(resultClass);
+        if (result == null) {
+            List<Response> matches = new ArrayList<Response>();
+            for (Response response : responses) {
+                if (response.getBinding().isAssignableFrom(resultClass)) {
+                    matches.add(response);
+                }
+            }
+            result = matches.toArray(new Response[matches.size()]);
+            responsesByResult.put(resultClass, result);
+        }
+        return result;
+    }
+
+    /**
+     * Key for the xml reader lookups
+     */
+    static final class XmlReaderKey {
+        String namespace;
+
+        String element;
+
+        String serviceId;
+
+        String version;
+
+        int hashCode;
+
+        XmlReaderKey(String namespace, String element, String serviceId, String version) {
+            this.namespace = namespace;
+            this.element = element;
+            this.serviceId = serviceId;
+            this.version = version;
+
+            int h = 17;
+            h = 31 * h + (namespace != null ? namespace.hashCode() : 0);
+            h = 31 * h + (element != null ? element.hashCode() : 0);
+            h = 31 * h + (serviceId != null ? serviceId.hashCode() : 0);
+            h = 31 * h + (version != null ? version.hashCode() : 0);
+            this.hashCode = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof XmlReaderKey)) {
+                return false;
+            }
+            XmlReaderKey other = (XmlReaderKey) obj;
+            return hashCode == other.hashCode && eq(namespace, other.namespace)
+                    && eq(element, other.element) && eq(serviceId, other.serviceId)
+                    && eq(version, other.version);
+        }
+
+        static boolean eq(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+}
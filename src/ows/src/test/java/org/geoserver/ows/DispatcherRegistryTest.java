@@ -0,0 +1,120 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.Version;
+
+public class DispatcherRegistryTest extends TestCase {
+
+    Service hello100 = new Service("hello", new HelloWorld(), new Version("1.0.0"), null);
+
+    Service hello110 = new Service("hello", new HelloWorld(), new Version("1.1.0"), null);
+
+    Service bye100 = new Service("bye", new HelloWorld(), new Version("1.0.0"), null);
+
+    public void testFindService() throws Exception {
+        DispatcherRegistry registry = new DispatcherRegistry(Arrays.asList(hello110, bye100,
+                hello100), Collections.EMPTY_LIST, Collections.EMPTY_LIST, Collections.EMPTY_LIST);
+
+        assertSame(hello100, registry.findService("hello", "1.0.0"));
+        assertSame(hello100, registry.findService("HELLO", "1.0.0"));
+        assertSame(hello110, registry.findService("hello", "1.1.0"));
+        // no version or no version match, highest wins
+        assertSame(hello110, registry.findService("hello", null));
+        assertSame(hello110, registry.findService("hello", "2.0.0"));
+        // single match, version is not considered
+        assertSame(bye100, registry.findService("bye", "2.0.0"));
+        assertNull(registry.findService("foo", null));
+    }
+
+    public void testDuplicateServices() throws Exception {
+        try {
+            new DispatcherRegistry(Arrays.asList(hello100, hello100), Collections.EMPTY_LIST,
+                    Collections.EMPTY_LIST, Collections.EMPTY_LIST);
+            fail("Duplicate services should have been rejected");
+        } catch (IllegalStateException e) {
+            // fine
+        }
+    }
+
+    public void testFindKvpRequestReader() throws Exception {
+        KvpRequestReader objectReader = new KvpRequestReader(Object.class);
+        KvpRequestReader messageReader = new MessageKvpRequestReader();
+        DispatcherRegistry registry = new DispatcherRegistry(Collections.EMPTY_LIST,
+                Arrays.asList(objectReader, messageReader), Collections.EMPTY_LIST,
+                Collections.EMPTY_LIST);
+
+        // most specific first, and repeated lookups are stable
+        assertSame(messageReader, registry.findKvpRequestReader(Message.class));
+        assertSame(messageReader, registry.findKvpRequestReader(Message.class));
+        assertSame(objectReader, registry.findKvpRequestReader(String.class));
+    }
+
+    public void testFindXmlReader() throws Exception {
+        XmlRequestReader reader = new MessageXmlParser();
+        DispatcherRegistry registry = new DispatcherRegistry(Collections.EMPTY_LIST,
+                Collections.EMPTY_LIST, Arrays.asList(reader), Collections.EMPTY_LIST);
+
+        String ns = reader.getElement().getNamespaceURI();
+        String element = reader.getElement().getLocalPart();
+        assertSame(reader, registry.findXmlReader(ns, element, null, null));
+        assertSame(reader, registry.findXmlReader(ns, element, null, null));
+        assertNull(registry.findXmlReader(ns, "foo", null, null));
+        assertNull(registry.findXmlReader(ns, "foo", null, null));
+
+        // misses are not cached, and the cache does not grow past its limit
+        assertEquals(1, registry.xmlReadersByKey.size());
+        for (int i = 0; i < DispatcherRegistry.MAX_XML_READERS * 2; i++) {
+            assertSame(reader, registry.findXmlReader(ns, element, null, "1." + i));
+            // a key in regular use stays cached
+            assertSame(reader, registry.findXmlReader(ns, element, null, null));
+        }
+        assertEquals(DispatcherRegistry.MAX_XML_READERS, registry.xmlReadersByKey.size());
+        assertTrue(registry.xmlReadersByKey.containsKey(new DispatcherRegistry.XmlReaderKey(ns,
+                element, null, null)));
+    }
+
+    public void testResponsesByBinding() throws Exception {
+        Response objectResponse = new TestResponse(Object.class);
+        Response numberResponse = new TestResponse(Number.class);
+        Response stringResponse = new TestResponse(String.class);
+        DispatcherRegistry registry = new DispatcherRegistry(Collections.EMPTY_LIST,
+                Collections.EMPTY_LIST, Collections.EMPTY_LIST, Arrays.asList(objectResponse,
+                        numberResponse, stringResponse));
+
+        // extension order is preserved, only the binding is used for filtering
+        List<Response> responses = Arrays.asList(registry.getResponses(Integer.class));
+        assertEquals(Arrays.asList(objectResponse, numberResponse), responses);
+        assertSame(registry.getResponses(Integer.class), registry.getResponses(Integer.class));
+        responses = Arrays.asList(registry.getResponses(String.class));
+        assertEquals(Arrays.asList(objectResponse, stringResponse), responses);
+    }
+
+    static class TestResponse extends Response {
+
+        public TestResponse(Class binding) {
+            super(binding);
+        }
+
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return "text/plain";
+        }
+
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+        }
+    }
+}
@@ -18,6 +18,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
+import org.geoserver.platform.ServiceException;
 import org.geoserver.test.CodeExpectingHttpServletResponse;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 
@@ -312,6 +313,31 @@ public class DispatcherTest extends TestCase {
         assertEquals("Hello world!", response.getOutputStreamContent());
     }
     
+    public void testExecute() throws Exception {
+        URL url = getClass().getResource("applicationContext.xml");
+
+        FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(url.toString());
+
+        Dispatcher dispatcher = (Dispatcher) context.getBean("dispatcher");
+
+        Request request = new Request();
+        request.setService("hello");
+        request.setVersion("1.0.0");
+        request.setRequest("Hello");
+
+        Message message = new Message("Hello world!");
+        assertSame(message, dispatcher.execute(request, message));
+        assertNull(Dispatcher.REQUEST.get());
+
+        request.setRequest("Goodbye");
+        try {
+            dispatcher.execute(request, message);
+            fail("The operation does not exist");
+        } catch (ServiceException e) {
+            assertEquals("OperationNotSupported", e.getCode());
+        }
+    }
+    
     public void testHttpErrorCodeException() throws Exception {
         URL url = getClass().getResource("applicationContext.xml");
 
@@ -18,12 +18,15 @@ import org.apache.wicket.markup.html.link.BookmarkablePageLink;
 import org.apache.wicket.markup.html.link.Link;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.event.CatalogListener;
 import org.geoserver.config.CoverageAccessInfo;
 import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.GeoServerLoader;
+import org.geoserver.config.GeoServerPersister;
 import org.geoserver.config.JAIInfo;
 import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.util.TimeoutScheduler;
 import org.geoserver.web.util.DataDirectoryConverterLocator;
 import org.geoserver.web.util.MapModel;
 import org.geoserver.web.wicket.ParamResourceModel;
@@ -72,6 +75,10 @@ public class StatusPage extends ServerAdminPage {
     private static final String KEY_COVERAGEACCESS_KEEP_ALIVE_TIME = "coverage_thread_keepalivetime";
     
     private static final String KEY_UPDATE_SEQUENCE = "update_sequence";
+    
+    private static final String KEY_TIMEOUTS = "timeouts";
+    
+    private static final String KEY_CATALOG_WRITES = "catalog_writes";
 
     public StatusPage() {
         values = new HashMap<String, String>();
@@ -95,6 +102,8 @@ public class StatusPage extends ServerAdminPage {
         add(new Label("coverage.maxpoolsize", new MapModel(values, KEY_COVERAGEACCESS_MAX_POOL_SIZE)));
         add(new Label("coverage.keepalivetime", new MapModel(values, KEY_COVERAGEACCESS_KEEP_ALIVE_TIME)));
         add(new Label("updateSequence", new MapModel(values, KEY_UPDATE_SEQUENCE)));
+        add(new Label("timeouts", new MapModel(values, KEY_TIMEOUTS)));
+        add(new Label("catalogWrites", new MapModel(values, KEY_CATALOG_WRITES)));
 
         add(new Link("free.locks") {
             private static final long serialVersionUID = 1L;
@@ -195,6 +204,34 @@ public class StatusPage extends ServerAdminPage {
         values.put(KEY_COVERAGEACCESS_KEEP_ALIVE_TIME, Integer.toString(coverageAccess.getKeepAliveTime()));
 
         values.put(KEY_UPDATE_SEQUENCE, Long.toString(geoServerInfo.getUpdateSequence()));
+        
+        TimeoutScheduler timeouts = TimeoutScheduler.get();
+        values.put(KEY_TIMEOUTS, new ParamResourceModel("StatusPage.timeoutCounts", this, 
+                timeouts.getScheduledCount(), timeouts.getTimedOutCount(), 
+                timeouts.getNearTimeoutCount(), timeouts.getPendingCount()).getString());
+        
+        GeoServerPersister persister = getWriteBehindPersister();
+        if (persister != null) {
+            values.put(KEY_CATALOG_WRITES, new ParamResourceModel("StatusPage.catalogWriteCounts",
+                    this, persister.getPendingWrites(), persister.getWriteCount(), 
+                    persister.getAverageWriteLatency(), persister.getMaxWriteLatency()).getString());
+        } else {
+            values.put(KEY_CATALOG_WRITES, new ParamResourceModel("StatusPage.catalogWritesDirect",
+                    this).getString());
+        }
+    }
+
+    /**
+     * Returns the persister writing the catalog files in the background, if any
+     */
+    private GeoServerPersister getWriteBehindPersister() {
+        for (CatalogListener listener : getCatalog().getListeners()) {
+            if (listener instanceof GeoServerPersister 
+                    && ((GeoServerPersister) listener).isWriteBehind()) {
+                return (GeoServerPersister) listener;
+            }
+        }
+        return null;
     }
 
     /**
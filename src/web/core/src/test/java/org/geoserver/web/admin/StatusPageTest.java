@@ -1,5 +1,6 @@
 package org.geoserver.web.admin;
 
+import org.apache.wicket.markup.html.basic.Label;
 import org.geoserver.web.GeoServerWicketTestSupport;
 
 public class StatusPageTest extends GeoServerWicketTestSupport {
@@ -15,5 +16,8 @@ public class StatusPageTest extends GeoServerWicketTestSupport {
     public void testValues() {
         tester.assertRenderedPage(StatusPage.class);
         tester.assertLabel("locks", "0");
+        tester.assertComponent("timeouts", Label.class);
+        // the test data directory writes the catalog files right away
+        tester.assertLabel("catalogWrites", "Written right away");
     }
 }
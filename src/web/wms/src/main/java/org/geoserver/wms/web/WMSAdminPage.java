@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.CheckBox;
 import org.apache.wicket.markup.html.form.DropDownChoice;
 import org.apache.wicket.markup.html.form.Form;
@@ -30,10 +31,12 @@ import org.geoserver.web.services.BaseServiceAdminPage;
 import org.geoserver.web.util.MapModel;
 import org.geoserver.web.wicket.FileExistsValidator;
 import org.geoserver.web.wicket.LiveCollectionModel;
+import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSInfo;
 import org.geoserver.wms.WMSInfo.WMSInterpolation;
 import org.geoserver.wms.WatermarkInfo.Position;
+import org.geoserver.wms.map.RenderingPool;
 import org.geotools.referencing.CRS;
 
 /**
@@ -79,6 +82,13 @@ public class WMSAdminPage extends BaseServiceAdminPage<WMSInfo> {
         TextField<Integer> maxErrors = new TextField<Integer>("maxRenderingErrors");
         maxErrors.add(new MinimumValidator<Integer>(0));
         form.add(maxErrors);
+        // rendering pool
+        PropertyModel metadataModel = new PropertyModel(info, "metadata");
+        TextField<Integer> maxThreads = new TextField<Integer>("maxRenderingThreads", 
+                defaultedModel(metadataModel, WMS.MAX_RENDERING_THREADS, WMS.MAX_RENDERING_THREADS_DEFAULT), Integer.class);
+        maxThreads.add(new MinimumValidator<Integer>(1));
+        form.add(maxThreads);
+        form.add(new Label("renderingPoolStatus", renderingPoolStatus()));
     	// watermark
     	form.add(new CheckBox("watermark.enabled"));
     	form.add(new TextField("watermark.uRL").add(new FileExistsValidator(true)));
@@ -87,7 +97,6 @@ public class WMSAdminPage extends BaseServiceAdminPage<WMSInfo> {
         form.add(transparency);
     	form.add(new DropDownChoice("watermark.position", Arrays.asList(Position.values()), new WatermarkPositionRenderer()));
     	// svg
-    	PropertyModel metadataModel = new PropertyModel(info, "metadata");
         form.add(new CheckBox("svg.antialias", new MapModel(metadataModel, "svgAntiAlias")));
     	form.add(new DropDownChoice("svg.producer", new MapModel(metadataModel, "svgRenderer"), SVG_RENDERERS, new SVGMethodRenderer()));
     	// png compression levels
@@ -117,6 +126,17 @@ public class WMSAdminPage extends BaseServiceAdminPage<WMSInfo> {
         form.add(kmScoreField);
     }
     
+    IModel renderingPoolStatus() {
+        RenderingPool pool = DefaultWebMapService.getRenderingPool();
+        if (pool == null) {
+            return new StringResourceModel("renderingPoolDisabled", this, null);
+        }
+        return new StringResourceModel("renderingPoolStatus", this, null, new Object[] {
+                pool.getActiveCount(), pool.getMaxThreads(), pool.getQueueSize(),
+                pool.getQueuedRequestCount(), Math.round(pool.getAverageRenderingTime()),
+                Math.round(pool.getAverageLayerRenderingTime()), pool.getMaxRenderingTime() });
+    }
+
     MapModel defaultedModel(IModel baseModel, String key, Object defaultValue) {
         MapModel model = new MapModel(baseModel, key);
         if(model.getObject() == null)
@@ -11,6 +11,15 @@ import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -30,6 +39,9 @@ import org.geoserver.catalog.AttributeTypeInfo;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
@@ -76,6 +88,13 @@ import org.xml.sax.helpers.NamespaceSupport;
  */
 public class GetFeature {
     public static final String SQL_VIEW_PARAMS = "GS_SQL_VIEW_PARAMS";
+
+    /**
+     * System property setting the number of threads used to open and count the queries of
+     * multi query requests in parallel, 0 or 1 runs them one after the other. Defaults to the
+     * number of cores
+     */
+    public static final String QUERY_THREADS = "WFS_QUERY_THREADS";
     
     /** Standard logging instance for class */
     private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.vfny.geoserver.requests");
@@ -89,6 +108,11 @@ public class GetFeature {
     /** filter factory */
     protected FilterFactory2 filterFactory;
 
+    /** the pool shared by the multi query requests */
+    static ExecutorService queryExecutor;
+
+    static boolean queryExecutorInitialized;
+
     /**
      * Creates the GetFeature operation.
      *
@@ -177,234 +201,41 @@ public class GetFeature {
             viewParams = (List<Map<String, String>>) request.getMetadata().get(SQL_VIEW_PARAMS);
         }
 
+        // optimization: WFS 1.0 does not require count unless we have multiple query elements
+        // and we are asked to perform a global limit on the results returned
+        boolean countNeeded = !(("1.0".equals(request.getVersion()) || "1.0.0".equals(request.getVersion())) && 
+                (request.getQuery().size() == 1 || maxFeatures == Integer.MAX_VALUE));
+
         int count = 0; //should probably be long
         List results = new ArrayList();
         try {
-            for (int i = 0; (i < request.getQuery().size()) && (count < maxFeatures); i++) {
-                QueryType query = (QueryType) request.getQuery().get(i);
-
-                FeatureTypeInfo meta = null;
-
-                if (query.getTypeName().size() == 1) {
-                    meta = featureTypeInfo((QName) query.getTypeName().get(0));
-                } else {
-                    //TODO: a join is taking place
-                }
-
-                FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
-              
-                //make sure property names are cool
-                NamespaceSupport ns = getNamespaceSupport();
-                
-                List<PropertyName> propNames = null;
-                List<PropertyName> allPropNames = null;
-                                
-                if (!query.getPropertyName().isEmpty()){
-                    
-                    propNames = new ArrayList<PropertyName>();
-                    
-                    for (Iterator iter = query.getPropertyName().iterator(); iter.hasNext();) {
-                        PropertyName propName = createPropertyName((String) iter.next(), ns);
-    
-                        //if (!attNames.contains(propName)) {
-                        if ( propName.evaluate(meta.getFeatureType()) == null) {
-                            String mesg = "Requested property: " + propName + " is " + "not available "
-                                + "for " + query.getTypeName() + ".  ";
-                            
-                            if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                                List<AttributeTypeInfo> atts = meta.attributes();
-                                List attNames = new ArrayList( atts.size() );
-                                for ( AttributeTypeInfo att : atts ) {
-                                    attNames.add( att.getName() );
-                                }
-                                mesg += "The possible propertyName values are: " + attNames;
-                            }
-    
-                            throw new WFSException(mesg);
-                        }
-                        
-                        propNames.add(propName);
-                    }
-                    
-                    // if we need to force feature bounds computation, we have to load 
-                    // all of the geometries, but we'll have to remove them in the 
-                    // returned feature type
-                    if(wfs.isFeatureBounding()) {
-                        allPropNames = addGeometryProperties(meta, propNames);                        
-                    } else {
-                        allPropNames = propNames;
-                    }     
-                    
-                    //we must also include any properties that are mandatory ( even if not requested ),
-                    // ie. those with minOccurs > 0
-                    //only do this for simple features, complex mandatory features are handled by app-schema
-                    if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                        allPropNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), allPropNames);
-                        propNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), propNames);
-                    }
-                    //for complex features, mandatory properties need to be handled by datastore.
-                    
-                }                
-
-                //make sure filters are sane
-                //
-                // Validation of filters on non-simple feature types is not yet supported.
-                // FIXME: Support validation of filters on non-simple feature types:
-                // need to consider xpath properties and how to configure namespace prefixes in
-                // GeoTools app-schema FeaturePropertyAccessorFactory.
-                if (query.getFilter() != null && source.getSchema() instanceof SimpleFeatureType) {
-                    
-                    //1. ensure any property name refers to a property that 
-                    // actually exists
-                    final FeatureType featureType = source.getSchema();
-                    ExpressionVisitor visitor = new AbstractExpressionVisitor() {
-                            public Object visit(PropertyName name, Object data) {
-                                // case of multiple geometries being returned
-                                if (name.evaluate(featureType) == null) {
-                                    throw new WFSException("Illegal property name: "
-                                        + name.getPropertyName(), "InvalidParameterValue");
-                                }
-
-                                return name;
-                            }
-                            ;
-                        };
-                    query.getFilter().accept(new AbstractFilterVisitor(visitor), null);
-                    
-                    //2. ensure any spatial predicate is made against a property 
-                    // that is actually special
-                    AbstractFilterVisitor fvisitor = new AbstractFilterVisitor() {
-                      
-                        protected Object visit( BinarySpatialOperator filter, Object data ) {
-                            PropertyName name = null;
-                            if ( filter.getExpression1() instanceof PropertyName ) {
-                                name = (PropertyName) filter.getExpression1();
-                            }
-                            else if ( filter.getExpression2() instanceof PropertyName ) {
-                                name = (PropertyName) filter.getExpression2();
-                            }
-                            
-                            if ( name != null ) {
-                                //check against fetaure type to make sure its
-                                // a geometric type
-                                AttributeDescriptor att = (AttributeDescriptor) name.evaluate(featureType);
-                                if ( !( att instanceof GeometryDescriptor ) ) {
-                                    throw new WFSException("Property " + name + " is not geometric", "InvalidParameterValue");
-                                }
-                            }
-                            
-                            return filter;
-                        }
-                    };
-                    query.getFilter().accept(fvisitor, null);
-                    
-                    //3. ensure that any bounds specified as part of the query
-                    // are valid with respect to the srs defined on the query
-                    if ( wfs.isCiteCompliant() ) {
-                        
-                        if ( query.getSrsName() != null ) {
-                            final QueryType fquery = query;
-                            fvisitor = new AbstractFilterVisitor() {
-                                public Object visit(BBOX filter, Object data) {
-                                    if ( filter.getSRS() != null && 
-                                            !fquery.getSrsName().toString().equals( filter.getSRS() ) ) {
-                                        
-                                        //back project bounding box into geographic coordinates
-                                        CoordinateReferenceSystem geo = DefaultGeographicCRS.WGS84;
-                                        
-                                        GeneralEnvelope e = new GeneralEnvelope( 
-                                            new double[] { filter.getMinX(), filter.getMinY()},
-                                            new double[] { filter.getMaxX(), filter.getMaxY()}
-                                        );
-                                        CoordinateReferenceSystem crs = null;
-                                        try {
-                                            crs = CRS.decode( filter.getSRS() );
-                                            e = CRS.transform(CRS.findMathTransform(crs, geo, true), e);
-                                        } 
-                                        catch( Exception ex ) {
-                                            throw new WFSException( ex );
-                                        }
-                                        
-                                        //ensure within bounds defined by srs specified on 
-                                        // query
-                                        try {
-                                            crs = CRS.decode( fquery.getSrsName().toString() );
-                                        } 
-                                        catch( Exception ex ) {
-                                            throw new WFSException( ex );
-                                        }
-                                        
-                                        GeographicBoundingBox valid = 
-                                            (GeographicBoundingBox) crs.getDomainOfValidity()
-                                            .getGeographicElements().iterator().next();
-                                        
-                                        if ( e.getMinimum(0) < valid.getWestBoundLongitude() || 
-                                            e.getMinimum(0) > valid.getEastBoundLongitude() || 
-                                            e.getMaximum(0) < valid.getWestBoundLongitude() || 
-                                            e.getMaximum(0) > valid.getEastBoundLongitude() ||
-                                            e.getMinimum(1) < valid.getSouthBoundLatitude() || 
-                                            e.getMinimum(1) > valid.getNorthBoundLatitude() || 
-                                            e.getMaximum(1) < valid.getSouthBoundLatitude() || 
-                                            e.getMaximum(1) > valid.getNorthBoundLatitude() ) {
-                                                
-                                            throw new WFSException( "bounding box out of valid range of crs", "InvalidParameterValue");
-                                        }
-                                    }
-                                    
-                                    return data;
-                                } 
-                            };
-                            
-                            query.getFilter().accept(fvisitor, null);
-                        }
-                    }   
-                }
-
-                // handle local maximum
-                int queryMaxFeatures = maxFeatures - count;
-                if(meta.getMaxFeatures() > 0 && meta.getMaxFeatures() < queryMaxFeatures)
-                    queryMaxFeatures = meta.getMaxFeatures();
-                Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
-                org.geotools.data.Query gtQuery = toDataQuery(query, queryMaxFeatures, source, request, allPropNames, viewParam);
-                
-                LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
+            ExecutorService executor = null;
+            if (countNeeded && request.getQuery().size() > 1) {
+                executor = getQueryExecutor();
+            }
 
-                FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
-                
-                // optimization: WFS 1.0 does not require count unless we have multiple query elements
-                // and we are asked to perform a global limit on the results returned
-                if(("1.0".equals(request.getVersion()) || "1.0.0".equals(request.getVersion())) && 
-                        (request.getQuery().size() == 1 || maxFeatures == Integer.MAX_VALUE)) {
-                    // skip the count update, in this case we don't need it
-                } else {
-                	count += features.size();
-                }
-                
-                // we may need to shave off geometries we did load only to make bounds
-                // computation happy
-                // TODO: support non-SimpleFeature geometry shaving
-                if(features.getSchema() instanceof SimpleFeatureType && propNames!=null && propNames.size() < allPropNames.size()) {
-                    String[] residualNames = new String[propNames.size()];
-                    Iterator<PropertyName> it = propNames.iterator();
-                    int j =0;
-                    while (it.hasNext()) {
-                        residualNames[j] = it.next().getPropertyName();
-                        j++;
-                    }
-                    SimpleFeatureType targetType = DataUtilities.createSubType((SimpleFeatureType) features.getSchema(), residualNames);
-                    features = new FeatureBoundsFeatureCollection((SimpleFeatureCollection) features, targetType);
+            if (executor != null) {
+                count = runConcurrently(request, executor, maxFeatures, viewParams, results);
+            } else {
+                for (int i = 0; (i < request.getQuery().size()) && (count < maxFeatures); i++) {
+                    QueryType query = (QueryType) request.getQuery().get(i);
+                    Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
+                    QueryPlan plan = planQuery(query, viewParam);
+
+                    plan.open(request, maxFeatures - count, countNeeded);
+                    count += plan.count;
+
+                    //JD: TODO reoptimize
+                    //                if ( i == request.getQuery().size() - 1 ) { 
+                    //                	//DJB: dont calculate feature count if you dont have to. The MaxFeatureReader will take care of the last iteration
+                    //                	maxFeatures -= features.getCount();
+                    //                }
+
+                    //GR: I don't know if the featuresults should be added here for later
+                    //encoding if it was a lock request. may be after ensuring the lock
+                    //succeed?
+                    results.add(plan.getFeatures());
                 }
-
-                //JD: TODO reoptimize
-                //                if ( i == request.getQuery().size() - 1 ) { 
-                //                	//DJB: dont calculate feature count if you dont have to. The MaxFeatureReader will take care of the last iteration
-                //                	maxFeatures -= features.getCount();
-                //                }
-
-                //GR: I don't know if the featuresults should be added here for later
-                //encoding if it was a lock request. may be after ensuring the lock
-                //succeed?
-                results.add(features);
             }
         } catch (IOException e) {
             throw new WFSException("Error occurred getting features", e, request.getHandle());
@@ -444,6 +275,371 @@ public class GetFeature {
         return buildResults(count, results, lockId);
     }
 
+    /**
+     * Opens and counts the queries of a multi query request in parallel, each one with the
+     * global limit, and then merges them in request order, cutting the ones exceeding the
+     * features left
+     * 
+     * @return the number of features returned
+     */
+    int runConcurrently(final GetFeatureType request, ExecutorService executor,
+            int maxFeatures, List<Map<String, String>> viewParams, List results)
+            throws IOException, SchemaException {
+        // validate all the queries up front, in the request thread
+        List<QueryPlan> plans = new ArrayList<QueryPlan>();
+        for (int i = 0; i < request.getQuery().size(); i++) {
+            QueryType query = (QueryType) request.getQuery().get(i);
+            Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
+            plans.add(planQuery(query, viewParam));
+        }
+
+        // the calling thread takes care of the first query, the pool of the others
+        final int limit = maxFeatures;
+        final Request owsRequest = Dispatcher.REQUEST.get();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        boolean completed = false;
+        try {
+            for (int i = 1; i < plans.size(); i++) {
+                final QueryPlan plan = plans.get(i);
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        Dispatcher.REQUEST.set(owsRequest);
+                        try {
+                            plan.open(request, limit, true);
+                        } finally {
+                            Dispatcher.REQUEST.remove();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            plans.get(0).open(request, limit, true);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            completed = true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WFSException("Error occurred getting features", cause, request.getHandle());
+        } catch (InterruptedException e) {
+            throw new WFSException("Interrupted while getting features", e, request.getHandle());
+        } finally {
+            if (!completed) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; (i < plans.size()) && (count < maxFeatures); i++) {
+            QueryPlan plan = plans.get(i);
+            int left = maxFeatures - count;
+            if (plan.count > left) {
+                // the previous queries used part of the limit, re-open with the features left,
+                // this does not hit the store until the features are encoded
+                plan.open(request, left, false);
+                plan.count = left;
+            }
+            count += plan.count;
+            results.add(plan.getFeatures());
+        }
+
+        return count;
+    }
+
+    /**
+     * Validates a query against the feature type it targets
+     */
+    QueryPlan planQuery(QueryType query, Map<String, String> viewParam) throws IOException {
+        FeatureTypeInfo meta = null;
+
+        if (query.getTypeName().size() == 1) {
+            meta = featureTypeInfo((QName) query.getTypeName().get(0));
+        } else {
+            //TODO: a join is taking place
+        }
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
+      
+        //make sure property names are cool
+        NamespaceSupport ns = getNamespaceSupport();
+        
+        List<PropertyName> propNames = null;
+        List<PropertyName> allPropNames = null;
+                        
+        if (!query.getPropertyName().isEmpty()){
+            
+            propNames = new ArrayList<PropertyName>();
+            
+            for (Iterator iter = query.getPropertyName().iterator(); iter.hasNext();) {
+                PropertyName propName = createPropertyName((String) iter.next(), ns);
+
+                //if (!attNames.contains(propName)) {
+                if ( propName.evaluate(meta.getFeatureType()) == null) {
+                    String mesg = "Requested property: " + propName + " is " + "not available "
+                        + "for " + query.getTypeName() + ".  ";
+                    
+                    if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                        List<AttributeTypeInfo> atts = meta.attributes();
+                        List attNames = new ArrayList( atts.size() );
+                        for ( AttributeTypeInfo att : atts ) {
+                            attNames.add( att.getName() );
+                        }
+                        mesg += "The possible propertyName values are: " + attNames;
+                    }
+
+                    throw new WFSException(mesg);
+                }
+                
+                propNames.add(propName);
+            }
+            
+            // if we need to force feature bounds computation, we have to load 
+            // all of the geometries, but we'll have to remove them in the 
+            // returned feature type
+            if(wfs.isFeatureBounding()) {
+                allPropNames = addGeometryProperties(meta, propNames);                        
+            } else {
+                allPropNames = propNames;
+            }     
+            
+            //we must also include any properties that are mandatory ( even if not requested ),
+            // ie. those with minOccurs > 0
+            //only do this for simple features, complex mandatory features are handled by app-schema
+            if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                allPropNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), allPropNames);
+                propNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), propNames);
+            }
+            //for complex features, mandatory properties need to be handled by datastore.
+            
+        }                
+
+        //make sure filters are sane
+        //
+        // Validation of filters on non-simple feature types is not yet supported.
+        // FIXME: Support validation of filters on non-simple feature types:
+        // need to consider xpath properties and how to configure namespace prefixes in
+        // GeoTools app-schema FeaturePropertyAccessorFactory.
+        if (query.getFilter() != null && source.getSchema() instanceof SimpleFeatureType) {
+            
+            //1. ensure any property name refers to a property that 
+            // actually exists
+            final FeatureType featureType = source.getSchema();
+            ExpressionVisitor visitor = new AbstractExpressionVisitor() {
+                    public Object visit(PropertyName name, Object data) {
+                        // case of multiple geometries being returned
+                        if (name.evaluate(featureType) == null) {
+                            throw new WFSException("Illegal property name: "
+                                + name.getPropertyName(), "InvalidParameterValue");
+                        }
+
+                        return name;
+                    }
+                    ;
+                };
+            query.getFilter().accept(new AbstractFilterVisitor(visitor), null);
+            
+            //2. ensure any spatial predicate is made against a property 
+            // that is actually special
+            AbstractFilterVisitor fvisitor = new AbstractFilterVisitor() {
+              
+                protected Object visit( BinarySpatialOperator filter, Object data ) {
+                    PropertyName name = null;
+                    if ( filter.getExpression1() instanceof PropertyName ) {
+                        name = (PropertyName) filter.getExpression1();
+                    }
+                    else if ( filter.getExpression2() instanceof PropertyName ) {
+                        name = (PropertyName) filter.getExpression2();
+                    }
+                    
+                    if ( name != null ) {
+                        //check against fetaure type to make sure its
+                        // a geometric type
+                        AttributeDescriptor att = (AttributeDescriptor) name.evaluate(featureType);
+                        if ( !( att instanceof GeometryDescriptor ) ) {
+                            throw new WFSException("Property " + name + " is not geometric", "InvalidParameterValue");
+                        }
+                    }
+                    
+                    return filter;
+                }
+            };
+            query.getFilter().accept(fvisitor, null);
+            
+            //3. ensure that any bounds specified as part of the query
+            // are valid with respect to the srs defined on the query
+            if ( wfs.isCiteCompliant() ) {
+                
+                if ( query.getSrsName() != null ) {
+                    final QueryType fquery = query;
+                    fvisitor = new AbstractFilterVisitor() {
+                        public Object visit(BBOX filter, Object data) {
+                            if ( filter.getSRS() != null && 
+                                    !fquery.getSrsName().toString().equals( filter.getSRS() ) ) {
+                                
+                                //back project bounding box into geographic coordinates
+                                CoordinateReferenceSystem geo = DefaultGeographicCRS.WGS84;
+                                
+                                GeneralEnvelope e = new GeneralEnvelope( 
+                                    new double[] { filter.getMinX(), filter.getMinY()},
+                                    new double[] { filter.getMaxX(), filter.getMaxY()}
+                                );
+                                CoordinateReferenceSystem crs = null;
+                                try {
+                                    crs = CRS.decode( filter.getSRS() );
+                                    e = CRS.transform(CRS.findMathTransform(crs, geo, true), e);
+                                } 
+                                catch( Exception ex ) {
+                                    throw new WFSException( ex );
+                                }
+                                
+                                //ensure within bounds defined by srs specified on 
+                                // query
+                                try {
+                                    crs = CRS.decode( fquery.getSrsName().toString() );
+                                } 
+                                catch( Exception ex ) {
+                                    throw new WFSException( ex );
+                                }
+                                
+                                GeographicBoundingBox valid = 
+                                    (GeographicBoundingBox) crs.getDomainOfValidity()
+                                    .getGeographicElements().iterator().next();
+                                
+                                if ( e.getMinimum(0) < valid.getWestBoundLongitude() || 
+                                    e.getMinimum(0) > valid.getEastBoundLongitude() || 
+                                    e.getMaximum(0) < valid.getWestBoundLongitude() || 
+                                    e.getMaximum(0) > valid.getEastBoundLongitude() ||
+                                    e.getMinimum(1) < valid.getSouthBoundLatitude() || 
+                                    e.getMinimum(1) > valid.getNorthBoundLatitude() || 
+                                    e.getMaximum(1) < valid.getSouthBoundLatitude() || 
+                                    e.getMaximum(1) > valid.getNorthBoundLatitude() ) {
+                                        
+                                    throw new WFSException( "bounding box out of valid range of crs", "InvalidParameterValue");
+                                }
+                            }
+                            
+                            return data;
+                        } 
+                    };
+                    
+                    query.getFilter().accept(fvisitor, null);
+                }
+            }   
+        }
+
+        QueryPlan plan = new QueryPlan();
+        plan.query = query;
+        plan.meta = meta;
+        plan.source = source;
+        plan.propNames = propNames;
+        plan.allPropNames = allPropNames;
+        plan.viewParam = viewParam;
+        return plan;
+    }
+
+    /**
+     * A validated query of a GetFeature request, along with the features it selects once opened
+     */
+    class QueryPlan {
+        QueryType query;
+
+        FeatureTypeInfo meta;
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source;
+
+        List<PropertyName> propNames;
+
+        List<PropertyName> allPropNames;
+
+        Map<String, String> viewParam;
+
+        FeatureCollection<? extends FeatureType, ? extends Feature> features;
+
+        int count;
+
+        /**
+         * Builds the data query and gets the features, counting them if required
+         */
+        void open(GetFeatureType request, int maxFeatures, boolean countNeeded)
+                throws IOException {
+            // handle local maximum
+            int queryMaxFeatures = maxFeatures;
+            if(meta.getMaxFeatures() > 0 && meta.getMaxFeatures() < queryMaxFeatures)
+                queryMaxFeatures = meta.getMaxFeatures();
+            org.geotools.data.Query gtQuery = toDataQuery(query, queryMaxFeatures, source, request, allPropNames, viewParam);
+            
+            LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
+
+            features = GetFeature.this.getFeatures(request, source, gtQuery);
+            count = countNeeded ? features.size() : 0;
+        }
+
+        /**
+         * Returns the features to be encoded
+         */
+        FeatureCollection<? extends FeatureType, ? extends Feature> getFeatures()
+                throws SchemaException {
+            // we may need to shave off geometries we did load only to make bounds
+            // computation happy
+            // TODO: support non-SimpleFeature geometry shaving
+            if(features.getSchema() instanceof SimpleFeatureType && propNames!=null && propNames.size() < allPropNames.size()) {
+                String[] residualNames = new String[propNames.size()];
+                Iterator<PropertyName> it = propNames.iterator();
+                int j =0;
+                while (it.hasNext()) {
+                    residualNames[j] = it.next().getPropertyName();
+                    j++;
+                }
+                SimpleFeatureType targetType = DataUtilities.createSubType((SimpleFeatureType) features.getSchema(), residualNames);
+                return new FeatureBoundsFeatureCollection((SimpleFeatureCollection) features, targetType);
+            }
+            return features;
+        }
+    }
+
+    /**
+     * Returns the executor used to run the queries of multi query requests in parallel, or
+     * null if they have to be run one after the other
+     */
+    static synchronized ExecutorService getQueryExecutor() {
+        if (!queryExecutorInitialized) {
+            queryExecutorInitialized = true;
+            int threads = Runtime.getRuntime().availableProcessors();
+            String value = GeoServerExtensions.getProperty(QUERY_THREADS);
+            if (value != null) {
+                try {
+                    threads = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Invalid " + QUERY_THREADS + " value: " + value);
+                }
+            }
+            if (threads > 1) {
+                final AtomicInteger count = new AtomicInteger();
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "WFS query " + count.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                executor.allowCoreThreadTimeOut(true);
+                queryExecutor = executor;
+            }
+        }
+        return queryExecutor;
+    }
+
+
     /**
      * Allows subclasses to alter the result generation
      * @param count
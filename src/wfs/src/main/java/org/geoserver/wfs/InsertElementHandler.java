@@ -7,10 +7,12 @@ package org.geoserver.wfs;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -24,12 +26,13 @@ import net.opengis.wfs.WfsFactory;
 import org.eclipse.emf.ecore.EObject;
 import org.geoserver.config.GeoServer;
 import org.geoserver.feature.ReprojectingFeatureCollection;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.operation.projection.PointOutsideEnvelopeException;
 import org.opengis.feature.simple.SimpleFeature;
@@ -53,11 +56,45 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
      * logger
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    /**
+     * System property setting how many features are handed to the feature store in a single
+     * call when inserting
+     */
+    public static final String BATCH_SIZE = "WFS_INSERT_BATCH_SIZE";
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
     private FilterFactory filterFactory;
 
+    int batchSize = DEFAULT_BATCH_SIZE;
+
     public InsertElementHandler(GeoServer gs, FilterFactory filterFactory) {
         super(gs);
         this.filterFactory = filterFactory;
+
+        String size = GeoServerExtensions.getProperty(BATCH_SIZE);
+        if (size != null) {
+            try {
+                setBatchSize(Integer.parseInt(size.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + BATCH_SIZE + " value: " + size);
+            }
+        }
+    }
+
+    /**
+     * The number of features inserted with a single call to the feature store
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The insert batch size must be positive");
+        }
+        this.batchSize = batchSize;
     }
 
     public void checkValidity(EObject element, Map featureTypeInfos)
@@ -77,21 +114,20 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
         long inserted = response.getTransactionSummary().getTotalInserted().longValue();
 
         try {
-            // group features by their schema
-            HashMap /* <SimpleFeatureType,FeatureCollection> */ schema2features = new HashMap();
+            // group features by their schema, keeping them in the order they were supplied
+            Map<SimpleFeatureType, List<SimpleFeature>> schema2features = new LinkedHashMap<SimpleFeatureType, List<SimpleFeature>>();
 
             for (Iterator f = insert.getFeature().iterator(); f.hasNext();) {
                 SimpleFeature feature = (SimpleFeature) f.next();
                 SimpleFeatureType schema = feature.getFeatureType();
-                SimpleFeatureCollection collection;
-                collection = (SimpleFeatureCollection) schema2features.get(schema);
+                List<SimpleFeature> features = schema2features.get(schema);
 
-                if (collection == null) {
-                    collection = new DefaultFeatureCollection(null, schema);
-                    schema2features.put(schema, collection);
+                if (features == null) {
+                    features = new ArrayList<SimpleFeature>();
+                    schema2features.put(schema, features);
                 }
 
-                collection.add(feature);
+                features.add(feature);
             }
 
             // JD: change from set fo list because if inserting
@@ -102,9 +138,10 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
             // as they were supplied
             HashMap schema2fids = new HashMap();
 
-            for (Iterator c = schema2features.values().iterator(); c.hasNext();) {
-                SimpleFeatureCollection collection = (SimpleFeatureCollection) c.next();
-                SimpleFeatureType schema = collection.getSchema();
+            for (Map.Entry<SimpleFeatureType, List<SimpleFeature>> entry : schema2features.entrySet()) {
+                SimpleFeatureType schema = entry.getKey();
+                List<SimpleFeature> features = entry.getValue();
+                SimpleFeatureCollection collection = new ListFeatureCollection(schema, features);
 
                 final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
                 SimpleFeatureStore store;
@@ -123,9 +160,10 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
                     }
                     
                     // reprojection
+                    CoordinateReferenceSystem target = null;
                     final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
                     if(defaultGeometry != null) {
-                        CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
+                        target = defaultGeometry.getCoordinateReferenceSystem();
                         if (target != null) {
                             collection = new ReprojectingFeatureCollection(collection, target);
                         }
@@ -168,7 +206,32 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
                     event.setSource( insert );
                     
                     listener.dataStoreChange( event );
-                    fids.addAll(store.addFeatures(collection));
+                    
+                    // hand the features to the store in batches, large inserts would otherwise
+                    // keep the store busy for a long time without any feedback
+                    long start = System.currentTimeMillis();
+                    for (int from = 0; from < features.size(); from += batchSize) {
+                        int to = Math.min(from + batchSize, features.size());
+                        SimpleFeatureCollection batch = collection;
+                        if (from > 0 || to < features.size()) {
+                            batch = new ListFeatureCollection(schema, features.subList(from, to));
+                            if (target != null) {
+                                batch = new ReprojectingFeatureCollection(batch, target);
+                            }
+                        }
+                        fids.addAll(store.addFeatures(batch));
+                        
+                        if (LOGGER.isLoggable(Level.FINE) && to < features.size()) {
+                            LOGGER.fine("Inserted " + to + " of " + features.size() + " " 
+                                    + schema.getTypeName() + " features");
+                        }
+                    }
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                        LOGGER.fine("Inserted " + features.size() + " " + schema.getTypeName() 
+                                + " features in " + elapsed + "ms (" 
+                                + (features.size() * 1000L / elapsed) + " features/s)");
+                    }
                     
                     //fire post insert event
                     //event = new TransactionEvent(TransactionEventType.POST_INSERT, elementName, collection, insert );
@@ -8,6 +8,8 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.RoundingMode;
 import java.text.NumberFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -42,6 +44,8 @@ import org.opengis.feature.type.AttributeDescriptor;
  */
 public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
     public CSVOutputFormat(GeoServer gs) {
         //this is the name of your output format, it is the string
         // that will be used when requesting the format in a 
@@ -82,7 +86,7 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     	   //write out content here
         
         //create a writer
-        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output ) );
+        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output ), BUFFER_SIZE );
                    
         //get the feature collection
         SimpleFeatureCollection fc = 
@@ -93,19 +97,21 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.write("FID,");
         for ( int i = 0; i < ft.getAttributeCount(); i++ ) {
             AttributeDescriptor ad = ft.getDescriptor( i );
-            w.write( prepCSVField(ad.getLocalName()) );
+            writeCSVField(ad.getLocalName(), w);
                
             if ( i < ft.getAttributeCount()-1 ) {
-               w.write( "," );
+               w.write( ',' );
             }
         }
         // by RFC each line is terminated by CRLF
         w.write( "\r\n" );
         
-        // prepare the formatter for numbers
-        NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
-        coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getGlobal().getNumDecimals());
-        coordFormatter.setGroupingUsed(false);
+        // pick the encoder of each column once, based on the attribute types
+        int numDecimals = getInfo().getGeoServer().getGlobal().getNumDecimals();
+        ValueEncoder[] encoders = new ValueEncoder[ft.getAttributeCount()];
+        for ( int i = 0; i < encoders.length; i++ ) {
+            encoders[i] = getEncoder(ft.getDescriptor(i).getType().getBinding(), numDecimals);
+        }
            
         //write out the features
         SimpleFeatureIterator i = fc.features();
@@ -113,33 +119,16 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             while( i.hasNext() ) {
                 SimpleFeature f = i.next();
                 // dump fid
-                w.write(prepCSVField(f.getID()));
-                w.write(",");
+                writeCSVField(f.getID(), w);
+                w.write(',');
                 // dump attributes
-                for ( int j = 0; j < f.getAttributeCount(); j++ ) {
+                for ( int j = 0; j < encoders.length; j++ ) {
                     Object att = f.getAttribute( j );
                     if ( att != null ) {
-                        String value = null;
-                        if(att instanceof Number) {
-                            // don't allow scientific notation in the output, as OpenOffice won't 
-                            // recognize that as a number 
-                            value = coordFormatter.format(att);
-                        } else if(att instanceof Date) {
-                            // serialize dates in ISO format
-                            if(att instanceof java.sql.Date)
-                                value = DateUtil.serializeSqlDate((java.sql.Date) att);
-                            else if(att instanceof java.sql.Time)
-                                value = DateUtil.serializeSqlTime((java.sql.Time) att);
-                            else
-                                value = DateUtil.serializeDateTime((Date) att);
-                        } else {
-                            // everything else we just "toString"
-                            value = att.toString();
-                        }
-                        w.write( prepCSVField(value) );
+                        encoders[j].encode(att, w);
                     }
-                    if ( j < f.getAttributeCount()-1 ) {
-                        w.write(",");    
+                    if ( j < encoders.length-1 ) {
+                        w.write(',');    
                     }
                 }
                 // by RFC each line is terminated by CRLF
@@ -152,25 +141,144 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.flush();
     }
     
+    /**
+     * Returns the encoder for the values of the specified type
+     */
+    ValueEncoder getEncoder(Class<?> binding, int numDecimals) {
+        if (Double.class.equals(binding) || Float.class.equals(binding)) {
+            return new DoubleEncoder(numDecimals);
+        } else if (Integer.class.equals(binding) || Long.class.equals(binding)
+                || Short.class.equals(binding) || Byte.class.equals(binding)) {
+            return new LongEncoder(numDecimals);
+        } else if (String.class.equals(binding)) {
+            return new StringEncoder();
+        } else {
+            return new ValueEncoder(numDecimals);
+        }
+    }
+
+    /**
+     * Encodes the values of a column. This base class handles any kind of value, the subclasses
+     * take shortcuts for the values of the type they are built for, and go back to the generic
+     * encoding for the others.
+     */
+    static class ValueEncoder {
+        int numDecimals;
+
+        NumberFormat numberFormat;
+
+        ValueEncoder(int numDecimals) {
+            this.numDecimals = numDecimals;
+        }
+
+        void encode(Object att, Writer w) throws IOException {
+            String value = null;
+            if(att instanceof Number) {
+                // don't allow scientific notation in the output, as OpenOffice won't 
+                // recognize that as a number 
+                value = getNumberFormat().format(att);
+            } else if(att instanceof Date) {
+                // serialize dates in ISO format
+                if(att instanceof java.sql.Date)
+                    value = DateUtil.serializeSqlDate((java.sql.Date) att);
+                else if(att instanceof java.sql.Time)
+                    value = DateUtil.serializeSqlTime((java.sql.Time) att);
+                else
+                    value = DateUtil.serializeDateTime((Date) att);
+            } else {
+                // everything else we just "toString"
+                value = att.toString();
+            }
+            writeCSVField(value, w);
+        }
+
+        NumberFormat getNumberFormat() {
+            if (numberFormat == null) {
+                numberFormat = NumberFormat.getInstance(Locale.US);
+                numberFormat.setMaximumFractionDigits(numDecimals);
+                numberFormat.setGroupingUsed(false);
+                numberFormat.setRoundingMode(RoundingMode.HALF_UP);
+            }
+            return numberFormat;
+        }
+    }
+
+    static class DoubleEncoder extends ValueEncoder {
+        DecimalEncoder decimals;
+
+        DoubleEncoder(int numDecimals) {
+            super(numDecimals);
+            decimals = new DecimalEncoder(numDecimals);
+        }
+
+        @Override
+        void encode(Object att, Writer w) throws IOException {
+            if (!(att instanceof Double || att instanceof Float)
+                    || !decimals.write(((Number) att).doubleValue(), w)) {
+                super.encode(att, w);
+            }
+        }
+    }
+
+    static class LongEncoder extends ValueEncoder {
+        DecimalEncoder decimals = new DecimalEncoder(0);
+
+        LongEncoder(int numDecimals) {
+            super(numDecimals);
+        }
+
+        @Override
+        void encode(Object att, Writer w) throws IOException {
+            if (!(att instanceof Integer || att instanceof Long || att instanceof Short
+                    || att instanceof Byte) || !decimals.write(((Number) att).longValue(), w)) {
+                super.encode(att, w);
+            }
+        }
+    }
+
+    static class StringEncoder extends ValueEncoder {
+        StringEncoder() {
+            super(0);
+        }
+
+        @Override
+        void encode(Object att, Writer w) throws IOException {
+            writeCSVField(att.toString(), w);
+        }
+    }
+
     /*
      * The CSV "spec" explains that fields with certain properties must be
      * delimited by double quotes, and also that double quotes within fields
-     * must be escaped.  This method takes a field and returns one that
-     * obeys the CSV spec.
+     * must be escaped.  This method writes out a field so that it
+     * obeys the CSV spec, without building intermediate strings.
      */    
-    private String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-    	String mod = field.replaceAll("\"", "\"\"");
-    	
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-    	if(mod.matches(".*(\"|\n|,).*")){
-    		mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
+    static void writeCSVField(String field, Writer w) throws IOException {
+        /*
+         * Enclose string in double quotes if it contains double quotes, commas, or newlines
+         */
+        final int length = field.length();
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == '"' || c == ',' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            w.write(field);
+            return;
+        }
+
+        // "embedded double-quote characters must be represented by a pair of double-quote characters."
+        w.write('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (field.charAt(i) == '"') {
+                w.write(field, start, i + 1 - start);
+                start = i;
+            }
+        }
+        w.write(field, start, length - start);
+        w.write('"');
     }
     
     @Override
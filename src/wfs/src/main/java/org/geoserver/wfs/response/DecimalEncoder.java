@@ -0,0 +1,118 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes out numbers in plain decimal notation without allocating intermediate strings, for the
+ * output formats encoding lots of numbers (coordinates, attribute values).
+ * <p>
+ * Doubles are rounded half up ({@link java.math.RoundingMode#HALF_UP}, that is, ties away from
+ * zero) to the configured number of decimals and written without trailing zeroes.
+ * Values that cannot be handled exactly (non finite, too large once scaled, or when full
+ * precision is requested) are rejected, the caller is supposed to fall back on its usual
+ * formatting in that case. Instances are not thread safe.
+ * </p>
+ */
+class DecimalEncoder {
+
+    static final double[] SCALES = new double[18];
+    static {
+        SCALES[0] = 1;
+        for (int i = 1; i < SCALES.length; i++) {
+            SCALES[i] = SCALES[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Beyond this value the scaled doubles cannot be represented exactly as a long
+     */
+    static final double MAX_SCALED = 1e15;
+
+    final int numDecimals;
+
+    final double scale;
+
+    final char[] buffer = new char[32];
+
+    /**
+     * @param numDecimals The max number of decimals, negative to ask for full precision
+     */
+    DecimalEncoder(int numDecimals) {
+        if (numDecimals >= SCALES.length) {
+            // can't be scaled into a long anyways
+            numDecimals = -1;
+        }
+        this.numDecimals = numDecimals;
+        this.scale = numDecimals >= 0 ? SCALES[numDecimals] : 0;
+    }
+
+    /**
+     * Writes out the double
+     *
+     * @return false if the value cannot be encoded, in that case nothing has been written
+     */
+    boolean write(double value, Writer writer) throws IOException {
+        double scaled = value * scale;
+        if (numDecimals < 0 || Double.isNaN(scaled) || Math.abs(scaled) >= MAX_SCALED) {
+            return false;
+        }
+
+        // round the absolute value, Math.round alone would move the negative ties up
+        long digits = Math.round(Math.abs(scaled));
+        boolean negative = scaled < 0 && digits != 0;
+
+        // fill the buffer backwards, first the decimals skipping the trailing zeroes
+        int pos = buffer.length;
+        int decimals = numDecimals;
+        while (decimals > 0 && digits % 10 == 0) {
+            digits /= 10;
+            decimals--;
+        }
+        if (decimals > 0) {
+            for (; decimals > 0; decimals--) {
+                buffer[--pos] = (char) ('0' + digits % 10);
+                digits /= 10;
+            }
+            buffer[--pos] = '.';
+        }
+        // then the integer part
+        pos = fill(digits, pos);
+        if (negative) {
+            buffer[--pos] = '-';
+        }
+
+        writer.write(buffer, pos, buffer.length - pos);
+        return true;
+    }
+
+    /**
+     * Writes out the integral value
+     *
+     * @return false if the value cannot be encoded, in that case nothing has been written
+     */
+    boolean write(long value, Writer writer) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            // cannot be negated
+            return false;
+        }
+        int pos = fill(Math.abs(value), buffer.length);
+        if (value < 0) {
+            buffer[--pos] = '-';
+        }
+        writer.write(buffer, pos, buffer.length - pos);
+        return true;
+    }
+
+    int fill(long digits, int pos) {
+        do {
+            buffer[--pos] = (char) ('0' + digits % 10);
+            digits /= 10;
+        } while (digits > 0);
+        return pos;
+    }
+}
@@ -14,6 +14,8 @@ import net.opengis.wfs.FeatureCollectionType;
 import net.opengis.wfs.GetFeatureType;
 import net.sf.json.JSONException;
 
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
@@ -90,7 +92,7 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
             outWriter.write(callback + "(");
         }
 
-        GeoJSONBuilder jsonWriter = new GeoJSONBuilder(outWriter);
+        GeoJSONWriter jsonWriter = new GeoJSONWriter(outWriter, getNumDecimals(featureCollection));
 
         // execute should of set all the header information
         // including the lockID
@@ -193,9 +195,11 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
                             }
                         }
                         // Bounding box for feature in properties
-                        ReferencedEnvelope refenv = new ReferencedEnvelope(feature.getBounds());
-                        if (featureBounding && !refenv.isEmpty())
-                            jsonWriter.writeBoundingBox(refenv);
+                        if (featureBounding) {
+                            ReferencedEnvelope refenv = new ReferencedEnvelope(feature.getBounds());
+                            if (!refenv.isEmpty())
+                                jsonWriter.writeBoundingBox(refenv);
+                        }
 
                         jsonWriter.endObject(); // end the properties
                         jsonWriter.endObject(); // end the feature
@@ -267,4 +271,24 @@ public class GeoJSONOutputFormat extends WFSGetFeatureOutputFormat {
 
     }
 
+    /**
+     * Returns the number of decimals used to encode the coordinates, the max of the ones
+     * configured in the feature types, or the global one if none is configured
+     */
+    int getNumDecimals(FeatureCollectionType featureCollection) {
+        Catalog catalog = gs.getCatalog();
+        int numDecimals = -1;
+        for (Iterator f = featureCollection.getFeature().iterator(); f.hasNext();) {
+            FeatureCollection fc = (FeatureCollection) f.next();
+            FeatureTypeInfo meta = catalog.getFeatureTypeByName(fc.getSchema().getName());
+            if (meta != null && meta.getNumDecimals() > 0) {
+                numDecimals = Math.max(numDecimals, meta.getNumDecimals());
+            }
+        }
+        if (numDecimals == -1) {
+            numDecimals = gs.getGlobal().getNumDecimals();
+        }
+        return numDecimals;
+    }
+
 }
@@ -0,0 +1,278 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import net.sf.json.JSONException;
+import net.sf.json.util.JSONUtils;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * A streaming GeoJSON writer, used by {@link GeoJSONOutputFormat} in place of the generic
+ * {@link GeoJSONBuilder}.
+ * <p>
+ * The writer offers the same structural methods as the json-lib builder (object, array, key,
+ * value), but the geometries are written straight out of their coordinate sequences, and the
+ * ordinates are formatted into a reusable buffer with the configured number of decimals, so no
+ * object is allocated per coordinate. Other values are converted the same way json-lib does.
+ * </p>
+ * <p>
+ * The writer only checks the document structure as much as it needs to place the commas, it's up
+ * to the caller to produce a well formed document.
+ * </p>
+ */
+public class GeoJSONWriter {
+
+    Writer writer;
+
+    DecimalEncoder decimals;
+
+    /**
+     * Whether the container at each nesting level already has a member, so the next one needs a
+     * comma
+     */
+    boolean[] comma = new boolean[32];
+
+    int depth;
+
+    boolean afterKey;
+
+    /**
+     * Creates a writer encoding the ordinates with full precision
+     */
+    public GeoJSONWriter(Writer writer) {
+        this(writer, -1);
+    }
+
+    /**
+     * Creates a writer encoding the ordinates with the specified number of decimals, or full
+     * precision if negative
+     */
+    public GeoJSONWriter(Writer writer, int numDecimals) {
+        this.writer = writer;
+        setNumDecimals(numDecimals);
+    }
+
+    public int getNumDecimals() {
+        return decimals.numDecimals;
+    }
+
+    public void setNumDecimals(int numDecimals) {
+        this.decimals = new DecimalEncoder(numDecimals);
+    }
+
+    public GeoJSONWriter object() throws IOException {
+        beforeValue();
+        writer.write('{');
+        push();
+        return this;
+    }
+
+    public GeoJSONWriter endObject() throws IOException {
+        depth--;
+        writer.write('}');
+        return this;
+    }
+
+    public GeoJSONWriter array() throws IOException {
+        beforeValue();
+        writer.write('[');
+        push();
+        return this;
+    }
+
+    public GeoJSONWriter endArray() throws IOException {
+        depth--;
+        writer.write(']');
+        return this;
+    }
+
+    public GeoJSONWriter key(String key) throws IOException {
+        if (key == null) {
+            throw new JSONException("Null key.");
+        }
+        separator();
+        writer.write(JSONUtils.quote(key));
+        writer.write(':');
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes out a value, geometries are encoded as GeoJSON, the other objects the same way
+     * json-lib does
+     */
+    public GeoJSONWriter value(Object value) throws IOException {
+        if (value instanceof Geometry) {
+            return writeGeom((Geometry) value);
+        }
+        beforeValue();
+        writer.write(JSONUtils.valueToString(value));
+        return this;
+    }
+
+    public GeoJSONWriter value(double value) throws IOException {
+        beforeValue();
+        writeNumber(value);
+        return this;
+    }
+
+    /**
+     * Writes any geometry object
+     */
+    public GeoJSONWriter writeGeom(Geometry geometry) throws IOException {
+        object();
+        key("type").value(GeoJSONBuilder.getGeometryName(geometry));
+
+        switch (GeoJSONBuilder.getGeometryType(geometry)) {
+        case GeoJSONBuilder.POINT:
+            key("coordinates");
+            writeCoordinate(((Point) geometry).getCoordinateSequence(), 0);
+            break;
+        case GeoJSONBuilder.LINESTRING:
+            key("coordinates");
+            writeCoordinates(((LineString) geometry).getCoordinateSequence());
+            break;
+        case GeoJSONBuilder.POLYGON:
+            key("coordinates");
+            writePolygon((Polygon) geometry);
+            break;
+        case GeoJSONBuilder.MULTIPOINT:
+            key("coordinates");
+            array();
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                writeCoordinate(((Point) geometry.getGeometryN(i)).getCoordinateSequence(), 0);
+            }
+            endArray();
+            break;
+        case GeoJSONBuilder.MULTILINESTRING:
+            key("coordinates");
+            array();
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                writeCoordinates(((LineString) geometry.getGeometryN(i)).getCoordinateSequence());
+            }
+            endArray();
+            break;
+        case GeoJSONBuilder.MULTIPOLYGON:
+            key("coordinates");
+            array();
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                writePolygon((Polygon) geometry.getGeometryN(i));
+            }
+            endArray();
+            break;
+        default:
+            GeometryCollection collection = (GeometryCollection) geometry;
+            key("geometries");
+            array();
+            for (int i = 0, n = collection.getNumGeometries(); i < n; i++) {
+                writeGeom(collection.getGeometryN(i));
+            }
+            endArray();
+        }
+
+        return endObject();
+    }
+
+    /**
+     * Writes out the envelope as a "bbox" member, [minX,minY,maxX,maxY]
+     */
+    public GeoJSONWriter writeBoundingBox(Envelope env) throws IOException {
+        key("bbox");
+        array();
+        value(env.getMinX());
+        value(env.getMinY());
+        value(env.getMaxX());
+        value(env.getMaxY());
+        return endArray();
+    }
+
+    void writePolygon(Polygon polygon) throws IOException {
+        array();
+        writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        endArray();
+    }
+
+    void writeCoordinates(CoordinateSequence coordinates) throws IOException {
+        array();
+        for (int i = 0, n = coordinates.size(); i < n; i++) {
+            writeCoordinate(coordinates, i);
+        }
+        endArray();
+    }
+
+    void writeCoordinate(CoordinateSequence coordinates, int i) throws IOException {
+        if (coordinates.size() == 0) {
+            // empty point
+            beforeValue();
+            writer.write("[]");
+            return;
+        }
+        beforeValue();
+        writer.write('[');
+        writeNumber(coordinates.getX(i));
+        writer.write(',');
+        writeNumber(coordinates.getY(i));
+        writer.write(']');
+    }
+
+    /**
+     * Writes out a number with at most the configured number of decimals, without trailing
+     * zeroes
+     */
+    void writeNumber(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("JSON does not allow non-finite numbers");
+        }
+        if (!decimals.write(value, writer)) {
+            // full precision, or too big for the fast path
+            writer.write(JSONUtils.numberToString(Double.valueOf(value)));
+        }
+    }
+
+    void push() {
+        depth++;
+        if (depth == comma.length) {
+            boolean[] grown = new boolean[comma.length * 2];
+            System.arraycopy(comma, 0, grown, 0, comma.length);
+            comma = grown;
+        }
+        comma[depth] = false;
+    }
+
+    void separator() throws IOException {
+        if (comma[depth]) {
+            writer.write(',');
+        }
+        comma[depth] = true;
+    }
+
+    void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else {
+            separator();
+        }
+    }
+
+    /**
+     * Flushes the underlying writer
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+}
@@ -13,9 +13,12 @@ import javax.xml.transform.TransformerException;
 
 import net.opengis.wfs.GetCapabilitiesType;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.ows.util.OwsUtils;
 import org.geoserver.platform.Operation;
+import org.geoserver.wfs.CapabilitiesTransformer;
+import org.geoserver.wfs.WFSException;
 import org.geotools.xml.transform.TransformerBase;
 
 
@@ -55,7 +58,64 @@ public class GetCapabilitiesResponse extends Response {
         return "application/xml";
     }
 
-    public void write(Object value, OutputStream output, Operation operation)
+    /**
+     * Returns the ETag and Last-Modified headers of the cached document, answering directly
+     * with a 304 if the client already has it
+     */
+    public String[][] getHeaders(final Object value, final Operation operation) {
+        CapabilitiesCache cache = CapabilitiesCache.get();
+        if (cache == null) {
+            return null;
+        }
+        verifyUpdateSequence(value, operation);
+        String key = cacheKey(cache, value, operation);
+        cache.checkNotModified(key);
+        try {
+            return cache.getHeaders(key, new CapabilitiesCache.Producer() {
+                public void write(OutputStream output) throws IOException {
+                    writeCapabilities(value, output, operation);
+                }
+            });
+        } catch (IOException e) {
+            throw new WFSException(e);
+        }
+    }
+
+    public void write(final Object value, OutputStream output, final Operation operation)
+        throws IOException {
+        CapabilitiesCache cache = CapabilitiesCache.get();
+        if (cache == null) {
+            writeCapabilities(value, output, operation);
+        } else {
+            verifyUpdateSequence(value, operation);
+            cache.write(cacheKey(cache, value, operation), output, new CapabilitiesCache.Producer() {
+                public void write(OutputStream output) throws IOException {
+                    writeCapabilities(value, output, operation);
+                }
+            });
+        }
+    }
+
+    /**
+     * The 1.1 transformer checks the update sequence while encoding, a cached document would
+     * skip the check
+     */
+    void verifyUpdateSequence(Object value, Operation operation) {
+        if (value instanceof CapabilitiesTransformer.WFS1_1) {
+            ((CapabilitiesTransformer) value).verifyUpdateSequence((GetCapabilitiesType) OwsUtils
+                    .parameter(operation.getParameters(), GetCapabilitiesType.class));
+        }
+    }
+
+    String cacheKey(CapabilitiesCache cache, Object value, Operation operation) {
+        GetCapabilitiesType request = (GetCapabilitiesType) OwsUtils.parameter(operation
+                .getParameters(), GetCapabilitiesType.class);
+        // the transformer class tells the negotiated version apart
+        return cache.key(operation, value.getClass().getName(), request.getBaseUrl(), 
+                request.getNamespace());
+    }
+
+    void writeCapabilities(Object value, OutputStream output, Operation operation)
         throws IOException {
         TransformerBase tx = (TransformerBase) value;
 
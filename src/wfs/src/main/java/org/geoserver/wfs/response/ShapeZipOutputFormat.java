@@ -6,15 +6,15 @@ package org.geoserver.wfs.response;
  
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
@@ -31,6 +31,7 @@ import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
@@ -77,7 +78,9 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
 import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -124,6 +127,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private static class StoreWriter {
         DataStore dstore;
         FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+        String fileName;
     }
 
     /**
@@ -215,15 +219,24 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, GetFeatureType request) throws IOException, ServiceException {
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
+        //Each set goes through the temp directory and is moved into the zip as soon as it is
+        //complete, so the client starts receiving data early
         File tempDir = IOUtils.createTempDirectory("shpziptemp");
-        
-        // target charset
+        ZipOutputStream zipOut = new ZipOutputStream(output);
+        Set<String> entries = new HashSet<String>();
         
         try {
            // if an empty result out of feature type with unknown geometry is created, the
             // zip file will be empty and the zip output stream will break
             boolean shapefileCreated = false;
-            for (SimpleFeatureCollection curCollection : collections) {
+            for (int i = 0; i < collections.size(); i++) {
+                SimpleFeatureCollection curCollection = collections.get(i);
+                if(isOverridden(collections, i)) {
+                    // the later copy would overwrite the shapefiles of this one anyways
+                    LOGGER.warning("Skipping " + curCollection.getSchema().getName() 
+                            + ", it is repeated later in the output");
+                    continue;
+                }
                 
                 if(curCollection.getSchema().getGeometryDescriptor() == null) {
                     throw new WFSException("Cannot write geometryless shapefiles, yet " 
@@ -233,12 +246,16 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
                 if(GeometryCollection.class.equals(geomType) || Geometry.class.equals(geomType)) {
                     // in this case we fan out the output to multiple shapefiles
                     shapefileCreated |= writeCollectionToShapefiles(curCollection, tempDir, charset, request);
-                } else {
+                    zipShapefiles(tempDir, zipOut, charset, entries);
+                } else if(ShapefileZipWriter.canWrite(curCollection.getSchema())) {
                     // simple case, only one and supported type
+                    writeCollectionToZip(curCollection, zipOut, charset, request, entries, tempDir);
+                    shapefileCreated = true;
+                } else {
                     writeCollectionToShapefile(curCollection, tempDir, charset, request);
+                    zipShapefiles(tempDir, zipOut, charset, entries);
                     shapefileCreated = true;
                 }
-
             }
             
             // take care of the case the output is completely empty
@@ -247,22 +264,13 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
                 fc = (SimpleFeatureCollection) collections.get(0);
                 fc = remapCollectionSchema(fc, Point.class);
                 writeCollectionToShapefile(fc, tempDir, charset, request);
-                createEmptyZipWarning(tempDir);
+                zipShapefiles(tempDir, zipOut, charset, entries);
+                createEmptyZipWarning(zipOut);
             }
             
             // dump the request
-            createRequestDump(tempDir, request, collections.get(0));
-            
-            // zip all the files produced
-            final FilenameFilter filter = new FilenameFilter() {
+            createRequestDump(zipOut, request, collections.get(0));
             
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
-                           || name.endsWith(".prj") || name.endsWith(".cst") || name.endsWith(".txt");
-                }
-            };
-            ZipOutputStream zipOut = new ZipOutputStream(output);
-            IOUtils.zipDirectory(tempDir, zipOut, filter);
             zipOut.finish();
 
             // This is an error, because this closes the output stream too... it's
@@ -278,11 +286,161 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Returns true if the same feature type shows up again after the collection at the
+     * specified position. The shapefiles of the last copy are the ones making it into the zip.
+     */
+    private boolean isOverridden(List<SimpleFeatureCollection> collections, int index) {
+        Name name = collections.get(index).getSchema().getName();
+        for (int i = index + 1; i < collections.size(); i++) {
+            if(name.equals(collections.get(i).getSchema().getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes one featurecollection as a shapefile set into the zip, without going through the
+     * shapefile store
+     */
+    private void writeCollectionToZip(SimpleFeatureCollection c, ZipOutputStream zipOut,
+            Charset charset, GetFeatureType request, Set<String> entries, File tempDir)
+            throws IOException {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(c);
+        c = remapCollectionSchema(c, null);
+        SimpleFeatureType schema = c.getSchema();
+        String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, null);
+        if(entries.contains(fileName + ".shp")) {
+            LOGGER.warning("Skipping " + fileName + " as the zip file already contains it");
+            return;
+        }
+        
+        // the small files first, so that the client gets some data right away
+        String prj = getPrj(request, schema);
+        if(prj != null && putNextEntry(zipOut, fileName + ".prj", entries)) {
+            zipOut.write(prj.getBytes());
+            zipOut.closeEntry();
+        }
+        // dump the charset into a .cst file, for debugging and control purposes
+        // (.cst is not a standard extension)
+        if(putNextEntry(zipOut, fileName + ".cst", entries)) {
+            zipOut.write(charset.name().getBytes());
+            zipOut.closeEntry();
+        }
+        zipOut.flush();
+        
+        entries.add(fileName + ".dbf");
+        entries.add(fileName + ".shx");
+        entries.add(fileName + ".shp");
+        try {
+            new ShapefileZipWriter(zipOut, charset, tempDir).write(c, fileName);
+        } catch (IOException ioe) {
+            LOGGER.log(Level.WARNING,
+                "Error while writing featuretype '" + schema.getTypeName() + "' to shapefile.", ioe);
+            throw new ServiceException(ioe);
+        }
+        zipOut.flush();
+    }
+
+    /**
+     * Returns the contents of the .prj file, in ESRI WKT format if requested (see
+     * {@link #changeWKTFormatIfFileFormatIsESRI(File, GetFeatureType, String, SimpleFeatureType)}),
+     * or null if the schema has no CRS
+     */
+    private String getPrj(GetFeatureType request, SimpleFeatureType schema) {
+        CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+        if(crs == null) {
+            return null;
+        }
+        try {
+            if(isESRIFormatRequested(request)) {
+                String esri = getESRIWKT(schema);
+                if(esri != null) {
+                    return esri;
+                }
+            }
+        } catch (FactoryException fe) {
+            LOGGER.log(Level.WARNING,
+                    "Error while getting EPSG code from FeatureType", fe);
+            throw new ServiceException(fe);
+        } catch (IOException ioe) {
+            throw new ServiceException(ioe);
+        }
+        
+        try {
+            return crs.toWKT();
+        } catch(Exception e) {
+            LOGGER.log(Level.WARNING, "Could not properly create the .prj file", e);
+            return null;
+        }
+    }
+
+    /**
+     * Moves the shapefiles written in the temp directory into the zip, deleting them as they get
+     * copied, and adds the .cst file for each of them
+     */
+    private void zipShapefiles(File tempDir, ZipOutputStream zipOut, Charset charset,
+            Set<String> entries) throws IOException {
+        File[] files = tempDir.listFiles(new FilenameFilter() {
+            
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".shp") || name.endsWith(".shx") || name.endsWith(".dbf")
+                       || name.endsWith(".prj");
+            }
+        });
+        
+        byte[] buffer = new byte[8 * 1024];
+        for (File file : files) {
+            String name = file.getName();
+            if(putNextEntry(zipOut, name, entries)) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    int c;
+                    while (-1 != (c = in.read(buffer))) {
+                        zipOut.write(buffer, 0, c);
+                    }
+                } finally {
+                    in.close();
+                }
+                zipOut.closeEntry();
+            }
+            
+            // dump the charset into a .cst file, for debugging and control purposes
+            // (.cst is not a standard extension)
+            if(name.endsWith(".shp")) {
+                String cstName = name.substring(0, name.length() - 4) + ".cst";
+                if(putNextEntry(zipOut, cstName, entries)) {
+                    zipOut.write(charset.name().getBytes());
+                    zipOut.closeEntry();
+                }
+            }
+        }
+        
+        // get rid of everything, including the side files the shapefile store might have created
+        IOUtils.emptyDirectory(tempDir);
+        zipOut.flush();
+    }
+
+    /**
+     * Starts a new zip entry, unless one with the same name has already been written
+     * @return true if the entry has been started
+     */
+    private boolean putNextEntry(ZipOutputStream zipOut, String name, Set<String> entries)
+            throws IOException {
+        if(!entries.add(name)) {
+            LOGGER.warning("Skipping " + name + " as the zip file already contains it");
+            return false;
+        }
+        zipOut.putNextEntry(new ZipEntry(name));
+        return true;
+    }
+
     /**
      * Dumps the request
      * @param simpleFeatureCollection
      */
-    private void createRequestDump(File tempDir, GetFeatureType gft, SimpleFeatureCollection fc) {
+    private void createRequestDump(ZipOutputStream zipOut, GetFeatureType gft, SimpleFeatureCollection fc) {
         final Request request = Dispatcher.REQUEST.get();
         if(request == null || gft == null) {
             // we're probably running in a unit test
@@ -292,13 +450,13 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         // build the target file
         FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc);
         String fileName = new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
-        File target = new File(tempDir, fileName);
         
         try {
+            byte[] dump;
             if(request.isGet()) {
                 final HttpServletRequest httpRequest = request.getHttpRequest();
                 String url = httpRequest.getRequestURL().append("?").append(httpRequest.getQueryString()).toString();
-                FileUtils.writeStringToFile(target, url);
+                dump = url.getBytes();
             } else {
                 org.geotools.xml.Configuration cfg = null;
                 QName elementName = null;
@@ -309,33 +467,27 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
                     cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
                     elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
                 }
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(target);
-                    Encoder encoder = new Encoder(cfg);
-                    encoder.setIndenting(true);
-                    encoder.setIndentSize(2);
-                    encoder.encode(gft, elementName, fos);
-                } finally {
-                    if(fos != null)
-                        fos.close();
-                }
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                Encoder encoder = new Encoder(cfg);
+                encoder.setIndenting(true);
+                encoder.setIndentSize(2);
+                encoder.encode(gft, elementName, bos);
+                dump = bos.toByteArray();
             }
+            zipOut.putNextEntry(new ZipEntry(fileName));
+            zipOut.write(dump);
+            zipOut.closeEntry();
         } catch(IOException e) {
             throw new WFSException("Failed to dump the WFS request");
         }
         
     }
 
-    private void createEmptyZipWarning(File tempDir) throws IOException {
-        PrintWriter pw = null;
-        try {
-            pw = new PrintWriter(new File(tempDir, "README.TXT"));
-            pw.print("The query result is empty, and the geometric type of the features is unknwon:" +
-            		"an empty point shapefile has been created to fill the zip file");
-        } finally {
-            pw.close();
-        }
+    private void createEmptyZipWarning(ZipOutputStream zipOut) throws IOException {
+        zipOut.putNextEntry(new ZipEntry("README.TXT"));
+        zipOut.write(("The query result is empty, and the geometric type of the features is unknwon:" +
+                "an empty point shapefile has been created to fill the zip file").getBytes());
+        zipOut.closeEntry();
     }   
 
     /**
@@ -430,12 +582,15 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private void changeWKTFormatIfFileFormatIsESRI(File tempDir, GetFeatureType request,
             String fileName, SimpleFeatureType remappedSchema) throws FactoryException,
             IOException, FileNotFoundException {
-        
-        boolean useEsriFormat = false;
-        
+        if (isESRIFormatRequested(request)) {
+            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+        }
+    }
+
+    private boolean isESRIFormatRequested(GetFeatureType request) {
         // if the request originates from the WPS we won't actually have any GetFeatureType request
         if(request == null) {
-            return;
+            return false;
         }
         
         Map<String, ?> formatOptions = request.getFormatOptions();
@@ -444,49 +599,61 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             WFSInfo bean = gs.getService(WFSInfo.class);
             MetadataMap metadata = bean.getMetadata();
             Boolean defaultIsEsri = metadata.get(SHAPE_ZIP_DEFAULT_PRJ_IS_ESRI, Boolean.class);
-            useEsriFormat = defaultIsEsri != null && defaultIsEsri.booleanValue();
+            return defaultIsEsri != null && defaultIsEsri.booleanValue();
         }else{
-            useEsriFormat = "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
-        }
-        
-        if (useEsriFormat) {
-            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+            return "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
         }
     }
 
     private void replaceOGCPrjFileByESRIPrjFile(File tempDir, String fileName,
             SimpleFeatureType remappedSchema) throws FactoryException, IOException,
             FileNotFoundException {
+        String data = getESRIWKT(remappedSchema);
+        if (data != null) {
+            File prjShapeFile = new File(tempDir, fileName + ".prj");
+            prjShapeFile.delete();
+
+            BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the ESRI WKT of the schema CRS in user_projections/esri.properties
+     * @return the ESRI WKT, or null if not found
+     */
+    private String getESRIWKT(SimpleFeatureType remappedSchema) throws FactoryException,
+            IOException {
         final Integer epsgCode = CRS.lookupEpsgCode(remappedSchema.getGeometryDescriptor()
                 .getCoordinateReferenceSystem(), true);
         if(epsgCode == null){
             LOGGER.info("Can't find the EPSG code for the shapefile CRS");
-            return;
+            return null;
         }
         File file = resourceLoader.find("user_projections", "esri.properties");
 
         if (file != null && file.exists()) {
             Properties properties = new Properties();
-            properties.load(new FileInputStream(file));
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
 
             String data = (String) properties.get(epsgCode.toString());
-
-            if (data != null) {
-                File prjShapeFile = new File(tempDir, fileName + ".prj");
-                prjShapeFile.delete();
-
-                BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
-                try {
-                    out.write(data);
-                } finally {
-                    out.close();
-                }
-            } else {
+            if (data == null) {
                 LOGGER.info("Requested shapefile with ESRI WKT .prj format but couldn't find an entry for ESPG code "
                         + epsgCode + " in esri.properties");
             }
+            return data;
         } else {
             LOGGER.info("Requested shapefile with ESRI WKT .prj format but the esri.properties file does not exist in the user_projections directory");
+            return null;
         }
     }
     
@@ -617,11 +784,10 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
                 fw.setDefaultGeometry(f.getDefaultGeometry());
                 writer.write();
                 shapefileCreated = true;
-                writer.getFeatureType().getName().getLocalPart();
-                String geometryType = (String) getGeometryType((Geometry)f.getDefaultGeometry()).get("geometryType");
-				String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, geometryType);
-                changeWKTFormatIfFileFormatIsESRI(tempDir, request, fileName,
-                		schema);
+            }
+            
+            for (StoreWriter sw : writers.values()) {
+                changeWKTFormatIfFileFormatIsESRI(tempDir, request, sw.fileName, schema);
             }
             
         } catch (FactoryException fe) {
@@ -691,6 +857,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             storeWriter = new StoreWriter();
             storeWriter.dstore = dstore;
             storeWriter.writer = dstore.getFeatureWriter(retyped.getTypeName(), Transaction.AUTO_COMMIT);
+            storeWriter.fileName = fileName;
             writers.put(target, storeWriter);
         }
         return storeWriter.writer;
@@ -760,18 +927,8 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         File file = new File(tempDir, schema.getTypeName() + ".shp");
         ShapefileDataStore sfds = new ShapefileDataStore(file.toURL());
         
-        // handle shapefile encoding
-        // and dump the charset into a .cst file, for debugging and control purposes
-        // (.cst is not a standard extension)
+        // handle shapefile encoding, the .cst file is added straight into the zip
         sfds.setStringCharset(charset);
-        File charsetFile = new File(tempDir, schema.getTypeName()+ ".cst");
-        PrintWriter pw = null;
-        try {
-            pw  = new PrintWriter(charsetFile);
-            pw.write(charset.name());
-        } finally {
-            if(pw != null) pw.close();
-        }
 
         try {
             sfds.createSchema(schema);
@@ -0,0 +1,309 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureTypes;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes a feature collection as a .dbf, .shx and .shp set into a zip stream, without going
+ * through the shapefile datastore.
+ * <p>
+ * The headers of the three files contain the record count, and the .shp and .shx ones also the
+ * bounds and the file length, all known only once every feature has been seen. The features are
+ * read once, the records are spilled into temporary files and the zip entries are written only
+ * after the read is complete, with the final headers. A failure while reading the data leaves
+ * the zip untouched, and the files are consistent with each other whatever concurrent edits
+ * the data goes through.
+ * </p>
+ * <p>
+ * The collection must have shapefile compatible attribute names and a single geometry type, see
+ * {@link #canWrite(SimpleFeatureType)}.
+ * </p>
+ */
+class ShapefileZipWriter {
+
+    static final int HEADER_LENGTH = 100;
+
+    static final int RECORD_HEADER_LENGTH = 8;
+
+    ZipOutputStream zip;
+
+    Charset charset;
+
+    File tempDir;
+
+    GeometryFactory geometryFactory = new GeometryFactory();
+
+    /**
+     * @param tempDir The directory the records are spilled into while reading the features
+     */
+    ShapefileZipWriter(ZipOutputStream zip, Charset charset, File tempDir) {
+        this.zip = zip;
+        this.charset = charset;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Returns true if the schema geometry maps to a single shapefile geometry type
+     */
+    static boolean canWrite(SimpleFeatureType schema) {
+        GeometryDescriptor descriptor = schema.getGeometryDescriptor();
+        return descriptor != null
+                && getShapeType(descriptor.getType().getBinding(), false) != null;
+    }
+
+    static ShapeType getShapeType(Class binding, boolean z) {
+        if (Point.class.isAssignableFrom(binding)) {
+            return z ? ShapeType.POINTZ : ShapeType.POINT;
+        } else if (MultiPoint.class.isAssignableFrom(binding)) {
+            return z ? ShapeType.MULTIPOINTZ : ShapeType.MULTIPOINT;
+        } else if (LineString.class.isAssignableFrom(binding)
+                || MultiLineString.class.isAssignableFrom(binding)) {
+            return z ? ShapeType.ARCZ : ShapeType.ARC;
+        } else if (Polygon.class.isAssignableFrom(binding)
+                || MultiPolygon.class.isAssignableFrom(binding)) {
+            return z ? ShapeType.POLYGONZ : ShapeType.POLYGON;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the fileName.dbf, fileName.shx and fileName.shp entries
+     */
+    void write(SimpleFeatureCollection features, String fileName) throws IOException {
+        // the names do not end with the shapefile extensions, so that the temp directory
+        // zipping never picks them up
+        File dbfFile = File.createTempFile(fileName, ".dbf.tmp", tempDir);
+        File shxFile = File.createTempFile(fileName, ".shx.tmp", tempDir);
+        File shpFile = File.createTempFile(fileName, ".shp.tmp", tempDir);
+        try {
+            SimpleFeatureType schema = features.getSchema();
+            Class binding = schema.getGeometryDescriptor().getType().getBinding();
+            List<Integer> attributes = new ArrayList<Integer>();
+            DbaseFileHeader dbfHeader = createDbaseHeader(schema, attributes);
+
+            // single pass over the features, the records go into the temp files
+            ShapeType shapeType = null;
+            ShapeHandler handler = null;
+            Envelope bounds = new Envelope();
+            int records = 0;
+            long offset = HEADER_LENGTH;
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH * 1024);
+            ByteBuffer index = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            DbaseFileWriter dbf = new DbaseFileWriter(dbfHeader, new RandomAccessFile(dbfFile,
+                    "rw").getChannel(), charset);
+            OutputStream shx = new BufferedOutputStream(new FileOutputStream(shxFile));
+            OutputStream shp = new BufferedOutputStream(new FileOutputStream(shpFile));
+            Object[] values = new Object[attributes.size()];
+            SimpleFeatureIterator it = features.features();
+            try {
+                while (it.hasNext()) {
+                    SimpleFeature f = it.next();
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = f.getAttribute(attributes.get(i));
+                    }
+                    dbf.write(values);
+
+                    Geometry g = (Geometry) f.getDefaultGeometry();
+                    Geometry shape = null;
+                    int length = 4;
+                    if (g != null && !g.isEmpty()) {
+                        if (handler == null) {
+                            shapeType = getShapeType(binding, !Double.isNaN(g.getCoordinate().z));
+                            handler = shapeType.getShapeHandler(geometryFactory);
+                        }
+                        shape = JTSUtilities.convertToCollection(g, shapeType);
+                        length = handler.getLength(shape);
+                        bounds.expandToInclude(g.getEnvelopeInternal());
+                    }
+
+                    // the record, with its number and length in 16 bit words
+                    if (buffer.capacity() < RECORD_HEADER_LENGTH + length) {
+                        buffer = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+                    }
+                    buffer.clear();
+                    buffer.order(ByteOrder.BIG_ENDIAN);
+                    buffer.putInt(++records);
+                    buffer.putInt(length / 2);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    if (shape == null) {
+                        buffer.putInt(ShapeType.NULL.id);
+                    } else {
+                        buffer.putInt(shapeType.id);
+                        handler.write(buffer, shape);
+                    }
+                    shp.write(buffer.array(), 0, buffer.position());
+
+                    // the index entry, with the record offset and length in 16 bit words
+                    index.clear();
+                    index.putInt((int) (offset / 2));
+                    index.putInt(length / 2);
+                    shx.write(index.array(), 0, index.position());
+                    offset += RECORD_HEADER_LENGTH + length;
+                }
+            } finally {
+                it.close();
+                dbf.close();
+                shx.close();
+                shp.close();
+            }
+            if (shapeType == null) {
+                shapeType = getShapeType(binding, false);
+            }
+
+            // the record count goes in the .dbf header, which has the same size whatever
+            // its value
+            dbfHeader.setNumRecords(records);
+            RandomAccessFile raf = new RandomAccessFile(dbfFile, "rw");
+            try {
+                dbfHeader.writeHeader(raf.getChannel());
+            } finally {
+                raf.close();
+            }
+
+            // everything is known now, the entries can be written
+            zip.putNextEntry(new ZipEntry(fileName + ".dbf"));
+            copy(dbfFile);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(fileName + ".shx"));
+            writeHeader(shapeType, HEADER_LENGTH + RECORD_HEADER_LENGTH * records, bounds);
+            copy(shxFile);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry(fileName + ".shp"));
+            writeHeader(shapeType, offset, bounds);
+            copy(shpFile);
+            zip.closeEntry();
+        } finally {
+            dbfFile.delete();
+            shxFile.delete();
+            shpFile.delete();
+        }
+    }
+
+    /**
+     * Copies the file contents into the current zip entry
+     */
+    void copy(File file) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int c;
+            while (-1 != (c = in.read(buffer))) {
+                zip.write(buffer, 0, c);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the header shared by the .shp and .shx files
+     *
+     * @param length The file length, in bytes
+     */
+    void writeHeader(ShapeType type, long length, Envelope bounds) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(9994);
+        for (int i = 0; i < 5; i++) {
+            buffer.putInt(0);
+        }
+        buffer.putInt((int) (length / 2));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1000);
+        buffer.putInt(type.id);
+        if (bounds.isNull()) {
+            buffer.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+        } else {
+            buffer.putDouble(bounds.getMinX()).putDouble(bounds.getMinY());
+            buffer.putDouble(bounds.getMaxX()).putDouble(bounds.getMaxY());
+        }
+        // z and m ranges
+        buffer.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+        zip.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Builds the .dbf header the same way the shapefile datastore does
+     *
+     * @param attributes Filled with the indexes of the attributes making up the .dbf columns
+     */
+    DbaseFileHeader createDbaseHeader(SimpleFeatureType schema, List<Integer> attributes)
+            throws IOException {
+        DbaseFileHeader header = new DbaseFileHeader();
+        for (int i = 0; i < schema.getAttributeCount(); i++) {
+            AttributeDescriptor descriptor = schema.getDescriptor(i);
+            Class<?> binding = descriptor.getType().getBinding();
+            String name = descriptor.getLocalName();
+            int length = FeatureTypes.getFieldLength(descriptor);
+            if (length == FeatureTypes.ANY_LENGTH) {
+                length = 255;
+            }
+            if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+                header.addColumn(name, 'N', Math.min(length, 9), 0);
+            } else if (binding == Long.class) {
+                header.addColumn(name, 'N', Math.min(length, 19), 0);
+            } else if (binding == BigInteger.class) {
+                header.addColumn(name, 'N', Math.min(length, 33), 0);
+            } else if (Number.class.isAssignableFrom(binding)) {
+                int l = Math.min(length, 33);
+                header.addColumn(name, 'N', l, Math.max(l - 2, 0));
+            } else if (Date.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'D', length, 0);
+            } else if (binding == Boolean.class) {
+                header.addColumn(name, 'L', 1, 0);
+            } else if (CharSequence.class.isAssignableFrom(binding)) {
+                header.addColumn(name, 'C', Math.min(254, length), 0);
+            } else if (Geometry.class.isAssignableFrom(binding)) {
+                continue;
+            } else {
+                throw new IOException("Unable to write : " + binding.getName());
+            }
+            attributes.add(i);
+        }
+        return header;
+    }
+}
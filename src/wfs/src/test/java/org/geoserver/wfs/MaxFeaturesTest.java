@@ -131,6 +131,26 @@ public class MaxFeaturesTest extends WFSTestSupport {
         assertEquals(1, doc.getElementsByTagName("cite:BasicPolygons").getLength());
     }
     
+    public void testCombinedLocalMaxesWfs11() throws Exception {
+        // fifteen has 15 features, basic polygons 3, the queries are counted in parallel
+        // and then merged in order
+        FeatureTypeInfo info = getFeatureTypeInfo(MockData.FIFTEEN);
+        info.setMaxFeatures(4);
+        catalog.save( info );
+        
+        info = getFeatureTypeInfo(MockData.BASIC_POLYGONS);
+        info.setMaxFeatures(0);
+        catalog.save( info );
+        
+        Document doc = getAsDOM("wfs?request=GetFeature&typename=cdf:Fifteen,cite:BasicPolygons" +
+                "&version=1.1.0&service=wfs");
+        assertEquals("wfs:FeatureCollection", doc.getDocumentElement().getNodeName());
+
+        assertEquals("5", doc.getDocumentElement().getAttribute("numberOfFeatures"));
+        assertEquals(4, doc.getElementsByTagName("cdf:Fifteen").getLength());
+        assertEquals(1, doc.getElementsByTagName("cite:BasicPolygons").getLength());
+    }
+    
     public void testMaxFeaturesBreak() throws Exception {
         // see http://jira.codehaus.org/browse/GEOS-1489
         FeatureTypeInfo info = getFeatureTypeInfo(MockData.FIFTEEN);
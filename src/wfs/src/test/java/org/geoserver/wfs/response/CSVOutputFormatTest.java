@@ -3,6 +3,7 @@ package org.geoserver.wfs.response;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -101,6 +102,57 @@ public class CSVOutputFormatTest extends WFSTestSupport {
         assertEquals(f2.getAttribute("label"), lines.get(2)[2]);
     }
     
+    public void testTypedColumns() throws Exception {
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.add("geom", Point.class);
+        builder.add("dbl", Double.class);
+        builder.add("lng", Long.class);
+        builder.add("obj", Object.class);
+        builder.setName("typed");
+        SimpleFeatureType type = builder.buildFeatureType();
+
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeature f1 = SimpleFeatureBuilder.build(type, new Object[] {
+                gf.createPoint(new Coordinate(5, 8)), 10.5, 12345678901234L, 3.25 }, null);
+        SimpleFeature f2 = SimpleFeatureBuilder.build(type, new Object[] {
+                gf.createPoint(new Coordinate(5, 4)), -1e20, null, "a,b" }, null);
+
+        MemoryDataStore data = new MemoryDataStore();
+        data.addFeature(f1);
+        data.addFeature(f2);
+        SimpleFeatureSource fs = data.getFeatureSource("typed");
+
+        GetFeatureType gft = WfsFactory.eINSTANCE.createGetFeatureType();
+        Operation op = new Operation("GetFeature", getServiceDescriptor10(), null, new Object[] {gft});
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FeatureCollectionType fct = WfsFactory.eINSTANCE.createFeatureCollectionType();
+        fct.getFeature().add(fs.getFeatures());
+        new CSVOutputFormat(getGeoServer()).write(fct, bos, op);
+
+        List<String[]> lines = readLines(bos.toString());
+        assertEquals(3, lines.size());
+        assertEquals("10.5", lines.get(1)[2]);
+        assertEquals("12345678901234", lines.get(1)[3]);
+        assertEquals("3.25", lines.get(1)[4]);
+        // too big for the fast path, but still no scientific notation
+        assertEquals("-100000000000000000000", lines.get(2)[2]);
+        assertEquals("", lines.get(2)[3]);
+        assertEquals("a,b", lines.get(2)[4]);
+    }
+
+    public void testWriteField() throws Exception {
+        assertEquals("plain", writeField("plain"));
+        assertEquals("\"a,b\"", writeField("a,b"));
+        assertEquals("\"\"\"x\"\"\"", writeField("\"x\""));
+        assertEquals("\"two\nlines\nhere\"", writeField("two\nlines\nhere"));
+    }
+
+    String writeField(String field) throws IOException {
+        StringWriter writer = new StringWriter();
+        CSVOutputFormat.writeCSVField(field, writer);
+        return writer.toString();
+    }
+
     /**
      * Convenience to read the csv content and 
      * @param csvContent
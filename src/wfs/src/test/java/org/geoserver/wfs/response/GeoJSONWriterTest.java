@@ -0,0 +1,97 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeoJSONWriterTest extends TestCase {
+
+    StringWriter writer;
+
+    GeoJSONWriter json;
+
+    @Override
+    protected void setUp() throws Exception {
+        writer = new StringWriter();
+        json = new GeoJSONWriter(writer);
+    }
+
+    public void testSameAsBuilder() throws Exception {
+        String[] wkts = new String[] { "POINT(1 2)", "LINESTRING(0 0, 1.5 -2.25, 3 3)",
+                "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 1, 2 2, 1 1))",
+                "MULTIPOINT(0 0, 1 1)", "MULTILINESTRING((0 0, 1 1), (2 2, 3 3))",
+                "MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))" };
+        for (String wkt : wkts) {
+            Geometry g = new WKTReader().read(wkt);
+
+            StringWriter expected = new StringWriter();
+            new GeoJSONBuilder(expected).writeGeom(g);
+
+            writer.getBuffer().setLength(0);
+            new GeoJSONWriter(writer).writeGeom(g);
+            assertEquals(wkt, expected.toString(), writer.toString());
+        }
+    }
+
+    public void testGeometryCollection() throws Exception {
+        json.writeGeom(new WKTReader().read("GEOMETRYCOLLECTION(POINT(1 2), LINESTRING(0 0, 1 1))"));
+        assertEquals("{\"type\":\"GeometryCollection\",\"geometries\":["
+                + "{\"type\":\"Point\",\"coordinates\":[1,2]},"
+                + "{\"type\":\"LineString\",\"coordinates\":[[0,0],[1,1]]}]}", writer.toString());
+    }
+
+    public void testNumDecimals() throws Exception {
+        json.setNumDecimals(3);
+        json.array();
+        json.value(1.23456);
+        json.value(-1.2344);
+        json.value(0.1);
+        json.value(-0.0001);
+        json.value(2.9999);
+        json.value(123456789.5);
+        json.value(1e20);
+        json.endArray();
+        assertEquals("[1.235,-1.234,0.1,0,3,123456789.5,1.0E20]", writer.toString());
+    }
+
+    public void testZeroDecimals() throws Exception {
+        json.setNumDecimals(0);
+        json.array().value(1.5).value(-2.4).endArray();
+        assertEquals("[2,-2]", writer.toString());
+    }
+
+    public void testHalfUpRounding() throws Exception {
+        json.setNumDecimals(1);
+        json.array().value(0.25).value(-0.25).value(0.05).value(-0.05).value(-0.04).endArray();
+        assertEquals("[0.3,-0.3,0.1,-0.1,0]", writer.toString());
+    }
+
+    public void testFeature() throws Exception {
+        json.setNumDecimals(2);
+        json.object();
+        json.key("type").value("Feature");
+        json.key("id").value("roads.1");
+        json.key("geometry").writeGeom(new WKTReader().read("POINT(1.234 5.678)"));
+        json.key("properties").object();
+        json.key("name").value("Main \"st\"");
+        json.key("lanes").value(Integer.valueOf(2));
+        json.key("closed").value(Boolean.FALSE);
+        json.key("note").value(null);
+        json.writeBoundingBox(new Envelope(0, 1, 0, 1));
+        json.endObject();
+        json.endObject();
+
+        assertEquals("{\"type\":\"Feature\",\"id\":\"roads.1\","
+                + "\"geometry\":{\"type\":\"Point\",\"coordinates\":[1.23,5.68]},"
+                + "\"properties\":{\"name\":\"Main \\\"st\\\"\",\"lanes\":2,\"closed\":false,"
+                + "\"note\":null,\"bbox\":[0,0,1,1]}}", writer.toString());
+    }
+}
@@ -13,6 +13,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -22,6 +23,7 @@ import net.opengis.wfs.FeatureCollectionType;
 import net.opengis.wfs.GetFeatureType;
 import net.opengis.wfs.WfsFactory;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.MetadataMap;
@@ -33,10 +35,13 @@ import org.geoserver.platform.Operation;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
 import org.opengis.feature.Feature;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -105,6 +110,74 @@ public class ShapeZipTest extends WFSTestSupport {
         checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
     }
 
+    public void testSingleRead() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        SimpleFeatureCollection fc = new DecoratingSimpleFeatureCollection(getFeatureSource(
+                MockData.BASIC_POLYGONS).getFeatures()) {
+            @Override
+            public SimpleFeatureIterator features() {
+                reads.incrementAndGet();
+                return super.features();
+            }
+
+            @Override
+            public int size() {
+                reads.incrementAndGet();
+                return super.size();
+            }
+        };
+        byte[] zip = writeOut(fc);
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        assertEquals(1, reads.get());
+    }
+
+    public void testMultipleCollections() throws Exception {
+        ShapeZipOutputFormat zip = new ShapeZipOutputFormat();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FeatureCollectionType fct = WfsFactory.eINSTANCE.createFeatureCollectionType();
+        fct.getFeature().add(getFeatureSource(MockData.BASIC_POLYGONS).getFeatures());
+        fct.getFeature().add(getFeatureSource(MockData.BRIDGES).getFeatures());
+        // the same type twice, the last copy is the one making it into the zip
+        Query query = new Query(MockData.BASIC_POLYGONS.getLocalPart());
+        query.setMaxFeatures(1);
+        fct.getFeature().add(getFeatureSource(MockData.BASIC_POLYGONS).getFeatures(query));
+        zip.write(fct, bos, op);
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons", "Bridges" },
+                new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(1, countFeatures("BasicPolygons", new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(getFeatureSource(MockData.BRIDGES).getFeatures().size(), countFeatures(
+                "Bridges", new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    /**
+     * Unzips the shapefiles and counts the features of the specified one
+     */
+    private int countFeatures(String typeName, InputStream in) throws IOException {
+        ZipInputStream zis = new ZipInputStream(in);
+        ZipEntry entry = null;
+        File tempFolder = createTempFolder("shp_");
+        try {
+            while ((entry = zis.getNextEntry()) != null) {
+                FileOutputStream outFile = new FileOutputStream(new File(tempFolder, entry.getName()));
+                copyStream(zis, outFile);
+                outFile.close();
+                zis.closeEntry();
+            }
+            zis.close();
+            
+            ShapefileDataStore ds = new ShapefileDataStore(new File(tempFolder, typeName + ".shp").toURL());
+            try {
+                return ds.getFeatureSource().getFeatures().size();
+            } finally {
+                ds.dispose();
+            }
+        } finally {
+            FileUtils.deleteDirectory(tempFolder);
+        }
+    }
+
     public void testCharset() throws Exception {
         FeatureSource<? extends FeatureType, ? extends Feature> fs;
         fs = getFeatureSource(MockData.BASIC_POLYGONS);
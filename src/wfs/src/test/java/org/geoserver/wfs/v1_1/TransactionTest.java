@@ -6,6 +6,7 @@ import javax.xml.namespace.QName;
 
 import org.custommonkey.xmlunit.XMLAssert;
 import org.geoserver.data.test.MockData;
+import org.geoserver.wfs.InsertElementHandler;
 import org.geoserver.wfs.WFSTestSupport;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -150,6 +151,41 @@ public class TransactionTest extends WFSTestSupport {
         assertEquals("20.0 40.0", getFirstElementByTagName(dom, "gml:pos").getFirstChild().getNodeValue());
     }
 
+    public void testInsertBatches() throws Exception {
+        InsertElementHandler handler = (InsertElementHandler) applicationContext.getBean("wfsInsertElementHandler");
+        int batchSize = handler.getBatchSize();
+        handler.setBatchSize(2);
+        try {
+            String getFeature = "<wfs:GetFeature service=\"WFS\" version=\"1.1.0\" "
+                    + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                    + "xmlns:wfs=\"http://www.opengis.net/wfs\"> "
+                    + "<wfs:Query typeName=\"cgf:Points\"/></wfs:GetFeature>";
+            Document dom = postAsDOM("wfs", getFeature);
+            int n = dom.getElementsByTagName("cgf:Points").getLength();
+
+            StringBuilder insert = new StringBuilder("<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+                    + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                    + "xmlns:wfs=\"http://www.opengis.net/wfs\" "
+                    + "xmlns:gml=\"http://www.opengis.net/gml\"><wfs:Insert>");
+            for (int i = 0; i < 5; i++) {
+                insert.append("<cgf:Points><cgf:pointProperty><gml:Point><gml:pos>" + i + " " + i
+                        + "</gml:pos></gml:Point></cgf:pointProperty><cgf:id>b000" + i
+                        + "</cgf:id></cgf:Points>");
+            }
+            insert.append("</wfs:Insert></wfs:Transaction>");
+            dom = postAsDOM("wfs", insert.toString());
+
+            Element numberInserted = getFirstElementByTagName(dom, "wfs:totalInserted");
+            assertEquals("5", numberInserted.getFirstChild().getNodeValue());
+            assertEquals(5, dom.getElementsByTagName("ogc:FeatureId").getLength());
+
+            dom = postAsDOM("wfs", getFeature);
+            assertEquals(n + 5, dom.getElementsByTagName("cgf:Points").getLength());
+        } finally {
+            handler.setBatchSize(batchSize);
+        }
+    }
+
     public void testInsertWithSRS() throws Exception {
 
         // 1. do a getFeature
@@ -3,6 +3,7 @@ package org.geoserver.kml;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -23,7 +24,6 @@ import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.FeatureTypes;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.MapLayer;
 import org.geotools.referencing.CRS;
 import org.opengis.feature.Feature;
@@ -52,6 +52,13 @@ public class ExternalSortRegionatingStrategy extends
      */
     static Map<Class<?>, String> CLASS_MAPPINGS = new LinkedHashMap<Class<?>, String>();
     static {
+        // make sure, once and for all, that H2 is around
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Could not load the H2 driver", e);
+        }
+
         CLASS_MAPPINGS.put(Boolean.class, "BOOLEAN");
         CLASS_MAPPINGS.put(Byte.class, "TINYINT");
         CLASS_MAPPINGS.put(Short.class, "SMALLINT");
@@ -132,23 +139,29 @@ public class ExternalSortRegionatingStrategy extends
     }
 
     @Override
-    public FeatureIterator getSortedFeatures(GeometryDescriptor geom, 
-            ReferencedEnvelope latLongEnvelope, ReferencedEnvelope nativeEnvelope, 
-            Connection cacheConn) throws Exception {
-        // first of all, let's check if the geometry index table is there
+    public FeatureIterator getSortedFeatures(GeometryDescriptor geom) throws Exception {
+        // the sorted centroids are kept in a H2 database, the tile index is built
+        // just once so there is no need to keep the connection around
+        Connection conn = DriverManager.getConnection("jdbc:h2:file:"
+                + getCacheDirectory().getCanonicalPath() + "/h2cache_" + tableName,
+                "geoserver", "geopass");
         Statement st = null;
         try {
-            st = cacheConn.createStatement();
+            // first of all, let's check if the geometry index table is there
+            st = conn.createStatement();
             try {
                 st.executeQuery("SELECT * FROM FEATUREIDX LIMIT 1");
             } catch (SQLException e) {
-                buildIndex(cacheConn);
+                buildIndex(conn);
             }
+        } catch (Exception e) {
+            JDBCUtils.close(conn, null, null);
+            throw e;
         } finally {
             JDBCUtils.close(st);
         }
 
-        return new IndexFeatureIterator(cacheConn, latLongEnvelope);
+        return new IndexFeatureIterator(conn);
     }
     
     protected String getH2DataType(AttributeDescriptor ad) {
@@ -258,6 +271,8 @@ public class ExternalSortRegionatingStrategy extends
 
         GeometryFactory gf;
 
+        Connection conn;
+
         Statement st;
 
         ResultSet rs;
@@ -266,24 +281,23 @@ public class ExternalSortRegionatingStrategy extends
 
         boolean next;
 
-        public IndexFeatureIterator(Connection cacheConn,
-                ReferencedEnvelope envelope) throws Exception {
-            // grab all of the geometries sitting inside the envelope
-
+        /**
+         * Iterates over all the indexed centroids, the connection will be closed along
+         * with the iterator
+         */
+        public IndexFeatureIterator(Connection cacheConn) throws Exception {
+            conn = cacheConn;
             try {
                 st = cacheConn.createStatement();
                 String sql = "SELECT X, Y, FID \n"
                         + "FROM FEATUREIDX\n" // 
-                        + "WHERE X >= " + envelope.getMinX() + "\n"
-                        + "AND X <= " + envelope.getMaxX() + "\n"
-                        + "AND Y >= " + envelope.getMinY() + "\n"
-                        + "AND Y <= " + envelope.getMaxY() + "\n"
                         + "ORDER BY ORDER_FIELD DESC";
                 rs = st.executeQuery(sql);
                 // make sure everything is properly closed in case of
                 // exception
             } catch (SQLException e) {
                 close();
+                throw e;
             }
 
             // prepare the builders we'll use to create all of the features
@@ -294,6 +308,7 @@ public class ExternalSortRegionatingStrategy extends
         public void close() {
             JDBCUtils.close(rs);
             JDBCUtils.close(st);
+            JDBCUtils.close(conn, null, null);
         }
 
         public boolean hasNext() {
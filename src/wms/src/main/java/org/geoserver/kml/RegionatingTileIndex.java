@@ -0,0 +1,439 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.kml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A read only, memory mapped index associating each regionating tile with the ids of the
+ * features it contains.
+ * <p>
+ * The file is made of a header, a directory of the non empty tiles sorted by z, x, y, and the
+ * id lists of each tile. The ids of a tile are sorted and front coded (each id is stored as the
+ * length of the prefix shared with the previous one, followed by the rest of its UTF-8 bytes).
+ * Tiles missing from the directory are empty. Lookups are a binary search in the directory
+ * followed by the decoding of a single list, concurrent readers never lock.
+ * </p>
+ * <p>
+ * The index is built by a {@link Builder} in a single pass over the features sorted by
+ * regionating priority: each feature goes in the top-most tile containing its centroid that is
+ * not full yet.
+ * </p>
+ */
+class RegionatingTileIndex {
+
+    static final int MAGIC = 0x4B54494C;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 36;
+
+    static final int ENTRY_SIZE = 28;
+
+    /**
+     * The deepest level a feature can be pushed to, past it tiles are allowed to overflow
+     */
+    static final int MAX_LEVEL = 60;
+
+    static final Set<String> NO_FIDS = Collections.emptySet();
+
+    File file;
+
+    ByteBuffer buffer;
+
+    int featuresPerTile;
+
+    int rootLevel;
+
+    long rootX;
+
+    long rootY;
+
+    int tileCount;
+
+    /**
+     * Maps an index file previously written by a {@link Builder}
+     */
+    public static RegionatingTileIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new RegionatingTileIndex(file, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    RegionatingTileIndex(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a valid regionating tile index");
+        }
+        featuresPerTile = buffer.getInt(8);
+        rootLevel = buffer.getInt(12);
+        rootX = buffer.getLong(16);
+        rootY = buffer.getLong(24);
+        tileCount = buffer.getInt(32);
+    }
+
+    /**
+     * The file backing the index
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The max number of features per tile the index was built with
+     */
+    public int getFeaturesPerTile() {
+        return featuresPerTile;
+    }
+
+    /**
+     * The number of non empty tiles
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Returns the ids of the features in the specified tile, or an empty set if the tile is empty
+     */
+    public Set<String> getFids(long x, long y, int z) {
+        // the tiles above the root one containing the whole data set have the same contents
+        if (z < rootLevel && x == rootX >> (rootLevel - z) && y == rootY >> (rootLevel - z)) {
+            x = rootX;
+            y = rootY;
+            z = rootLevel;
+        }
+
+        int entry = find(x, y, z);
+        if (entry < 0) {
+            return NO_FIDS;
+        }
+
+        // work on a private view, the shared buffer position is never touched
+        ByteBuffer b = buffer.duplicate();
+        int base = HEADER_SIZE + entry * ENTRY_SIZE;
+        b.position(b.getInt(base + 20));
+        int count = b.getInt(base + 24);
+
+        Set<String> fids = new HashSet<String>(count * 2);
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < count; i++) {
+            int shared = readVarInt(b);
+            int length = shared + readVarInt(b);
+            if (length > bytes.length) {
+                byte[] grown = new byte[Math.max(length, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, shared);
+                bytes = grown;
+            }
+            b.get(bytes, shared, length - shared);
+            fids.add(decode(bytes, length));
+        }
+        return fids;
+    }
+
+    /**
+     * Binary search of the tile in the directory
+     */
+    int find(long x, long y, int z) {
+        int low = 0;
+        int high = tileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int base = HEADER_SIZE + mid * ENTRY_SIZE;
+            int c = compare(buffer.getInt(base), buffer.getLong(base + 4),
+                    buffer.getLong(base + 12), z, x, y);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    static int compare(int z1, long x1, long y1, int z2, long x2, long y2) {
+        if (z1 != z2) {
+            return z1 < z2 ? -1 : 1;
+        }
+        if (x1 != x2) {
+            return x1 < x2 ? -1 : 1;
+        }
+        if (y1 != y2) {
+            return y1 < y2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    static int readVarInt(ByteBuffer b) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = b.get();
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static String decode(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (IOException e) {
+            // cannot happen, UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Size of the tiles of a certain level, in degrees
+     */
+    static double tileSize(int z) {
+        return CachedHierarchyRegionatingStrategy.MAX_TILE_WIDTH / Math.pow(2, z);
+    }
+
+    /**
+     * Identifies a tile while the index is being built
+     */
+    static class TileKey implements Comparable<TileKey> {
+        long x;
+
+        long y;
+
+        int z;
+
+        TileKey(long x, long y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public int compareTo(TileKey o) {
+            return compare(z, x, y, o.z, o.x, o.y);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (x ^ (x >>> 32));
+            result = 31 * result + (int) (y ^ (y >>> 32));
+            return 31 * result + z;
+        }
+
+        @Override
+        public String toString() {
+            return "Tile X: " + x + ", Y: " + y + ", Z: " + z;
+        }
+    }
+
+    /**
+     * Builds an index out of the features, that must be added in regionating priority order
+     */
+    static class Builder {
+        int featuresPerTile;
+
+        Envelope dataEnvelope;
+
+        int rootLevel;
+
+        long rootX;
+
+        long rootY;
+
+        Map<TileKey, List<String>> tiles = new HashMap<TileKey, List<String>>();
+
+        /**
+         * @param featuresPerTile The max number of features per tile
+         * @param dataEnvelope The WGS84 envelope of the data
+         */
+        Builder(int featuresPerTile, Envelope dataEnvelope) {
+            this.featuresPerTile = featuresPerTile;
+            this.dataEnvelope = dataEnvelope;
+
+            // the root tile is the smallest one containing the whole data set, the hierarchy
+            // does not go any higher than that
+            rootX = tileX(dataEnvelope.getMinX(), 0);
+            rootY = tileY(dataEnvelope.getMinY(), 0);
+            while (rootLevel < MAX_LEVEL) {
+                int z = rootLevel + 1;
+                long x = tileX(dataEnvelope.getMinX(), z);
+                long y = tileY(dataEnvelope.getMinY(), z);
+                double size = tileSize(z);
+                double minx = x * size + CachedHierarchyRegionatingStrategy.WORLD_BOUNDS.getMinX();
+                double miny = y * size + CachedHierarchyRegionatingStrategy.WORLD_BOUNDS.getMinY();
+                if (dataEnvelope.getMaxX() > minx + size || dataEnvelope.getMaxY() > miny + size) {
+                    break;
+                }
+                rootLevel = z;
+                rootX = x;
+                rootY = y;
+            }
+        }
+
+        long tileX(double x, int z) {
+            double size = tileSize(z);
+            double min = CachedHierarchyRegionatingStrategy.WORLD_BOUNDS.getMinX();
+            long tx = (long) Math.floor((x - min) / size);
+            // centroids sitting on the east border of the data go in the tile on their west
+            if (tx > 0 && x >= dataEnvelope.getMaxX() && x == tx * size + min) {
+                tx--;
+            }
+            return tx;
+        }
+
+        long tileY(double y, int z) {
+            double size = tileSize(z);
+            double min = CachedHierarchyRegionatingStrategy.WORLD_BOUNDS.getMinY();
+            long ty = (long) Math.floor((y - min) / size);
+            // centroids sitting on the north border of the data go in the tile to their south
+            if (ty > 0 && y >= dataEnvelope.getMaxY() && y == ty * size + min) {
+                ty--;
+            }
+            return ty;
+        }
+
+        /**
+         * Assigns the feature to the top-most tile containing the centroid that has still room
+         * for it
+         *
+         * @return the tile the feature has been assigned to
+         */
+        TileKey add(String fid, double x, double y) {
+            for (int z = rootLevel;; z++) {
+                TileKey key = new TileKey(tileX(x, z), tileY(y, z), z);
+                List<String> fids = tiles.get(key);
+                if (fids == null) {
+                    fids = new ArrayList<String>();
+                    tiles.put(key, fids);
+                }
+                if (fids.size() < featuresPerTile || z == MAX_LEVEL) {
+                    fids.add(fid);
+                    return key;
+                }
+            }
+        }
+
+        /**
+         * Writes the index to a temporary file, and then moves it in place of the target one
+         */
+        void write(File target) throws IOException {
+            List<TileKey> keys = new ArrayList<TileKey>(tiles.keySet());
+            Collections.sort(keys);
+
+            // encode the id lists first, their sizes are needed to build the directory
+            List<byte[]> lists = new ArrayList<byte[]>(keys.size());
+            for (TileKey key : keys) {
+                List<String> fids = tiles.get(key);
+                Collections.sort(fids);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(fids.size() * 8);
+                byte[] previous = new byte[0];
+                for (String fid : fids) {
+                    byte[] current = encode(fid);
+                    int shared = 0;
+                    int max = Math.min(previous.length, current.length);
+                    while (shared < max && previous[shared] == current[shared]) {
+                        shared++;
+                    }
+                    writeVarInt(bos, shared);
+                    writeVarInt(bos, current.length - shared);
+                    bos.write(current, shared, current.length - shared);
+                    previous = current;
+                }
+                lists.add(bos.toByteArray());
+            }
+
+            File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(featuresPerTile);
+                out.writeInt(rootLevel);
+                out.writeLong(rootX);
+                out.writeLong(rootY);
+                out.writeInt(keys.size());
+
+                long offset = HEADER_SIZE + (long) keys.size() * ENTRY_SIZE;
+                for (int i = 0; i < keys.size(); i++) {
+                    TileKey key = keys.get(i);
+                    if (offset > Integer.MAX_VALUE) {
+                        throw new IOException("The regionating tile index is too big");
+                    }
+                    out.writeInt(key.z);
+                    out.writeLong(key.x);
+                    out.writeLong(key.y);
+                    out.writeInt((int) offset);
+                    out.writeInt(tiles.get(key).size());
+                    offset += lists.get(i).length;
+                }
+                for (byte[] list : lists) {
+                    out.write(list);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(target)) {
+                target.delete();
+                if (!tmp.renameTo(target)) {
+                    tmp.delete();
+                    throw new IOException("Could not store the regionating tile index " + target);
+                }
+            }
+        }
+    }
+}
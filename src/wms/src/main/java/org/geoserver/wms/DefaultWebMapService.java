@@ -7,12 +7,12 @@ package org.geoserver.wms;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import net.opengis.wfs.FeatureCollectionType;
 
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.ServiceInfo;
 import org.geoserver.kml.KMLReflector;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
@@ -21,6 +21,7 @@ import org.geoserver.sld.GetStylesRequest;
 import org.geoserver.wms.capabilities.Capabilities_1_3_0_Transformer;
 import org.geoserver.wms.capabilities.GetCapabilitiesTransformer;
 import org.geoserver.wms.describelayer.DescribeLayerTransformer;
+import org.geoserver.wms.map.RenderingPool;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
@@ -97,9 +98,14 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
     public static Boolean TRANSPARENT = Boolean.TRUE;
 
     /**
-     * default for 'transparent' parameter.
+     * the thread pool shared by the map renderers
+     */
+    public static RenderingPool RENDERING_POOL;
+
+    /**
+     * the size of the rendering pool, as configured in the WMS service
      */
-    public static ExecutorService RENDERING_POOL;
+    static int RENDERING_THREADS = WMS.MAX_RENDERING_THREADS_DEFAULT;
 
     /**
      * default for 'bbox' paramter
@@ -261,6 +267,36 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
             else
                 USE_GLOBAL_RENDERING_POOL = Boolean.valueOf(usePool);
         }
+
+        // keep the rendering pool size in synch with the configuration
+        if (USE_GLOBAL_RENDERING_POOL && wms != null && wms.getGeoServer() != null) {
+            wms.getGeoServer().addListener(new ConfigurationListenerAdapter() {
+                @Override
+                public void handlePostServiceChange(ServiceInfo service) {
+                    if (service instanceof WMSInfo) {
+                        updateRenderingPool();
+                    }
+                }
+
+                @Override
+                public void reloaded() {
+                    updateRenderingPool();
+                }
+            });
+            updateRenderingPool();
+        }
+    }
+
+    void updateRenderingPool() {
+        if (wms.getServiceInfo() == null) {
+            return;
+        }
+        synchronized (DefaultWebMapService.class) {
+            RENDERING_THREADS = wms.getMaxRenderingThreads();
+            if (RENDERING_POOL != null) {
+                RENDERING_POOL.setMaxThreads(RENDERING_THREADS);
+            }
+        }
     }
 
     /**
@@ -687,15 +723,16 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
     }
 
     /**
-     * Returns a app wide cached rendering pool that can be used for parallelized rendering
+     * Returns the app wide rendering pool that can be used for parallelized rendering, or null
+     * if the USE_GLOBAL_RENDERING_POOL property has been set to false
      * 
      * @return
      */
-    public static ExecutorService getRenderingPool() {
+    public static RenderingPool getRenderingPool() {
         if(USE_GLOBAL_RENDERING_POOL && RENDERING_POOL == null) {
             synchronized (DefaultWebMapService.class) {
                 if(RENDERING_POOL == null) {
-                    RENDERING_POOL = Executors.newCachedThreadPool();
+                    RENDERING_POOL = new RenderingPool(RENDERING_THREADS);
                 }
             }
         }
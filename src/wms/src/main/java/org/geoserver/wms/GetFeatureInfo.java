@@ -29,6 +29,7 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.featureinfo.FeatureCollectionDecorator;
+import org.geoserver.wms.featureinfo.FeatureInfoIndex;
 import org.geotools.coverage.GridSampleDimension;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridEnvelope2D;
@@ -84,6 +85,7 @@ import org.opengis.feature.type.Name;
 import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.Or;
+import org.opengis.filter.identity.FeatureId;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.geometry.MismatchedDimensionException;
 import org.opengis.parameter.GeneralParameterDescriptor;
@@ -110,12 +112,30 @@ public class GetFeatureInfo {
 
     private static final Logger LOGGER = Logging.getLogger(GetFeatureInfo.class);
 
+    /**
+     * Above this number of candidates the index lookup is not worth turning into an id filter
+     */
+    static final int MAX_INDEX_CANDIDATES = 1000;
+
     private WMS wms;
 
+    private FeatureInfoIndex featureInfoIndex;
+
     public GetFeatureInfo(final WMS wms) {
         this.wms = wms;
     }
 
+    public FeatureInfoIndex getFeatureInfoIndex() {
+        return featureInfoIndex;
+    }
+
+    /**
+     * Sets the spatial index used to look up the features under the clicked point
+     */
+    public void setFeatureInfoIndex(FeatureInfoIndex featureInfoIndex) {
+        this.featureInfoIndex = featureInfoIndex;
+    }
+
     @SuppressWarnings({ "unchecked", "rawtypes" })
     public FeatureCollectionType run(final GetFeatureInfoRequest request) throws ServiceException {
 
@@ -471,6 +491,19 @@ public class GetFeatureInfo {
         // handle sql view params
         if (viewParams != null && viewParams.size() > 0) {
             q.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, viewParams));
+        } else if (featureInfoIndex != null && layer.getFeature() != null) {
+            // look up the features under the point in the index, if the layer is indexed. The
+            // index is shared among users, the query below still runs against the secured
+            // source, which applies the access limits to the candidates
+            List<FeatureId> candidates = featureInfoIndex.getCandidates(layer.getFeature(),
+                    pixelRect.getEnvelopeInternal());
+            if (candidates != null) {
+                if (candidates.isEmpty()) {
+                    return null;
+                } else if (candidates.size() <= MAX_INDEX_CANDIDATES) {
+                    q.setFilter(ff.and(ff.id(new HashSet<FeatureId>(candidates)), q.getFilter()));
+                }
+            }
         }
 
         FeatureCollection<? extends FeatureType, ? extends Feature> match;
@@ -150,6 +150,14 @@ public class WMS implements ApplicationContextAware {
     public static final String KML_KMSCORE = "kmlKmscore";
 
     public static final int KML_KMSCORE_DEFAULT = 40;
+
+    /**
+     * the size of the thread pool shared by the map renderers
+     */
+    public static final String MAX_RENDERING_THREADS = "maxRenderingThreads";
+
+    public static final int MAX_RENDERING_THREADS_DEFAULT = Runtime.getRuntime()
+            .availableProcessors();
     
     private static final FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
 
@@ -466,6 +474,18 @@ public class WMS implements ApplicationContextAware {
         return getServiceInfo().getMaxRenderingErrors();
     }
 
+    /**
+     * Returns the size of the rendering thread pool shared by all the map requests
+     */
+    public int getMaxRenderingThreads() {
+        return getMetadataPositive(MAX_RENDERING_THREADS, MAX_RENDERING_THREADS_DEFAULT);
+    }
+
+    int getMetadataPositive(String key, int defaultValue) {
+        Integer value = Converters.convert(getServiceInfo().getMetadata().get(key), Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
     public String getKmlReflectorMode() {
         String value = (String) getServiceInfo().getMetadata().get(KML_REFLECTOR_MODE);
         return value != null ? value : KML_REFLECTOR_MODE_DEFAULT;
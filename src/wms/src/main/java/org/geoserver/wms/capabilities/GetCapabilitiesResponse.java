@@ -21,6 +21,7 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import org.geoserver.ows.CapabilitiesCache;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
@@ -110,7 +111,51 @@ public class GetCapabilitiesResponse extends Response {
     @Override
     public void write(final Object value, final OutputStream output, final Operation operation)
             throws IOException, ServiceException {
+        CapabilitiesCache cache = CapabilitiesCache.get();
+        if (cache == null || cache.hasDataDimensions()) {
+            // the time and elevation domains come from the data, cannot be cached
+            writeCapabilities(value, output, operation);
+        } else {
+            cache.write(cacheKey(cache, operation), output, new CapabilitiesCache.Producer() {
+                public void write(OutputStream output) throws IOException {
+                    writeCapabilities(value, output, operation);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the ETag and Last-Modified headers of the cached document, answering directly
+     * with a 304 if the client already has it
+     */
+    @Override
+    public String[][] getHeaders(final Object value, final Operation operation)
+            throws ServiceException {
+        CapabilitiesCache cache = CapabilitiesCache.get();
+        if (cache == null || cache.hasDataDimensions()) {
+            return null;
+        }
+        String key = cacheKey(cache, operation);
+        cache.checkNotModified(key);
+        try {
+            return cache.getHeaders(key, new CapabilitiesCache.Producer() {
+                public void write(OutputStream output) throws IOException {
+                    writeCapabilities(value, output, operation);
+                }
+            });
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    String cacheKey(CapabilitiesCache cache, Operation operation) {
+        final GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
+        return cache.key(operation, WMS.VERSION_1_1_1, request.getBaseUrl(),
+                request.getNamespace());
+    }
 
+    void writeCapabilities(final Object value, final OutputStream output,
+            final Operation operation) throws IOException, ServiceException {
         final GetCapabilitiesTransformer transformer = (GetCapabilitiesTransformer) value;
         final GetCapabilitiesRequest request = (GetCapabilitiesRequest) operation.getParameters()[0];
 
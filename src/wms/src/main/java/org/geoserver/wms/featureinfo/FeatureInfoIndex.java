@@ -0,0 +1,392 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.TransactionType;
+
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.ResourceCache;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.SecureCatalogImpl;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionPlugin;
+import org.geoserver.wfs.WFSException;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.GeometryAttribute;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Keeps an in memory spatial index of the feature envelopes of the vector layers hit by
+ * GetFeatureInfo requests, so that the candidate features of a click can be looked up without
+ * scanning the store, and the store query can be restricted to their ids (or skipped if there
+ * are none).
+ * <p>
+ * The index of a layer is built the first time the layer is queried, by reading all of its
+ * geometries. The indexes share a memory budget configured with the {@value #MEMORY_PROPERTY}
+ * system/context/environment variable (in megabytes), least recently used indexes are evicted
+ * first. The budget defaults to zero, that is, the index is disabled: it only sees the changes
+ * going through the WFS transactions and the catalog, so it should be enabled only when the
+ * data is not modified behind GeoServer's back. The index of a layer changed by a transaction is
+ * dropped once the transaction is committed.
+ * </p>
+ * <p>
+ * The indexes are shared by all users, so they are built from the unsecured layer data. The
+ * candidates are meant to restrict the query run against the user's secured source, which
+ * still applies the access limits.
+ * </p>
+ */
+public class FeatureInfoIndex implements TransactionPlugin, CatalogListener {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureInfoIndex.class);
+
+    /**
+     * Property used to configure the memory used by the indexes, in megabytes
+     */
+    public static final String MEMORY_PROPERTY = "FEATURE_INFO_INDEX_MEMORY";
+
+    /**
+     * Rough memory used by a tree entry, besides the feature id chars
+     */
+    static final int ENTRY_SIZE = 160;
+
+    /**
+     * The spatial index of a layer
+     */
+    static class LayerIndex {
+        final QName name;
+
+        /**
+         * The tree, or null if the layer is too big to be indexed
+         */
+        final STRtree tree;
+
+        final long size;
+
+        /**
+         * The value of the change counter when the index build started
+         */
+        final long generation;
+
+        LayerIndex(QName name, STRtree tree, long size, long generation) {
+            this.name = name;
+            this.tree = tree;
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+
+    ResourceCache<String, LayerIndex> indexes;
+
+    long maxBytes;
+
+    /**
+     * The layers modified by the transactions in progress, by transaction element. A null layer
+     * name stands for all the layers. The transaction skips
+     * {@link #afterTransaction(TransactionType, boolean)} when it fails while committing, the
+     * weak keys make sure the entries go away with the request anyways.
+     */
+    Map<Object, Set<QName>> pendingChanges = Collections
+            .synchronizedMap(new WeakHashMap<Object, Set<QName>>());
+
+    /**
+     * Counts the invalidations, used to spot the indexes whose build overlapped a change
+     */
+    AtomicLong changes = new AtomicLong();
+
+    /**
+     * The value of the change counter at the last invalidation of each layer
+     */
+    Map<QName, Long> layerChanges = new ConcurrentHashMap<QName, Long>();
+
+    /**
+     * The value of the change counter at the last invalidation of all the layers
+     */
+    volatile long lastClear;
+
+    public FeatureInfoIndex(GeoServer geoServer) {
+        this(getConfiguredMemory() * 1024 * 1024);
+        geoServer.getCatalog().addListener(this);
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            public void reloaded() {
+                invalidateAll();
+            }
+        });
+    }
+
+    /**
+     * Builds an index using at most the specified amount of bytes
+     */
+    FeatureInfoIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+        indexes = new ResourceCache<String, LayerIndex>("feature info index");
+        indexes.setWeigher(new ResourceCache.Weigher<String, LayerIndex>() {
+            public int weigh(String key, LayerIndex value) {
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE, value.size));
+            }
+        });
+        indexes.setMaxWeight(Math.max(1, maxBytes));
+    }
+
+    static long getConfiguredMemory() {
+        String value = GeoServerExtensions.getProperty(MEMORY_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + MEMORY_PROPERTY + " value " + value
+                        + ", the feature info index will be disabled");
+            }
+        }
+        return 0;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the ids of the features whose envelope intersects the specified one, or null if the
+     * layer cannot be indexed
+     *
+     * @param info The layer feature type, the index is built from its unsecured data
+     * @param envelope The area to look up, in the layer coordinate reference system
+     */
+    public List<FeatureId> getCandidates(FeatureTypeInfo info, Envelope envelope)
+            throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        final FeatureTypeInfo raw = (FeatureTypeInfo) SecureCatalogImpl.unwrap(info);
+        Callable<LayerIndex> loader = new Callable<LayerIndex>() {
+            public LayerIndex call() throws Exception {
+                return buildIndex(raw, raw.getFeatureSource(null, null));
+            }
+        };
+        LayerIndex index = indexes.get(raw.getId(), loader);
+        if (isStale(index)) {
+            // the data changed while the index was being built
+            indexes.remove(raw.getId());
+            index = indexes.get(raw.getId(), loader);
+        }
+        if (index.tree == null) {
+            return null;
+        }
+        return index.tree.query(envelope);
+    }
+
+    LayerIndex buildIndex(FeatureTypeInfo info,
+            FeatureSource<? extends FeatureType, ? extends Feature> source) throws IOException {
+        QName name = new QName(info.getNamespace().getURI(), info.getName());
+        long generation = changes.get();
+        long start = System.currentTimeMillis();
+
+        GeometryDescriptor descriptor = source.getSchema().getGeometryDescriptor();
+        if (descriptor == null) {
+            return new LayerIndex(name, null, 1, generation);
+        }
+        Query query = new Query(source.getSchema().getName().getLocalPart(), Filter.INCLUDE,
+                new String[] { descriptor.getLocalName() });
+        STRtree tree = new STRtree();
+        long size = 0;
+        FeatureCollection<? extends FeatureType, ? extends Feature> features = source
+                .getFeatures(query);
+        FeatureIterator<? extends Feature> it = features.features();
+        try {
+            while (it.hasNext()) {
+                Feature feature = it.next();
+                GeometryAttribute attribute = feature.getDefaultGeometryProperty();
+                Geometry geometry = attribute != null ? (Geometry) attribute.getValue() : null;
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+                FeatureId id = feature.getIdentifier();
+                tree.insert(geometry.getEnvelopeInternal(), id);
+                size += ENTRY_SIZE + id.getID().length() * 2;
+                if (size > maxBytes) {
+                    LOGGER.log(Level.INFO, "Layer " + name + " is too big to be indexed for "
+                            + "GetFeatureInfo, set " + MEMORY_PROPERTY + " to a higher value "
+                            + "to have it indexed");
+                    return new LayerIndex(name, null, 1, generation);
+                }
+            }
+        } finally {
+            it.close();
+        }
+        tree.build();
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Built the GetFeatureInfo index of " + name + " with " + tree.size()
+                    + " features in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return new LayerIndex(name, tree, size, generation);
+    }
+
+    /**
+     * Returns true if the layer was invalidated after the index build started
+     */
+    boolean isStale(LayerIndex index) {
+        Long changed = layerChanges.get(index.name);
+        return index.generation < lastClear
+                || (changed != null && index.generation < changed.longValue());
+    }
+
+    /**
+     * Drops all the indexes
+     */
+    public void invalidateAll() {
+        lastClear = changes.incrementAndGet();
+        indexes.clear();
+    }
+
+    /**
+     * Drops the index of the specified layer
+     */
+    public void invalidate(QName layerName) {
+        layerChanges.put(layerName, changes.incrementAndGet());
+        for (Map.Entry<String, LayerIndex> entry : indexes.asMap().entrySet()) {
+            if (entry.getValue().name.equals(layerName)) {
+                indexes.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drops the indexes of the layers in the set, a null layer name stands for all of them
+     */
+    void invalidate(Set<QName> layerNames) {
+        if (layerNames.contains(null)) {
+            invalidateAll();
+        } else {
+            for (QName layerName : layerNames) {
+                invalidate(layerName);
+            }
+        }
+    }
+
+    /**
+     * Records the layers changed by the transaction, the data is not committed yet so their
+     * indexes are dropped in {@link #afterTransaction(TransactionType, boolean)}
+     */
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        Object element = event.getSource();
+        if (element == null) {
+            // not part of a transaction we can follow
+            invalidate(Collections.singleton(event.getLayerName()));
+            return;
+        }
+        Set<QName> layers;
+        synchronized (pendingChanges) {
+            layers = pendingChanges.get(element);
+            if (layers == null) {
+                layers = Collections.synchronizedSet(new HashSet<QName>());
+                pendingChanges.put(element, layers);
+            }
+        }
+        layers.add(event.getLayerName());
+    }
+
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        return request;
+    }
+
+    public void beforeCommit(TransactionType request) throws WFSException {
+        // nothing to do
+    }
+
+    /**
+     * Drops the indexes of the layers changed by the transaction, if it got committed. An index
+     * whose build is in progress gets discarded and built again on its first use.
+     */
+    public void afterTransaction(TransactionType request, boolean committed) {
+        List<Object> elements = new ArrayList<Object>();
+        elements.addAll(request.getInsert());
+        elements.addAll(request.getUpdate());
+        elements.addAll(request.getDelete());
+        for (Object element : elements) {
+            Set<QName> layers = pendingChanges.remove(element);
+            if (committed && layers != null) {
+                synchronized (layers) {
+                    invalidate(layers);
+                }
+            }
+        }
+    }
+
+    public int getPriority() {
+        return 0;
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) {
+        // nothing indexed yet
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) {
+        indexes.remove(event.getSource().getId());
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) {
+        // wait for the change to be applied
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) {
+        CatalogInfo source = event.getSource();
+        if (source instanceof FeatureTypeInfo) {
+            indexes.remove(source.getId());
+        } else if (source instanceof StoreInfo || source instanceof NamespaceInfo) {
+            // might affect any number of layers
+            invalidateAll();
+        }
+    }
+
+    public void reloaded() {
+        invalidateAll();
+    }
+
+    /**
+     * Returns the cache statistics
+     */
+    public ResourceCache.Statistics getStatistics() {
+        return indexes.getStatistics();
+    }
+}
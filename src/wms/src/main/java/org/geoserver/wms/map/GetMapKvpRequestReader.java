@@ -365,30 +365,8 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             }
 
             // then proceed with standard processing
-            List<MapLayerInfo> layers = getMap.getLayers();
-            if (isParseStyle() && (layers != null) && (layers.size() > 0)) {
-                final List styles = getMap.getStyles();
-
-                if (layers.size() != styles.size()) {
-                    String msg = layers.size() + " layers requested, but found " + styles.size()
-                            + " styles specified. ";
-                    throw new ServiceException(msg, getClass().getName());
-                }
-
-                for (int i = 0; i < styles.size(); i++) {
-                    Style currStyle = (Style) getMap.getStyles().get(i);
-                    if (currStyle == null)
-                        throw new ServiceException(
-                                "Could not find a style for layer "
-                                        + getMap.getLayers().get(i).getName()
-                                        + ", either none was specified or no default style is available for it",
-                                "NoDefaultStyle");
-                    checkStyle(currStyle, layers.get(i));
-                    if (LOGGER.isLoggable(Level.FINE)) {
-                        LOGGER.fine(new StringBuffer("establishing ").append(currStyle.getName())
-                                .append(" style for ").append(layers.get(i).getName()).toString());
-                    }
-                }
+            if (isParseStyle()) {
+                checkStyles(getMap);
             }
 
             // check filter size matches with the layer list size
@@ -420,6 +398,53 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
             }
         }
         
+        setDefaultDimensions(getMap);
+
+        return getMap;
+    }
+
+    /**
+     * Checks there is one usable style for each layer of the request
+     * 
+     * @throws ServiceException
+     *             if a style is missing or does not fit its layer
+     */
+    public static void checkStyles(GetMapRequest getMap) throws ServiceException {
+        List<MapLayerInfo> layers = getMap.getLayers();
+        if ((layers != null) && (layers.size() > 0)) {
+            final List styles = getMap.getStyles();
+
+            if (layers.size() != styles.size()) {
+                String msg = layers.size() + " layers requested, but found " + styles.size()
+                        + " styles specified. ";
+                throw new ServiceException(msg, GetMapKvpRequestReader.class.getName());
+            }
+
+            for (int i = 0; i < styles.size(); i++) {
+                Style currStyle = (Style) getMap.getStyles().get(i);
+                if (currStyle == null)
+                    throw new ServiceException(
+                            "Could not find a style for layer "
+                                    + getMap.getLayers().get(i).getName()
+                                    + ", either none was specified or no default style is available for it",
+                            "NoDefaultStyle");
+                checkStyle(currStyle, layers.get(i));
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(new StringBuffer("establishing ").append(currStyle.getName())
+                            .append(" style for ").append(layers.get(i).getName()).toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the default time and elevation on the layers supporting them, unless they were
+     * requested explicitly
+     * 
+     * @throws ServiceException
+     *             if both dimensions are multivalued
+     */
+    public static void setDefaultDimensions(GetMapRequest getMap) throws ServiceException {
         // check if layers have time/elevation support
         boolean hasTime = false;
         boolean hasElevation = false;
@@ -487,8 +512,6 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
            (getMap.getTime() != null && getMap.getTime().size() > 1)) {
             throw new ServiceException("TIME and ELEVATION values cannot be both multivalued");
         }
-
-        return getMap;
     }
 
     private Style getDefaultStyle (LayerInfo layer) throws IOException{
@@ -1123,6 +1146,10 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         StyleAttributeExtractor sae = new StyleAttributeExtractor();
         sae.visit(style);
         Set<PropertyName> styleAttributes = sae.getAttributes();
+        if (styleAttributes.isEmpty()) {
+            // nothing to check, no need to load the feature type
+            return;
+        }
 
         // see if we can collect any attribute out of the provided layer
        // Set attributes = new HashSet();
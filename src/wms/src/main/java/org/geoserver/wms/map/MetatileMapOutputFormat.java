@@ -13,8 +13,10 @@ import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,25 +71,15 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
      * 
      * @see org.geoserver.wms.GetMapOutputFormat#produceMap(org.geoserver.wms.WMSMapContext)
      */
-    public WebMap produceMap(WMSMapContext mapContext) throws ServiceException, IOException {
-        // get the key that identifies the meta tile. The cache will make sure
-        // two threads asking
-        // for the same tile will get the same key, and thus will synchronize
-        // with each other
-        // (the first eventually builds the meta-tile, the second finds it ready
-        // to be used)
-        QuickTileCache.MetaTileKey key = tileCache.getMetaTileKey(request);
-
-        synchronized (key) {
-            RenderedImage tile = tileCache.getTile(key, request);
-            List<GridCoverage2D> renderedCoverages = null;
-
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Looked for meta tile " + key.metaTileCoords.x + ", "
-                        + key.metaTileCoords.y + "in cache: " + ((tile != null) ? "hit!" : "miss"));
-            }
-
-            if (tile == null) {
+    public WebMap produceMap(final WMSMapContext mapContext) throws ServiceException, IOException {
+        // get the key that identifies the meta tile. The cache will make sure two threads asking
+        // for the same tile will wait on the same meta-tile computation (the first eventually
+        // builds the meta-tile, the second finds it ready to be used)
+        final QuickTileCache.MetaTileKey key = tileCache.getMetaTileKey(request);
+        final List<List<GridCoverage2D>> renderedCoverages = new ArrayList<List<GridCoverage2D>>(1);
+
+        RenderedImage[] tiles = tileCache.getTiles(key, new Callable<RenderedImage[]>() {
+            public RenderedImage[] call() throws Exception {
                 // compute the meta-tile
                 if (LOGGER.isLoggable(Level.FINER)) {
                     LOGGER.finer("Building meta tile " + key.metaTileCoords.x + ", "
@@ -106,15 +98,21 @@ public final class MetatileMapOutputFormat implements GetMapOutputFormat {
                 RenderedImageMap metaTileMap = delegate.produceMap(mapContext);
 
                 RenderedImage metaTile = metaTileMap.getImage();
-                RenderedImage[] tiles = split(key, metaTile, mapContext);
-                tileCache.storeTiles(key, tiles);
-                tile = tileCache.getTile(key, request, tiles);
-                renderedCoverages = metaTileMap.getRenderedCoverages();
+                renderedCoverages.add(metaTileMap.getRenderedCoverages());
+                return split(key, metaTile, mapContext);
             }
-            RenderedImageMap tileMap = new RenderedImageMap(mapContext, tile, getMimeType());
-            tileMap.setRenderedCoverages(renderedCoverages);
-            return tileMap;
+        });
+
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Looked for meta tile " + key.metaTileCoords.x + ", "
+                    + key.metaTileCoords.y + "in cache: "
+                    + (renderedCoverages.isEmpty() ? "hit!" : "miss"));
         }
+
+        RenderedImage tile = tileCache.getTile(key, request, tiles);
+        RenderedImageMap tileMap = new RenderedImageMap(mapContext, tile, getMimeType());
+        tileMap.setRenderedCoverages(renderedCoverages.isEmpty() ? null : renderedCoverages.get(0));
+        return tileMap;
     }
 
     /**
@@ -7,29 +7,66 @@ package org.geoserver.wms.map;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.geoserver.catalog.ResourceCache;
+import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.ServiceInfo;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionListener;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
 import org.geotools.util.CanonicalSet;
+import org.geotools.util.logging.Logging;
 
 import com.vividsolutions.jts.geom.Envelope;
 
+/**
+ * Caches the tiles of the meta-tiles rendered by {@link MetatileMapOutputFormat}, so that tiled
+ * clients asking for the other tiles of the same meta-tile do not cause another rendering.
+ * <p>
+ * The cache is bounded by the amount of memory used by the tile rasters, least recently used
+ * meta-tiles are evicted first. The limit defaults to {@value #DEFAULT_CACHE_SIZE} megabytes and
+ * can be configured with the {@value #CACHE_SIZE_PROPERTY} system/context/environment variable
+ * (in megabytes, zero disables the cache). WFS transactions invalidate only the meta-tiles
+ * containing the modified layer.
+ * </p>
+ */
 public class QuickTileCache implements TransactionListener {
+    
+    static final Logger LOGGER = Logging.getLogger(QuickTileCache.class);
+    
+    /**
+     * Property used to configure the cache size, in megabytes
+     */
+    public static final String CACHE_SIZE_PROPERTY = "QUICK_TILE_CACHE_SIZE";
+    
+    /**
+     * Default cache size, in megabytes
+     */
+    public static final int DEFAULT_CACHE_SIZE = 64;
+    
     /**
      * Set of parameters that we can ignore, since they do not define a map, are either unrelated,
      * or define the tiling instead
@@ -53,22 +90,38 @@ public class QuickTileCache implements TransactionListener {
      */
     private CanonicalSet<MetaTileKey> metaTileKeys = CanonicalSet.newInstance(MetaTileKey.class);
 
-    private WeakHashMap tileCache = new WeakHashMap();
+    private ResourceCache<MetaTileKey, CacheElement> tileCache;
+    
+    /**
+     * Counts the invalidations, used to spot the meta tiles whose rendering overlapped a change
+     */
+    private AtomicLong changes = new AtomicLong();
+    
+    /**
+     * The value of the change counter at the last invalidation of each layer
+     */
+    private Map<QName, Long> layerChanges = new ConcurrentHashMap<QName, Long>();
+    
+    /**
+     * The value of the change counter at the last invalidation of all the layers
+     */
+    private volatile long lastClear;
 
     public QuickTileCache(GeoServer geoServer) {
+        this(getConfiguredCacheSize());
         geoServer.addListener(new ConfigurationListenerAdapter() {
             public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                clear();
             }
 
             public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
                     List<Object> oldValues, List<Object> newValues) {
-                tileCache.clear();
+                clear();
             }
 
             public void reloaded() {
-                tileCache.clear();
+                clear();
             }
         });
     }
@@ -77,6 +130,57 @@ public class QuickTileCache implements TransactionListener {
      * For testing only
      */
     QuickTileCache() {
+        this(DEFAULT_CACHE_SIZE * 1024L * 1024L);
+    }
+
+    /**
+     * Builds a cache holding at most the specified amount of bytes
+     */
+    QuickTileCache(long maxBytes) {
+        tileCache = new ResourceCache<MetaTileKey, CacheElement>("meta tile");
+        tileCache.setWeigher(new ResourceCache.Weigher<MetaTileKey, CacheElement>() {
+            public int weigh(MetaTileKey key, CacheElement value) {
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE, value.size));
+            }
+        });
+        tileCache.setMaxWeight(maxBytes);
+    }
+    
+    static long getConfiguredCacheSize() {
+        int size = DEFAULT_CACHE_SIZE;
+        String value = GeoServerExtensions.getProperty(CACHE_SIZE_PROPERTY);
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + CACHE_SIZE_PROPERTY + " value " + value
+                        + ", using the default of " + DEFAULT_CACHE_SIZE + "MB");
+            }
+        }
+        return size * 1024L * 1024L;
+    }
+    
+    /**
+     * Returns the maximum amount of bytes held by the cache
+     */
+    public long getMaxSize() {
+        return tileCache.getMaxWeight();
+    }
+    
+    /**
+     * Sets the maximum amount of bytes held by the cache
+     */
+    public void setMaxSize(long maxBytes) {
+        tileCache.setMaxWeight(maxBytes);
+        tileCache.evict();
+    }
+    
+    /**
+     * Returns the cache statistics. The weight is the amount of bytes held in the cache, hits
+     * and misses count the meta-tile lookups.
+     */
+    public ResourceCache.Statistics getStatistics() {
+        return tileCache.getStatistics();
     }
 
     /**
@@ -97,6 +201,7 @@ public class QuickTileCache implements TransactionListener {
         Point metaTileCoords = getMetaTileCoordinates(tileCoords);
         Envelope metaTileEnvelope = getMetaTileEnvelope(request, tileCoords, metaTileCoords);
         MetaTileKey key = new MetaTileKey(mapKey, metaTileCoords, metaTileEnvelope);
+        key.layers = getLayerNames(request);
 
         // since this will be used for thread synchronization, we have to make
         // sure two thread asking for the same meta tile will get the same key
@@ -104,6 +209,27 @@ public class QuickTileCache implements TransactionListener {
         return (MetaTileKey) metaTileKeys.unique(key);
     }
 
+    /**
+     * Returns the qualified names of the layers in the request, or null if any of them cannot be
+     * tracked (e.g., remote layers)
+     */
+    Set<QName> getLayerNames(GetMapRequest request) {
+        List<MapLayerInfo> layers = request.getLayers();
+        if (layers == null) {
+            return null;
+        }
+        
+        Set<QName> names = new HashSet<QName>();
+        for (MapLayerInfo layer : layers) {
+            ResourceInfo resource = layer.getResource();
+            if (resource == null || resource.getNamespace() == null) {
+                return null;
+            }
+            names.add(new QName(resource.getNamespace().getURI(), resource.getName()));
+        }
+        return names;
+    }
+
     private Envelope getMetaTileEnvelope(GetMapRequest request, Point tileCoords,
             Point metaTileCoords) {
         Envelope bbox = request.getBbox();
@@ -249,6 +375,11 @@ public class QuickTileCache implements TransactionListener {
         Point metaTileCoords;
 
         Envelope metaTileEnvelope;
+        
+        /**
+         * The layers the meta tile is built from, or null if unknown. Not part of the identity
+         */
+        Set<QName> layers;
 
         public MetaTileKey(MapKey mapKey, Point metaTileCoords, Envelope metaTileEnvelope) {
             super();
@@ -295,6 +426,24 @@ public class QuickTileCache implements TransactionListener {
         public String toString() {
             return mapKey + "\nmtc:" + metaTileCoords.x + "," + metaTileCoords.y;
         }
+        
+        /**
+         * Returns true if the meta tile might contain the specified layer
+         */
+        boolean dependsOn(QName layerName) {
+            if (layers == null) {
+                return true;
+            }
+            
+            String uri = layerName.getNamespaceURI();
+            for (QName layer : layers) {
+                if (layer.getLocalPart().equals(layerName.getLocalPart())
+                        && (uri == null || "".equals(uri) || uri.equals(layer.getNamespaceURI()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     /**
@@ -304,15 +453,81 @@ public class QuickTileCache implements TransactionListener {
      * @param request
      * @return
      */
-    public synchronized RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
-        CacheElement ce = (CacheElement) tileCache.get(key);
+    public RenderedImage getTile(MetaTileKey key, GetMapRequest request) {
+        CacheElement ce = tileCache.getIfPresent(key);
 
-        if (ce == null) {
+        if (ce == null || isStale(key, ce)) {
             return null;
         }
 
         return getTile(key, request, ce.tiles);
     }
+    
+    /**
+     * Returns the tiles of the specified meta-tile, building them with the loader if they are
+     * not in the cache. Concurrent requests for the same meta-tile wait for a single load.
+     * 
+     * @param key
+     * @param loader
+     * @return
+     * @throws IOException
+     */
+    public RenderedImage[] getTiles(MetaTileKey key, final Callable<RenderedImage[]> loader)
+            throws IOException {
+        if (tileCache.getMaxWeight() == 0) {
+            // caching disabled
+            try {
+                return loader.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw (IOException) new IOException().initCause(e);
+            }
+        }
+        
+        Callable<CacheElement> elementLoader = new Callable<CacheElement>() {
+            public CacheElement call() throws Exception {
+                long generation = changes.get();
+                RenderedImage[] tiles = loader.call();
+                return tiles != null ? new CacheElement(tiles, generation) : null;
+            }
+        };
+        CacheElement ce = tileCache.get(key, elementLoader);
+        if (ce != null && isStale(key, ce)) {
+            // the data changed while the meta tile was being rendered
+            tileCache.remove(key);
+            ce = tileCache.get(key, elementLoader);
+        }
+        return ce != null ? ce.tiles : null;
+    }
+    
+    /**
+     * Returns true if a layer of the meta tile was invalidated after its rendering started
+     */
+    boolean isStale(MetaTileKey key, CacheElement ce) {
+        if (ce.generation >= changes.get()) {
+            return false;
+        }
+        if (ce.generation < lastClear) {
+            return true;
+        }
+        for (Map.Entry<QName, Long> change : layerChanges.entrySet()) {
+            if (ce.generation < change.getValue() && key.dependsOn(change.getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Drops all the meta tiles
+     */
+    void clear() {
+        lastClear = changes.incrementAndGet();
+        tileCache.clear();
+    }
 
     /**
      * 
@@ -337,23 +552,75 @@ public class QuickTileCache implements TransactionListener {
      * @param tiles
      * @return
      */
-    public synchronized void storeTiles(MetaTileKey key, RenderedImage[] tiles) {
-        tileCache.put(key, new CacheElement(tiles));
+    public void storeTiles(MetaTileKey key, final RenderedImage[] tiles) {
+        tileCache.remove(key);
+        try {
+            getTiles(key, new Callable<RenderedImage[]>() {
+                public RenderedImage[] call() throws Exception {
+                    return tiles;
+                }
+            });
+        } catch (IOException e) {
+            // cannot happen, the tiles are already there
+            throw new RuntimeException(e);
+        }
     }
 
-    class CacheElement {
+    static class CacheElement {
         RenderedImage[] tiles;
-
-        public CacheElement(RenderedImage[] tiles) {
+        
+        long size;
+        
+        /**
+         * The value of the change counter when the rendering started
+         */
+        long generation;
+
+        public CacheElement(RenderedImage[] tiles, long generation) {
             this.tiles = tiles;
+            this.size = computeSize(tiles);
+            this.generation = generation;
         }
     }
+    
+    /**
+     * Estimates the memory used by the tile rasters
+     */
+    static long computeSize(RenderedImage[] tiles) {
+        long size = 0;
+        for (RenderedImage tile : tiles) {
+            if (tile == null) {
+                continue;
+            }
+            SampleModel sm = tile.getSampleModel();
+            long bits = 0;
+            for (int sampleSize : sm.getSampleSize()) {
+                bits += sampleSize;
+            }
+            size += tile.getWidth() * (long) tile.getHeight() * bits / 8;
+        }
+        return size;
+    }
 
     public void dataStoreChange(TransactionEvent event) throws WFSException {
-        // if anything changes we just wipe out the cache. the mapkey
-        // contains a string with part of the map request where the layer
-        // name is included, but we would have to parse it and consider
-        // also that the namespace may be missing in the getmap request
-        tileCache.clear();
+        QName layerName = event.getLayerName();
+        if (layerName == null) {
+            clear();
+            return;
+        }
+        
+        // drop only the meta tiles containing the modified layer, the ones still being rendered
+        // are dropped on their first use
+        layerChanges.put(layerName, changes.incrementAndGet());
+        int removed = 0;
+        for (MetaTileKey key : tileCache.asMap().keySet()) {
+            if (key.dependsOn(layerName)) {
+                tileCache.remove(key);
+                removed++;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE) && removed > 0) {
+            LOGGER.fine("Removed " + removed + " meta tiles after a change to " + layerName);
+        }
     }
 }
@@ -379,11 +379,18 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
 
         RenderingHints hints = new RenderingHints(hintsMap);
         GTRenderer renderer;
+        RenderingPool.RequestExecutor executor = null;
         if (DefaultWebMapService.useShapefileRenderer()) {
             renderer = new ShapefileRenderer();
         } else {
             StreamingRenderer sr = new StreamingRenderer();
-            sr.setThreadPool(DefaultWebMapService.getRenderingPool());
+            // paint on the shared pool, if all its threads are busy the painter waits in
+            // its queue
+            RenderingPool pool = DefaultWebMapService.getRenderingPool();
+            if (pool != null) {
+                executor = pool.reserve();
+                sr.setThreadPool(executor);
+            }
             renderer = sr;
         }
         renderer.setContext(mapContext);
@@ -463,6 +470,7 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
                 graphic);
         timeout.start();
+        long renderingStart = System.currentTimeMillis();
         try {
             // finally render the image;
             renderer.paint(graphic, paintArea, mapContext.getRenderingArea(),
@@ -479,6 +487,14 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         } finally {
             timeout.stop();
             graphic.dispose();
+            if (executor != null) {
+                executor.release();
+            }
+            RenderingPool pool = DefaultWebMapService.getRenderingPool();
+            if (pool != null) {
+                pool.renderingCompleted(System.currentTimeMillis() - renderingStart,
+                        mapContext.getLayerCount());
+            }
         }
 
         // check if the request did timeout
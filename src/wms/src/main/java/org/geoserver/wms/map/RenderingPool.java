@@ -0,0 +1,281 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread pool shared by the renderers of all the map requests.
+ * <p>
+ * The pool has a fixed number of threads (by default, one per core). Each request gets an
+ * executor via {@link #reserve()} that runs one of its tasks at a time, which is what the
+ * streaming renderer needs for its painter. When all the threads are busy the tasks wait in the
+ * pool queue, so the number of rendering threads stays bounded no matter how many requests are
+ * running.
+ * </p>
+ * <p>
+ * The pool also keeps some statistics about its usage and the rendering times.
+ * </p>
+ */
+public class RenderingPool extends ThreadPoolExecutor {
+
+    /**
+     * The executor handed to the renderer of a single request, running its tasks one at a time
+     * on the shared pool
+     */
+    public class RequestExecutor extends AbstractExecutorService {
+        boolean running;
+
+        LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+
+        boolean released;
+
+        public synchronized void execute(final Runnable command) {
+            if (released) {
+                throw new IllegalStateException("The rendering executor has been released");
+            }
+            if (running) {
+                waiting.add(command);
+            } else {
+                running = true;
+                submitTask(command);
+            }
+        }
+
+        void submitTask(final Runnable command) {
+            RenderingPool.this.execute(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        taskCompleted();
+                    }
+                }
+            });
+        }
+
+        synchronized void taskCompleted() {
+            Runnable next = waiting.poll();
+            if (next != null) {
+                submitTask(next);
+            } else {
+                running = false;
+                if (released) {
+                    requests.decrementAndGet();
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Signals the rendering is done, a task still running is accounted for until it
+         * completes
+         */
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                if (!running) {
+                    requests.decrementAndGet();
+                }
+            }
+        }
+
+        public void shutdown() {
+            release();
+        }
+
+        public List<Runnable> shutdownNow() {
+            List<Runnable> pending;
+            synchronized (this) {
+                pending = new LinkedList<Runnable>(waiting);
+                waiting.clear();
+            }
+            release();
+            return pending;
+        }
+
+        public synchronized boolean isShutdown() {
+            return released;
+        }
+
+        public synchronized boolean isTerminated() {
+            return released && !running;
+        }
+
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!isTerminated()) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(Math.min(wait, 100));
+            }
+            return true;
+        }
+    }
+
+    volatile int maxThreads;
+
+    AtomicInteger requests = new AtomicInteger();
+
+    AtomicLong reservations = new AtomicLong();
+
+    AtomicLong queuedRequests = new AtomicLong();
+
+    AtomicLong renderings = new AtomicLong();
+
+    AtomicLong renderedLayers = new AtomicLong();
+
+    AtomicLong totalRenderingTime = new AtomicLong();
+
+    volatile long maxRenderingTime;
+
+    /**
+     * Creates a pool with the specified number of threads
+     */
+    public RenderingPool(int maxThreads) {
+        super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "GeoServer rendering " + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        allowCoreThreadTimeOut(true);
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * Returns the executor a request renderer should use. If all the threads are already in use
+     * by other requests its tasks will wait in the pool queue.
+     * 
+     * @return the executor to be used by the request renderer, it must be released once the
+     *         rendering is done
+     */
+    public RequestExecutor reserve() {
+        reservations.incrementAndGet();
+        if (requests.incrementAndGet() > maxThreads) {
+            queuedRequests.incrementAndGet();
+        }
+        return new RequestExecutor();
+    }
+
+    /**
+     * Changes the number of threads in the pool
+     */
+    public synchronized void setMaxThreads(int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("The number of rendering threads must be positive");
+        }
+        if (maxThreads == this.maxThreads) {
+            return;
+        }
+        if (maxThreads > this.maxThreads) {
+            setMaximumPoolSize(maxThreads);
+            setCorePoolSize(maxThreads);
+        } else {
+            setCorePoolSize(maxThreads);
+            setMaximumPoolSize(maxThreads);
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * The number of requests currently using the pool
+     */
+    public int getRenderingRequests() {
+        return requests.get();
+    }
+
+    /**
+     * The number of tasks waiting for a thread in the shared queue
+     */
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    /**
+     * The number of requests that used the pool
+     */
+    public long getReservationCount() {
+        return reservations.get();
+    }
+
+    /**
+     * The number of requests that found all the threads in use and had to queue their tasks
+     */
+    public long getQueuedRequestCount() {
+        return queuedRequests.get();
+    }
+
+    /**
+     * Accounts a map rendering
+     *
+     * @param time The rendering time, in milliseconds
+     * @param layers The number of layers rendered
+     */
+    public void renderingCompleted(long time, int layers) {
+        renderings.incrementAndGet();
+        renderedLayers.addAndGet(layers);
+        totalRenderingTime.addAndGet(time);
+        if (time > maxRenderingTime) {
+            maxRenderingTime = time;
+        }
+    }
+
+    /**
+     * The number of maps rendered
+     */
+    public long getRenderingCount() {
+        return renderings.get();
+    }
+
+    /**
+     * The average map rendering time, in milliseconds
+     */
+    public double getAverageRenderingTime() {
+        long count = renderings.get();
+        return count > 0 ? (double) totalRenderingTime.get() / count : 0;
+    }
+
+    /**
+     * The average rendering time of a single layer, in milliseconds
+     */
+    public double getAverageLayerRenderingTime() {
+        long count = renderedLayers.get();
+        return count > 0 ? (double) totalRenderingTime.get() / count : 0;
+    }
+
+    /**
+     * The longest map rendering time, in milliseconds
+     */
+    public long getMaxRenderingTime() {
+        return maxRenderingTime;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderingPool(threads=" + maxThreads + ",active=" + getActiveCount()
+                + ",requests=" + getRenderingRequests() + ",queued=" + getQueueSize()
+                + ",queuedRequests=" + getQueuedRequestCount() + ")";
+    }
+}
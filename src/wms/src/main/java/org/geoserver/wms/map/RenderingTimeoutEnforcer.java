@@ -5,15 +5,18 @@
 package org.geoserver.wms.map;
 
 import java.awt.Graphics;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import org.geoserver.util.TimeoutScheduler;
 import org.geotools.renderer.GTRenderer;
 
 /**
  * An utility class that can be used to set a strict timeout on rendering operations:
  * if the timeout elapses, the renderer will be asked to stop rendering and the graphics
  * will be disposed of to make extra sure the renderer cannot keep going on.
+ * <p>
+ * The timeouts are tracked by the shared {@link TimeoutScheduler}, no thread is created
+ * per request.
+ * </p>
  * @author Andrea Aime - OpenGeo
  */
 public class RenderingTimeoutEnforcer {
@@ -21,8 +24,8 @@ public class RenderingTimeoutEnforcer {
     long timeout;
     GTRenderer renderer;
     Graphics graphics;
-    Timer timer;
-    boolean timedOut = false;
+    TimeoutScheduler.Timeout scheduled;
+    volatile boolean timedOut = false;
 
     public RenderingTimeoutEnforcer(long timeout, GTRenderer renderer, Graphics graphics) {
         this.timeout = timeout;
@@ -34,13 +37,12 @@ public class RenderingTimeoutEnforcer {
      * Starts checking the rendering timeout (if timeout is positive, does nothing otherwise)
      */
     public void start() {
-        if(timer != null)
+        if(scheduled != null)
             throw new IllegalStateException("The timeout enforcer has already been started");
         
         if(timeout > 0) {
             timedOut = false;
-            timer = new Timer();
-            timer.schedule(new StopRenderingTask(), timeout);
+            scheduled = TimeoutScheduler.get().schedule(new StopRenderingTask(), timeout);
         }
     }
     
@@ -48,11 +50,9 @@ public class RenderingTimeoutEnforcer {
      * Stops the timeout check
      */
     public void stop() {
-        if(timer != null) {
-            timer.cancel();
-            timer.purge();
-            // timer.getTheHellOutOfDodge();
-            timer = null;
+        if(scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
         }
     }
     
@@ -63,9 +63,8 @@ public class RenderingTimeoutEnforcer {
         return timedOut;
     }
     
-    class StopRenderingTask extends TimerTask {
+    class StopRenderingTask implements Runnable {
 
-        @Override
         public void run() {
             // mark as timed out
             timedOut = true;
@@ -0,0 +1,93 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.kml;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class RegionatingTileIndexTest extends TestCase {
+
+    File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("regionating", ".tiles");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testTileAssignment() throws Exception {
+        RegionatingTileIndex.Builder builder = new RegionatingTileIndex.Builder(2, new Envelope(
+                0, 10, 0, 10));
+        // the smallest tile containing the data is 11.25 degrees wide
+        assertEquals(4, builder.rootLevel);
+
+        assertEquals(new RegionatingTileIndex.TileKey(16, 8, 4), builder.add("f1", 1, 1));
+        assertEquals(new RegionatingTileIndex.TileKey(16, 8, 4), builder.add("f2", 2, 2));
+        // root is full, the next ones are pushed down
+        assertEquals(new RegionatingTileIndex.TileKey(32, 16, 5), builder.add("f3", 3, 3));
+        assertEquals(new RegionatingTileIndex.TileKey(33, 17, 5), builder.add("f4", 9, 9));
+        assertEquals(new RegionatingTileIndex.TileKey(33, 17, 5), builder.add("f5", 8, 8));
+        builder.write(file);
+
+        RegionatingTileIndex index = RegionatingTileIndex.open(file);
+        assertEquals(2, index.getFeaturesPerTile());
+        assertEquals(3, index.getTileCount());
+        assertEquals(set("f1", "f2"), index.getFids(16, 8, 4));
+        assertEquals(set("f3"), index.getFids(32, 16, 5));
+        assertEquals(set("f4", "f5"), index.getFids(33, 17, 5));
+        assertTrue(index.getFids(32, 17, 5).isEmpty());
+        assertTrue(index.getFids(66, 34, 6).isEmpty());
+
+        // tiles above the root return the root contents, the others are empty
+        assertEquals(set("f1", "f2"), index.getFids(1, 0, 0));
+        assertTrue(index.getFids(0, 0, 0).isEmpty());
+    }
+
+    public void testCompressedIds() throws Exception {
+        RegionatingTileIndex.Builder builder = new RegionatingTileIndex.Builder(1000,
+                new Envelope(0, 10, 0, 10));
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 500; i++) {
+            expected.add("Stacked." + i);
+        }
+        expected.add("Stacked");
+        expected.add("città.1");
+        expected.add("città.12");
+        expected.add("");
+        for (String fid : expected) {
+            builder.add(fid, 5, 5);
+        }
+        builder.write(file);
+
+        RegionatingTileIndex index = RegionatingTileIndex.open(file);
+        assertEquals(1, index.getTileCount());
+        assertEquals(expected, index.getFids(16, 8, 4));
+        // front coding keeps the file much smaller than the plain ids
+        assertTrue(file.length() < 500 * "Stacked.000".length());
+    }
+
+    public void testInvalidFile() throws Exception {
+        try {
+            RegionatingTileIndex.open(file);
+            fail("An empty file is not a valid index");
+        } catch (Exception e) {
+            // fine
+        }
+    }
+
+    Set<String> set(String... fids) {
+        return new HashSet<String>(Arrays.asList(fids));
+    }
+}
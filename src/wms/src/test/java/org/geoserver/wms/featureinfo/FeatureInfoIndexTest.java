@@ -0,0 +1,184 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.Test;
+import net.opengis.wfs.InsertElementType;
+import net.opengis.wfs.TransactionType;
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.MockData;
+import org.geoserver.security.CatalogMode;
+import org.geoserver.security.VectorAccessLimits;
+import org.geoserver.security.WrapperPolicy;
+import org.geoserver.security.decorators.SecuredFeatureTypeInfo;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wms.GetFeatureInfo;
+import org.geoserver.wms.WMSTestSupport;
+import org.geotools.data.FeatureSource;
+import org.opengis.feature.Feature;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class FeatureInfoIndexTest extends WMSTestSupport {
+
+    FeatureTypeInfo forests;
+
+    /**
+     * This is a READ ONLY TEST so we can use one time setup
+     */
+    public static Test suite() {
+        return new OneTimeTestSetup(new FeatureInfoIndexTest());
+    }
+
+    @Override
+    protected void setUpInternal() throws Exception {
+        super.setUpInternal();
+        forests = getCatalog().getFeatureTypeByName(getLayerId(MockData.FORESTS));
+    }
+
+    public void testDisabled() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(0);
+        assertFalse(index.isEnabled());
+        assertNull(index.getCandidates(forests, new Envelope(-1, 1, -1, 1)));
+    }
+
+    public void testCandidates() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024);
+        List<FeatureId> candidates = index.getCandidates(forests, new Envelope(-0.0001, 0.0001,
+                -0.0001, 0.0001));
+        assertFalse(candidates.isEmpty());
+        assertTrue(index.getCandidates(forests, new Envelope(100, 101, 100, 101))
+                .isEmpty());
+        // the index has been built only once
+        assertEquals(1, index.getStatistics().getLoadCount());
+    }
+
+    public void testTooBig() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(10);
+        assertNull(index.getCandidates(forests, new Envelope(-1, 1, -1, 1)));
+        assertNull(index.getCandidates(forests, new Envelope(-1, 1, -1, 1)));
+        assertEquals(1, index.getStatistics().getLoadCount());
+    }
+
+    public void testTransaction() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024);
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+
+        // a change to another layer does not matter
+        TransactionType t = WfsFactory.eINSTANCE.createTransactionType();
+        InsertElementType insert = WfsFactory.eINSTANCE.createInsertElementType();
+        t.getInsert().add(insert);
+        TransactionEvent event = new TransactionEvent(TransactionEventType.POST_INSERT,
+                MockData.LAKES, null);
+        event.setSource(insert);
+        index.dataStoreChange(event);
+        index.afterTransaction(t, true);
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(1, index.getStatistics().getLoadCount());
+
+        // the index is dropped only once the change is committed
+        event = new TransactionEvent(TransactionEventType.POST_INSERT, MockData.FORESTS, null);
+        event.setSource(insert);
+        index.dataStoreChange(event);
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(1, index.getStatistics().getLoadCount());
+        index.afterTransaction(t, true);
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(2, index.getStatistics().getLoadCount());
+
+        // a rolled back change does not matter
+        index.dataStoreChange(event);
+        index.afterTransaction(t, false);
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(2, index.getStatistics().getLoadCount());
+        assertTrue(index.pendingChanges.isEmpty());
+    }
+
+    public void testFailedCommit() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024);
+        InsertElementType insert = WfsFactory.eINSTANCE.createInsertElementType();
+        TransactionEvent event = new TransactionEvent(TransactionEventType.POST_INSERT,
+                MockData.FORESTS, null);
+        event.setSource(insert);
+        index.dataStoreChange(event);
+        assertEquals(1, index.pendingChanges.size());
+
+        // the transaction never gets to afterTransaction, the entry goes away with the request
+        insert = null;
+        event = null;
+        for (int i = 0; i < 10 && !index.pendingChanges.isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertTrue(index.pendingChanges.isEmpty());
+    }
+
+    public void testStaleBuild() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024) {
+            @Override
+            LayerIndex buildIndex(FeatureTypeInfo info,
+                    FeatureSource<? extends FeatureType, ? extends Feature> source)
+                    throws IOException {
+                LayerIndex result = super.buildIndex(info, source);
+                if (getStatistics().getLoadCount() == 0) {
+                    // the layer gets committed while the first build is running
+                    invalidate(MockData.FORESTS);
+                }
+                return result;
+            }
+        };
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(2, index.getStatistics().getLoadCount());
+        index.getCandidates(forests, new Envelope(-1, 1, -1, 1));
+        assertEquals(2, index.getStatistics().getLoadCount());
+    }
+
+    public void testSecuredLayer() throws Exception {
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024);
+        // a user that cannot see any forest still shares the index built from the raw data
+        VectorAccessLimits limits = new VectorAccessLimits(CatalogMode.HIDE, null,
+                Filter.EXCLUDE, null, null);
+        FeatureTypeInfo secured = new SecuredFeatureTypeInfo(forests, WrapperPolicy
+                .readOnlyHide(limits));
+        assertFalse(index.getCandidates(secured, new Envelope(-1, 1, -1, 1)).isEmpty());
+        assertFalse(index.getCandidates(forests, new Envelope(-1, 1, -1, 1)).isEmpty());
+        assertEquals(1, index.getStatistics().getLoadCount());
+    }
+
+    public void testGetFeatureInfo() throws Exception {
+        GetFeatureInfo getFeatureInfo = (GetFeatureInfo) applicationContext
+                .getBean("wmsGetFeatureInfo");
+        FeatureInfoIndex original = getFeatureInfo.getFeatureInfoIndex();
+        FeatureInfoIndex index = new FeatureInfoIndex(1024 * 1024);
+        getFeatureInfo.setFeatureInfoIndex(index);
+        try {
+            String layer = getLayerId(MockData.FORESTS);
+            String request = "wms?version=1.1.1&bbox=-0.002,-0.002,0.002,0.002&styles=&format=jpeg"
+                    + "&info_format=text/plain&request=GetFeatureInfo&layers=" + layer
+                    + "&query_layers=" + layer + "&width=20&height=20&x=10&y=10";
+            String result = getAsString(request);
+            assertTrue(result.indexOf("Green Forest") > 0);
+            assertEquals(1, index.getStatistics().getLoadCount());
+
+            // far away from the forest
+            request = "wms?version=1.1.1&bbox=10,10,10.002,10.002&styles=&format=jpeg"
+                    + "&info_format=text/plain&request=GetFeatureInfo&layers=" + layer
+                    + "&query_layers=" + layer + "&width=20&height=20&x=10&y=10";
+            result = getAsString(request);
+            assertTrue(result.indexOf("Green Forest") < 0);
+        } finally {
+            getFeatureInfo.setFeatureInfoIndex(original);
+        }
+    }
+}
@@ -6,9 +6,20 @@ package org.geoserver.wms.map;
 
 import java.awt.Point;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import javax.xml.namespace.QName;
 
 import junit.framework.TestCase;
 
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wms.map.QuickTileCache.MapKey;
+import org.geoserver.wms.map.QuickTileCache.MetaTileKey;
+
 import com.vividsolutions.jts.geom.Envelope;
 
 public class QuickTileCacheTest extends TestCase {
@@ -53,4 +64,72 @@ public class QuickTileCacheTest extends TestCase {
         tc = cache.getTileCoordinates(env, origin);
         assertEquals(new Point(-1, -1), tc);
     }
+
+    public void testSizeBounded() throws Exception {
+        // a 3x3 meta tile of 256x256 RGBA tiles is 9 * 256 * 256 * 4 bytes
+        long metaTileSize = 9 * 256 * 256 * 4;
+        QuickTileCache cache = new QuickTileCache(metaTileSize * 2);
+
+        MetaTileKey k1 = key("a", 0);
+        MetaTileKey k2 = key("a", 3);
+        MetaTileKey k3 = key("a", 6);
+        cache.storeTiles(k1, tiles());
+        cache.storeTiles(k2, tiles());
+        assertEquals(metaTileSize * 2, cache.getStatistics().getWeight());
+
+        cache.storeTiles(k3, tiles());
+        assertEquals(2, cache.getStatistics().getSize());
+        assertEquals(metaTileSize * 2, cache.getStatistics().getWeight());
+        assertNull(cache.getTile(k1, null));
+    }
+
+    public void testLayerInvalidation() throws Exception {
+        MetaTileKey k1 = key("a", 0);
+        MetaTileKey k2 = key("b", 0);
+        MetaTileKey unknown = key(null, 3);
+        cache.storeTiles(k1, tiles());
+        cache.storeTiles(k2, tiles());
+        cache.storeTiles(unknown, tiles());
+
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_UPDATE, new QName(
+                "http://test", "a"), null));
+        assertEquals(1, cache.getStatistics().getSize());
+        assertNotNull(cache.getTiles(k2, null));
+    }
+
+    public void testInvalidationDuringRendering() throws Exception {
+        final MetaTileKey k1 = key("a", 0);
+        final int[] renderings = new int[1];
+        Callable<RenderedImage[]> loader = new Callable<RenderedImage[]>() {
+            public RenderedImage[] call() throws Exception {
+                if (renderings[0]++ == 0) {
+                    // the layer changes while the first rendering is running
+                    cache.dataStoreChange(new TransactionEvent(TransactionEventType.PRE_UPDATE,
+                            new QName("http://test", "a"), null));
+                }
+                return tiles();
+            }
+        };
+        cache.getTiles(k1, loader);
+        assertEquals(2, renderings[0]);
+        cache.getTiles(k1, loader);
+        assertEquals(2, renderings[0]);
+    }
+
+    MetaTileKey key(String layer, int x) {
+        MapKey mapKey = new MapKey("LAYERS=" + layer, 1, new Point2D.Double(0, 0));
+        MetaTileKey key = new MetaTileKey(mapKey, new Point(x, 0), null);
+        if (layer != null) {
+            key.layers = Collections.singleton(new QName("http://test", layer));
+        }
+        return key;
+    }
+
+    RenderedImage[] tiles() {
+        RenderedImage[] tiles = new RenderedImage[9];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        }
+        return tiles;
+    }
 }
@@ -0,0 +1,157 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class RenderingPoolTest extends TestCase {
+
+    RenderingPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new RenderingPool(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    public void testReserve() throws Exception {
+        RenderingPool.RequestExecutor e1 = pool.reserve();
+        RenderingPool.RequestExecutor e2 = pool.reserve();
+        RenderingPool.RequestExecutor e3 = pool.reserve();
+        assertEquals(3, pool.getRenderingRequests());
+        assertEquals(0, pool.getQueuedRequestCount());
+
+        // saturated, the request still gets an executor but will have to wait
+        RenderingPool.RequestExecutor e4 = pool.reserve();
+        assertNotNull(e4);
+        assertEquals(1, pool.getQueuedRequestCount());
+        assertEquals(4, pool.getReservationCount());
+
+        e1.release();
+        e2.release();
+        e3.release();
+        e4.release();
+        assertEquals(0, pool.getRenderingRequests());
+    }
+
+    public void testOneTaskAtATime() throws Exception {
+        RenderingPool.RequestExecutor executor = pool.reserve();
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    int current = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), current));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        // fine
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+
+        executor.release();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getRenderingRequests());
+    }
+
+    public void testSaturatedPoolQueues() throws Exception {
+        pool.setMaxThreads(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        RenderingPool.RequestExecutor busy = pool.reserve();
+        busy.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    // fine
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the task of the second request waits in the pool queue, no extra thread is started
+        final CountDownLatch done = new CountDownLatch(1);
+        RenderingPool.RequestExecutor waiting = pool.reserve();
+        waiting.submit(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertEquals(1, pool.getQueueSize());
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getPoolSize());
+
+        finish.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        busy.release();
+        waiting.release();
+    }
+
+    public void testReleaseWhileRunning() throws Exception {
+        RenderingPool.RequestExecutor executor = pool.reserve();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    // fine
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the request is accounted for until the running task is done
+        executor.release();
+        assertEquals(1, pool.getRenderingRequests());
+        finish.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getRenderingRequests());
+    }
+
+    public void testResize() throws Exception {
+        pool.setMaxThreads(1);
+        assertEquals(1, pool.getMaximumPoolSize());
+        pool.reserve();
+        pool.reserve();
+        assertEquals(1, pool.getQueuedRequestCount());
+
+        pool.setMaxThreads(4);
+        assertEquals(4, pool.getMaxThreads());
+        assertEquals(4, pool.getCorePoolSize());
+    }
+
+    public void testStatistics() throws Exception {
+        pool.renderingCompleted(100, 2);
+        pool.renderingCompleted(300, 2);
+        assertEquals(2, pool.getRenderingCount());
+        assertEquals(200.0, pool.getAverageRenderingTime());
+        assertEquals(100.0, pool.getAverageLayerRenderingTime());
+        assertEquals(300, pool.getMaxRenderingTime());
+    }
+}